@@ -0,0 +1,75 @@
+package net.verdx.libstreaming.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.verdx.libstreaming.rtp.AACADTSPacketizer;
+import net.verdx.libstreaming.rtp.AACLATMPacketizer;
+import net.verdx.libstreaming.rtp.AbstractPacketizer;
+import net.verdx.libstreaming.rtp.RtpSocket;
+
+/**
+ * Empaquetado de un segundo de audio AAC: de un stream ADTS (AACADTSPacketizer, que busca la
+ * sincronizacion byte a byte) o de los frames del encoder (AACLATMPacketizer). Igual que en el
+ * video, sin red ni pacing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class AacPacketizerBenchmark {
+
+    @Param({"adts", "latm"})
+    public String format;
+
+    private SampleInputStream mInput;
+    private AbstractPacketizer mPacketizer;
+
+    @Setup
+    public void setUp() throws IOException {
+        if (format.equals("adts")) {
+            mInput = new SampleInputStream(Samples.adts());
+            AACADTSPacketizer packetizer = new AACADTSPacketizer();
+            packetizer.setSamplingRate(Samples.AAC_SAMPLING_RATE);
+            mPacketizer = packetizer;
+        } else {
+            mInput = new SampleInputStream(Samples.aac());
+            AACLATMPacketizer packetizer = new AACLATMPacketizer();
+            packetizer.setSamplingRate(Samples.AAC_SAMPLING_RATE);
+            mPacketizer = packetizer;
+        }
+        RtpSocket socket = mPacketizer.getRtpSocket();
+        socket.setInterleavedChannel(new CountingChannel(), (byte) 0);
+        socket.setTargetBitrate(Integer.MAX_VALUE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mPacketizer.getRtpSocket().close();
+    }
+
+    /** One second of audio, the packetizer returns at the end of the sample. */
+    @Benchmark
+    public void packetizeSecond() throws IOException {
+        mInput.rewind();
+        mPacketizer.setInputStream(mInput);
+        ((Runnable) mPacketizer).run();
+        // The LATM packetizer requests a buffer before reading, the one it held at the end goes back to the FIFO
+        if (mPacketizer instanceof AACLATMPacketizer) mPacketizer.getRtpSocket().commitBuffer();
+    }
+}
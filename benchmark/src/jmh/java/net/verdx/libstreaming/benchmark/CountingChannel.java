@@ -0,0 +1,21 @@
+package net.verdx.libstreaming.benchmark;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.verdx.libstreaming.rtp.InterleavedChannel;
+
+/** Conexion interleaved que acepta y descarta todo, contando los paquetes. */
+public class CountingChannel implements InterleavedChannel {
+
+    private final AtomicLong mPackets = new AtomicLong();
+
+    @Override
+    public boolean write(int channelIdentifier, byte[] buffer, int offset, int length) {
+        mPackets.incrementAndGet();
+        return true;
+    }
+
+    public long getPackets() {
+        return mPackets.get();
+    }
+}
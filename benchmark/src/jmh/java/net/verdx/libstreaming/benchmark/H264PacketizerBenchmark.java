@@ -0,0 +1,58 @@
+package net.verdx.libstreaming.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.verdx.libstreaming.rtp.H264Packetizer;
+import net.verdx.libstreaming.rtp.RtpSocket;
+
+/**
+ * Empaquetado de un segundo de video H.264 (NAL units sueltas y FU-A) hasta que sale del
+ * RtpSocket. El socket envia a una conexion interleaved que descarta los paquetes y sin pacing,
+ * asi se mide la CPU del empaquetado y del hilo del socket, no la red.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class H264PacketizerBenchmark {
+
+    private SampleInputStream mInput;
+    private H264Packetizer mPacketizer;
+
+    @Setup
+    public void setUp() throws IOException {
+        mInput = new SampleInputStream(Samples.h264());
+        mPacketizer = new H264Packetizer();
+        RtpSocket socket = mPacketizer.getRtpSocket();
+        socket.setInterleavedChannel(new CountingChannel(), (byte) 0);
+        socket.setTargetBitrate(Integer.MAX_VALUE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mPacketizer.getRtpSocket().close();
+    }
+
+    /** One second of video, the packetizer returns at the end of the sample. */
+    @Benchmark
+    public void packetizeSecond() {
+        mInput.rewind();
+        mPacketizer.setInputStream(mInput);
+        mPacketizer.run();
+    }
+}
@@ -0,0 +1,110 @@
+package net.verdx.libstreaming.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.verdx.libstreaming.rtp.AbstractPacketizer;
+import net.verdx.libstreaming.rtp.ByteBufferInputStream;
+import net.verdx.libstreaming.rtp.H264Packetizer;
+import net.verdx.libstreaming.rtp.MediaCodecBufferReader;
+import net.verdx.libstreaming.rtp.MediaCodecInputStream;
+
+/**
+ * Reparto de la salida del encoder a N packetizers: el MediaCodecBufferReader lee un segundo de
+ * video del encoder y copia cada buffer en la cola de cada suscriptor, que lo lee en su propio
+ * hilo como lo haria su packetizer. Cada operacion acaba cuando todos lo han leido entero.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MediaCodecBufferReaderBenchmark {
+
+    /** Read buffer of the video dispatcher. */
+    private static final int BUFFER_SIZE = 64000;
+
+    @Param({"1", "4", "16"})
+    public int subscribers;
+
+    private List<Samples.Unit> mOutput;
+    private long mOutputBytes = 0;
+    private final Map<AbstractPacketizer, InputStream> mInputs = new HashMap<>();
+    private final List<Thread> mReaders = new ArrayList<>();
+    private final List<AtomicLong> mRead = new ArrayList<>();
+    private long mExpected = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mOutput = Samples.encoderOutput(Samples.h264());
+        for (Samples.Unit unit : mOutput) mOutputBytes += unit.data.length;
+
+        for (int i = 0; i < subscribers; i++) {
+            final ByteBufferInputStream input = new ByteBufferInputStream();
+            final AtomicLong read = new AtomicLong();
+            mInputs.put(new H264Packetizer(), input);
+            mRead.add(read);
+            Thread reader = new Thread(() -> {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                try {
+                    while (true) read.addAndGet(input.read(buffer, 0, buffer.length));
+                } catch (IOException closed) {
+                    // End of the trial
+                }
+            }, "subscriber-" + i);
+            reader.setDaemon(true);
+            reader.start();
+            mReaders.add(reader);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        for (Map.Entry<AbstractPacketizer, InputStream> entry : mInputs.entrySet()) {
+            entry.getValue().close();
+            entry.getKey().getRtpSocket().close();
+        }
+        for (Thread reader : mReaders) {
+            reader.interrupt();
+            reader.join(1000);
+        }
+    }
+
+    @Benchmark
+    public void dispatchSecond() {
+        final MediaCodecInputStream[] input = new MediaCodecInputStream[1];
+        input[0] = new MediaCodecInputStream(new RecordedCodec(mOutput, () -> {
+            try {
+                input[0].close();
+            } catch (IOException ignored) {}
+        }));
+        new MediaCodecBufferReader("benchmark", BUFFER_SIZE, input[0], mInputs).run();
+
+        mExpected += mOutputBytes;
+        for (AtomicLong read : mRead) {
+            while (read.get() < mExpected) LockSupport.parkNanos(1000);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package net.verdx.libstreaming.benchmark;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Encoder que devuelve como buffers de salida los de una muestra, uno por llamada, y despues
+ * avisa del final para que se cierre el MediaCodecInputStream que lo lee.
+ */
+public class RecordedCodec extends MediaCodec {
+
+    private final List<Samples.Unit> mOutput;
+    private final ByteBuffer[] mBuffers;
+    private final Runnable mOnEnd;
+    private int mNext = 0;
+
+    public RecordedCodec(List<Samples.Unit> output, Runnable onEnd) {
+        mOutput = output;
+        mOnEnd = onEnd;
+        mBuffers = new ByteBuffer[output.size()];
+        for (int i = 0; i < mBuffers.length; i++) {
+            mBuffers[i] = ByteBuffer.wrap(output.get(i).data);
+        }
+    }
+
+    @Override
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        if (mNext >= mOutput.size()) {
+            mOnEnd.run();
+            return INFO_TRY_AGAIN_LATER;
+        }
+        Samples.Unit unit = mOutput.get(mNext);
+        info.set(0, unit.data.length, unit.ptsUs, 0);
+        return mNext++;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        mBuffers[index].clear();
+        return mBuffers[index];
+    }
+}
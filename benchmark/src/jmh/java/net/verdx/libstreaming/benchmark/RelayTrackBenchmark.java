@@ -0,0 +1,75 @@
+package net.verdx.libstreaming.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import net.verdx.libstreaming.relay.RelayTrack;
+import net.verdx.libstreaming.rtp.EgressScheduler;
+import net.verdx.libstreaming.rtp.RtpPacket;
+
+/**
+ * Paquetes por segundo reenviados por UDP a loopback: cada paquete se reescribe con el SSRC y
+ * la secuencia del track, entra en su cola y el RelayPacer lo envia al ritmo del token bucket.
+ * El benchmark solo anade paquetes mientras la cola tiene menos de {@link #QUEUE_TARGET}, asi
+ * la entrada sigue a la salida y el pacing (2.5 veces la entrada) no es lo que limita. El
+ * token bucket parte del minimo y tarda unos segundos en subir, de ahi el calentamiento largo.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 10, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RelayTrackBenchmark {
+
+    /** Packets kept queued in the track. */
+    private static final int QUEUE_TARGET = 64;
+
+    private List<RtpPacket> mPackets;
+    private DatagramChannel mRtpSink;
+    private DatagramChannel mRtcpSink;
+    private RelayTrack mTrack;
+    private int mNext = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        mPackets = Samples.rtp(Samples.h264(), 0x0BADCAFE);
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        mRtpSink = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+        mRtcpSink = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+        mTrack = new RelayTrack(loopback, mRtpSink.socket().getLocalPort(), mRtcpSink.socket().getLocalPort(),
+                90000, EgressScheduler.PRIORITY_VIDEO_BASE);
+        mTrack.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mTrack.release();
+        mRtpSink.close();
+        mRtcpSink.close();
+    }
+
+    @Benchmark
+    public void relayPacket() {
+        while (mTrack.getQueuedPackets() >= QUEUE_TARGET) LockSupport.parkNanos(1000);
+        mTrack.onRtpPacket(mPackets.get(mNext));
+        if (++mNext == mPackets.size()) mNext = 0;
+    }
+}
@@ -0,0 +1,84 @@
+package net.verdx.libstreaming.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+import net.verdx.libstreaming.rtp.RtpSocket;
+
+/**
+ * Paquetes por segundo que pasan por la FIFO del RtpSocket: requestBuffer/commitBuffer en el
+ * hilo del packetizer y el envio en el del socket, por UDP a loopback o a una conexion
+ * interleaved que los descarta. Sin pacing, la FIFO llena frena al que pide buffers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RtpSocketBenchmark {
+
+    private static final int PACKET_LENGTH = 1200;
+    /** A frame every this many packets, at 90 kHz and 30 fps. */
+    private static final int PACKETS_PER_FRAME = 8;
+
+    @Param({"udp", "interleaved"})
+    public String transport;
+
+    private RtpSocket mSocket;
+    private DatagramChannel mRtpSink;
+    private DatagramChannel mRtcpSink;
+    private long mTimestampNs = 0;
+    private int mCount = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        mSocket = new RtpSocket();
+        mSocket.setSSRC(0x12345678);
+        mSocket.setClockFrequency(90000);
+        mSocket.setTargetBitrate(Integer.MAX_VALUE);
+        if (transport.equals("udp")) {
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            mRtpSink = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+            mRtcpSink = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+            mSocket.setDestination(loopback, mRtpSink.socket().getLocalPort(), mRtcpSink.socket().getLocalPort());
+        } else {
+            mSocket.setInterleavedChannel(new CountingChannel(), (byte) 0);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mSocket.close();
+        if (mRtpSink != null) mRtpSink.close();
+        if (mRtcpSink != null) mRtcpSink.close();
+    }
+
+    @Benchmark
+    public byte[] requestCommit() throws Exception {
+        byte[] buffer = mSocket.requestBuffer();
+        if (++mCount % PACKETS_PER_FRAME == 0) {
+            mSocket.markNextPacket();
+            mTimestampNs += 1000000000L / 30;
+        }
+        mSocket.updateTimestamp(mTimestampNs);
+        mSocket.commitBuffer(PACKET_LENGTH);
+        return buffer;
+    }
+}
@@ -0,0 +1,121 @@
+package net.verdx.libstreaming.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import net.verdx.libstreaming.packets.DataReceived;
+import net.verdx.libstreaming.threads.selectors.AbstractSelector;
+import net.verdx.libstreaming.threads.workers.RTSPServerWorker;
+
+/**
+ * Parseo y respuesta de una peticion RTSP en RTSPServerWorker.parsePackets, en el hilo del
+ * benchmark y sin red: las respuestas van a un selector que solo las cuenta. Se miden las
+ * peticiones que no necesitan una sesion: OPTIONS, el keep-alive (GET_PARAMETER vacio) y la
+ * foto de las metricas.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RtspServerBenchmark {
+
+    @Param({"options", "keepalive", "metrics"})
+    public String request;
+
+    private Worker mWorker;
+    private ResponseSink mSelector;
+    private SocketChannel mChannel;
+    private DataReceived mData;
+
+    /** Makes parsePackets reachable, the worker threads are never started. */
+    private static class Worker extends RTSPServerWorker {
+        Worker() {
+            super(null, null, null);
+        }
+
+        void parse(DataReceived dataReceived) {
+            parsePackets(dataReceived);
+        }
+    }
+
+    /** Selector that drops the responses instead of queueing them to the channel. */
+    private static class ResponseSink extends AbstractSelector {
+        long bytes = 0;
+
+        ResponseSink() throws IOException {
+            super(null);
+        }
+
+        @Override
+        public void send(SelectableChannel socket, byte[] data) {
+            bytes += data.length;
+        }
+
+        @Override
+        public void send(byte[] data) {}
+
+        @Override
+        protected void initiateConnection() {}
+
+        @Override
+        protected void onClientDisconnected(SelectableChannel socketChannel) {}
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        mWorker = new Worker();
+        mSelector = new ResponseSink();
+        mChannel = SocketChannel.open();
+        String message;
+        switch (request) {
+            case "options":
+                message = "OPTIONS rtsp://192.168.49.1:1234/ RTSP/1.0\r\n" +
+                        "CSeq: 2\r\n" +
+                        "User-Agent: LibVLC/3.0.18 (LIVE555 Streaming Media v2016.11.28)\r\n\r\n";
+                break;
+            case "keepalive":
+                message = "GET_PARAMETER rtsp://192.168.49.1:1234/8a6e0804-2bd0-4672-b79d-d97027f9071a RTSP/1.0\r\n" +
+                        "CSeq: 7\r\n" +
+                        "Session: 1185d20035702ca\r\n" +
+                        "User-Agent: LibVLC/3.0.18 (LIVE555 Streaming Media v2016.11.28)\r\n\r\n";
+                break;
+            default:
+                RTSPServerWorker.EXPOSE_METRICS = true;
+                message = "GET_PARAMETER rtsp://192.168.49.1:1234/ RTSP/1.0\r\n" +
+                        "CSeq: 9\r\n" +
+                        "Content-Type: text/parameters\r\n" +
+                        "Content-Length: 7\r\n\r\n" +
+                        "metrics";
+        }
+        mData = new DataReceived(mSelector, mChannel, message.getBytes());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mChannel.close();
+        RTSPServerWorker.EXPOSE_METRICS = false;
+    }
+
+    @Benchmark
+    public long parsePackets() {
+        mWorker.parse(mData);
+        return mSelector.bytes;
+    }
+}
@@ -0,0 +1,65 @@
+package net.verdx.libstreaming.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+
+import net.verdx.libstreaming.rtp.BufferInfoInputStream;
+
+/**
+ * Salida del encoder leida de una muestra, como la dan MediaCodecInputStream y
+ * ByteBufferInputStream: una lectura no pasa de una unidad a la siguiente, available() es lo
+ * que queda de la actual y al acabar la muestra da una IOException, como un encoder parado.
+ */
+public class SampleInputStream extends BufferInfoInputStream {
+
+    private final List<Samples.Unit> mUnits;
+    private int mIndex;
+    private int mPosition;
+
+    public SampleInputStream(List<Samples.Unit> units) {
+        mUnits = units;
+        rewind();
+    }
+
+    /** Goes back to the first unit. */
+    public void rewind() {
+        mIndex = -1;
+        mPosition = 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!next()) throw new IOException("End of the sample");
+        return mUnits.get(mIndex).data[mPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (!next()) throw new IOException("End of the sample");
+        byte[] data = mUnits.get(mIndex).data;
+        int read = Math.min(length, data.length - mPosition);
+        System.arraycopy(data, mPosition, buffer, offset, read);
+        mPosition += read;
+        return read;
+    }
+
+    @Override
+    public int available() {
+        if (mIndex < 0 || mIndex >= mUnits.size()) return 0;
+        return mUnits.get(mIndex).data.length - mPosition;
+    }
+
+    /** Moves to the next unit when the current one has been read, false at the end. */
+    private boolean next() {
+        while (mIndex < 0 || mPosition >= mUnits.get(mIndex).data.length) {
+            if (mIndex >= mUnits.size() - 1) {
+                mIndex = mUnits.size();
+                return false;
+            }
+            Samples.Unit unit = mUnits.get(++mIndex);
+            mPosition = 0;
+            mBufferInfo.set(0, unit.data.length, unit.ptsUs, 0);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,242 @@
+package net.verdx.libstreaming.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.verdx.libstreaming.rtp.RtpPacket;
+import net.verdx.libstreaming.rtp.RtpSocket;
+
+/**
+ * Muestras de audio y video para los benchmarks, un segundo de cada una.
+ *
+ * Por defecto se generan con la forma de la salida del encoder (un IDR de 2 Mbps a 30 fps con
+ * sus SPS y PPS y despues frames P; AAC-LC de 128 kbps a 44.1 kHz), con una semilla fija para
+ * que todas las ejecuciones midan lo mismo. Para medir con una grabacion real del telefono se
+ * pasa su ruta: -Dlibstreaming.h264=video.h264 (Annex B) o -Dlibstreaming.aac=audio.aac (ADTS).
+ */
+public final class Samples {
+
+    public static final String H264_PROPERTY = "libstreaming.h264";
+    public static final String AAC_PROPERTY = "libstreaming.aac";
+
+    public static final int FRAME_RATE = 30;
+    public static final int AAC_SAMPLING_RATE = 44100;
+    /** Samples of audio in an AAC frame. */
+    public static final int AAC_FRAME_SAMPLES = 1024;
+    /** Length of an ADTS header without CRC. */
+    public static final int ADTS_HEADER_LENGTH = 7;
+
+    private static final int VIDEO_BITRATE = 2000000;
+    private static final int AUDIO_BITRATE = 128000;
+    private static final long SEED = 0x5EEDL;
+
+    /** A NAL unit or an AAC frame, with the presentation time of its frame. */
+    public static final class Unit {
+        public final byte[] data;
+        public final long ptsUs;
+
+        public Unit(byte[] data, long ptsUs) {
+            this.data = data;
+            this.ptsUs = ptsUs;
+        }
+    }
+
+    private Samples() {}
+
+    /** NAL units of the video, each one preceded by the start code 00 00 00 01 like the encoder gives them. */
+    public static List<Unit> h264() throws IOException {
+        String path = System.getProperty(H264_PROPERTY);
+        return path != null ? readAnnexB(Files.readAllBytes(Paths.get(path))) : generateH264();
+    }
+
+    /** ADTS frames of the audio, header included. */
+    public static List<Unit> adts() throws IOException {
+        String path = System.getProperty(AAC_PROPERTY);
+        return path != null ? readAdts(Files.readAllBytes(Paths.get(path))) : generateAdts();
+    }
+
+    /** Raw AAC frames, without the ADTS header, like the encoder gives them to the LATM packetizer. */
+    public static List<Unit> aac() throws IOException {
+        List<Unit> frames = new ArrayList<>();
+        for (Unit frame : adts()) {
+            int headerLength = (frame.data[1] & 0x01) != 0 ? ADTS_HEADER_LENGTH : ADTS_HEADER_LENGTH + 2;
+            frames.add(new Unit(Arrays.copyOfRange(frame.data, headerLength, frame.data.length), frame.ptsUs));
+        }
+        return frames;
+    }
+
+    /** Output buffers of the encoder: the NAL units of each frame together, the SPS and PPS apart. */
+    public static List<Unit> encoderOutput(List<Unit> nalUnits) {
+        List<Unit> buffers = new ArrayList<>();
+        int i = 0;
+        while (i < nalUnits.size()) {
+            int type = nalUnits.get(i).data[4] & 0x1F;
+            int end = i + 1;
+            if (type != 7 && type != 8) {
+                while (end < nalUnits.size() && nalUnits.get(end).ptsUs == nalUnits.get(i).ptsUs) end++;
+            }
+            int length = 0;
+            for (int j = i; j < end; j++) length += nalUnits.get(j).data.length;
+            byte[] buffer = new byte[length];
+            int offset = 0;
+            for (int j = i; j < end; j++) {
+                byte[] data = nalUnits.get(j).data;
+                System.arraycopy(data, 0, buffer, offset, data.length);
+                offset += data.length;
+            }
+            buffers.add(new Unit(buffer, nalUnits.get(i).ptsUs));
+            i = end;
+        }
+        return buffers;
+    }
+
+    /**
+     * RTP packets of the video as the H264Packetizer sends them: single NAL unit packets, and
+     * FU-A fragments for the NAL units longer than a packet.
+     */
+    public static List<RtpPacket> rtp(List<Unit> nalUnits, int ssrc) {
+        int maxPayload = RtpSocket.MTU - 28 - RtpPacket.FIXED_HEADER_LENGTH - 2;
+        List<RtpPacket> packets = new ArrayList<>();
+        int seq = 0;
+        for (Unit unit : nalUnits) {
+            byte[] nal = unit.data;
+            long timestamp = unit.ptsUs * 90 / 1000;
+            byte header = nal[4];
+            int length = nal.length - 4;
+            if (length <= maxPayload) {
+                byte[] packet = rtpHeader(length, seq++, timestamp, ssrc, true);
+                System.arraycopy(nal, 4, packet, RtpPacket.FIXED_HEADER_LENGTH, length);
+                packets.add(RtpPacket.parse(packet, packet.length));
+                continue;
+            }
+            for (int sent = 1; sent < length; ) {
+                int chunk = Math.min(maxPayload, length - sent);
+                boolean last = sent + chunk >= length;
+                byte[] packet = rtpHeader(chunk + 2, seq++, timestamp, ssrc, last);
+                packet[RtpPacket.FIXED_HEADER_LENGTH] = (byte) ((header & 0x60) | 28);
+                packet[RtpPacket.FIXED_HEADER_LENGTH + 1] = (byte) ((header & 0x1F) | (sent == 1 ? 0x80 : 0) | (last ? 0x40 : 0));
+                System.arraycopy(nal, 4 + sent, packet, RtpPacket.FIXED_HEADER_LENGTH + 2, chunk);
+                packets.add(RtpPacket.parse(packet, packet.length));
+                sent += chunk;
+            }
+        }
+        return packets;
+    }
+
+    private static byte[] rtpHeader(int payloadLength, int seq, long timestamp, int ssrc, boolean marker) {
+        byte[] packet = new byte[RtpPacket.FIXED_HEADER_LENGTH + payloadLength];
+        packet[0] = (byte) 0x80;
+        packet[1] = (byte) ((marker ? 0x80 : 0) | 96);
+        packet[2] = (byte) (seq >> 8);
+        packet[3] = (byte) seq;
+        packet[4] = (byte) (timestamp >> 24);
+        packet[5] = (byte) (timestamp >> 16);
+        packet[6] = (byte) (timestamp >> 8);
+        packet[7] = (byte) timestamp;
+        packet[8] = (byte) (ssrc >> 24);
+        packet[9] = (byte) (ssrc >> 16);
+        packet[10] = (byte) (ssrc >> 8);
+        packet[11] = (byte) ssrc;
+        return packet;
+    }
+
+    /** A GOP of one second: SPS, PPS, an IDR of about a fifth of the second and P frames. */
+    private static List<Unit> generateH264() {
+        Random random = new Random(SEED);
+        int frameBytes = VIDEO_BITRATE / 8 / FRAME_RATE;
+        List<Unit> units = new ArrayList<>();
+        units.add(nalUnit(random, 0x67, 18, 0));
+        units.add(nalUnit(random, 0x68, 4, 0));
+        for (int i = 0; i < FRAME_RATE; i++) {
+            long ptsUs = i * 1000000L / FRAME_RATE;
+            if (i == 0) {
+                units.add(nalUnit(random, 0x65, 6 * frameBytes, ptsUs));
+            } else {
+                units.add(nalUnit(random, 0x41, frameBytes / 2 + random.nextInt(frameBytes), ptsUs));
+            }
+        }
+        return units;
+    }
+
+    private static Unit nalUnit(Random random, int header, int length, long ptsUs) {
+        byte[] data = new byte[4 + 1 + length];
+        random.nextBytes(data);
+        data[0] = 0;
+        data[1] = 0;
+        data[2] = 0;
+        data[3] = 1;
+        data[4] = (byte) header;
+        return new Unit(data, ptsUs);
+    }
+
+    private static List<Unit> generateAdts() {
+        Random random = new Random(SEED);
+        int frames = AAC_SAMPLING_RATE / AAC_FRAME_SAMPLES;
+        int frameBytes = AUDIO_BITRATE / 8 * AAC_FRAME_SAMPLES / AAC_SAMPLING_RATE;
+        List<Unit> units = new ArrayList<>();
+        for (int i = 0; i < frames; i++) {
+            int length = ADTS_HEADER_LENGTH + frameBytes - 64 + random.nextInt(128);
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            // MPEG-4, no CRC, AAC-LC, 44.1 kHz, 2 channels, one raw data block
+            data[0] = (byte) 0xFF;
+            data[1] = (byte) 0xF1;
+            data[2] = (byte) (0x40 | (4 << 2));
+            data[3] = (byte) (0x80 | (length >> 11));
+            data[4] = (byte) (length >> 3);
+            data[5] = (byte) (((length & 0x07) << 5) | 0x1F);
+            data[6] = (byte) 0xFC;
+            units.add(new Unit(data, i * (long) AAC_FRAME_SAMPLES * 1000000L / AAC_SAMPLING_RATE));
+        }
+        return units;
+    }
+
+    /** Splits an Annex B stream at its start codes, the time advances a frame after each slice. */
+    private static List<Unit> readAnnexB(byte[] stream) {
+        List<Unit> units = new ArrayList<>();
+        long ptsUs = 0;
+        int start = nextStartCode(stream, 0);
+        while (start >= 0) {
+            int payload = start + (stream[start + 2] == 1 ? 3 : 4);
+            int next = nextStartCode(stream, payload);
+            int end = next >= 0 ? next : stream.length;
+            byte[] data = new byte[4 + end - payload];
+            data[3] = 1;
+            System.arraycopy(stream, payload, data, 4, end - payload);
+            units.add(new Unit(data, ptsUs));
+            int type = data[4] & 0x1F;
+            if (type == 1 || type == 5) ptsUs += 1000000L / FRAME_RATE;
+            start = next;
+        }
+        return units;
+    }
+
+    private static int nextStartCode(byte[] stream, int from) {
+        for (int i = from; i + 3 < stream.length; i++) {
+            if (stream[i] == 0 && stream[i + 1] == 0) {
+                if (stream[i + 2] == 1) return i;
+                if (stream[i + 2] == 0 && stream[i + 3] == 1) return i;
+            }
+        }
+        return -1;
+    }
+
+    private static List<Unit> readAdts(byte[] stream) {
+        List<Unit> units = new ArrayList<>();
+        int offset = 0;
+        long samples = 0;
+        while (offset + ADTS_HEADER_LENGTH <= stream.length) {
+            int length = (stream[offset + 3] & 0x03) << 11 | (stream[offset + 4] & 0xFF) << 3 | (stream[offset + 5] & 0xFF) >> 5;
+            if (length < ADTS_HEADER_LENGTH || offset + length > stream.length) break;
+            units.add(new Unit(Arrays.copyOfRange(stream, offset, offset + length), samples * 1000000L / AAC_SAMPLING_RATE));
+            samples += AAC_FRAME_SAMPLES;
+            offset += length;
+        }
+        return units;
+    }
+}
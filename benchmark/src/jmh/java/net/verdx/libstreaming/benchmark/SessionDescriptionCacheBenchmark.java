@@ -0,0 +1,119 @@
+package net.verdx.libstreaming.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.verdx.libstreaming.sessions.SessionDescriptionCache;
+
+/**
+ * Tiempo hasta la respuesta de los DESCRIBE del streaming local con la cache de descripciones,
+ * con una configuracion simulada que tarda lo que la prueba del encoder. "burst" son diez
+ * espectadores que llegan a la vez sin entrada, tras una caida de la red: sin la cache cada uno
+ * configuraba la sesion detras del anterior, 10 x 80 ms. "hit" es un espectador que llega despues.
+ */
+@Fork(1)
+public class SessionDescriptionCacheBenchmark {
+
+    private static final long CONFIGURE_MS = 80;
+    private static final int VIEWERS = 10;
+    private static final String KEY = "v1:640x480@30,1000000;a5:16000,32000";
+    private static final String MEDIA_DESCRIPTION = "m=video 5000 RTP/AVP 96\r\n";
+
+    /** Viewers that arrive at once, every burst starts without an entry like after the local streaming changes. */
+    @State(Scope.Benchmark)
+    public static class Burst {
+        final SessionDescriptionCache cache = SessionDescriptionCache.getInstance();
+        final UUID id = UUID.randomUUID();
+        ExecutorService viewers;
+
+        final SessionDescriptionCache.Loader configure = () -> {
+            try {
+                Thread.sleep(CONFIGURE_MS);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return new SessionDescriptionCache.Description(MEDIA_DESCRIPTION, null);
+        };
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            viewers = Executors.newFixedThreadPool(VIEWERS);
+        }
+
+        @Setup(Level.Invocation)
+        public void invalidate() {
+            cache.invalidate(id);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            viewers.shutdownNow();
+            cache.invalidate(id);
+        }
+    }
+
+    /** A viewer that arrives once the description is cached. */
+    @State(Scope.Benchmark)
+    public static class Populated {
+        final SessionDescriptionCache cache = SessionDescriptionCache.getInstance();
+        final UUID id = UUID.randomUUID();
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            cache.get(id, KEY, () -> new SessionDescriptionCache.Description(MEDIA_DESCRIPTION, null));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            cache.invalidate(id);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    public int burst(final Burst burst) throws InterruptedException, ExecutionException {
+        List<Future<SessionDescriptionCache.Description>> responses = new ArrayList<>();
+        for (int i = 0; i < VIEWERS; i++) {
+            responses.add(burst.viewers.submit(() -> burst.cache.get(burst.id, KEY, burst.configure)));
+        }
+        int length = 0;
+        for (Future<SessionDescriptionCache.Description> response : responses) {
+            length += response.get().getMediaDescription().length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 10, time = 1)
+    public SessionDescriptionCache.Description hit(Populated populated) throws IOException {
+        return populated.cache.get(populated.id, KEY, () -> {
+            throw new IOException("Configured again");
+        });
+    }
+}
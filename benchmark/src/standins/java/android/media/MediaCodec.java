@@ -0,0 +1,51 @@
+package android.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sustituto de android.media.MediaCodec con la parte que lee MediaCodecInputStream: la salida
+ * del encoder. No codifica nada, los benchmarks lo extienden para devolver los buffers de una
+ * grabacion. A diferencia del de Android no es final.
+ */
+public class MediaCodec {
+
+    public static final int INFO_TRY_AGAIN_LATER = -1;
+    public static final int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    public static final int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+    public static final int BUFFER_FLAG_KEY_FRAME = 1;
+    public static final int BUFFER_FLAG_CODEC_CONFIG = 2;
+    public static final int BUFFER_FLAG_END_OF_STREAM = 4;
+
+    /** Metadata of an output buffer, same fields as the Android one. */
+    public static final class BufferInfo {
+        public int offset;
+        public int size;
+        public long presentationTimeUs;
+        public int flags;
+
+        public void set(int newOffset, int newSize, long newTimeUs, int newFlags) {
+            offset = newOffset;
+            size = newSize;
+            presentationTimeUs = newTimeUs;
+            flags = newFlags;
+        }
+    }
+
+    protected MediaCodec() {}
+
+    /** @return Index of the output buffer filled, or one of the INFO_ constants */
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        return INFO_TRY_AGAIN_LATER;
+    }
+
+    public ByteBuffer getOutputBuffer(int index) {
+        return null;
+    }
+
+    public void releaseOutputBuffer(int index, boolean render) {}
+
+    public MediaFormat getOutputFormat() {
+        return new MediaFormat();
+    }
+}
@@ -0,0 +1,35 @@
+package android.media;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Sustituto de android.media.MediaFormat, el formato de salida que devuelve {@link MediaCodec}. */
+public final class MediaFormat {
+
+    private final Map<String, Object> mValues = new HashMap<>();
+
+    public boolean containsKey(String name) {
+        return mValues.containsKey(name);
+    }
+
+    public int getInteger(String name) {
+        return (Integer) mValues.get(name);
+    }
+
+    public void setInteger(String name, int value) {
+        mValues.put(name, value);
+    }
+
+    public String getString(String name) {
+        return (String) mValues.get(name);
+    }
+
+    public void setString(String name, String value) {
+        mValues.put(name, value);
+    }
+
+    @Override
+    public String toString() {
+        return mValues.toString();
+    }
+}
@@ -0,0 +1,32 @@
+package android.os;
+
+/**
+ * Sustituto de android.os.SystemClock sobre {@link System#nanoTime()}, que tampoco se para ni
+ * salta con la hora del sistema.
+ */
+public final class SystemClock {
+
+    private SystemClock() {}
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public static long elapsedRealtimeNanos() {
+        return System.nanoTime();
+    }
+
+    public static long uptimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public static void sleep(long ms) {
+        long end = uptimeMillis() + ms;
+        long remaining;
+        while ((remaining = end - uptimeMillis()) > 0) {
+            try {
+                Thread.sleep(remaining);
+            } catch (InterruptedException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package android.util;
+
+/**
+ * Sustituto de android.util.Log para ejecutar la libreria en la JVM: descarta los mensajes, asi
+ * los benchmarks no miden la escritura en la consola. Solo tiene lo que usa la libreria.
+ */
+public final class Log {
+
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int ASSERT = 7;
+
+    private Log() {}
+
+    public static boolean isLoggable(String tag, int level) {
+        return false;
+    }
+
+    public static int v(String tag, String msg) {
+        return 0;
+    }
+
+    public static int v(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int d(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+
+    public static int w(String tag, Throwable tr) {
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+
+    public static int wtf(String tag, String msg) {
+        return 0;
+    }
+
+    public static int wtf(String tag, Throwable tr) {
+        return 0;
+    }
+
+    public static int wtf(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+}
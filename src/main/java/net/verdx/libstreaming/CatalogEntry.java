@@ -0,0 +1,44 @@
+package net.verdx.libstreaming;
+
+import java.util.UUID;
+
+/**
+ * Entrada del catalogo de streamings que un nodo anuncia a sus vecinos: un streaming que puede
+ * reenviar, aunque todavia no lo este recibiendo, y su distancia en saltos hasta el origen.
+ */
+public class CatalogEntry {
+    private final UUID mUUID;
+    private final String mName;
+    private final int mHops;
+
+    public CatalogEntry(UUID id, String name, int hops){
+        mUUID = id;
+        mName = name;
+        mHops = hops;
+    }
+
+    public UUID getUUID() {
+        return mUUID;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /** 0 for the local streaming of the node that advertises it. */
+    public int getHops() {
+        return mHops;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof CatalogEntry)) return false;
+        CatalogEntry entry = (CatalogEntry) o;
+        return mUUID.equals(entry.mUUID) && mHops == entry.mHops && String.valueOf(mName).equals(String.valueOf(entry.mName));
+    }
+
+    @Override
+    public int hashCode() {
+        return mUUID.hashCode() * 31 + mHops;
+    }
+}
@@ -0,0 +1,75 @@
+package net.verdx.libstreaming;
+
+import java.util.UUID;
+
+/**
+ * Foto de las medidas de retardo de un track recibido, para seguir la latencia entre versiones.
+ *
+ * El retardo de camino lo anuncia el emisor en cada SR: el retardo del encoder en el origen mas,
+ * por cada salto, medio RTT y el tiempo en la cola de reenvio. Sumandole lo que el jitter buffer
+ * retiene los paquetes se tiene una estimacion de la latencia de captura a pantalla, sin contar
+ * el decoder ni el render.
+ */
+public class LatencyMetrics {
+    private final UUID mUUID;
+    private final int mTrackId;
+    private final int mHops;
+    private final long mPathDelayUs;
+    private final int mBufferDelayMs;
+    private final double mJitterMs;
+    private final double mFractionLost;
+
+    public LatencyMetrics(UUID id, int trackId, int hops, long pathDelayUs, int bufferDelayMs, double jitterMs, double fractionLost) {
+        mUUID = id;
+        mTrackId = trackId;
+        mHops = hops;
+        mPathDelayUs = pathDelayUs;
+        mBufferDelayMs = bufferDelayMs;
+        mJitterMs = jitterMs;
+        mFractionLost = fractionLost;
+    }
+
+    public UUID getUUID() {
+        return mUUID;
+    }
+
+    /** 0 for audio, 1 for video. */
+    public int getTrackId() {
+        return mTrackId;
+    }
+
+    public int getHops() {
+        return mHops;
+    }
+
+    /** Delay from the capture at the origin to this node in ms, -1 if the sender has not announced it yet. */
+    public double getPathDelayMs() {
+        return mPathDelayUs < 0 ? -1 : mPathDelayUs / 1000.0;
+    }
+
+    /** Delay the jitter buffer holds the packets to absorb the jitter, in ms. */
+    public int getBufferDelayMs() {
+        return mBufferDelayMs;
+    }
+
+    public double getJitterMs() {
+        return mJitterMs;
+    }
+
+    /** Fraction of packets lost in the last reporting interval, between 0 and 1. */
+    public double getFractionLost() {
+        return mFractionLost;
+    }
+
+    /** Estimated capture to playout latency in ms, -1 while the path delay is not known. */
+    public double getEstimatedLatencyMs() {
+        return mPathDelayUs < 0 ? -1 : mPathDelayUs / 1000.0 + mBufferDelayMs;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyMetrics{" + mUUID + " track=" + mTrackId + " hops=" + mHops +
+                " path=" + getPathDelayMs() + "ms buffer=" + mBufferDelayMs + "ms jitter=" + mJitterMs +
+                "ms lost=" + mFractionLost + " latency=" + getEstimatedLatencyMs() + "ms}";
+    }
+}
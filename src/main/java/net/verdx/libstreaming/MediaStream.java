@@ -34,6 +34,8 @@ import java.util.Random;
 
 import net.verdx.libstreaming.audio.AudioStream;
 import net.verdx.libstreaming.rtp.AbstractPacketizer;
+import net.verdx.libstreaming.rtp.InterleavedChannel;
+import net.verdx.libstreaming.rtp.StreamInterleavedChannel;
 import net.verdx.libstreaming.video.VideoStream;
 
 /**
@@ -78,7 +80,7 @@ public abstract class MediaStream implements Stream {
 	protected boolean mStreaming = false, mConfigured = false;
 	protected int mRtpPort = 0, mRtcpPort = 0; 
 	protected byte mChannelIdentifier = 0;
-	protected OutputStream mOutputStream = null;
+	protected InterleavedChannel mInterleavedChannel = null;
 	protected InetAddress mDestination;
 	
 	protected ParcelFileDescriptor[] mParcelFileDescriptors;
@@ -159,7 +161,7 @@ public abstract class MediaStream implements Stream {
 	public void setDestinationPorts(int rtpPort, int rtcpPort) {
 		mRtpPort = rtpPort;
 		mRtcpPort = rtcpPort;
-		mOutputStream = null;
+		mInterleavedChannel = null;
 	}	
 
 	/**
@@ -168,7 +170,15 @@ public abstract class MediaStream implements Stream {
 	 * be specified with this method.
 	 */ 
 	public void setOutputStream(OutputStream stream, byte channelIdentifier) {
-		mOutputStream = stream;
+		setInterleavedChannel(stream != null ? new StreamInterleavedChannel(stream) : null, channelIdentifier);
+	}
+
+	/**
+	 * Sends the stream interleaved in a RTSP connection instead of UDP, the RTP packets on
+	 * the channel given and the RTCP on the next one.
+	 */
+	public void setInterleavedChannel(InterleavedChannel channel, byte channelIdentifier) {
+		mInterleavedChannel = channel;
 		mChannelIdentifier = channelIdentifier;
 	}
 	
@@ -260,7 +270,7 @@ public abstract class MediaStream implements Stream {
 		if (mStreaming) throw new IllegalStateException("Can't be called while streaming.");
 		if (mPacketizer != null) {
 			mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
-			mPacketizer.getRtpSocket().setOutputStream(mOutputStream, mChannelIdentifier);
+			mPacketizer.getRtpSocket().setInterleavedChannel(mInterleavedChannel, mChannelIdentifier);
 		}
 		mMode = mRequestedMode;
 		mConfigured = true;
@@ -272,7 +282,7 @@ public abstract class MediaStream implements Stream {
 		if (mDestination==null)
 			throw new IllegalStateException("No destination ip address set for the stream !");
 
-		if (mRtpPort<=0 || mRtcpPort<=0)
+		if ((mRtpPort<=0 || mRtcpPort<=0) && mInterleavedChannel == null)
 			throw new IllegalStateException("No destination ports set for the stream !");
 
 		mPacketizer.setTimeToLive(mTTL);
@@ -1,31 +1,42 @@
 package net.verdx.libstreaming;
 
 import android.content.Context;
-import android.net.Uri;
 import android.util.Log;
 
-import java.io.File;
-import java.util.ArrayList;
-
-import org.videolan.libvlc.LibVLC;
-import org.videolan.libvlc.Media;
-import org.videolan.libvlc.MediaPlayer;
+import java.io.IOException;
+import java.util.UUID;
 
+import net.verdx.libstreaming.audio.AudioPacketizerDispatcher;
+import net.verdx.libstreaming.mp4.MP4EncoderSink;
+import net.verdx.libstreaming.mp4.MP4Recorder;
+import net.verdx.libstreaming.rtp.AACDepacketizer;
+import net.verdx.libstreaming.rtp.H264Depacketizer;
+import net.verdx.libstreaming.rtp.RtpReceiver;
+import net.verdx.libstreaming.sessions.ReceiveSession;
 import net.verdx.libstreaming.utils.IOUtils;
-
-public class SaveStream implements MediaPlayer.EventListener {
+import net.verdx.libstreaming.video.VideoPacketizerDispatcher;
+
+/**
+ * Graba un streaming en MP4 fragmentado. Para los streamings recibidos las unidades de acceso se
+ * toman del bus de StreamingRecord, sin volver a pedir el streaming al servidor local. El
+ * streaming local se graba desde la salida de los encoders, suscribiendo un
+ * {@link MP4EncoderSink} a cada dispatcher.
+ */
+public class SaveStream {
     public final static String TAG = "SaveStream";
 
-    Context context;
+    /** A new file is started when the current one reaches this size. */
+    public static final long MAX_FILE_SIZE = 512L * 1024 * 1024;
+    /** A new file is started when the current one reaches this duration. */
+    public static final long MAX_FILE_DURATION_MS = 30 * 60 * 1000;
 
-    // media player
-    private LibVLC libvlc;
-    private MediaPlayer mMediaPlayer;
+    Context context;
 
-    private String rtspUrl;
     private String uuid;
-
-    Thread cameraThread;
+    private ReceiveSession mReceiveSession;
+    private MP4Recorder mRecorder;
+    private MP4EncoderSink mVideoSink;
+    private MP4EncoderSink mAudioSink;
 
     public SaveStream(Context context, String uuid){
         this.context = context;
@@ -33,78 +44,89 @@ public class SaveStream implements MediaPlayer.EventListener {
     }
 
     public void startDownload(){
+        if(uuid.equals(String.valueOf(StreamingRecord.getInstance().getLocalStreamingUUID()))) {
+            startLocalDownload();
+            return;
+        }
 
-        cameraThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-
-                String pathSave = IOUtils.createVideoFilePath(context);
-                File file = new File(pathSave);
+        Streaming streaming = StreamingRecord.getInstance().getStreaming(UUID.fromString(uuid));
+        if(streaming == null || streaming.getReceiveSession() == null) {
+            Log.e(TAG, "Streaming " + uuid + " not available, nothing to save");
+            return;
+        }
+        mReceiveSession = streaming.getReceiveSession();
 
-                rtspUrl = "rtsp://127.0.0.1:1234/" + uuid;
-                Log.d(TAG, "Save video " + rtspUrl);
+        RtpReceiver videoReceiver = mReceiveSession.trackExists(1) ? mReceiveSession.getTrack(1).getRtpReceiver() : null;
+        RtpReceiver audioReceiver = mReceiveSession.trackExists(0) ? mReceiveSession.getTrack(0).getRtpReceiver() : null;
 
-                ArrayList<String> options = new ArrayList<>();
-                options.add("--aout=opensles");
-                options.add("--audio-time-stretch"); // time stretching
-                options.add("-vvv"); // verbosity
-                options.add("--avcodec-codec=h264");
-                options.add("--file-logging");
-                options.add("--logfile=vlc-log.txt");
+        String pathSave = IOUtils.createVideoFilePath(context);
+        Log.d(TAG, "Save video " + uuid + " to " + pathSave);
 
-                libvlc = new LibVLC(context, options);
+        mRecorder = new MP4Recorder(pathSave, videoReceiver != null, audioReceiver != null);
+        mRecorder.setMaxFileSize(MAX_FILE_SIZE);
+        mRecorder.setMaxDuration(MAX_FILE_DURATION_MS);
 
-                // Create media player
-                mMediaPlayer = new MediaPlayer(libvlc);
-                mMediaPlayer.setEventListener(SaveStream.this);
+        if(videoReceiver != null) {
+            H264Depacketizer depacketizer = (H264Depacketizer) videoReceiver.getDepacketizer();
+            if(depacketizer.getSps() != null && depacketizer.getPps() != null) {
+                mRecorder.setVideoParameterSets(depacketizer.getSps(), depacketizer.getPps());
+            }
+            StreamingRecord.getInstance().subscribeAccessUnits(streaming.getUUID(), 1, mRecorder.getVideoListener());
+        }
+        if(audioReceiver != null) {
+            AACDepacketizer depacketizer = (AACDepacketizer) audioReceiver.getDepacketizer();
+            mRecorder.setAudioConfig(depacketizer.getClockRate(), depacketizer.getChannelCount(), depacketizer.getConfig());
+            StreamingRecord.getInstance().subscribeAccessUnits(streaming.getUUID(), 0, mRecorder.getAudioListener());
+        }
+    }
 
-                Media m = new Media(libvlc, Uri.parse(rtspUrl));
+    private void startLocalDownload() {
+        boolean hasVideo = VideoPacketizerDispatcher.isRunning();
+        boolean hasAudio = AudioPacketizerDispatcher.isRunning();
+        if(!hasVideo && !hasAudio) {
+            Log.e(TAG, "Local streaming is not running, nothing to save");
+            return;
+        }
 
-                m.addOption(":sout=#std{access=file,mux=ts,dst=" + file.getPath() + "}");
-                //m.addOption(":sout=#transcode{vcodec=h264,acodec=mp4v,ab=128}");
-                //m.addOption(":sout=#file{dst=" + file.getPath() + "}");
-                //m.addOption(":sout-keep");
+        String pathSave = IOUtils.createVideoFilePath(context);
+        Log.d(TAG, "Save local video to " + pathSave);
 
-                mMediaPlayer.setMedia(m);
-                mMediaPlayer.play();
+        mRecorder = new MP4Recorder(pathSave, hasVideo, hasAudio);
+        mRecorder.setMaxFileSize(MAX_FILE_SIZE);
+        mRecorder.setMaxDuration(MAX_FILE_DURATION_MS);
 
+        if(hasVideo) {
+            mVideoSink = new MP4EncoderSink(mRecorder, true);
+            VideoPacketizerDispatcher.subscribeSink(mVideoSink);
+        }
+        if(hasAudio) {
+            mAudioSink = new MP4EncoderSink(mRecorder, false);
+            try {
+                AudioPacketizerDispatcher.subscribeSink(mAudioSink);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not record local audio", e);
+                mAudioSink = null;
             }
-        });
-        cameraThread.start();
-
+        }
     }
 
     public void stopDownload() {
-        mMediaPlayer.stop();
-        libvlc.release();
-        libvlc = null;
-        cameraThread.interrupt();
-    }
-
-
-    @Override
-    public void onEvent(MediaPlayer.Event event) {
-
-        switch (event.type) {
-            case MediaPlayer.Event.EndReached:
-                Log.d(TAG, "EL STREAMING EndReached");
-                stopDownload();
-                break;
-            case MediaPlayer.Event.Buffering:
-                Log.d(TAG, "EL STREAMING Buffering");
-                break;
-            case MediaPlayer.Event.Playing:
-                Log.d(TAG, "EL STREAMING Playing");
-                break;
-            case MediaPlayer.Event.Paused:
-                Log.d(TAG, "EL STREAMING Paused");
-                break;
-            case MediaPlayer.Event.Stopped:
-                Log.d(TAG, "EL STREAMING Stopped");
-                break;
-            default:
-                break;
+        if(mRecorder == null) return;
+        if(mReceiveSession != null) {
+            UUID id = UUID.fromString(uuid);
+            StreamingRecord.getInstance().unsubscribeAccessUnits(id, 1, mRecorder.getVideoListener());
+            StreamingRecord.getInstance().unsubscribeAccessUnits(id, 0, mRecorder.getAudioListener());
+            mReceiveSession = null;
         }
-
+        if(mVideoSink != null) {
+            VideoPacketizerDispatcher.unsubscribeSink(mVideoSink);
+            mVideoSink = null;
+        }
+        if(mAudioSink != null) {
+            AudioPacketizerDispatcher.unsubscribeSink(mAudioSink);
+            mAudioSink = null;
+        }
+        mRecorder.stop();
+        mRecorder = null;
     }
-};
\ No newline at end of file
+}
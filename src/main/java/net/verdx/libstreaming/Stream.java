@@ -22,6 +22,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
 
+import net.verdx.libstreaming.rtp.InterleavedChannel;
+
 /**
  * An interface that represents a Stream. 
  */
@@ -80,6 +82,12 @@ public interface Stream {
 	 * be specified with this method.
 	 */ 
 	public void setOutputStream(OutputStream stream, byte channelIdentifier);
+
+	/**
+	 * Sends the stream interleaved in a RTSP connection instead of UDP, the RTP packets on
+	 * the channel given and the RTCP on the next one.
+	 */
+	public void setInterleavedChannel(InterleavedChannel channel, byte channelIdentifier);
 	
 	/** 
 	 * Returns a pair of source ports, the first one is the 
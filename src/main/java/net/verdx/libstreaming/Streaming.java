@@ -2,6 +2,8 @@ package net.verdx.libstreaming;
 
 import java.util.UUID;
 
+import net.verdx.libstreaming.rtcp.ReceptionStatistics;
+import net.verdx.libstreaming.rtp.RtpReceiver;
 import net.verdx.libstreaming.sessions.ReceiveSession;
 
 public class Streaming {
@@ -10,12 +12,15 @@ public class Streaming {
 
     private boolean isDownloading;
     private ReceiveSession mReceiveSession;
+    private String mOrigin;
+    private int mHops;
 
     public Streaming(UUID id, String name, ReceiveSession receiveSession){
         mUUID = id;
         mReceiveSession = receiveSession;
         mName = name;
         isDownloading = false;
+        mHops = 1;
     }
 
     public UUID getUUID() {
@@ -34,6 +39,52 @@ public class Streaming {
         this.mReceiveSession = mReceiveSession;
     }
 
+    /** Identifier of the node that produces the streaming, null if the sender did not tell. */
+    public String getOrigin() {
+        return mOrigin;
+    }
+
+    public void setOrigin(String origin) {
+        mOrigin = origin;
+    }
+
+    /** Number of links the streaming has gone through to reach this node. */
+    public int getHops() {
+        return mHops;
+    }
+
+    public void setHops(int hops) {
+        mHops = hops;
+    }
+
+    /**
+     * RFC 3550 reception statistics (loss, jitter, extended sequence) of the source currently
+     * received on a track, the same figures sent to the sender in the receiver reports.
+     * @param trackId 0 for audio, 1 for video
+     * @return The statistics, or null for the local streaming or if the track is not being received
+     */
+    public ReceptionStatistics getReceptionStatistics(int trackId) {
+        ReceiveSession session = mReceiveSession;
+        if(session == null || !session.trackExists(trackId)) return null;
+        RtpReceiver receiver = session.getTrack(trackId).getRtpReceiver();
+        return receiver != null ? receiver.getCurrentStatistics() : null;
+    }
+
+    /**
+     * Delay measures of a received track, see {@link LatencyMetrics}.
+     * @param trackId 0 for audio, 1 for video
+     * @return The measures, or null for the local streaming or if the track is not being received
+     */
+    public LatencyMetrics getLatencyMetrics(int trackId) {
+        ReceiveSession session = mReceiveSession;
+        if(session == null || !session.trackExists(trackId)) return null;
+        RtpReceiver receiver = session.getTrack(trackId).getRtpReceiver();
+        ReceptionStatistics statistics = receiver != null ? receiver.getCurrentStatistics() : null;
+        if(statistics == null) return null;
+        return new LatencyMetrics(mUUID, trackId, mHops, statistics.getPathDelayUs(),
+                receiver.getTargetDelayMs(), statistics.getJitterMs(), statistics.getFractionLost());
+    }
+
     public boolean isDownloading() {
         return isDownloading;
     }
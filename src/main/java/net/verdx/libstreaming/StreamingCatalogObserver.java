@@ -0,0 +1,12 @@
+package net.verdx.libstreaming;
+
+import java.util.List;
+
+/**
+ * Notifica los streamings que ofrecen los vecinos. Con el reenvio bajo demanda un streaming
+ * remoto no llega a {@link StreamingRecordObserver#onStreamingAvailable} hasta que alguien lo pide,
+ * asi que las listas de streamings deben construirse con el catalogo.
+ */
+public interface StreamingCatalogObserver {
+    void onCatalogChanged(List<CatalogEntry> catalog);
+}
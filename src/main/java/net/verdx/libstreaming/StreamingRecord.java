@@ -3,37 +3,162 @@ package net.verdx.libstreaming;
 import android.content.Context;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import net.verdx.libstreaming.metrics.MetricsRegistry;
+import net.verdx.libstreaming.rtp.AccessUnit;
+import net.verdx.libstreaming.rtp.AccessUnitListener;
+import net.verdx.libstreaming.rtp.RtpPacket;
+import net.verdx.libstreaming.rtp.RtpPacketListener;
+import net.verdx.libstreaming.rtp.RtpReceiver;
+import net.verdx.libstreaming.sessions.ReceiveSession;
 import net.verdx.libstreaming.sessions.SessionBuilder;
+import net.verdx.libstreaming.sessions.SessionDescriptionCache;
+import net.verdx.libstreaming.threads.EventLoop;
+import net.verdx.libstreaming.threads.SessionExecutor;
 
 
+/**
+ * Registro de los streamings del nodo: el local y los recibidos de los vecinos.
+ * Las consultas por UUID (getStreaming, streamingExist...) no cogen el cerrojo, los streamings
+ * estan en un ConcurrentHashMap. Los observadores (RtspClient, la interfaz, los reproductores)
+ * se avisan cada uno en su propio {@link EventLoop}, fuera del cerrojo: un observador lento solo
+ * se retrasa a si mismo, y el hilo RTSP que cambia el registro no le espera. Los avisos se
+ * encolan con el cerrojo cogido, asi cada observador los recibe en el orden de los cambios.
+ */
 public class StreamingRecord {
 
+    public final static String TAG = "StreamingRecord";
+
+    /**
+     * Streamings further than this are neither advertised nor accepted. It also ends the entries
+     * that a loop of nodes keeps advertising to each other after the origin is gone, their count
+     * grows every round.
+     */
+    public static final int MAX_HOPS = 8;
+
+    /** Round trip time to a neighbour that costs as much as one more hop when choosing the parent. */
+    private static final double RTT_PER_HOP_MS = 50;
+    /** Cost, in hops, of a neighbour that loses all the packets. */
+    private static final double LOSS_PENALTY_HOPS = 10;
+    /** A streaming only moves to another parent if it is this much better, in hops. */
+    private static final double PARENT_SWITCH_MARGIN_HOPS = 1;
+
     static private StreamingRecord INSTANCE = null;
 
     private static class Record{
-        private Streaming mStreaming;
-        private boolean mAllowDispatch;
+        private final Streaming mStreaming;
+        private volatile boolean mAllowDispatch;
         private SaveStream mSaveStream;
+        private Object mPeer;
 
-        public Record(Streaming streaming, boolean allowDispatch, SaveStream saveStream){
+        public Record(Streaming streaming, boolean allowDispatch, SaveStream saveStream, Object peer){
             mStreaming = streaming;
             mAllowDispatch = allowDispatch;
             mSaveStream =  saveStream;
+            mPeer = peer;
+        }
+    }
+
+    /**
+     * Bus en proceso de un streaming recibido: reparte por referencia los paquetes RTP y las
+     * unidades de acceso de sus tracks a los consumidores locales (reproductor, grabacion, relay)
+     * sin pasar por el servidor RTSP de 127.0.0.1.
+     * Un consumidor se puede suscribir antes de que el streaming este disponible, el topic se
+     * engancha a los RtpReceiver de la ReceiveSession cuando se añade el streaming.
+     */
+    private static class Topic {
+        private final Track[] mTracks = {new Track(), new Track()};
+        private ReceiveSession mSession;
+
+        private static class Track implements AccessUnitListener, RtpPacketListener {
+            final List<AccessUnitListener> accessUnitListeners = new CopyOnWriteArrayList<>();
+            final List<RtpPacketListener> packetListeners = new CopyOnWriteArrayList<>();
+
+            @Override
+            public void onAccessUnit(AccessUnit accessUnit) {
+                for (AccessUnitListener listener : accessUnitListeners) {
+                    listener.onAccessUnit(accessUnit);
+                }
+            }
+
+            @Override
+            public void onRtpPacket(RtpPacket packet) {
+                for (RtpPacketListener listener : packetListeners) {
+                    listener.onRtpPacket(packet);
+                }
+            }
+
+            boolean isEmpty() {
+                return accessUnitListeners.isEmpty() && packetListeners.isEmpty();
+            }
+        }
+
+        void attach(ReceiveSession session) {
+            detach();
+            mSession = session;
+            if (session == null) return;
+            for (int id = 0; id < mTracks.length; id++) {
+                RtpReceiver receiver = session.trackExists(id) ? session.getTrack(id).getRtpReceiver() : null;
+                if (receiver != null) {
+                    receiver.addListener(mTracks[id]);
+                    receiver.addPacketListener(mTracks[id]);
+                }
+            }
+        }
+
+        void detach() {
+            if (mSession == null) return;
+            for (int id = 0; id < mTracks.length; id++) {
+                RtpReceiver receiver = mSession.trackExists(id) ? mSession.getTrack(id).getRtpReceiver() : null;
+                if (receiver != null) {
+                    receiver.removeListener(mTracks[id]);
+                    receiver.removePacketListener(mTracks[id]);
+                }
+            }
+            mSession = null;
+        }
+
+        boolean isEmpty() {
+            return mTracks[0].isEmpty() && mTracks[1].isEmpty();
         }
     }
 
     private final Map<UUID, Record> mRecords;
+    private final Map<UUID, Topic> mTopics = new HashMap<>();
+
+    /*
+     * Reenvio bajo demanda: cada vecino que nos envia streamings anuncia su catalogo, y le
+     * contestamos con los streamings del catalogo que queremos recibir de el. Un streaming se
+     * quiere mientras tenga consumidores en el bus o alguien lo haya pedido con acquireDemand()
+     * (la pantalla de reproduccion, un vecino al que se lo reenviamos...).
+     */
+    private final Map<Object, Map<UUID, CatalogEntry>> mPeerCatalogs = new LinkedHashMap<>();
+    private final Map<UUID, Integer> mDemand = new HashMap<>();
+    private final Map<Object, Double> mPeerRtts = new HashMap<>();
+    private final Map<UUID, Object> mParents = new HashMap<>();
+    private final UUID mNodeId = UUID.randomUUID();
+    private final Map<StreamingCatalogObserver, EventLoop> mCatalogObservers = new ConcurrentHashMap<>();
 
-    private UUID mLocalStreamingUUID;
+    private volatile UUID mLocalStreamingUUID;
     private String mLocalStreamingName;
     private SessionBuilder mLocalStreamingBuilder;
+    private SaveStream mLocalSaveStream;
 
-    private final List<StreamingRecordObserver> mObservers;
+    /** Each observer with the loop its notifications run on, until it is removed. */
+    private final Map<StreamingRecordObserver, EventLoop> mObservers;
+
+    /** A change of the record, as told to one observer. */
+    private interface Notification {
+        void send(StreamingRecordObserver ob);
+    }
 
     public static synchronized StreamingRecord getInstance(){
         if(INSTANCE == null) {
@@ -43,86 +168,132 @@ public class StreamingRecord {
     }
 
     private StreamingRecord(){
-        mRecords = new HashMap<>();
-        mObservers = new ArrayList<>();
+        mRecords = new ConcurrentHashMap<>();
+        mObservers = new ConcurrentHashMap<>();
         mLocalStreamingUUID = null;
+
+        // The delays of every track received, latency.uuid.audio.estimated_ms...
+        MetricsRegistry.getInstance().register("latency", gauges -> {
+            for(LatencyMetrics metrics : getLatencyMetrics()){
+                String track = metrics.getUUID() + (metrics.getTrackId() == 0 ? ".audio" : ".video");
+                gauges.put(track + ".hops", (double) metrics.getHops());
+                gauges.put(track + ".path_ms", metrics.getPathDelayMs());
+                gauges.put(track + ".buffer_ms", (double) metrics.getBufferDelayMs());
+                gauges.put(track + ".jitter_ms", metrics.getJitterMs());
+                gauges.put(track + ".lost", metrics.getFractionLost());
+                gauges.put(track + ".estimated_ms", metrics.getEstimatedLatencyMs());
+            }
+        });
+        MetricsRegistry.getInstance().register("streamings.received", () -> mRecords.size());
     }
 
     public synchronized void addStreaming(Streaming streaming, boolean allowDispatch){
-        Record record = new Record(streaming, allowDispatch, null);
+        addStreaming(streaming, allowDispatch, null);
+    }
+
+    /**
+     * @param peer The neighbour the streaming is received from, as passed to {@link #setPeerCatalog(Object, List)}
+     */
+    public synchronized void addStreaming(final Streaming streaming, final boolean allowDispatch, Object peer){
+        Record record = new Record(streaming, allowDispatch, null, peer);
         mRecords.put(streaming.getUUID(), record);
-        for(StreamingRecordObserver ob : mObservers){
-            ob.onStreamingAvailable(streaming, allowDispatch);
-        }
+        Topic topic = mTopics.get(streaming.getUUID());
+        if(topic != null) topic.attach(streaming.getReceiveSession());
+        notifyObservers(ob -> ob.onStreamingAvailable(streaming, allowDispatch));
+    }
+
+    /**
+     * The neighbour sending the streaming reconnected, it keeps receiving it over the new connection
+     */
+    public synchronized void setStreamingPeer(UUID id, Object peer){
+        Record rec = mRecords.get(id);
+        if(rec != null) rec.mPeer = peer;
     }
 
-    public synchronized void changeStreamingDispatchable(UUID id, boolean allowDispatch){
+    public boolean isStreamingDispatchable(UUID id){
         Record rec = mRecords.get(id);
+        return rec != null && rec.mAllowDispatch;
+    }
+
+    public synchronized void changeStreamingDispatchable(UUID id, final boolean allowDispatch){
+        final Record rec = mRecords.get(id);
         if(rec != null){
             rec.mAllowDispatch = allowDispatch;
-            for(StreamingRecordObserver ob : mObservers){
-                ob.onStreamingAvailable(rec.mStreaming, allowDispatch);
-            }
+            notifyObservers(ob -> ob.onStreamingAvailable(rec.mStreaming, allowDispatch));
         }
     }
 
 
     public synchronized void startStreamDownload(Context c, UUID id){
-        Record rec = mRecords.get(id);
+        if(id.equals(mLocalStreamingUUID)){
+            if(mLocalSaveStream == null){
+                mLocalSaveStream = new SaveStream(c, id.toString());
+                mLocalSaveStream.startDownload();
+            }
+            return;
+        }
+        final Record rec = mRecords.get(id);
         if(rec != null){
             rec.mStreaming.setDownloadState(true);
             SaveStream saveStream = new SaveStream(c, id.toString());
             rec.mSaveStream = saveStream;
             saveStream.startDownload();
-            for(StreamingRecordObserver ob : mObservers){
-                ob.onStreamingDownloadStateChanged(rec.mStreaming, true);
-            }
+            notifyObservers(ob -> ob.onStreamingDownloadStateChanged(rec.mStreaming, true));
         }
     }
 
     public synchronized void stopStreamDownload(UUID id){
-        Record rec = mRecords.get(id);
+        if(id.equals(mLocalStreamingUUID)){
+            if(mLocalSaveStream != null){
+                mLocalSaveStream.stopDownload();
+                mLocalSaveStream = null;
+            }
+            return;
+        }
+        final Record rec = mRecords.get(id);
         if(rec != null){
             rec.mStreaming.setDownloadState(false);
-            rec.mSaveStream.stopDownload();
+            if(rec.mSaveStream != null) rec.mSaveStream.stopDownload();
             rec.mSaveStream = null;
-            for(StreamingRecordObserver ob : mObservers){
-                ob.onStreamingDownloadStateChanged(rec.mStreaming, false);
-            }
+            notifyObservers(ob -> ob.onStreamingDownloadStateChanged(rec.mStreaming, false));
         }
     }
 
-    public synchronized void addLocalStreaming(UUID id, String name, SessionBuilder sessionBuilder){
+    public synchronized void addLocalStreaming(final UUID id, final String name, final SessionBuilder sessionBuilder){
+        // The description of the previous configuration is not valid anymore
+        SessionDescriptionCache.getInstance().invalidate(mLocalStreamingUUID);
+        SessionDescriptionCache.getInstance().invalidate(id);
         mLocalStreamingUUID = id;
         mLocalStreamingName = name;
         mLocalStreamingBuilder = sessionBuilder;
-        for(StreamingRecordObserver ob : mObservers){
-            ob.onLocalStreamingAvailable(id, name ,sessionBuilder);
-        }
+        notifyObservers(ob -> ob.onLocalStreamingAvailable(id, name ,sessionBuilder));
     }
 
     public synchronized void removeLocalStreaming(){
+        if(mLocalSaveStream != null){
+            mLocalSaveStream.stopDownload();
+            mLocalSaveStream = null;
+        }
+        SessionDescriptionCache.getInstance().invalidate(mLocalStreamingUUID);
         mLocalStreamingUUID = null;
         mLocalStreamingName = null;
         mLocalStreamingBuilder = null;
-        for(StreamingRecordObserver ob : mObservers){
-            ob.onLocalStreamingUnavailable();
-        }
+        notifyObservers(StreamingRecordObserver::onLocalStreamingUnavailable);
     }
 
-    public synchronized Streaming getStreaming(UUID id){
+    public Streaming getStreaming(UUID id){
         Record rec = mRecords.get(id);
         if(rec != null) return rec.mStreaming;
         return null;
     }
 
-    public synchronized boolean streamingExist(UUID id){
-        if(mLocalStreamingUUID != null && mLocalStreamingUUID.equals(id)) return true;
-        Record rec = mRecords.get(id);
-        return rec != null;
+    public boolean streamingExist(UUID id){
+        if(id.equals(mLocalStreamingUUID)) return true;
+        return mRecords.containsKey(id);
     }
 
-    public synchronized List<Streaming> getStreamings(){
+    /** Copy of the streamings received, to look one up use {@link #getStreaming(UUID)}. */
+    public List<Streaming> getStreamings(){
         List<Streaming> list = new ArrayList<>();
         for(Record rec : mRecords.values()){
             list.add(rec.mStreaming);
@@ -130,39 +301,335 @@ public class StreamingRecord {
         return list;
     }
 
+    /**
+     * Delay measures of every track being received, to follow the latency of the mesh.
+     */
+    public List<LatencyMetrics> getLatencyMetrics(){
+        List<LatencyMetrics> metrics = new ArrayList<>();
+        for(Streaming streaming : getStreamings()){
+            for(int trackId = 0; trackId < 2; trackId++){
+                LatencyMetrics trackMetrics = streaming.getLatencyMetrics(trackId);
+                if(trackMetrics != null) metrics.add(trackMetrics);
+            }
+        }
+        return metrics;
+    }
+
     public synchronized Streaming removeStreaming(UUID id){
-        Record rec =  mRecords.remove(id);
+        final Record rec =  mRecords.remove(id);
+        Topic topic = mTopics.get(id);
+        if(topic != null) topic.detach();
         if(rec != null){
-            for(StreamingRecordObserver ob : mObservers){
-                ob.onStreamingUnavailable(rec.mStreaming);
+            if(rec.mSaveStream != null){
+                rec.mSaveStream.stopDownload();
+                rec.mSaveStream = null;
             }
+            notifyObservers(ob -> ob.onStreamingUnavailable(rec.mStreaming));
             return rec.mStreaming;
         }
         return null;
     }
 
-    public synchronized void addObserver(StreamingRecordObserver ob){
-        mObservers.add(ob);
+    /**
+     * Subscribes a local consumer to the access units of a received streaming.
+     * @param trackId 0 for audio, 1 for video
+     */
+    public synchronized void subscribeAccessUnits(UUID id, int trackId, AccessUnitListener listener){
+        Topic.Track track = getTopic(id).mTracks[trackId];
+        if(!track.accessUnitListeners.contains(listener)) track.accessUnitListeners.add(listener);
+    }
+
+    public synchronized void unsubscribeAccessUnits(UUID id, int trackId, AccessUnitListener listener){
+        Topic topic = mTopics.get(id);
+        if(topic == null) return;
+        topic.mTracks[trackId].accessUnitListeners.remove(listener);
+        releaseTopicIfEmpty(id, topic);
+    }
+
+    /**
+     * Subscribes a local consumer to the RTP packets of a received streaming, as they arrive.
+     * @param trackId 0 for audio, 1 for video
+     */
+    public synchronized void subscribePackets(UUID id, int trackId, RtpPacketListener listener){
+        Topic.Track track = getTopic(id).mTracks[trackId];
+        if(!track.packetListeners.contains(listener)) track.packetListeners.add(listener);
+    }
+
+    public synchronized void unsubscribePackets(UUID id, int trackId, RtpPacketListener listener){
+        Topic topic = mTopics.get(id);
+        if(topic == null) return;
+        topic.mTracks[trackId].packetListeners.remove(listener);
+        releaseTopicIfEmpty(id, topic);
+    }
+
+    private Topic getTopic(UUID id){
+        Topic topic = mTopics.get(id);
+        if(topic == null){
+            topic = new Topic();
+            mTopics.put(id, topic);
+            Record rec = mRecords.get(id);
+            if(rec != null) topic.attach(rec.mStreaming.getReceiveSession());
+        }
+        return topic;
+    }
+
+    private void releaseTopicIfEmpty(UUID id, Topic topic){
+        if(topic.isEmpty()){
+            topic.detach();
+            mTopics.remove(id);
+        }
+    }
+
+    /**
+     * Marks a streaming as wanted by this node, so it is requested to the neighbour that offers
+     * it. Every call must be paired with a {@link #releaseDemand(UUID)}.
+     */
+    public synchronized void acquireDemand(UUID id){
+        Integer count = mDemand.get(id);
+        mDemand.put(id, count == null ? 1 : count + 1);
+    }
+
+    public synchronized void releaseDemand(UUID id){
+        Integer count = mDemand.get(id);
+        if(count == null) return;
+        if(count <= 1){
+            mDemand.remove(id);
+            mParents.remove(id);
+        }
+        else mDemand.put(id, count - 1);
+    }
+
+    public synchronized boolean hasDemand(UUID id){
+        if(mDemand.containsKey(id)) return true;
+        Topic topic = mTopics.get(id);
+        return topic != null && !topic.isEmpty();
+    }
+
+    /**
+     * Stores the catalog advertised by a neighbour, replacing the previous one.
+     * @param peer Any object identifying the neighbour, the server uses its RTSP channel
+     */
+    public synchronized void setPeerCatalog(Object peer, List<CatalogEntry> catalog){
+        Map<UUID, CatalogEntry> entries = new LinkedHashMap<>();
+        for(CatalogEntry entry : catalog){
+            entries.put(entry.getUUID(), entry);
+        }
+        Map<UUID, CatalogEntry> previous = mPeerCatalogs.put(peer, entries);
+        if(!entries.equals(previous)) notifyCatalogChanged();
+    }
+
+    public synchronized void removePeerCatalog(Object peer){
+        mPeerRtts.remove(peer);
+        mParents.values().removeAll(Collections.singleton(peer));
+        if(mPeerCatalogs.remove(peer) != null) notifyCatalogChanged();
+    }
+
+    /**
+     * Round trip time measured by a neighbour on its connection to us, used to choose parents.
+     */
+    public synchronized void updatePeerRtt(Object peer, double rttMs){
+        Double rtt = mPeerRtts.get(peer);
+        mPeerRtts.put(peer, rtt == null ? rttMs : rtt + (rttMs - rtt) / 8);
+    }
+
+    /**
+     * Streamings of the catalog of a neighbour that this node wants to receive from it. Each
+     * streaming is only requested to one neighbour, its parent in the distribution tree of the
+     * streaming: the one it is already received from or, if it is not being received, the
+     * neighbour with the best link that offers it.
+     */
+    public synchronized List<UUID> getInterest(Object peer){
+        List<UUID> interest = new ArrayList<>();
+        Map<UUID, CatalogEntry> catalog = mPeerCatalogs.get(peer);
+        if(catalog == null) return interest;
+        for(UUID id : catalog.keySet()){
+            if(!id.equals(mLocalStreamingUUID) && hasDemand(id) && peer.equals(getProvider(id))){
+                interest.add(id);
+            }
+        }
+        return interest;
+    }
+
+    private Object getProvider(UUID id){
+        Record rec = mRecords.get(id);
+        if(rec != null && rec.mPeer != null) return rec.mPeer;
+
+        Object best = null;
+        double bestCost = Double.MAX_VALUE;
+        for(Object peer : mPeerCatalogs.keySet()){
+            double cost = getParentCost(peer, id);
+            if(cost < bestCost){
+                best = peer;
+                bestCost = cost;
+            }
+        }
+        // Sticks to the current parent unless the new one is clearly better, so the request
+        // does not bounce between neighbours with similar links
+        Object parent = mParents.get(id);
+        if(parent != null && getParentCost(parent, id) <= bestCost + PARENT_SWITCH_MARGIN_HOPS) return parent;
+        if(best != null) mParents.put(id, best);
+        else mParents.remove(id);
+        return best;
+    }
+
+    /**
+     * Hops to the origin through the neighbour, plus the quality of the link to it expressed in
+     * hops: its round trip time and the loss of the streamings already received from it.
+     */
+    private double getParentCost(Object peer, UUID id){
+        Map<UUID, CatalogEntry> catalog = mPeerCatalogs.get(peer);
+        CatalogEntry entry = catalog != null ? catalog.get(id) : null;
+        if(entry == null) return Double.MAX_VALUE;
+
+        double cost = entry.getHops() + 1;
+        Double rtt = mPeerRtts.get(peer);
+        if(rtt != null) cost += rtt / RTT_PER_HOP_MS;
+
+        long received = 0, lost = 0;
+        for(Record rec : mRecords.values()){
+            ReceiveSession session = rec.mStreaming.getReceiveSession();
+            if(!peer.equals(rec.mPeer) || session == null) continue;
+            for(int track = 0; track < 2; track++){
+                RtpReceiver receiver = session.trackExists(track) ? session.getTrack(track).getRtpReceiver() : null;
+                if(receiver != null){
+                    received += receiver.getReceivedCount();
+                    lost += receiver.getLostCount();
+                }
+            }
+        }
+        if(received + lost > 0) cost += LOSS_PENALTY_HOPS * lost / (received + lost);
+        return cost;
+    }
+
+    /**
+     * Streamings offered by the neighbours, with their distance from this node.
+     */
+    public synchronized List<CatalogEntry> getRemoteCatalog(){
+        return new ArrayList<>(collectPeerCatalogs().values());
+    }
+
+    /**
+     * Catalog this node advertises: its local streaming, the received streamings it may
+     * forward and the ones it can request to its own neighbours.
+     */
+    public synchronized List<CatalogEntry> getCatalog(){
+        Map<UUID, CatalogEntry> catalog = collectPeerCatalogs();
+        for(Record rec : mRecords.values()){
+            if(!rec.mAllowDispatch) catalog.remove(rec.mStreaming.getUUID());
+            else{
+                // A received streaming is advertised with the distance it actually went through
+                catalog.put(rec.mStreaming.getUUID(), new CatalogEntry(rec.mStreaming.getUUID(), rec.mStreaming.getName(), rec.mStreaming.getHops()));
+            }
+        }
+        List<CatalogEntry> list = new ArrayList<>();
         if(mLocalStreamingUUID != null){
-            ob.onLocalStreamingAvailable(mLocalStreamingUUID, mLocalStreamingName, mLocalStreamingBuilder);
+            list.add(new CatalogEntry(mLocalStreamingUUID, mLocalStreamingName, 0));
+        }
+        for(CatalogEntry entry : catalog.values()){
+            if(entry.getHops() <= MAX_HOPS) list.add(entry);
+        }
+        return list;
+    }
+
+    private Map<UUID, CatalogEntry> collectPeerCatalogs(){
+        Map<UUID, CatalogEntry> catalog = new LinkedHashMap<>();
+        for(Map<UUID, CatalogEntry> peerCatalog : mPeerCatalogs.values()){
+            for(CatalogEntry entry : peerCatalog.values()){
+                UUID id = entry.getUUID();
+                if(id.equals(mLocalStreamingUUID) || entry.getHops() >= MAX_HOPS) continue;
+                CatalogEntry current = catalog.get(id);
+                if(current == null || entry.getHops() + 1 < current.getHops()){
+                    catalog.put(id, new CatalogEntry(id, entry.getName(), entry.getHops() + 1));
+                }
+            }
         }
+        return catalog;
+    }
+
+    public synchronized void addCatalogObserver(final StreamingCatalogObserver ob){
+        if(mCatalogObservers.containsKey(ob)) return;
+        EventLoop loop = SessionExecutor.getInstance().newLoop(TAG + "-catalog");
+        mCatalogObservers.put(ob, loop);
+        final List<CatalogEntry> catalog = getRemoteCatalog();
+        loop.post(() -> ob.onCatalogChanged(catalog));
+    }
+
+    public synchronized void removeCatalogObserver(StreamingCatalogObserver ob){
+        EventLoop loop = mCatalogObservers.remove(ob);
+        if(loop != null) loop.quit();
+    }
+
+    private void notifyCatalogChanged(){
+        if(mCatalogObservers.isEmpty()) return;
+        final List<CatalogEntry> catalog = getRemoteCatalog();
+        for(final Map.Entry<StreamingCatalogObserver, EventLoop> entry : mCatalogObservers.entrySet()){
+            entry.getValue().post(() -> entry.getKey().onCatalogChanged(catalog));
+        }
+    }
+
+    /**
+     * Queues the change on the loop of every observer, called with the lock held so the
+     * observers get the changes in order. An observer removed meanwhile gets nothing else.
+     */
+    private void notifyObservers(final Notification notification){
+        for(final Map.Entry<StreamingRecordObserver, EventLoop> entry : mObservers.entrySet()){
+            entry.getValue().post(() -> notification.send(entry.getKey()));
+        }
+    }
+
+    public void addObserver(StreamingRecordObserver ob){
+        addObserver(ob, null);
+    }
+
+    /**
+     * The observer is told about the local streaming and every received streaming, on its own
+     * loop like the later changes.
+     * @param onOffered Run on the loop of the observer after those first notifications
+     */
+    public synchronized void addObserver(final StreamingRecordObserver ob, final Runnable onOffered){
+        if(mObservers.containsKey(ob)) return;
+        EventLoop loop = SessionExecutor.getInstance().newLoop(TAG + "-observer");
+        mObservers.put(ob, loop);
+
+        final UUID localId = mLocalStreamingUUID;
+        final String localName = mLocalStreamingName;
+        final SessionBuilder localBuilder = mLocalStreamingBuilder;
+        final List<Streaming> streamings = new ArrayList<>();
+        final List<Boolean> dispatchable = new ArrayList<>();
         for(Record rec : mRecords.values()){
-            ob.onStreamingAvailable(rec.mStreaming, rec.mAllowDispatch);
+            streamings.add(rec.mStreaming);
+            dispatchable.add(rec.mAllowDispatch);
         }
+        loop.post(() -> {
+            if(localId != null){
+                ob.onLocalStreamingAvailable(localId, localName, localBuilder);
+            }
+            for(int i = 0; i < streamings.size(); i++){
+                ob.onStreamingAvailable(streamings.get(i), dispatchable.get(i));
+            }
+            if(onOffered != null) onOffered.run();
+        });
     }
 
     public synchronized void removeObserver(StreamingRecordObserver ob){
-        mObservers.remove(ob);
+        EventLoop loop = mObservers.remove(ob);
+        // The notifications still queued are dropped
+        if(loop != null) loop.quit();
     }
 
     public synchronized SessionBuilder getLocalStreamingBuilder() {
         return mLocalStreamingBuilder;
     }
 
-    public synchronized UUID getLocalStreamingUUID() {
+    public UUID getLocalStreamingUUID() {
         return mLocalStreamingUUID;
     }
 
+    /** Random identifier of this node, sent as the origin of the local streaming. */
+    public UUID getNodeId() {
+        return mNodeId;
+    }
+
     public synchronized String getLocalStreamingName() {
         return mLocalStreamingName;
     }
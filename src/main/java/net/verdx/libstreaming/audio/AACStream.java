@@ -58,24 +58,7 @@ public class AACStream extends AudioStream {
 	};
 
 	/** There are 13 supported frequencies by ADTS. **/
-	public static final int[] AUDIO_SAMPLING_RATES = {
-		96000, // 0
-		88200, // 1
-		64000, // 2
-		48000, // 3
-		44100, // 4
-		32000, // 5
-		24000, // 6
-		22050, // 7
-		16000, // 8
-		12000, // 9
-		11025, // 10
-		8000,  // 11
-		7350,  // 12
-		-1,   // 13
-		-1,   // 14
-		-1,   // 15
-	};
+	public static final int[] AUDIO_SAMPLING_RATES = AACADTSPacketizer.AUDIO_SAMPLING_RATES;
 
 	private String mSessionDescription = null;
 	private int mProfile, mSamplingRateIndex, mChannel, mConfig;
@@ -142,7 +125,7 @@ public class AACStream extends AudioStream {
 				mPacketizer = new AACLATMPacketizer();
 			}
 			mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
-			mPacketizer.getRtpSocket().setOutputStream(mOutputStream, mChannelIdentifier);
+			mPacketizer.getRtpSocket().setInterleavedChannel(mInterleavedChannel, mChannelIdentifier);
 		}
 
 		if (mMode == MODE_MEDIARECORDER_API) {
@@ -186,6 +169,7 @@ public class AACStream extends AudioStream {
 
 
 
+		mPacketizer.getRtpSocket().setTargetBitrate(mQuality.bitRate);
 		AudioPacketizerDispatcher.subscribe(mPacketizer);
 
 		// The packetizer encapsulates this stream in an RTP stream and send it over the network
@@ -19,6 +19,7 @@ import net.verdx.libstreaming.rtp.AACADTSPacketizer;
 import net.verdx.libstreaming.rtp.AACLATMPacketizer;
 import net.verdx.libstreaming.rtp.AbstractPacketizer;
 import net.verdx.libstreaming.rtp.ByteBufferInputStream;
+import net.verdx.libstreaming.rtp.EncoderSink;
 import net.verdx.libstreaming.rtp.MediaCodecBufferReader;
 import net.verdx.libstreaming.rtp.MediaCodecInputStream;
 
@@ -62,6 +63,7 @@ public class AudioPacketizerDispatcher {
     private MediaCodec mMediaCodec;
     private final ByteBuffer[] mMediaCodecsBuffers;
     private MediaCodecInputStream mMediaCodecInputStream;
+    private MediaCodecBufferReader mBufferReader;
     private final Map<AbstractPacketizer, InputStream> mPacketizersInputsMap = new HashMap<>();
 
     @SuppressLint("NewApi")
@@ -92,7 +94,8 @@ public class AudioPacketizerDispatcher {
         mMediaCodec.start();
         mMediaCodecInputStream = new MediaCodecInputStream(mMediaCodec);
         mMediaCodecsBuffers = mMediaCodec.getInputBuffers();
-        mReaderThread = new Thread(new MediaCodecBufferReader(mBufferSize,mMediaCodecInputStream,mPacketizersInputsMap));
+        mBufferReader = new MediaCodecBufferReader("audio", mBufferSize,mMediaCodecInputStream,mPacketizersInputsMap);
+        mReaderThread = new Thread(mBufferReader);
         mWriterThread = new Thread(new MediaCodecBufferWriter());
         mReaderThread.start();
         mWriterThread.start();
@@ -169,6 +172,26 @@ public class AudioPacketizerDispatcher {
         }
     }
 
+    /**
+     * Subscribes a sink to the whole encoded frames, starting the dispatcher if needed.
+     * The dispatcher stops when neither packetizers nor sinks are left.
+     */
+    public static synchronized void subscribeSink(EncoderSink sink) throws IOException {
+        if(mInstance == null) AudioPacketizerDispatcher.start();
+        mInstance.mBufferReader.addSink(sink);
+    }
+
+    public static synchronized void unsubscribeSink(EncoderSink sink) {
+        if(mInstance != null) {
+            mInstance.mBufferReader.removeSink(sink);
+            synchronized (mInstance.mPacketizersInputsMap) {
+                if (mInstance.mPacketizersInputsMap.isEmpty() && !mInstance.mBufferReader.hasSinks()) {
+                    mInstance.internalStop();
+                }
+            }
+        }
+    }
+
     @SuppressLint("NewApi")
     private void addInternalPacketizer(AbstractPacketizer packetizer) {
         InputStream packetizerInput = new ByteBufferInputStream();
@@ -193,7 +216,7 @@ public class AudioPacketizerDispatcher {
             mPacketizersInputsMap.remove(packetizer);
             packetizer.stop();
             Log.e(TAG,"Removed internal media codec from map!");
-            if (mPacketizersInputsMap.isEmpty()) {
+            if (mPacketizersInputsMap.isEmpty() && !mBufferReader.hasSinks()) {
                 Log.e(TAG, "No more elements in map lets finish this!");
 
                 internalStop();
@@ -0,0 +1,232 @@
+package net.verdx.libstreaming.congestion;
+
+import java.util.Arrays;
+
+import net.verdx.libstreaming.rtcp.TransportFeedback;
+
+/**
+ * Estimacion del ancho de banda en el emisor a partir del feedback de transporte: se cruzan las
+ * llegadas que devuelve el receptor con los envios guardados, se agrupan los paquetes que salen
+ * en rafaga y los deltas entre grupos alimentan el {@link TrendlineEstimator}. Con su estado un
+ * control AIMD mueve el bitrate objetivo: baja al 85% de lo que de verdad llega cuando la cola
+ * crece, lo mantiene mientras se vacia y sube un 8% por segundo el resto del tiempo, sin pasar
+ * de 1.5 veces lo recibido para no crecer mientras el encoder no llena el enlace. Las perdidas,
+ * las del propio feedback y las de los RR, bajan ademas el objetivo cuando superan el 10%: con
+ * la cola del cuello de botella llena el retardo ya no crece y solo se ven los descartes.
+ *
+ * No usa reloj propio, todos los tiempos se pasan como parametro para poder simularlo.
+ */
+public class BandwidthEstimator {
+
+    private static final int HISTORY_SIZE = 4096;
+    private static final int HISTORY_MASK = HISTORY_SIZE - 1;
+
+    /** Packets sent within this time of the first one of a group belong to the group. */
+    private static final long BURST_NS = 5000000;
+
+    /** Window of the received bitrate. */
+    private static final long ACKED_WINDOW_US = 500000;
+
+    private static final double DECREASE_FACTOR = 0.85;
+    private static final double INCREASE_PER_SECOND = 1.08;
+    private static final double MAX_ACKED_RATIO = 1.5;
+    private static final int ACKED_MARGIN = 10000;
+    /** Two decreases of the delay control are at least this apart, a feedback round trip. */
+    private static final long DECREASE_INTERVAL_NS = 200000000;
+
+    private static final double HIGH_LOSS = 0.1;
+    private static final long LOSS_DECREASE_INTERVAL_NS = 300000000;
+    /** Packets of the feedback over which the fraction lost is computed. */
+    private static final int LOSS_WINDOW_PACKETS = 20;
+
+    private final long[] mSentSequences = new long[HISTORY_SIZE];
+    private final long[] mSentNs = new long[HISTORY_SIZE];
+    private final int[] mSentSizes = new int[HISTORY_SIZE];
+    private long mLastSentSequence = -1;
+
+    private final TrendlineEstimator mTrendline = new TrendlineEstimator();
+    private int mUsage = TrendlineEstimator.NORMAL;
+
+    // Current group of packets
+    private long mGroupFirstSendNs = -1;
+    private long mGroupLastSendNs;
+    private long mGroupArrivalUs;
+    private long mPreviousGroupSendNs = -1;
+    private long mPreviousGroupArrivalUs;
+
+    // Reference time of the receiver, unwrapped
+    private long mLastRawReferenceUs = -1;
+    private long mReferenceUs;
+    private long mLastFeedbackSequence = -1;
+
+    private long mAckedWindowStartUs = -1;
+    private long mAckedWindowBytes = 0;
+    private double mAckedBitrate = 0;
+
+    private final int mMinBitrate;
+    private final int mMaxBitrate;
+    private double mTarget;
+    private long mLastUpdateNs = -1;
+    private long mLastDecreaseNs = -1;
+    private long mLastLossDecreaseNs = -1;
+    private int mLossWindowPackets = 0;
+    private int mLossWindowLost = 0;
+
+    /**
+     * @param startBitrate Target until the first feedback, in bps
+     * @param minBitrate The target never goes below this
+     * @param maxBitrate The target never goes above this, usually the bitrate the encoder was configured with
+     */
+    public BandwidthEstimator(int startBitrate, int minBitrate, int maxBitrate) {
+        mMinBitrate = minBitrate;
+        mMaxBitrate = Math.max(minBitrate, maxBitrate);
+        mTarget = clamp(startBitrate);
+        Arrays.fill(mSentSequences, -1);
+    }
+
+    /**
+     * Remembers a packet that has just been sent.
+     * @param sequence Extended transport-wide sequence number, increasing by one per packet
+     */
+    public synchronized void onPacketSent(long sequence, int size, long sendNs) {
+        int index = (int) (sequence & HISTORY_MASK);
+        mSentSequences[index] = sequence;
+        mSentNs[index] = sendNs;
+        mSentSizes[index] = size;
+        mLastSentSequence = sequence;
+    }
+
+    /**
+     * Processes a feedback of the receiver.
+     * @return The new target bitrate in bps
+     */
+    public synchronized int onFeedback(TransportFeedback.Feedback feedback, long nowNs) {
+        if (mLastSentSequence < 0) return getTargetBitrate();
+
+        if (mLastRawReferenceUs < 0) {
+            mReferenceUs = feedback.referenceUs;
+        } else {
+            mReferenceUs += (int) (feedback.referenceUs - mLastRawReferenceUs);
+        }
+        mLastRawReferenceUs = feedback.referenceUs;
+
+        long base = (mLastSentSequence & ~0xFFFFL) | feedback.baseSequence;
+        if (base > mLastSentSequence) base -= 0x10000;
+
+        for (int i = 0; i < feedback.arrivalUs.length; i++) {
+            long sequence = base + i;
+            int index = (int) (sequence & HISTORY_MASK);
+            // Packets already reported by a previous feedback or not sent by us
+            if (sequence <= mLastFeedbackSequence || mSentSequences[index] != sequence) continue;
+            mLastFeedbackSequence = sequence;
+            mLossWindowPackets++;
+            if (feedback.arrivalUs[i] < 0) {
+                mLossWindowLost++;
+                continue;
+            }
+            onPacketArrived(mSentNs[index], mReferenceUs + feedback.arrivalUs[i], mSentSizes[index]);
+        }
+        updateTarget(nowNs);
+        if (mLossWindowPackets >= LOSS_WINDOW_PACKETS) {
+            applyLoss((double) mLossWindowLost / mLossWindowPackets, nowNs);
+            mLossWindowPackets = 0;
+            mLossWindowLost = 0;
+        }
+        return getTargetBitrate();
+    }
+
+    private void onPacketArrived(long sendNs, long arrivalUs, int size) {
+        if (mAckedWindowStartUs < 0) {
+            mAckedWindowStartUs = arrivalUs;
+        } else if (arrivalUs - mAckedWindowStartUs >= ACKED_WINDOW_US) {
+            double bitrate = mAckedWindowBytes * 8e6 / (arrivalUs - mAckedWindowStartUs);
+            mAckedBitrate = mAckedBitrate == 0 ? bitrate : 0.7 * mAckedBitrate + 0.3 * bitrate;
+            mAckedWindowStartUs = arrivalUs;
+            mAckedWindowBytes = 0;
+        }
+        mAckedWindowBytes += size;
+
+        if (mGroupFirstSendNs < 0) {
+            startGroup(sendNs, arrivalUs);
+        } else if (sendNs - mGroupFirstSendNs > BURST_NS) {
+            if (mPreviousGroupSendNs >= 0) {
+                double sendDeltaMs = (mGroupLastSendNs - mPreviousGroupSendNs) / 1e6;
+                double receiveDeltaMs = (mGroupArrivalUs - mPreviousGroupArrivalUs) / 1e3;
+                mUsage = mTrendline.update(receiveDeltaMs, sendDeltaMs, mGroupArrivalUs / 1e3);
+            }
+            mPreviousGroupSendNs = mGroupLastSendNs;
+            mPreviousGroupArrivalUs = mGroupArrivalUs;
+            startGroup(sendNs, arrivalUs);
+        } else {
+            mGroupLastSendNs = sendNs;
+            mGroupArrivalUs = Math.max(mGroupArrivalUs, arrivalUs);
+        }
+    }
+
+    private void startGroup(long sendNs, long arrivalUs) {
+        mGroupFirstSendNs = sendNs;
+        mGroupLastSendNs = sendNs;
+        mGroupArrivalUs = arrivalUs;
+    }
+
+    private void updateTarget(long nowNs) {
+        double elapsedS = mLastUpdateNs < 0 ? 0 : Math.min(1, (nowNs - mLastUpdateNs) / 1e9);
+        mLastUpdateNs = nowNs;
+        switch (mUsage) {
+            case TrendlineEstimator.OVERUSING:
+                if (mLastDecreaseNs < 0 || nowNs - mLastDecreaseNs >= DECREASE_INTERVAL_NS) {
+                    double base = mAckedBitrate > 0 ? mAckedBitrate : mTarget;
+                    mTarget = Math.min(mTarget, DECREASE_FACTOR * base);
+                    mLastDecreaseNs = nowNs;
+                }
+                break;
+            case TrendlineEstimator.UNDERUSING:
+                // The queue is draining, wait for it before probing again
+                break;
+            default:
+                double increased = mTarget * Math.pow(INCREASE_PER_SECOND, elapsedS);
+                if (mAckedBitrate > 0) {
+                    increased = Math.min(increased, Math.max(mTarget, MAX_ACKED_RATIO * mAckedBitrate + ACKED_MARGIN));
+                }
+                mTarget = increased;
+                break;
+        }
+        mTarget = clamp(mTarget);
+    }
+
+    /**
+     * Loss based control with the fraction lost of a receiver report.
+     * @param fractionLost Between 0 and 1
+     * @return The new target bitrate in bps
+     */
+    public synchronized int onLossReport(double fractionLost, long nowNs) {
+        applyLoss(fractionLost, nowNs);
+        return getTargetBitrate();
+    }
+
+    private void applyLoss(double fractionLost, long nowNs) {
+        if (fractionLost > HIGH_LOSS && (mLastLossDecreaseNs < 0 || nowNs - mLastLossDecreaseNs >= LOSS_DECREASE_INTERVAL_NS)) {
+            mTarget = clamp(mTarget * (1 - 0.5 * fractionLost));
+            mLastLossDecreaseNs = nowNs;
+        }
+    }
+
+    private double clamp(double bitrate) {
+        return Math.max(mMinBitrate, Math.min(mMaxBitrate, bitrate));
+    }
+
+    /** Bitrate the sender should use, in bps. */
+    public synchronized int getTargetBitrate() {
+        return (int) mTarget;
+    }
+
+    /** Bitrate the receiver is getting, in bps, 0 until it is known. */
+    public synchronized int getAckedBitrate() {
+        return (int) mAckedBitrate;
+    }
+
+    /** Last state of the delay detector, one of the constants of {@link TrendlineEstimator}. */
+    public synchronized int getUsage() {
+        return mUsage;
+    }
+}
@@ -0,0 +1,86 @@
+package net.verdx.libstreaming.congestion;
+
+import net.verdx.libstreaming.rtcp.RtcpPacket;
+import net.verdx.libstreaming.rtcp.TransportFeedback;
+
+/**
+ * Control de congestion de un emisor RTP. Numera los paquetes con la secuencia de transporte que
+ * el {@link net.verdx.libstreaming.rtp.RtpSocket} pone en la extension de cabecera, recibe el
+ * feedback y los RR del receptor y con el {@link BandwidthEstimator} fija el bitrate objetivo,
+ * que el socket usa para su {@link net.verdx.libstreaming.rtp.Pacer} y se pasa al encoder.
+ */
+public class CongestionController {
+
+    public final static String TAG = "CongestionController";
+
+    public static final int DEFAULT_MIN_BITRATE = 100000;
+    /** Changes of the target smaller than this fraction are not notified. */
+    private static final double NOTIFY_THRESHOLD = 0.05;
+
+    private final BandwidthEstimator mEstimator;
+    private volatile TargetBitrateListener mListener;
+    private long mNextSequence = 0;
+    private int mNotifiedBitrate;
+
+    /**
+     * @param startBitrate Bitrate of the encoder when the streaming starts, also the maximum
+     */
+    public CongestionController(int startBitrate) {
+        this(startBitrate, DEFAULT_MIN_BITRATE, startBitrate);
+    }
+
+    public CongestionController(int startBitrate, int minBitrate, int maxBitrate) {
+        mEstimator = new BandwidthEstimator(startBitrate, minBitrate, maxBitrate);
+        mNotifiedBitrate = mEstimator.getTargetBitrate();
+    }
+
+    public void setTargetBitrateListener(TargetBitrateListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Accounts a packet that is going to be sent now.
+     * @return Transport-wide sequence number to put in the packet, 16 bits
+     */
+    public synchronized int onPacketSent(int size, long nowNs) {
+        long sequence = mNextSequence++;
+        mEstimator.onPacketSent(sequence, size, nowNs);
+        return (int) (sequence & 0xFFFF);
+    }
+
+    /** Handles the transport feedbacks and report blocks of a RTCP packet received. */
+    public void onRtcpPacket(byte[] data, int length, int ssrc, long nowNs) {
+        boolean updated = false;
+        for (TransportFeedback.Feedback feedback : TransportFeedback.parse(data, length)) {
+            if (feedback.mediaSsrc != ssrc) continue;
+            mEstimator.onFeedback(feedback, nowNs);
+            updated = true;
+        }
+        for (RtcpPacket.ReportBlock block : RtcpPacket.parseReportBlocks(data, length)) {
+            if (block.ssrc != ssrc) continue;
+            mEstimator.onLossReport(block.fractionLost / 256.0, nowNs);
+            updated = true;
+        }
+        if (updated) onTargetUpdated();
+    }
+
+    private void onTargetUpdated() {
+        int target = mEstimator.getTargetBitrate();
+        synchronized (this) {
+            if (Math.abs(target - mNotifiedBitrate) < NOTIFY_THRESHOLD * mNotifiedBitrate) return;
+            mNotifiedBitrate = target;
+        }
+        TargetBitrateListener listener = mListener;
+        if (listener != null) listener.onTargetBitrate(target);
+    }
+
+    /** Bitrate estimated for the sender, in bps. */
+    public int getTargetBitrate() {
+        return mEstimator.getTargetBitrate();
+    }
+
+    /** Bitrate the receiver reports getting, in bps, 0 until it is known. */
+    public int getAckedBitrate() {
+        return mEstimator.getAckedBitrate();
+    }
+}
@@ -0,0 +1,9 @@
+package net.verdx.libstreaming.congestion;
+
+/**
+ * Recibe el bitrate objetivo que estima un {@link CongestionController}, normalmente para
+ * ajustar el encoder.
+ */
+public interface TargetBitrateListener {
+    void onTargetBitrate(int bitrate);
+}
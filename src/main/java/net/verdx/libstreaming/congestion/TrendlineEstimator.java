@@ -0,0 +1,145 @@
+package net.verdx.libstreaming.congestion;
+
+/**
+ * Detector de sobreuso por gradiente de retardo, el de GCC (draft-ietf-rmcat-gcc) con el filtro
+ * de tendencia de WebRTC en vez del de Kalman.
+ *
+ * Cada muestra es la diferencia entre lo que tardan en llegar dos grupos de paquetes y lo que
+ * tardaron en salir: si la cola del cuello de botella crece la suma acumulada sube. Se suaviza, se
+ * calcula la pendiente por minimos cuadrados sobre las ultimas muestras y se compara con un umbral
+ * que se adapta a la tendencia, para no perder contra flujos TCP que llenan la cola.
+ */
+public class TrendlineEstimator {
+
+    public static final int NORMAL = 0;
+    public static final int OVERUSING = 1;
+    public static final int UNDERUSING = 2;
+
+    private static final int WINDOW_SIZE = 20;
+    private static final double SMOOTHING = 0.9;
+    private static final double GAIN = 4;
+    /** The trend is scaled by the number of deltas seen, up to this value. */
+    private static final int MAX_DELTAS = 60;
+
+    private static final double INITIAL_THRESHOLD_MS = 12.5;
+    private static final double MIN_THRESHOLD_MS = 6;
+    private static final double MAX_THRESHOLD_MS = 600;
+    private static final double K_UP = 0.0087;
+    private static final double K_DOWN = 0.039;
+    /** Trends further than this from the threshold are spikes, they do not adapt it. */
+    private static final double MAX_ADAPT_OFFSET_MS = 15;
+    private static final double MAX_TIME_DELTA_MS = 100;
+    private static final double OVERUSE_TIME_MS = 10;
+
+    private final double[] mTimes = new double[WINDOW_SIZE];
+    private final double[] mDelays = new double[WINDOW_SIZE];
+    private int mSamples = 0;
+    private int mNext = 0;
+    private int mDeltas = 0;
+
+    private double mFirstArrivalMs = -1;
+    private double mAccumulatedDelayMs = 0;
+    private double mSmoothedDelayMs = 0;
+    private double mTrend = 0;
+    private double mPreviousTrend = 0;
+
+    private double mThresholdMs = INITIAL_THRESHOLD_MS;
+    private double mLastThresholdUpdateMs = -1;
+    private double mTimeOverUsingMs = -1;
+    private int mOveruseCounter = 0;
+    private int mState = NORMAL;
+
+    /**
+     * Adds the deltas between two consecutive groups of packets.
+     * @param receiveDeltaMs Time between the arrival of the last packet of each group
+     * @param sendDeltaMs Time between the departure of the last packet of each group
+     * @param arrivalMs Arrival of the last packet of the new group
+     * @return The state of the link, {@link #NORMAL}, {@link #OVERUSING} or {@link #UNDERUSING}
+     */
+    public synchronized int update(double receiveDeltaMs, double sendDeltaMs, double arrivalMs) {
+        if (mFirstArrivalMs < 0) mFirstArrivalMs = arrivalMs;
+        mDeltas = Math.min(mDeltas + 1, MAX_DELTAS);
+
+        mAccumulatedDelayMs += receiveDeltaMs - sendDeltaMs;
+        mSmoothedDelayMs = SMOOTHING * mSmoothedDelayMs + (1 - SMOOTHING) * mAccumulatedDelayMs;
+
+        mTimes[mNext] = arrivalMs - mFirstArrivalMs;
+        mDelays[mNext] = mSmoothedDelayMs;
+        mNext = (mNext + 1) % WINDOW_SIZE;
+        if (mSamples < WINDOW_SIZE) mSamples++;
+        if (mSamples == WINDOW_SIZE) mTrend = slope();
+
+        detect(sendDeltaMs, arrivalMs);
+        return mState;
+    }
+
+    /** Least squares slope of the smoothed delay over the window. */
+    private double slope() {
+        double meanTime = 0, meanDelay = 0;
+        for (int i = 0; i < mSamples; i++) {
+            meanTime += mTimes[i];
+            meanDelay += mDelays[i];
+        }
+        meanTime /= mSamples;
+        meanDelay /= mSamples;
+        double numerator = 0, denominator = 0;
+        for (int i = 0; i < mSamples; i++) {
+            double dt = mTimes[i] - meanTime;
+            numerator += dt * (mDelays[i] - meanDelay);
+            denominator += dt * dt;
+        }
+        return denominator == 0 ? mTrend : numerator / denominator;
+    }
+
+    private void detect(double sendDeltaMs, double nowMs) {
+        if (mDeltas < 2) return;
+        double modifiedTrend = mDeltas * mTrend * GAIN;
+        if (modifiedTrend > mThresholdMs) {
+            // Only overusing if it lasts and the trend keeps growing
+            mTimeOverUsingMs = mTimeOverUsingMs < 0 ? sendDeltaMs / 2 : mTimeOverUsingMs + sendDeltaMs;
+            mOveruseCounter++;
+            if (mTimeOverUsingMs > OVERUSE_TIME_MS && mOveruseCounter > 1 && mTrend >= mPreviousTrend) {
+                mTimeOverUsingMs = 0;
+                mOveruseCounter = 0;
+                mState = OVERUSING;
+            }
+        } else if (modifiedTrend < -mThresholdMs) {
+            mTimeOverUsingMs = -1;
+            mOveruseCounter = 0;
+            mState = UNDERUSING;
+        } else {
+            mTimeOverUsingMs = -1;
+            mOveruseCounter = 0;
+            mState = NORMAL;
+        }
+        mPreviousTrend = mTrend;
+        updateThreshold(modifiedTrend, nowMs);
+    }
+
+    private void updateThreshold(double modifiedTrend, double nowMs) {
+        if (mLastThresholdUpdateMs < 0) mLastThresholdUpdateMs = nowMs;
+        double absTrend = Math.abs(modifiedTrend);
+        if (absTrend > mThresholdMs + MAX_ADAPT_OFFSET_MS) {
+            mLastThresholdUpdateMs = nowMs;
+            return;
+        }
+        double k = absTrend < mThresholdMs ? K_DOWN : K_UP;
+        double elapsed = Math.min(nowMs - mLastThresholdUpdateMs, MAX_TIME_DELTA_MS);
+        mThresholdMs += k * (absTrend - mThresholdMs) * elapsed;
+        mThresholdMs = Math.max(MIN_THRESHOLD_MS, Math.min(MAX_THRESHOLD_MS, mThresholdMs));
+        mLastThresholdUpdateMs = nowMs;
+    }
+
+    public synchronized int getState() {
+        return mState;
+    }
+
+    /** Slope of the queueing delay, in ms of delay per ms. */
+    public synchronized double getTrend() {
+        return mTrend;
+    }
+
+    public synchronized double getThresholdMs() {
+        return mThresholdMs;
+    }
+}
@@ -2,9 +2,9 @@ package net.verdx.libstreaming.gui;
 
 import android.content.pm.ActivityInfo;
 import android.graphics.SurfaceTexture;
-import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.Surface;
 import android.view.TextureView;
 import android.view.View;
 import android.view.Window;
@@ -19,6 +19,7 @@ import net.verdx.libstreaming.R;
 import net.verdx.libstreaming.Streaming;
 import net.verdx.libstreaming.StreamingRecord;
 import net.verdx.libstreaming.StreamingRecordObserver;
+import net.verdx.libstreaming.player.StreamPlayer;
 import net.verdx.libstreaming.sessions.SessionBuilder;
 
 import org.videolan.libvlc.IVLCVout;
@@ -63,9 +64,12 @@ public class ViewStreamActivity extends AppCompatActivity implements IVLCVout.Ca
         public int getAudioSessionId() {return 0;}
     };
 
+    // live player
+    private StreamPlayer mStreamPlayer = null;
+    private Surface mSurface = null;
+
     private ProgressBar bufferSpinner;
 
-    private String rtspUrl;
     private String videoFilePath;
     private boolean isFromGallery;
     private TextureView mTextureView;
@@ -96,9 +100,9 @@ public class ViewStreamActivity extends AppCompatActivity implements IVLCVout.Ca
         }
         else {
             streamUUID = getIntent().getExtras().getString("UUID");
-            // Get URL
-            rtspUrl = "rtsp://127.0.0.1:1234/" + streamUUID;
-            Log.d(TAG, "Playing back " + rtspUrl);
+            Log.d(TAG, "Playing back " + streamUUID);
+            // Relays only send a streaming while somebody wants it, this asks for it while the activity is open
+            StreamingRecord.getInstance().acquireDemand(UUID.fromString(streamUUID));
         }
 
         // display surface
@@ -110,6 +114,41 @@ public class ViewStreamActivity extends AppCompatActivity implements IVLCVout.Ca
     }
 
     private void startPlayVideo(){
+        bufferSpinner = findViewById(R.id.bufferSpinner);
+        if(isFromGallery) startPlayFile();
+        else startPlayStream();
+    }
+
+    /**
+     * Received streams are decoded in process from the StreamingRecord bus, without the
+     * loopback RTSP session VLC needed, and the local streaming from the output of the encoders.
+     * If the streaming is only in the catalog, playback starts when the neighbour sends it.
+     */
+    private void startPlayStream(){
+        if(mStreamPlayer != null || mTextureView.getSurfaceTexture() == null) return;
+        if(!StreamingRecord.getInstance().streamingExist(UUID.fromString(streamUUID))) {
+            Log.d(TAG, "Waiting for " + streamUUID);
+            return;
+        }
+        mSurface = new Surface(mTextureView.getSurfaceTexture());
+        mStreamPlayer = new StreamPlayer(UUID.fromString(streamUUID), mSurface, new StreamPlayer.Callback() {
+            @Override
+            public void onFirstFrame() {
+                runOnUiThread(() -> bufferSpinner.setVisibility(View.INVISIBLE));
+            }
+
+            @Override
+            public void onError(String message) {
+                Log.e(TAG, "Player error: " + message);
+                runOnUiThread(() -> streamStopped());
+            }
+        });
+        if(!mStreamPlayer.start()) {
+            streamStopped();
+        }
+    }
+
+    private void startPlayFile(){
         ArrayList<String> options = new ArrayList<String>();
         options.add("--aout=opensles");
         options.add("--audio-time-stretch"); // time stretching
@@ -121,8 +160,6 @@ public class ViewStreamActivity extends AppCompatActivity implements IVLCVout.Ca
         options.add("--video-filter=rotate {angle=90}");
         //options.add("--video-filter=rotate {angle=270}");
 
-        bufferSpinner = findViewById(R.id.bufferSpinner);
-
         libvlc = new LibVLC(getApplicationContext(), options);
 
         // Create media player
@@ -140,10 +177,7 @@ public class ViewStreamActivity extends AppCompatActivity implements IVLCVout.Ca
         vout.addCallback(this);
         vout.attachViews();
 
-        Media m;
-        if(isFromGallery) m = new Media(libvlc, videoFilePath);
-        else m = new Media(libvlc, Uri.parse(rtspUrl));
-
+        Media m = new Media(libvlc, videoFilePath);
         mMediaPlayer.setMedia(m);
         mMediaPlayer.play();
     }
@@ -163,6 +197,8 @@ public class ViewStreamActivity extends AppCompatActivity implements IVLCVout.Ca
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        StreamingRecord.getInstance().removeObserver(this);
+        if(!isFromGallery) StreamingRecord.getInstance().releaseDemand(UUID.fromString(streamUUID));
         releasePlayer();
     }
 
@@ -204,6 +240,12 @@ public class ViewStreamActivity extends AppCompatActivity implements IVLCVout.Ca
     }
 
     public void releasePlayer() {
+        if (mStreamPlayer != null) {
+            mStreamPlayer.stop();
+            mStreamPlayer = null;
+            mSurface.release();
+            mSurface = null;
+        }
         if (libvlc == null)
             return;
         mMediaPlayer.stop();
@@ -246,14 +288,19 @@ public class ViewStreamActivity extends AppCompatActivity implements IVLCVout.Ca
     public void onLocalStreamingUnavailable() {}
 
     @Override
-    public void onStreamingAvailable(Streaming streaming, boolean bAllowDispatch) {}
+    public void onStreamingAvailable(Streaming streaming, boolean bAllowDispatch) {
+        if(!isFromGallery && streaming.getUUID().toString().equals(streamUUID)) {
+            runOnUiThread(() -> {
+                if(bufferSpinner != null) startPlayStream();
+            });
+        }
+    }
 
     @Override
     public void onStreamingUnavailable(Streaming streaming) {
         if(streaming.getUUID().toString().equals(streamUUID)) {
             Log.e(TAG, "The stream has become unavailable");
-            mMediaPlayer.stop();
-            streamStopped();
+            runOnUiThread(() -> streamStopped());
         }
     }
 
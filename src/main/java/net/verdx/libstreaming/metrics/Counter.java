@@ -0,0 +1,24 @@
+package net.verdx.libstreaming.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contador monotono sin cerrojos: cada hilo suma en su celda del LongAdder, asi el encoder, los
+ * sockets RTP y los hilos del servidor cuentan sin competir entre ellos. Solo al leer se suman.
+ */
+public class Counter {
+
+    private final LongAdder mValue = new LongAdder();
+
+    public void increment() {
+        mValue.increment();
+    }
+
+    public void add(long delta) {
+        mValue.add(delta);
+    }
+
+    public long get() {
+        return mValue.sum();
+    }
+}
@@ -0,0 +1,88 @@
+package net.verdx.libstreaming.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribucion de valores no negativos (retardos en us o ms, tamaños...) sin cerrojos: cada
+ * valor cae en el cubo de su potencia de dos, asi que registrar es un incremento atomico y los
+ * percentiles salen con un error de como mucho el doble. No guarda los valores, ocupa lo mismo
+ * despues de horas de streaming.
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    /** Bucket i holds the values with i significant bits, up to 2^i - 1. */
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder mCount = new LongAdder();
+    private final LongAdder mSum = new LongAdder();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /** Negative values are recorded as 0. */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        // 0 goes to bucket 0, a positive long has at most 63 significant bits
+        mBuckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        mCount.increment();
+        mSum.add(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) ;
+    }
+
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = mBuckets.get(i);
+            count += buckets[i];
+        }
+        return new Snapshot(count, mSum.sum(), mMax.get(), buckets);
+    }
+
+    /** Values recorded up to the moment it was taken, the recording goes on meanwhile. */
+    public static class Snapshot {
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+        private final long[] mBuckets;
+
+        Snapshot(long count, long sum, long max, long[] buckets) {
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+            mBuckets = buckets;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public double getMean() {
+            return mCount == 0 ? 0 : (double) mSum / mCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * @param quantile Between 0 and 1
+         * @return Upper bound of the bucket the quantile falls in, never above the max recorded
+         */
+        public long getQuantile(double quantile) {
+            if (mCount == 0) return 0;
+            long rank = (long) Math.ceil(quantile * mCount);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank && seen > 0) {
+                    long upper = i == 0 ? 0 : i >= 63 ? Long.MAX_VALUE : (1L << i) - 1;
+                    return Math.min(upper, mMax);
+                }
+            }
+            return mMax;
+        }
+    }
+}
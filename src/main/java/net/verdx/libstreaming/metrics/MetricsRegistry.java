@@ -0,0 +1,106 @@
+package net.verdx.libstreaming.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registro de las metricas de todo el pipeline, para depurar en campo sin conectar un profiler.
+ *
+ * Hay tres tipos: los contadores y los histogramas se actualizan en el camino caliente sin
+ * cerrojos; los gauges y las fuentes no cuestan nada hasta que se pide una foto, entonces se
+ * leen los valores que ya lleva cada objeto (ocupacion de la FIFO de un RtpSocket, cola de un
+ * reenvio, hilos del pool...). Una fuente da un grupo de valores con un prefijo comun, por
+ * ejemplo los de un destino de reenvio, y se quita cuando el objeto se libera.
+ *
+ * Los nombres van separados por puntos: encoder.video.frames, rtp.pacing_delay_us,
+ * relay.192.168.1.5:5006.out...
+ */
+public class MetricsRegistry {
+
+    public final static String TAG = "MetricsRegistry";
+
+    private static MetricsRegistry INSTANCE = null;
+
+    /** A figure read when a snapshot is taken. */
+    public interface Gauge {
+        double getValue();
+    }
+
+    /** A group of figures read when a snapshot is taken, put under the prefix it is registered with. */
+    public interface Source {
+        void collect(Map<String, Double> gauges);
+    }
+
+    private final Map<String, Counter> mCounters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+    private final Map<String, Gauge> mGauges = new ConcurrentHashMap<>();
+    private final Map<String, Source> mSources = new ConcurrentHashMap<>();
+
+    public static synchronized MetricsRegistry getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new MetricsRegistry();
+        }
+        return INSTANCE;
+    }
+
+    /** The counter with that name, created the first time. Callers keep it to skip the lookup. */
+    public Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter != null) return counter;
+        return mCounters.computeIfAbsent(name, key -> new Counter());
+    }
+
+    /** The histogram with that name, created the first time. Callers keep it to skip the lookup. */
+    public Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram != null) return histogram;
+        return mHistograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    /** Registers a figure, replacing the one with the same name. */
+    public void register(String name, Gauge gauge) {
+        mGauges.put(name, gauge);
+    }
+
+    /** Registers a group of figures, replacing the one with the same prefix. */
+    public void register(String prefix, Source source) {
+        mSources.put(prefix, source);
+    }
+
+    /** Removes the gauge or the source registered with that name. */
+    public void unregister(String name) {
+        mGauges.remove(name);
+        mSources.remove(name);
+    }
+
+    /** Removes the counters and histograms whose name starts with the prefix, of an object released. */
+    public void remove(String prefix) {
+        mCounters.keySet().removeIf(name -> name.startsWith(prefix));
+        mHistograms.keySet().removeIf(name -> name.startsWith(prefix));
+    }
+
+    public MetricsSnapshot snapshot() {
+        Map<String, Long> counters = new HashMap<>();
+        for (Map.Entry<String, Counter> entry : mCounters.entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().get());
+        }
+        Map<String, Double> gauges = new HashMap<>();
+        for (Map.Entry<String, Gauge> entry : mGauges.entrySet()) {
+            gauges.put(entry.getKey(), entry.getValue().getValue());
+        }
+        for (Map.Entry<String, Source> entry : mSources.entrySet()) {
+            Map<String, Double> group = new HashMap<>();
+            entry.getValue().collect(group);
+            for (Map.Entry<String, Double> figure : group.entrySet()) {
+                gauges.put(entry.getKey() + "." + figure.getKey(), figure.getValue());
+            }
+        }
+        Map<String, Histogram.Snapshot> histograms = new HashMap<>();
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+            Histogram.Snapshot snapshot = entry.getValue().snapshot();
+            if (snapshot.getCount() > 0) histograms.put(entry.getKey(), snapshot);
+        }
+        return new MetricsSnapshot(System.nanoTime(), counters, gauges, histograms);
+    }
+}
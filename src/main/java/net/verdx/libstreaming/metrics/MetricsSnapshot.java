@@ -0,0 +1,97 @@
+package net.verdx.libstreaming.metrics;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Foto de todas las metricas en un instante, inmutable. Los contadores son acumulados desde el
+ * arranque: los ritmos (fps del encoder, paquetes por segundo de un reenvio) salen de comparar
+ * dos fotos con {@link #getRate(String, MetricsSnapshot)}.
+ */
+public class MetricsSnapshot {
+
+    private final long mTimeNs;
+    private final Map<String, Long> mCounters;
+    private final Map<String, Double> mGauges;
+    private final Map<String, Histogram.Snapshot> mHistograms;
+
+    MetricsSnapshot(long timeNs, Map<String, Long> counters, Map<String, Double> gauges, Map<String, Histogram.Snapshot> histograms) {
+        mTimeNs = timeNs;
+        mCounters = Collections.unmodifiableMap(new TreeMap<>(counters));
+        mGauges = Collections.unmodifiableMap(new TreeMap<>(gauges));
+        mHistograms = Collections.unmodifiableMap(new TreeMap<>(histograms));
+    }
+
+    /** When it was taken, in ns of {@link System#nanoTime()}. */
+    public long getTimeNs() {
+        return mTimeNs;
+    }
+
+    public Map<String, Long> getCounters() {
+        return mCounters;
+    }
+
+    public Map<String, Double> getGauges() {
+        return mGauges;
+    }
+
+    public Map<String, Histogram.Snapshot> getHistograms() {
+        return mHistograms;
+    }
+
+    /** @return The value of the counter, 0 if nothing was counted yet */
+    public long getCounter(String name) {
+        Long value = mCounters.get(name);
+        return value != null ? value : 0;
+    }
+
+    /** @return The value of the gauge, NaN if it is not registered */
+    public double getGauge(String name) {
+        Double value = mGauges.get(name);
+        return value != null ? value : Double.NaN;
+    }
+
+    /** @return The histogram, or null if nothing was recorded yet */
+    public Histogram.Snapshot getHistogram(String name) {
+        return mHistograms.get(name);
+    }
+
+    /** Increase per second of a counter since a previous snapshot. */
+    public double getRate(String counter, MetricsSnapshot previous) {
+        long elapsedNs = mTimeNs - previous.mTimeNs;
+        if (elapsedNs <= 0) return 0;
+        return (getCounter(counter) - previous.getCounter(counter)) * 1e9 / elapsedNs;
+    }
+
+    /**
+     * One "name: value" line per figure, the text/parameters format of GET_PARAMETER. A
+     * histogram gives its count, mean, p50, p90, p99 and max.
+     */
+    public String toParameters() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> entry : mCounters.entrySet()) {
+            text.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+        }
+        for (Map.Entry<String, Double> entry : mGauges.entrySet()) {
+            text.append(entry.getKey()).append(": ").append(format(entry.getValue())).append("\r\n");
+        }
+        for (Map.Entry<String, Histogram.Snapshot> entry : mHistograms.entrySet()) {
+            Histogram.Snapshot histogram = entry.getValue();
+            String name = entry.getKey();
+            text.append(name).append(".count: ").append(histogram.getCount()).append("\r\n")
+                    .append(name).append(".mean: ").append(format(histogram.getMean())).append("\r\n")
+                    .append(name).append(".p50: ").append(histogram.getQuantile(0.5)).append("\r\n")
+                    .append(name).append(".p90: ").append(histogram.getQuantile(0.9)).append("\r\n")
+                    .append(name).append(".p99: ").append(histogram.getQuantile(0.99)).append("\r\n")
+                    .append(name).append(".max: ").append(histogram.getMax()).append("\r\n");
+        }
+        return text.toString();
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && !Double.isInfinite(value)
+                ? String.valueOf((long) value) : String.format(Locale.US, "%.3f", value);
+    }
+}
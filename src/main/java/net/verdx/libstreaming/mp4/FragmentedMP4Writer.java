@@ -0,0 +1,563 @@
+package net.verdx.libstreaming.mp4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Escritor de MP4 fragmentado (ISO/IEC 14496-12) sobre un FileChannel.
+ *
+ * La cabecera (ftyp + moov sin muestras) se escribe en {@link #start()} y despues cada
+ * {@link #flush()} añade un fragmento moof + mdat con las muestras acumuladas. Cada fragmento
+ * es autocontenido, asi que si la aplicacion muere el fichero sigue siendo reproducible hasta
+ * el ultimo fragmento escrito.
+ *
+ * Las muestras de video tienen que estar ya en formato AVCC (cada NAL precedida de su longitud
+ * en 4 bytes) y las de audio ser AU de AAC sin cabecera ADTS.
+ */
+public class FragmentedMP4Writer {
+
+    public final static String TAG = "FragmentedMP4Writer";
+
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int VIDEO_TIMESCALE = 90000;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private final FileOutputStream mOutputStream;
+    private final FileChannel mChannel;
+    private final List<Track> mTracks = new ArrayList<>();
+    private boolean mStarted = false;
+    private int mSequenceNumber = 0;
+    private long mBytesWritten = 0;
+
+    private static class Track {
+        final int id;
+        final boolean video;
+        final int timescale;
+        int width, height;
+        byte[] sps, pps;
+        int channelCount;
+        byte[] audioSpecificConfig;
+
+        final ByteArrayOutputStream data = new ByteArrayOutputStream(256 * 1024);
+        final List<Sample> samples = new ArrayList<>();
+        long firstTicks = -1;
+        long decodeTime = -1;
+        long lastDuration = 0;
+
+        Track(int id, boolean video, int timescale) {
+            this.id = id;
+            this.video = video;
+            this.timescale = timescale;
+        }
+    }
+
+    private static class Sample {
+        final int size;
+        final long ticks;
+        final boolean sync;
+        long duration = -1;
+
+        Sample(int size, long ticks, boolean sync) {
+            this.size = size;
+            this.ticks = ticks;
+            this.sync = sync;
+        }
+    }
+
+    public FragmentedMP4Writer(File file) throws IOException {
+        mOutputStream = new FileOutputStream(file);
+        mChannel = mOutputStream.getChannel();
+    }
+
+    /**
+     * Adds an H.264 track.
+     * @param sps Sequence parameter set, without start code
+     * @param pps Picture parameter set, without start code
+     * @return The index of the track, used in {@link #writeSample}
+     */
+    public int addVideoTrack(int width, int height, byte[] sps, byte[] pps) {
+        if (mStarted) throw new IllegalStateException("Tracks must be added before start()");
+        Track track = new Track(mTracks.size() + 1, true, VIDEO_TIMESCALE);
+        track.width = width;
+        track.height = height;
+        track.sps = sps;
+        track.pps = pps;
+        mTracks.add(track);
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * Adds an AAC track.
+     * @param audioSpecificConfig The AudioSpecificConfig of the stream (ISO/IEC 14496-3)
+     * @return The index of the track, used in {@link #writeSample}
+     */
+    public int addAudioTrack(int samplingRate, int channelCount, byte[] audioSpecificConfig) {
+        if (mStarted) throw new IllegalStateException("Tracks must be added before start()");
+        Track track = new Track(mTracks.size() + 1, false, samplingRate);
+        track.channelCount = channelCount;
+        track.audioSpecificConfig = audioSpecificConfig;
+        mTracks.add(track);
+        return mTracks.size() - 1;
+    }
+
+    /** Writes the file header. */
+    public synchronized void start() throws IOException {
+        if (mStarted) return;
+        if (mTracks.isEmpty()) throw new IllegalStateException("No tracks added");
+        BoxBuilder b = new BoxBuilder(1024);
+        writeFtyp(b);
+        writeMoov(b);
+        write(b.toByteBuffer());
+        mStarted = true;
+    }
+
+    /**
+     * Queues a sample for the next fragment.
+     * @param presentationTimeUs Presentation time of the sample, samples of a track must be in decoding order
+     */
+    public synchronized void writeSample(int trackIndex, byte[] data, int offset, int length,
+                                         long presentationTimeUs, boolean sync) throws IOException {
+        if (!mStarted) throw new IllegalStateException("start() not called");
+        Track track = mTracks.get(trackIndex);
+        long ticks = presentationTimeUs * track.timescale / 1000000L;
+        if (track.firstTicks < 0) track.firstTicks = ticks;
+        ticks -= track.firstTicks;
+
+        int count = track.samples.size();
+        if (count > 0) {
+            Sample previous = track.samples.get(count - 1);
+            previous.duration = Math.max(1, ticks - previous.ticks);
+            track.lastDuration = previous.duration;
+        } else if (track.decodeTime >= 0 && ticks <= track.decodeTime) {
+            // Timestamps going backwards right after a fragment, keep the decode times increasing
+            ticks = track.decodeTime + 1;
+        }
+        track.samples.add(new Sample(length, ticks, sync || !track.video));
+        track.data.write(data, offset, length);
+    }
+
+    /**
+     * Writes a fragment with every queued sample whose duration is known, that is all but
+     * the last one of each track.
+     */
+    public synchronized void flush() throws IOException {
+        writeFragment(false);
+    }
+
+    /** Number of bytes written to the file so far. */
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /** Writes the remaining samples and closes the file. */
+    public synchronized void close() throws IOException {
+        try {
+            if (mStarted) {
+                writeFragment(true);
+                mChannel.force(false);
+            }
+        } finally {
+            mOutputStream.close();
+        }
+    }
+
+    private void writeFragment(boolean last) throws IOException {
+        List<Track> tracks = new ArrayList<>();
+        List<Integer> counts = new ArrayList<>();
+        for (Track track : mTracks) {
+            int count = track.samples.size();
+            if (!last && count > 0) count--;
+            if (count > 0) {
+                Sample lastSample = track.samples.get(count - 1);
+                if (lastSample.duration < 0) {
+                    lastSample.duration = track.lastDuration > 0 ? track.lastDuration : track.timescale / 30;
+                }
+                tracks.add(track);
+                counts.add(count);
+            }
+        }
+        if (tracks.isEmpty()) return;
+
+        mSequenceNumber++;
+        BoxBuilder b = new BoxBuilder(1024);
+        int[] dataOffsetPositions = new int[tracks.size()];
+
+        b.start("moof");
+        b.fullBox("mfhd", 0, 0);
+        b.putInt(mSequenceNumber);
+        b.end();
+        for (int i = 0; i < tracks.size(); i++) {
+            Track track = tracks.get(i);
+            int count = counts.get(i);
+            long baseTime = track.samples.get(0).ticks;
+            if (track.decodeTime >= 0 && baseTime < track.decodeTime) baseTime = track.decodeTime;
+
+            b.start("traf");
+            b.fullBox("tfhd", 0, 0x020000);
+            b.putInt(track.id);
+            b.end();
+            b.fullBox("tfdt", 1, 0);
+            b.putLong(baseTime);
+            b.end();
+            b.fullBox("trun", 0, 0x000001 | 0x000100 | 0x000200 | 0x000400);
+            b.putInt(count);
+            dataOffsetPositions[i] = b.position();
+            b.putInt(0);
+            for (int s = 0; s < count; s++) {
+                Sample sample = track.samples.get(s);
+                b.putInt((int) sample.duration);
+                b.putInt(sample.size);
+                b.putInt(sample.sync ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            }
+            b.end();
+            b.end();
+        }
+        b.end();
+
+        int moofSize = b.position();
+        int dataOffset = moofSize + 8;
+        int mdatSize = 8;
+        List<byte[]> payloads = new ArrayList<>();
+        for (int i = 0; i < tracks.size(); i++) {
+            Track track = tracks.get(i);
+            int count = counts.get(i);
+            int bytes = 0;
+            for (int s = 0; s < count; s++) bytes += track.samples.get(s).size;
+
+            b.putInt(dataOffsetPositions[i], dataOffset);
+            dataOffset += bytes;
+            mdatSize += bytes;
+
+            byte[] all = track.data.toByteArray();
+            byte[] payload = new byte[bytes];
+            System.arraycopy(all, 0, payload, 0, bytes);
+            payloads.add(payload);
+            track.data.reset();
+            track.data.write(all, bytes, all.length - bytes);
+
+            Sample lastWritten = track.samples.get(count - 1);
+            track.decodeTime = lastWritten.ticks + lastWritten.duration;
+            track.samples.subList(0, count).clear();
+        }
+        b.putInt(mdatSize);
+        b.putFourCC("mdat");
+
+        ByteBuffer[] buffers = new ByteBuffer[payloads.size() + 1];
+        buffers[0] = b.toByteBuffer();
+        for (int i = 0; i < payloads.size(); i++) buffers[i + 1] = ByteBuffer.wrap(payloads.get(i));
+        write(buffers);
+    }
+
+    private void write(ByteBuffer... buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) remaining += buffer.remaining();
+        while (remaining > 0) {
+            long written = mChannel.write(buffers);
+            remaining -= written;
+            mBytesWritten += written;
+        }
+    }
+
+    private void writeFtyp(BoxBuilder b) {
+        b.start("ftyp");
+        b.putFourCC("iso5");
+        b.putInt(512);
+        b.putFourCC("iso5");
+        b.putFourCC("iso6");
+        b.putFourCC("mp41");
+        if (hasVideo()) b.putFourCC("avc1");
+        b.end();
+    }
+
+    private boolean hasVideo() {
+        for (Track track : mTracks) if (track.video) return true;
+        return false;
+    }
+
+    private void writeMoov(BoxBuilder b) {
+        b.start("moov");
+
+        b.fullBox("mvhd", 0, 0);
+        b.putInt(0);                    // creation_time
+        b.putInt(0);                    // modification_time
+        b.putInt(MOVIE_TIMESCALE);
+        b.putInt(0);                    // duration, unknown for fragmented files
+        b.putInt(0x00010000);           // rate 1.0
+        b.putShort(0x0100);             // volume 1.0
+        b.putZeros(10);
+        putMatrix(b);
+        b.putZeros(24);
+        b.putInt(mTracks.size() + 1);   // next_track_ID
+        b.end();
+
+        for (Track track : mTracks) {
+            writeTrak(b, track);
+        }
+
+        b.start("mvex");
+        for (Track track : mTracks) {
+            b.fullBox("trex", 0, 0);
+            b.putInt(track.id);
+            b.putInt(1);                // default_sample_description_index
+            b.putInt(0);
+            b.putInt(0);
+            b.putInt(0);
+            b.end();
+        }
+        b.end();
+
+        b.end();
+    }
+
+    private void writeTrak(BoxBuilder b, Track track) {
+        b.start("trak");
+
+        b.fullBox("tkhd", 0, 0x000007);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(track.id);
+        b.putInt(0);
+        b.putInt(0);                    // duration
+        b.putZeros(8);
+        b.putShort(0);                  // layer
+        b.putShort(0);                  // alternate_group
+        b.putShort(track.video ? 0 : 0x0100);
+        b.putShort(0);
+        putMatrix(b);
+        b.putInt(track.video ? track.width << 16 : 0);
+        b.putInt(track.video ? track.height << 16 : 0);
+        b.end();
+
+        b.start("mdia");
+        b.fullBox("mdhd", 0, 0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(track.timescale);
+        b.putInt(0);
+        b.putShort(0x55C4);             // "und"
+        b.putShort(0);
+        b.end();
+
+        b.fullBox("hdlr", 0, 0);
+        b.putInt(0);
+        b.putFourCC(track.video ? "vide" : "soun");
+        b.putZeros(12);
+        b.putString(track.video ? "VideoHandler" : "SoundHandler");
+        b.end();
+
+        b.start("minf");
+        if (track.video) {
+            b.fullBox("vmhd", 0, 1);
+            b.putZeros(8);
+        } else {
+            b.fullBox("smhd", 0, 0);
+            b.putZeros(4);
+        }
+        b.end();
+
+        b.start("dinf");
+        b.fullBox("dref", 0, 0);
+        b.putInt(1);
+        b.fullBox("url ", 0, 1);
+        b.end();
+        b.end();
+        b.end();
+
+        b.start("stbl");
+        b.fullBox("stsd", 0, 0);
+        b.putInt(1);
+        if (track.video) writeAvc1(b, track);
+        else writeMp4a(b, track);
+        b.end();
+        b.fullBox("stts", 0, 0);
+        b.putInt(0);
+        b.end();
+        b.fullBox("stsc", 0, 0);
+        b.putInt(0);
+        b.end();
+        b.fullBox("stsz", 0, 0);
+        b.putInt(0);
+        b.putInt(0);
+        b.end();
+        b.fullBox("stco", 0, 0);
+        b.putInt(0);
+        b.end();
+        b.end();
+
+        b.end();
+        b.end();
+        b.end();
+    }
+
+    private void writeAvc1(BoxBuilder b, Track track) {
+        b.start("avc1");
+        b.putZeros(6);
+        b.putShort(1);                  // data_reference_index
+        b.putZeros(16);
+        b.putShort(track.width);
+        b.putShort(track.height);
+        b.putInt(0x00480000);           // 72 dpi
+        b.putInt(0x00480000);
+        b.putInt(0);
+        b.putShort(1);                  // frame_count
+        b.putZeros(32);                 // compressorname
+        b.putShort(0x0018);             // depth
+        b.putShort(0xFFFF);             // pre_defined = -1
+
+        b.start("avcC");
+        b.putByte(1);
+        b.putByte(track.sps[1]);        // profile
+        b.putByte(track.sps[2]);        // compatibility
+        b.putByte(track.sps[3]);        // level
+        b.putByte(0xFF);                // 4 bytes NAL lengths
+        b.putByte(0xE1);                // 1 SPS
+        b.putShort(track.sps.length);
+        b.putBytes(track.sps);
+        b.putByte(1);                   // 1 PPS
+        b.putShort(track.pps.length);
+        b.putBytes(track.pps);
+        b.end();
+
+        b.end();
+    }
+
+    private void writeMp4a(BoxBuilder b, Track track) {
+        b.start("mp4a");
+        b.putZeros(6);
+        b.putShort(1);                  // data_reference_index
+        b.putZeros(8);
+        b.putShort(track.channelCount);
+        b.putShort(16);                 // samplesize
+        b.putShort(0);
+        b.putShort(0);
+        b.putInt(track.timescale << 16);
+
+        byte[] asc = track.audioSpecificConfig;
+        b.fullBox("esds", 0, 0);
+        b.putByte(0x03);                // ES_Descriptor
+        b.putByte(3 + 15 + asc.length + 2 + 3);
+        b.putShort(track.id);
+        b.putByte(0);
+        b.putByte(0x04);                // DecoderConfigDescriptor
+        b.putByte(13 + 2 + asc.length);
+        b.putByte(0x40);                // Audio ISO/IEC 14496-3
+        b.putByte(0x15);                // AudioStream
+        b.putZeros(3);                  // bufferSizeDB
+        b.putInt(0);                    // maxBitrate
+        b.putInt(0);                    // avgBitrate
+        b.putByte(0x05);                // DecoderSpecificInfo
+        b.putByte(asc.length);
+        b.putBytes(asc);
+        b.putByte(0x06);                // SLConfigDescriptor
+        b.putByte(1);
+        b.putByte(0x02);
+        b.end();
+
+        b.end();
+    }
+
+    private static void putMatrix(BoxBuilder b) {
+        b.putInt(0x00010000); b.putInt(0); b.putInt(0);
+        b.putInt(0); b.putInt(0x00010000); b.putInt(0);
+        b.putInt(0); b.putInt(0); b.putInt(0x40000000);
+    }
+
+    /**
+     * Buffer que crece segun se escriben cajas, el tamaño de cada caja se rellena al cerrarla.
+     */
+    private static class BoxBuilder {
+        private ByteBuffer mBuffer;
+        private final int[] mStack = new int[16];
+        private int mDepth = 0;
+
+        BoxBuilder(int capacity) {
+            mBuffer = ByteBuffer.allocate(capacity);
+        }
+
+        void start(String type) {
+            mStack[mDepth++] = mBuffer.position();
+            putInt(0);
+            putFourCC(type);
+        }
+
+        void fullBox(String type, int version, int flags) {
+            start(type);
+            putInt((version << 24) | (flags & 0xFFFFFF));
+        }
+
+        void end() {
+            int start = mStack[--mDepth];
+            mBuffer.putInt(start, mBuffer.position() - start);
+        }
+
+        int position() {
+            return mBuffer.position();
+        }
+
+        void putByte(int value) {
+            ensure(1);
+            mBuffer.put((byte) value);
+        }
+
+        void putShort(int value) {
+            ensure(2);
+            mBuffer.putShort((short) value);
+        }
+
+        void putInt(int value) {
+            ensure(4);
+            mBuffer.putInt(value);
+        }
+
+        void putInt(int position, int value) {
+            mBuffer.putInt(position, value);
+        }
+
+        void putLong(long value) {
+            ensure(8);
+            mBuffer.putLong(value);
+        }
+
+        void putFourCC(String type) {
+            ensure(4);
+            for (int i = 0; i < 4; i++) mBuffer.put((byte) type.charAt(i));
+        }
+
+        void putBytes(byte[] bytes) {
+            ensure(bytes.length);
+            mBuffer.put(bytes);
+        }
+
+        void putZeros(int count) {
+            ensure(count);
+            for (int i = 0; i < count; i++) mBuffer.put((byte) 0);
+        }
+
+        void putString(String value) {
+            for (int i = 0; i < value.length(); i++) putByte(value.charAt(i));
+            putByte(0);
+        }
+
+        ByteBuffer toByteBuffer() {
+            ByteBuffer out = mBuffer.duplicate();
+            out.flip();
+            return out;
+        }
+
+        private void ensure(int bytes) {
+            if (mBuffer.remaining() >= bytes) return;
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(mBuffer.capacity() * 2, mBuffer.position() + bytes));
+            mBuffer.flip();
+            bigger.put(mBuffer);
+            mBuffer = bigger;
+        }
+    }
+}
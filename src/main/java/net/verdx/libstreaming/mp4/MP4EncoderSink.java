@@ -0,0 +1,72 @@
+package net.verdx.libstreaming.mp4;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+import net.verdx.libstreaming.rtp.EncoderSink;
+
+/**
+ * Adapta la salida de un encoder (video H.264 o audio AAC) a un track de {@link MP4Recorder}.
+ * La configuracion del track se toma de los csd-0/csd-1 del formato de salida del encoder.
+ */
+public class MP4EncoderSink implements EncoderSink {
+
+    private final MP4Recorder mRecorder;
+    private final boolean mVideo;
+
+    /**
+     * @param recorder The recorder shared by the audio and video sinks
+     * @param video True to feed the video track of the recorder, false for the audio track
+     */
+    public MP4EncoderSink(MP4Recorder recorder, boolean video) {
+        mRecorder = recorder;
+        mVideo = video;
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaFormat format) {
+        if (mVideo) {
+            byte[] sps = stripStartCode(format.getByteBuffer("csd-0"));
+            byte[] pps = stripStartCode(format.getByteBuffer("csd-1"));
+            if (sps != null && pps != null) mRecorder.setVideoParameterSets(sps, pps);
+        } else {
+            byte[] audioSpecificConfig = toArray(format.getByteBuffer("csd-0"));
+            mRecorder.setAudioConfig(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), audioSpecificConfig);
+        }
+    }
+
+    @Override
+    public void onEncodedFrame(byte[] data, MediaCodec.BufferInfo info) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) return;
+        if (mVideo) {
+            boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+            mRecorder.writeVideo(data, info.offset, info.size, info.presentationTimeUs, keyFrame);
+        } else {
+            mRecorder.writeAudio(data, info.offset, info.size, info.presentationTimeUs);
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        if (buffer == null) return null;
+        ByteBuffer copy = buffer.duplicate();
+        copy.rewind();
+        byte[] out = new byte[copy.remaining()];
+        copy.get(out);
+        return out;
+    }
+
+    private static byte[] stripStartCode(ByteBuffer buffer) {
+        byte[] data = toArray(buffer);
+        if (data == null) return null;
+        int pos = 0;
+        while (pos < data.length && data[pos] == 0) pos++;
+        if (pos >= 2 && pos < data.length && data[pos] == 1) pos++;
+        else pos = 0;
+        byte[] out = new byte[data.length - pos];
+        System.arraycopy(data, pos, out, 0, out.length);
+        return out;
+    }
+}
@@ -0,0 +1,361 @@
+package net.verdx.libstreaming.mp4;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.verdx.libstreaming.metrics.Counter;
+import net.verdx.libstreaming.metrics.MetricsRegistry;
+import net.verdx.libstreaming.rtp.AccessUnit;
+import net.verdx.libstreaming.rtp.AccessUnitListener;
+
+/**
+ * Graba unidades de acceso H.264/AAC en ficheros MP4 fragmentados usando {@link FragmentedMP4Writer}.
+ *
+ * El fichero se abre cuando se conoce la configuracion de todos los tracks y llega el primer
+ * frame clave. Las muestras se vuelcan como un fragmento cada {@link #setFlushInterval(long)} ms,
+ * y el fichero se rota en el siguiente frame clave cuando supera el tamaño o la duracion maximos.
+ * Los ficheros rotados se llaman como el primero con un sufijo _1, _2...
+ *
+ * Las muestras llegan desde los hilos de recepcion RTP y de los encoders, que no pueden esperar
+ * al disco: se encolan en una cola acotada y las escribe un hilo propio del grabador. Si el disco
+ * no da abasto y la cola se llena se descartan muestras, y el video no se reanuda hasta el
+ * siguiente frame clave.
+ */
+public class MP4Recorder {
+
+    public final static String TAG = "MP4Recorder";
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 1000;
+
+    /** Samples waiting for the disk, a few seconds of audio and video. */
+    private static final int QUEUE_CAPACITY = 256;
+
+    private static final Runnable STOP = () -> {};
+
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+    private static final int NAL_AUD = 9;
+
+    private final String mBasePath;
+    private final boolean mHasVideo;
+    private final boolean mHasAudio;
+
+    private long mFlushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS;
+    private long mMaxFileSize = 0;
+    private long mMaxDurationMs = 0;
+
+    private byte[] mSps, mPps;
+    private int mSamplingRate, mChannelCount;
+    private byte[] mAudioSpecificConfig;
+
+    private FragmentedMP4Writer mWriter;
+    private int mVideoTrack = -1, mAudioTrack = -1;
+    private int mFileIndex = 0;
+    private long mFileStartNs, mLastFlushNs;
+    private volatile boolean mStopped = false;
+    private boolean mFailed = false;
+
+    private final BlockingQueue<Runnable> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread mThread;
+    private volatile boolean mVideoGap = false;
+    private volatile boolean mOverflow = false;
+    private final Counter mDropped = MetricsRegistry.getInstance().counter("mp4.recorder.dropped");
+
+    private final ByteArrayOutputStream mSample = new ByteArrayOutputStream(64 * 1024);
+
+    private final AccessUnitListener mVideoListener = new AccessUnitListener() {
+        @Override
+        public void onAccessUnit(AccessUnit accessUnit) {
+            byte[] data = accessUnit.getData();
+            queueVideo(data, 0, data.length, accessUnit.getPresentationTimeUs(), accessUnit.isKeyFrame());
+        }
+    };
+
+    private final AccessUnitListener mAudioListener = new AccessUnitListener() {
+        @Override
+        public void onAccessUnit(AccessUnit accessUnit) {
+            byte[] data = accessUnit.getData();
+            queueAudio(data, 0, data.length, accessUnit.getPresentationTimeUs());
+        }
+    };
+
+    /**
+     * @param path Path of the first file
+     * @param hasVideo True if an H.264 track will be recorded
+     * @param hasAudio True if an AAC track will be recorded
+     */
+    public MP4Recorder(String path, boolean hasVideo, boolean hasAudio) {
+        mBasePath = path;
+        mHasVideo = hasVideo;
+        mHasAudio = hasAudio;
+        mThread = new Thread(this::run, TAG);
+        mThread.start();
+    }
+
+    /** Max time the samples stay in memory before being written to the file. */
+    public void setFlushInterval(long intervalMs) {
+        mFlushIntervalMs = intervalMs;
+    }
+
+    /** Starts a new file once the current one reaches this size, 0 to disable. */
+    public void setMaxFileSize(long bytes) {
+        mMaxFileSize = bytes;
+    }
+
+    /** Starts a new file once the current one reaches this duration, 0 to disable. */
+    public void setMaxDuration(long durationMs) {
+        mMaxDurationMs = durationMs;
+    }
+
+    /** Parameter sets of the video track, without start codes. They are also picked from the stream. */
+    public synchronized void setVideoParameterSets(byte[] sps, byte[] pps) {
+        mSps = sps;
+        mPps = pps;
+    }
+
+    /**
+     * Configuration of the audio track.
+     * @param audioSpecificConfig The AudioSpecificConfig, or null to derive an AAC-LC one from the sampling rate
+     */
+    public synchronized void setAudioConfig(int samplingRate, int channelCount, byte[] audioSpecificConfig) {
+        mSamplingRate = samplingRate;
+        mChannelCount = channelCount;
+        mAudioSpecificConfig = audioSpecificConfig != null ? audioSpecificConfig
+                : buildAudioSpecificConfig(samplingRate, channelCount);
+    }
+
+    public AccessUnitListener getVideoListener() {
+        return mVideoListener;
+    }
+
+    public AccessUnitListener getAudioListener() {
+        return mAudioListener;
+    }
+
+    /**
+     * Records an H.264 frame, the data is copied and written by the thread of the recorder.
+     * @param data The frame in Annex B format
+     */
+    public void writeVideo(byte[] data, int offset, int length, long presentationTimeUs, boolean keyFrame) {
+        if (mStopped || !mHasVideo) return;
+        queueVideo(copy(data, offset, length), 0, length, presentationTimeUs, keyFrame);
+    }
+
+    /** Records an AAC access unit, without ADTS header. The data is copied and written by the thread of the recorder. */
+    public void writeAudio(byte[] data, int offset, int length, long presentationTimeUs) {
+        if (mStopped || !mHasAudio) return;
+        queueAudio(copy(data, offset, length), 0, length, presentationTimeUs);
+    }
+
+    /** Writes the pending samples and closes the current file, waiting for the thread of the recorder. */
+    public void stop() {
+        mStopped = true;
+        try {
+            while (mThread.isAlive() && !mQueue.offer(STOP, 100, TimeUnit.MILLISECONDS)) ;
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Path of the file being written, null if none is open. */
+    public synchronized String getCurrentPath() {
+        return mWriter != null ? pathForIndex(mFileIndex - 1) : null;
+    }
+
+    /** Queues a frame the caller will not modify. After a drop, the frames wait for the next key frame. */
+    private void queueVideo(final byte[] data, final int offset, final int length, final long presentationTimeUs, final boolean keyFrame) {
+        if (mStopped || !mHasVideo) return;
+        if (mVideoGap && !keyFrame) {
+            mDropped.increment();
+            return;
+        }
+        mVideoGap = !queue(() -> recordVideo(data, offset, length, presentationTimeUs, keyFrame));
+    }
+
+    private void queueAudio(final byte[] data, final int offset, final int length, final long presentationTimeUs) {
+        if (mStopped || !mHasAudio) return;
+        queue(() -> recordAudio(data, offset, length, presentationTimeUs));
+    }
+
+    private boolean queue(Runnable sample) {
+        if (mQueue.offer(sample)) {
+            mOverflow = false;
+            return true;
+        }
+        mDropped.increment();
+        if (!mOverflow) {
+            mOverflow = true;
+            Log.w(TAG, "The disk does not keep up, dropping samples");
+        }
+        return false;
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                Runnable sample = mQueue.take();
+                if (sample == STOP) break;
+                sample.run();
+                synchronized (this) {
+                    if (mFailed) break;
+                }
+            }
+        } catch (InterruptedException ignored) {
+        } finally {
+            synchronized (this) {
+                closeWriter();
+            }
+            mQueue.clear();
+        }
+    }
+
+    private synchronized void recordVideo(byte[] data, int offset, int length, long presentationTimeUs, boolean keyFrame) {
+        // Converts Annex B to AVCC, parameter sets go to the avcC box
+        mSample.reset();
+        int pos = nextStartCode(data, offset, offset + length);
+        while (pos < offset + length) {
+            int nalStart = skipStartCode(data, pos, offset + length);
+            int nalEnd = nextStartCode(data, nalStart, offset + length);
+            int nalLength = nalEnd - nalStart;
+            if (nalLength > 0) {
+                int type = data[nalStart] & 0x1F;
+                if (type == NAL_SPS) {
+                    mSps = copy(data, nalStart, nalLength);
+                } else if (type == NAL_PPS) {
+                    mPps = copy(data, nalStart, nalLength);
+                } else if (type != NAL_AUD) {
+                    mSample.write(nalLength >> 24);
+                    mSample.write(nalLength >> 16);
+                    mSample.write(nalLength >> 8);
+                    mSample.write(nalLength);
+                    mSample.write(data, nalStart, nalLength);
+                }
+            }
+            pos = nalEnd;
+        }
+        if (mSample.size() == 0) return;
+
+        try {
+            if (keyFrame) rotateIfNeeded();
+            if (mWriter == null) {
+                if (!keyFrame || !open()) return;
+            }
+            byte[] sample = mSample.toByteArray();
+            mWriter.writeSample(mVideoTrack, sample, 0, sample.length, presentationTimeUs, keyFrame);
+            flushIfNeeded();
+        } catch (IOException e) {
+            onError(e);
+        }
+    }
+
+    private synchronized void recordAudio(byte[] data, int offset, int length, long presentationTimeUs) {
+        try {
+            if (!mHasVideo) rotateIfNeeded();
+            if (mWriter == null) {
+                // With video the file starts on a key frame
+                if (mHasVideo || !open()) return;
+            }
+            mWriter.writeSample(mAudioTrack, data, offset, length, presentationTimeUs, true);
+            flushIfNeeded();
+        } catch (IOException e) {
+            onError(e);
+        }
+    }
+
+    private boolean open() throws IOException {
+        if (mHasVideo && (mSps == null || mPps == null)) return false;
+        if (mHasAudio && mAudioSpecificConfig == null) return false;
+
+        String path = pathForIndex(mFileIndex++);
+        FragmentedMP4Writer writer = new FragmentedMP4Writer(new File(path));
+        if (mHasVideo) {
+            SpsReader reader = new SpsReader(mSps);
+            mVideoTrack = writer.addVideoTrack(reader.getWidth(), reader.getHeight(), mSps, mPps);
+        }
+        if (mHasAudio) {
+            mAudioTrack = writer.addAudioTrack(mSamplingRate, mChannelCount, mAudioSpecificConfig);
+        }
+        writer.start();
+        mWriter = writer;
+        mFileStartNs = mLastFlushNs = System.nanoTime();
+        Log.d(TAG, "Recording to " + path);
+        return true;
+    }
+
+    private void rotateIfNeeded() {
+        if (mWriter == null) return;
+        boolean tooBig = mMaxFileSize > 0 && mWriter.getBytesWritten() >= mMaxFileSize;
+        boolean tooLong = mMaxDurationMs > 0 && (System.nanoTime() - mFileStartNs) / 1000000L >= mMaxDurationMs;
+        if (tooBig || tooLong) closeWriter();
+    }
+
+    private void flushIfNeeded() throws IOException {
+        long now = System.nanoTime();
+        if ((now - mLastFlushNs) / 1000000L >= mFlushIntervalMs) {
+            mWriter.flush();
+            mLastFlushNs = now;
+        }
+    }
+
+    private void closeWriter() {
+        if (mWriter == null) return;
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing " + getCurrentPath(), e);
+        }
+        mWriter = null;
+    }
+
+    private void onError(IOException e) {
+        Log.e(TAG, "Recording stopped: " + e.getMessage(), e);
+        mStopped = true;
+        mFailed = true;
+        closeWriter();
+    }
+
+    private String pathForIndex(int index) {
+        if (index == 0) return mBasePath;
+        int dot = mBasePath.lastIndexOf('.');
+        if (dot <= mBasePath.lastIndexOf('/')) return mBasePath + "_" + index;
+        return mBasePath.substring(0, dot) + "_" + index + mBasePath.substring(dot);
+    }
+
+    private static int nextStartCode(byte[] data, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                return i > from && data[i - 1] == 0 ? i - 1 : i;
+            }
+        }
+        return end;
+    }
+
+    private static int skipStartCode(byte[] data, int pos, int end) {
+        while (pos < end && data[pos] == 0) pos++;
+        return pos < end ? pos + 1 : end;
+    }
+
+    private static byte[] copy(byte[] data, int offset, int length) {
+        byte[] out = new byte[length];
+        System.arraycopy(data, offset, out, 0, length);
+        return out;
+    }
+
+    /** AAC-LC AudioSpecificConfig (ISO/IEC 14496-3, 1.6.2.1). */
+    public static byte[] buildAudioSpecificConfig(int samplingRate, int channelCount) {
+        int[] rates = {96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+        int index = 4;
+        for (int i = 0; i < rates.length; i++) {
+            if (rates[i] == samplingRate) index = i;
+        }
+        int config = (2 << 11) | (index << 7) | (channelCount << 3);
+        return new byte[]{(byte) (config >> 8), (byte) config};
+    }
+}
@@ -0,0 +1,123 @@
+package net.verdx.libstreaming.mp4;
+
+/**
+ * Lee las dimensiones del video de un SPS de H.264 (ITU-T H.264, seccion 7.3.2.1.1).
+ * Solo decodifica los campos necesarios para llegar a pic_width/pic_height y al recorte.
+ */
+public class SpsReader {
+
+    private final byte[] mData;
+    private int mBitPos;
+
+    private int mWidth;
+    private int mHeight;
+
+    /**
+     * @param sps The SPS NAL unit, starting at its header byte and without start code
+     */
+    public SpsReader(byte[] sps) {
+        // Remove the emulation prevention bytes (00 00 03)
+        byte[] rbsp = new byte[sps.length];
+        int length = 0, zeros = 0;
+        for (byte value : sps) {
+            if (zeros >= 2 && value == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = value == 0 ? zeros + 1 : 0;
+            rbsp[length++] = value;
+        }
+        mData = rbsp;
+        mBitPos = 8;
+        parse();
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    private void parse() {
+        int profile = readBits(8);
+        readBits(16);                       // constraint flags, level_idc
+        readUE();                           // seq_parameter_set_id
+        int chromaFormat = 1;
+        if (profile == 100 || profile == 110 || profile == 122 || profile == 244 || profile == 44
+                || profile == 83 || profile == 86 || profile == 118 || profile == 128) {
+            chromaFormat = readUE();
+            if (chromaFormat == 3) readBits(1);
+            readUE();                       // bit_depth_luma_minus8
+            readUE();                       // bit_depth_chroma_minus8
+            readBits(1);
+            if (readBits(1) == 1) {         // seq_scaling_matrix_present_flag
+                for (int i = 0; i < (chromaFormat != 3 ? 8 : 12); i++) {
+                    if (readBits(1) == 1) skipScalingList(i < 6 ? 16 : 64);
+                }
+            }
+        }
+        readUE();                           // log2_max_frame_num_minus4
+        int pocType = readUE();
+        if (pocType == 0) {
+            readUE();
+        } else if (pocType == 1) {
+            readBits(1);
+            readSE();
+            readSE();
+            int cycle = readUE();
+            for (int i = 0; i < cycle; i++) readSE();
+        }
+        readUE();                           // max_num_ref_frames
+        readBits(1);
+        int widthMbs = readUE() + 1;
+        int heightMapUnits = readUE() + 1;
+        int frameMbsOnly = readBits(1);
+        if (frameMbsOnly == 0) readBits(1);
+        readBits(1);                        // direct_8x8_inference_flag
+
+        int cropLeft = 0, cropRight = 0, cropTop = 0, cropBottom = 0;
+        if (readBits(1) == 1) {
+            cropLeft = readUE();
+            cropRight = readUE();
+            cropTop = readUE();
+            cropBottom = readUE();
+        }
+
+        int cropUnitX = chromaFormat == 0 || chromaFormat == 3 ? 1 : 2;
+        int cropUnitY = (chromaFormat == 1 ? 2 : 1) * (2 - frameMbsOnly);
+        mWidth = widthMbs * 16 - (cropLeft + cropRight) * cropUnitX;
+        mHeight = (2 - frameMbsOnly) * heightMapUnits * 16 - (cropTop + cropBottom) * cropUnitY;
+    }
+
+    private void skipScalingList(int size) {
+        int last = 8, next = 8;
+        for (int j = 0; j < size; j++) {
+            if (next != 0) next = (last + readSE() + 256) % 256;
+            last = next == 0 ? last : next;
+        }
+    }
+
+    private int readBits(int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            int index = mBitPos >> 3;
+            int bit = index < mData.length ? (mData[index] >> (7 - (mBitPos & 7))) & 1 : 0;
+            value = (value << 1) | bit;
+            mBitPos++;
+        }
+        return value;
+    }
+
+    private int readUE() {
+        int zeros = 0;
+        while (readBits(1) == 0 && zeros < 32) zeros++;
+        return (int) ((1L << zeros) - 1 + readBits(zeros));
+    }
+
+    private int readSE() {
+        int value = readUE();
+        return (value & 1) == 1 ? (value + 1) / 2 : -(value / 2);
+    }
+}
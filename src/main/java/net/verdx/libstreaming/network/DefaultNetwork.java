@@ -4,7 +4,10 @@ import android.app.Application;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
 import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
 import android.net.TransportInfo;
 import android.os.Build;
 import android.os.Handler;
@@ -25,6 +28,11 @@ import java.util.Map;
 import net.verdx.libstreaming.rtsp.RTSPServerModel;
 import net.verdx.libstreaming.rtsp.RtspClient;
 
+/**
+ * Red con destinos fijos: un RtspClient por cada IP configurada. Cada cliente reintenta por su
+ * cuenta al fallar la conexion, con esperas crecientes, y cuando Android avisa de que hay red
+ * todos reintentan en el momento.
+ */
 public class DefaultNetwork extends INetworkManager {
 
     public static int DEFAULT_PORT = 8080;
@@ -32,6 +40,7 @@ public class DefaultNetwork extends INetworkManager {
     private final Map<String, RtspClient> mClients; //IP, cliente
     private RTSPServerModel mServerModel;
     private static ConnectivityManager mConManager;
+    private ConnectivityManager.NetworkCallback mNetworkCallback;
 
     public DefaultNetwork(Application app) {
 
@@ -44,27 +53,27 @@ public class DefaultNetwork extends INetworkManager {
         DestinationIPReader.setEmptyDestinationIps();
     }
 
-    private synchronized void checkDestinationsConnectivity() {
-
+    private synchronized void connectToDestinations() {
+        // The destinations may be set before the client starts, it connects to them then
+        if(mNetworkCallback == null) return;
         for(DestinationInfo info: DestinationIPReader.mDestinationList){
-            RtspClient client = mClients.get(info.ip);
-            if(!info.isConnected){
-                if(client!=null){
-                    client.start(); //Retry connection
-                    info.isConnected = client.isConnected();
-                }
-                else{
-                    connectToDestination(info);
-                }
-            }
-            else{
-                if (client != null) {
-                    info.isConnected = client.isConnected();
-                }
+            if(!mClients.containsKey(info.ip)){
+                connectToDestination(info);
             }
         }
     }
 
+    /**
+     * A network came up or changed its addresses: the clients waiting for their next attempt
+     * try now instead of at the end of their backoff, and the destinations without a client get one.
+     */
+    private synchronized void reconnectDestinations() {
+        connectToDestinations();
+        for(RtspClient client : mClients.values()){
+            client.reconnectNow();
+        }
+    }
+
     private void connectToDestination(DestinationInfo dest) {
         RtspClient client = new RtspClient(this);
         client.setServerAddress(dest.ip, dest.port);
@@ -77,14 +86,12 @@ public class DefaultNetwork extends INetworkManager {
     public boolean startLocalServer(){
         synchronized (DefaultNetwork.this){
             try {
+                // Local consumers (player, recording) use the StreamingRecord bus, or the output
+                // of the encoders for the local streaming, there is no loopback listener for them
                 if (mServerModel == null) {
                     mServerModel = new RTSPServerModel(getConnectivityManager());
                     mServerModel.startServer();
                 }
-
-                if (!mServerModel.addNewConnection("127.0.0.1", 1234)) {
-                    throw new IOException();
-                }
             } catch (IOException e) {
                 return false;
             }
@@ -101,19 +108,35 @@ public class DefaultNetwork extends INetworkManager {
         mServerModel.stopServer();
     }
 
-    public boolean startClient() {
-        int delayms = 10000;
-        workerHandle.postDelayed(new Runnable() {
-            public void run() {
-                checkDestinationsConnectivity();
-                workerHandle.postDelayed(this, delayms);
-            }
-        }, delayms);
+    public synchronized boolean startClient() {
+        if(mNetworkCallback == null) {
+            mNetworkCallback = new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    workerHandle.post(DefaultNetwork.this::reconnectDestinations);
+                }
 
+                @Override
+                public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+                    workerHandle.post(DefaultNetwork.this::reconnectDestinations);
+                }
+            };
+            // The destinations are in the local network, it does not need to reach internet
+            NetworkRequest request = new NetworkRequest.Builder()
+                    .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+                    .removeCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .build();
+            mConManager.registerNetworkCallback(request, mNetworkCallback);
+        }
+        workerHandle.post(this::connectToDestinations);
         return true;
     }
 
-    public void stopClient() {
+    public synchronized void stopClient() {
+        if(mNetworkCallback != null) {
+            mConManager.unregisterNetworkCallback(mNetworkCallback);
+            mNetworkCallback = null;
+        }
         workerHandle.removeCallbacksAndMessages(null);
     }
 
@@ -141,12 +164,10 @@ public class DefaultNetwork extends INetworkManager {
     private static class DestinationInfo{
         private final String ip;
         private final int port;
-        private boolean isConnected;
 
-        private DestinationInfo(String ip, int port, boolean isConnected){
+        private DestinationInfo(String ip, int port){
             this.ip = ip;
             this.port = port;
-            this.isConnected = isConnected;
         }
     }
 
@@ -162,7 +183,7 @@ public class DefaultNetwork extends INetworkManager {
                 while ((line = bufferedReader.readLine()) != null) {
                     String[] res = line.split(":");
 
-                    mDestinationList.add(new DestinationInfo(res[0], Integer.parseInt(res[1]), false));
+                    mDestinationList.add(new DestinationInfo(res[0], Integer.parseInt(res[1])));
                 }
             } catch (IOException e) {
                 e.printStackTrace();
@@ -178,7 +199,7 @@ public class DefaultNetwork extends INetworkManager {
 
             for(String ipaddr: ipAddresses){
                 if(!ipaddr.equals(""))
-                    mDestinationList.add(new DestinationInfo(ipaddr, DEFAULT_PORT, false));
+                    mDestinationList.add(new DestinationInfo(ipaddr, DEFAULT_PORT));
             }
         }
 
@@ -187,7 +208,7 @@ public class DefaultNetwork extends INetworkManager {
 
             for(String ipaddr: ipAddresses){
                 if(!ipaddr.equals(""))
-                    mDestinationList.add(new DestinationInfo(ipaddr, DEFAULT_PORT, false));
+                    mDestinationList.add(new DestinationInfo(ipaddr, DEFAULT_PORT));
             }
         }
 
@@ -198,12 +219,15 @@ public class DefaultNetwork extends INetworkManager {
 
     public void setDestinationIpsArray(ArrayList<String> ipAddresses){
         DestinationIPReader.setDestinationIpsArray(ipAddresses);
+        workerHandle.post(this::connectToDestinations);
     }
     public void setDestinationIpsSettings(Application app){
         DestinationIPReader.setDestinationIpsSetting(app);
+        workerHandle.post(this::connectToDestinations);
     }
 
     public void setDestinationIpsStream(InputStream inputStream){
         DestinationIPReader.setDestinationIpsStream(inputStream);
+        workerHandle.post(this::connectToDestinations);
     }
 }
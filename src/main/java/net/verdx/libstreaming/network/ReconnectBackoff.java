@@ -0,0 +1,48 @@
+package net.verdx.libstreaming.network;
+
+import java.util.Random;
+
+/**
+ * Espera entre los intentos de conexion con un vecino: se dobla en cada fallo desde la base
+ * hasta el maximo, y la mitad de cada espera es aleatoria (equal jitter) para que los clientes
+ * que perdieron la red a la vez no reintenten todos en el mismo instante. Un vecino caido recibe
+ * cada vez menos intentos; al conectar se vuelve a empezar desde la base.
+ */
+public class ReconnectBackoff {
+
+    private final long mBaseMs;
+    private final long mMaxMs;
+    private final Random mRandom;
+    private int mAttempts = 0;
+
+    /**
+     * @param baseMs Wait before the first retry, half of it random
+     * @param maxMs Longest wait, reached after some failures
+     */
+    public ReconnectBackoff(long baseMs, long maxMs, Random random) {
+        if (baseMs <= 0 || maxMs < baseMs) throw new IllegalArgumentException("Invalid backoff " + baseMs + "/" + maxMs);
+        mBaseMs = baseMs;
+        mMaxMs = maxMs;
+        mRandom = random;
+    }
+
+    /** Wait before the next attempt, longer after each call until {@link #reset()}. */
+    public synchronized long nextDelayMs() {
+        // Shifted only while it can still grow, a long outage does not overflow
+        long ceiling = mBaseMs;
+        for (int i = 0; i < mAttempts && ceiling < mMaxMs; i++) ceiling <<= 1;
+        ceiling = Math.min(ceiling, mMaxMs);
+        mAttempts++;
+        long half = ceiling / 2;
+        return half + (long) (mRandom.nextDouble() * (ceiling - half));
+    }
+
+    /** The connection succeeded, or the network came back: the next wait is the base again. */
+    public synchronized void reset() {
+        mAttempts = 0;
+    }
+
+    public synchronized int getAttempts() {
+        return mAttempts;
+    }
+}
@@ -1,5 +1,6 @@
 package net.verdx.libstreaming.packets;
 
+import java.net.SocketAddress;
 import java.nio.channels.SelectableChannel;
 
 import net.verdx.libstreaming.threads.selectors.AbstractSelector;
@@ -8,11 +9,17 @@ public class DataReceived {
     private final AbstractSelector mSelector;
     private final SelectableChannel mChannel;
     private final byte[] mData;
+    private final SocketAddress mSource;
 
     public DataReceived(AbstractSelector selector, SelectableChannel socket, byte[] data) {
+        this(selector, socket, data, null);
+    }
+
+    public DataReceived(AbstractSelector selector, SelectableChannel socket, byte[] data, SocketAddress source) {
         this.mSelector = selector;
         this.mChannel = socket;
         this.mData = data;
+        this.mSource = source;
     }
 
     public AbstractSelector getSelector() {
@@ -26,4 +33,9 @@ public class DataReceived {
     public byte[] getData() {
         return mData;
     }
+
+    /** Sender of a datagram received on an unconnected channel, null otherwise. */
+    public SocketAddress getSource() {
+        return mSource;
+    }
 }
@@ -0,0 +1,140 @@
+package net.verdx.libstreaming.player;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+import net.verdx.libstreaming.rtp.AccessUnit;
+
+/**
+ * Decodifica AAC y reproduce el PCM con un AudioTrack. Cada bloque decodificado se escribe en el
+ * AudioTrack a su hora de render, desde un thread propio para no bloquear los callbacks del decoder.
+ */
+class AudioRenderer extends MediaRenderer {
+
+    private static final long MAX_LATE_US = 100000;
+
+    private final int mSamplingRate;
+    private final int mChannelCount;
+    private final byte[] mAudioSpecificConfig;
+
+    private final HandlerThread mWriterThread;
+    private final Handler mWriterHandler;
+    private AudioTrack mAudioTrack;
+
+    AudioRenderer(int samplingRate, int channelCount, byte[] audioSpecificConfig,
+                  PlayoutDelay playoutDelay, StreamPlayer.Callback callback) {
+        super("AudioRenderer", playoutDelay, callback);
+        mSamplingRate = samplingRate;
+        mChannelCount = channelCount;
+        mAudioSpecificConfig = audioSpecificConfig;
+        mWriterThread = new HandlerThread("AudioRendererWriter");
+        mWriterThread.start();
+        mWriterHandler = new Handler(mWriterThread.getLooper());
+    }
+
+    @Override
+    protected MediaFormat createFormat(AccessUnit accessUnit) {
+        MediaFormat format = MediaFormat.createAudioFormat("audio/mp4a-latm", mSamplingRate, mChannelCount);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(mAudioSpecificConfig));
+        return format;
+    }
+
+    @Override
+    protected void configure(MediaCodec codec, MediaFormat format) {
+        codec.configure(format, null, null, 0);
+    }
+
+    @Override
+    protected boolean canResumeWith(AccessUnit accessUnit) {
+        return true;
+    }
+
+    @Override
+    public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+        super.onOutputFormatChanged(codec, format);
+        final int rate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        final int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        mWriterHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                createAudioTrack(rate, channels);
+            }
+        });
+    }
+
+    @Override
+    public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+        if (isReleased()) return;
+        final long renderUs = mPlayoutDelay.getRenderTimeUs(info.presentationTimeUs);
+        final byte[] pcm = new byte[info.size];
+        try {
+            ByteBuffer output = codec.getOutputBuffer(index);
+            if (output != null) {
+                output.position(info.offset);
+                output.get(pcm, 0, info.size);
+            }
+            codec.releaseOutputBuffer(index, false);
+        } catch (IllegalStateException e) {
+            return;
+        }
+        if (renderUs < System.nanoTime() / 1000L - MAX_LATE_US || pcm.length == 0) return;
+
+        // Handler uptime and System.nanoTime() share the monotonic clock
+        mWriterHandler.postAtTime(new Runnable() {
+            @Override
+            public void run() {
+                if (mAudioTrack != null) mAudioTrack.write(pcm, 0, pcm.length);
+            }
+        }, renderUs / 1000L);
+    }
+
+    private void createAudioTrack(int rate, int channels) {
+        releaseAudioTrack();
+        int channelMask = channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        int bufferSize = AudioTrack.getMinBufferSize(rate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+        mAudioTrack = new AudioTrack.Builder()
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_MEDIA)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_MOVIE)
+                        .build())
+                .setAudioFormat(new AudioFormat.Builder()
+                        .setSampleRate(rate)
+                        .setChannelMask(channelMask)
+                        .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                        .build())
+                .setBufferSizeInBytes(bufferSize)
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                .build();
+        mAudioTrack.play();
+    }
+
+    private void releaseAudioTrack() {
+        if (mAudioTrack != null) {
+            mAudioTrack.stop();
+            mAudioTrack.release();
+            mAudioTrack = null;
+        }
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        mWriterHandler.removeCallbacksAndMessages(null);
+        mWriterHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseAudioTrack();
+            }
+        });
+        mWriterThread.quitSafely();
+    }
+}
@@ -0,0 +1,165 @@
+package net.verdx.libstreaming.player;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import net.verdx.libstreaming.rtp.AccessUnit;
+import net.verdx.libstreaming.rtp.AccessUnitListener;
+
+/**
+ * Base de los renderers del reproductor: recibe las unidades de acceso del bus, las pasa a un
+ * decoder MediaCodec en modo asincrono y delega en la subclase que hacer con cada buffer
+ * decodificado segun el {@link PlayoutDelay} del track.
+ *
+ * Las unidades llegan desde el thread del worker UDP, nunca se bloquea: si el decoder no tiene
+ * buffers libres se encolan, y si la cola se llena se descartan las mas antiguas.
+ */
+abstract class MediaRenderer extends MediaCodec.Callback implements AccessUnitListener {
+
+    private static final int MAX_PENDING = 60;
+
+    protected final String mTag;
+    protected final PlayoutDelay mPlayoutDelay;
+    protected final StreamPlayer.Callback mCallback;
+
+    private final HandlerThread mThread;
+    protected final Handler mHandler;
+
+    private final Deque<AccessUnit> mPending = new ArrayDeque<>();
+    private final Deque<Integer> mFreeInputs = new ArrayDeque<>();
+    private MediaCodec mCodec;
+    private boolean mReleased = false;
+    private boolean mDropping = false;
+
+    protected MediaRenderer(String tag, PlayoutDelay playoutDelay, StreamPlayer.Callback callback) {
+        mTag = tag;
+        mPlayoutDelay = playoutDelay;
+        mCallback = callback;
+        mThread = new HandlerThread(tag);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Builds the decoder format from the first usable access unit.
+     * @return The format, or null to skip this unit and wait for a later one
+     */
+    protected abstract MediaFormat createFormat(AccessUnit accessUnit);
+
+    /** Configures the decoder, the video renderer passes its output surface here. */
+    protected abstract void configure(MediaCodec codec, MediaFormat format);
+
+    /** Returns true if this unit can follow a gap in the stream (a key frame for video). */
+    protected abstract boolean canResumeWith(AccessUnit accessUnit);
+
+    @Override
+    public void onAccessUnit(AccessUnit accessUnit) {
+        mPlayoutDelay.onArrival(accessUnit.getPresentationTimeUs(), System.nanoTime() / 1000L);
+        synchronized (this) {
+            if (mReleased) return;
+            if (mCodec == null && !createCodec(accessUnit)) return;
+
+            if (mPending.size() >= MAX_PENDING) {
+                // The decoder does not keep up, drop until the next unit it can start from
+                mPending.clear();
+                mDropping = true;
+            }
+            if (mDropping) {
+                if (!canResumeWith(accessUnit)) return;
+                mDropping = false;
+            }
+            mPending.add(accessUnit);
+            feed();
+        }
+    }
+
+    private boolean createCodec(AccessUnit accessUnit) {
+        MediaFormat format = createFormat(accessUnit);
+        if (format == null) return false;
+        try {
+            mCodec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            mCodec.setCallback(this, mHandler);
+            configure(mCodec, format);
+            mCodec.start();
+            Log.d(mTag, "Decoder started: " + format);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Log.e(mTag, "Could not start the decoder", e);
+            if (mCodec != null) mCodec.release();
+            mCodec = null;
+            mReleased = true;
+            mCallback.onError("Decoder not available: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void feed() {
+        while (!mPending.isEmpty() && !mFreeInputs.isEmpty()) {
+            AccessUnit accessUnit = mPending.poll();
+            int index = mFreeInputs.poll();
+            ByteBuffer input = mCodec.getInputBuffer(index);
+            byte[] data = accessUnit.getData();
+            if (input == null || input.capacity() < data.length) {
+                mCodec.queueInputBuffer(index, 0, 0, accessUnit.getPresentationTimeUs(), 0);
+                mDropping = true;
+                continue;
+            }
+            input.clear();
+            input.put(data);
+            mCodec.queueInputBuffer(index, 0, data.length, accessUnit.getPresentationTimeUs(), 0);
+        }
+    }
+
+    @Override
+    public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+        synchronized (this) {
+            if (mReleased) return;
+            mFreeInputs.add(index);
+            feed();
+        }
+    }
+
+    @Override
+    public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+        Log.e(mTag, "Decoder error", e);
+        mCallback.onError(e.getMessage());
+    }
+
+    @Override
+    public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+        Log.d(mTag, "Output format: " + format);
+    }
+
+    public void release() {
+        MediaCodec codec;
+        synchronized (this) {
+            mReleased = true;
+            mPending.clear();
+            mFreeInputs.clear();
+            codec = mCodec;
+            mCodec = null;
+        }
+        // Outside the lock, stop() may wait for callbacks that need it
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException ignored) {}
+            codec.release();
+        }
+        mThread.quitSafely();
+    }
+
+    protected synchronized boolean isReleased() {
+        return mReleased;
+    }
+}
@@ -0,0 +1,70 @@
+package net.verdx.libstreaming.player;
+
+/**
+ * Calcula cuando se debe reproducir cada unidad de acceso de un track.
+ *
+ * Para cada unidad se mide el desfase entre su llegada y su timestamp de presentacion. El menor
+ * desfase de una ventana reciente se toma como referencia (la unidad que llego con menos retardo
+ * de red) y el retardo de reproduccion cubre la dispersion del resto de la ventana, con un margen.
+ * El retardo sube en cuanto crece la dispersion y baja poco a poco cuando la red se estabiliza,
+ * para no cortar la reproduccion ni acumular latencia.
+ *
+ * Todos los tiempos estan en microsegundos en la base de tiempo de System.nanoTime().
+ */
+public class PlayoutDelay {
+
+    private static final int WINDOW = 128;
+    /** Extra time on top of the measured spread, covers decoding and rendering. */
+    private static final long MARGIN_US = 10000;
+    /** Max decrease of the delay per access unit. */
+    private static final long DECREASE_STEP_US = 500;
+
+    private final long mMinDelayUs;
+    private final long mMaxDelayUs;
+
+    private final long[] mOffsets = new long[WINDOW];
+    private int mCount = 0;
+    private int mNext = 0;
+
+    private long mBaseOffsetUs;
+    private long mDelayUs;
+
+    public PlayoutDelay(int minDelayMs, int maxDelayMs) {
+        mMinDelayUs = minDelayMs * 1000L;
+        mMaxDelayUs = maxDelayMs * 1000L;
+        mDelayUs = mMinDelayUs;
+    }
+
+    /** Registers the arrival of an access unit. */
+    public synchronized void onArrival(long presentationTimeUs, long arrivalUs) {
+        mOffsets[mNext] = arrivalUs - presentationTimeUs;
+        mNext = (mNext + 1) % WINDOW;
+        if (mCount < WINDOW) mCount++;
+
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        for (int i = 0; i < mCount; i++) {
+            min = Math.min(min, mOffsets[i]);
+            max = Math.max(max, mOffsets[i]);
+        }
+        mBaseOffsetUs = min;
+
+        long target = Math.max(mMinDelayUs, Math.min(mMaxDelayUs, max - min + MARGIN_US));
+        if (target > mDelayUs) mDelayUs = target;
+        else mDelayUs = Math.max(target, mDelayUs - DECREASE_STEP_US);
+    }
+
+    /** Time at which the unit with this presentation time should be rendered. */
+    public synchronized long getRenderTimeUs(long presentationTimeUs) {
+        return presentationTimeUs + mBaseOffsetUs + mDelayUs;
+    }
+
+    public synchronized long getDelayUs() {
+        return mDelayUs;
+    }
+
+    public synchronized void reset() {
+        mCount = 0;
+        mNext = 0;
+        mDelayUs = mMinDelayUs;
+    }
+}
@@ -0,0 +1,217 @@
+package net.verdx.libstreaming.player;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import net.verdx.libstreaming.Streaming;
+import net.verdx.libstreaming.StreamingRecord;
+import net.verdx.libstreaming.audio.AudioPacketizerDispatcher;
+import net.verdx.libstreaming.mp4.MP4Recorder;
+import net.verdx.libstreaming.rtp.AACDepacketizer;
+import net.verdx.libstreaming.rtp.AccessUnit;
+import net.verdx.libstreaming.rtp.EncoderSink;
+import net.verdx.libstreaming.rtp.H264Depacketizer;
+import net.verdx.libstreaming.rtp.RtpReceiver;
+import net.verdx.libstreaming.sessions.ReceiveSession;
+import net.verdx.libstreaming.video.VideoPacketizerDispatcher;
+
+/**
+ * Reproductor de baja latencia para streamings recibidos. Se suscribe al bus de StreamingRecord
+ * y decodifica con MediaCodec: el video sobre la Surface indicada y el audio con un AudioTrack.
+ * No abre ninguna conexion, a diferencia de reproducir rtsp://127.0.0.1:1234/uuid con VLC.
+ *
+ * El streaming local no pasa por el bus: se reproduce desde la salida de los encoders,
+ * suscribiendo un {@link EncoderSink} a cada dispatcher como hace la grabacion.
+ */
+public class StreamPlayer {
+
+    public final static String TAG = "StreamPlayer";
+
+    /** Lower bound of the adaptive playout delay. */
+    public static final int MIN_PLAYOUT_DELAY_MS = 30;
+    /** Upper bound of the adaptive playout delay. */
+    public static final int MAX_PLAYOUT_DELAY_MS = 1000;
+
+    public interface Callback {
+        /** Called from a decoder thread when the first frame is sent to the surface. */
+        void onFirstFrame();
+        /** Called from a decoder thread when playback can not continue. */
+        void onError(String message);
+    }
+
+    private final UUID mStreamingId;
+    private final Surface mSurface;
+    private final Callback mCallback;
+
+    private VideoRenderer mVideoRenderer;
+    private AudioRenderer mAudioRenderer;
+    private LocalVideoSink mLocalVideoSink;
+    private LocalAudioSink mLocalAudioSink;
+
+    public StreamPlayer(UUID streamingId, Surface surface, Callback callback) {
+        mStreamingId = streamingId;
+        mSurface = surface;
+        mCallback = callback;
+    }
+
+    /**
+     * Starts playing the streaming.
+     * @return false if the streaming is not available
+     */
+    public synchronized boolean start() {
+        if (mVideoRenderer != null || mAudioRenderer != null || mLocalAudioSink != null) return true;
+        if (mStreamingId.equals(StreamingRecord.getInstance().getLocalStreamingUUID())) return startLocal();
+
+        Streaming streaming = StreamingRecord.getInstance().getStreaming(mStreamingId);
+        if (streaming == null || streaming.getReceiveSession() == null) {
+            Log.e(TAG, "Streaming " + mStreamingId + " not available");
+            return false;
+        }
+        ReceiveSession session = streaming.getReceiveSession();
+        RtpReceiver videoReceiver = session.trackExists(1) ? session.getTrack(1).getRtpReceiver() : null;
+        RtpReceiver audioReceiver = session.trackExists(0) ? session.getTrack(0).getRtpReceiver() : null;
+
+        if (videoReceiver != null && mSurface != null) {
+            H264Depacketizer depacketizer = (H264Depacketizer) videoReceiver.getDepacketizer();
+            mVideoRenderer = new VideoRenderer(mSurface, depacketizer.getSps(), depacketizer.getPps(),
+                    new PlayoutDelay(MIN_PLAYOUT_DELAY_MS, MAX_PLAYOUT_DELAY_MS), mCallback);
+            StreamingRecord.getInstance().subscribeAccessUnits(mStreamingId, 1, mVideoRenderer);
+        }
+        if (audioReceiver != null) {
+            AACDepacketizer depacketizer = (AACDepacketizer) audioReceiver.getDepacketizer();
+            int channels = depacketizer.getChannelCount();
+            byte[] audioSpecificConfig = depacketizer.getConfig() != null ? depacketizer.getConfig()
+                    : MP4Recorder.buildAudioSpecificConfig(depacketizer.getClockRate(), channels);
+            mAudioRenderer = new AudioRenderer(depacketizer.getClockRate(), channels, audioSpecificConfig,
+                    new PlayoutDelay(MIN_PLAYOUT_DELAY_MS, MAX_PLAYOUT_DELAY_MS), mCallback);
+            StreamingRecord.getInstance().subscribeAccessUnits(mStreamingId, 0, mAudioRenderer);
+        }
+        Log.d(TAG, "Playing " + mStreamingId);
+        return true;
+    }
+
+    public synchronized void stop() {
+        if (mLocalVideoSink != null) {
+            VideoPacketizerDispatcher.unsubscribeSink(mLocalVideoSink);
+            mLocalVideoSink = null;
+        }
+        if (mLocalAudioSink != null) {
+            AudioPacketizerDispatcher.unsubscribeSink(mLocalAudioSink);
+            mLocalAudioSink.release();
+            mLocalAudioSink = null;
+        }
+        if (mVideoRenderer != null) {
+            StreamingRecord.getInstance().unsubscribeAccessUnits(mStreamingId, 1, mVideoRenderer);
+            mVideoRenderer.release();
+            mVideoRenderer = null;
+        }
+        if (mAudioRenderer != null) {
+            StreamingRecord.getInstance().unsubscribeAccessUnits(mStreamingId, 0, mAudioRenderer);
+            mAudioRenderer.release();
+            mAudioRenderer = null;
+        }
+    }
+
+    /** Plays the local streaming from the output of the encoders that are running. */
+    private boolean startLocal() {
+        boolean hasVideo = VideoPacketizerDispatcher.isRunning();
+        boolean hasAudio = AudioPacketizerDispatcher.isRunning();
+        if (!hasVideo && !hasAudio) {
+            Log.e(TAG, "Local streaming is not running");
+            return false;
+        }
+        if (hasVideo && mSurface != null) {
+            mVideoRenderer = new VideoRenderer(mSurface, null, null,
+                    new PlayoutDelay(MIN_PLAYOUT_DELAY_MS, MAX_PLAYOUT_DELAY_MS), mCallback);
+            mLocalVideoSink = new LocalVideoSink(mVideoRenderer);
+            if (!VideoPacketizerDispatcher.subscribeSink(mLocalVideoSink)) mLocalVideoSink = null;
+        }
+        if (hasAudio) {
+            mLocalAudioSink = new LocalAudioSink();
+            try {
+                AudioPacketizerDispatcher.subscribeSink(mLocalAudioSink);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not play local audio", e);
+                mLocalAudioSink = null;
+            }
+        }
+        Log.d(TAG, "Playing the local streaming " + mStreamingId);
+        return true;
+    }
+
+    private static AccessUnit toAccessUnit(byte[] data, MediaCodec.BufferInfo info) {
+        if (info.size != data.length) {
+            byte[] unit = new byte[info.size];
+            System.arraycopy(data, info.offset, unit, 0, info.size);
+            data = unit;
+        }
+        boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        return new AccessUnit(data, 0, info.presentationTimeUs, keyFrame);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        if (buffer == null) return null;
+        ByteBuffer copy = buffer.duplicate();
+        copy.rewind();
+        byte[] out = new byte[copy.remaining()];
+        copy.get(out);
+        return out;
+    }
+
+    /** Video of the local encoder, the parameter sets come from its output format. */
+    private static class LocalVideoSink implements EncoderSink {
+
+        private final VideoRenderer mRenderer;
+
+        LocalVideoSink(VideoRenderer renderer) {
+            mRenderer = renderer;
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            byte[] sps = toArray(format.getByteBuffer("csd-0"));
+            byte[] pps = toArray(format.getByteBuffer("csd-1"));
+            if (sps != null) mRenderer.setParameterSets(sps);
+            if (pps != null) mRenderer.setParameterSets(pps);
+        }
+
+        @Override
+        public void onEncodedFrame(byte[] data, MediaCodec.BufferInfo info) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) return;
+            mRenderer.onAccessUnit(toAccessUnit(data, info));
+        }
+    }
+
+    /** Audio of the local encoder, the renderer is created once its output format is known. */
+    private class LocalAudioSink implements EncoderSink {
+
+        private AudioRenderer mRenderer;
+
+        @Override
+        public synchronized void onOutputFormatChanged(MediaFormat format) {
+            byte[] audioSpecificConfig = toArray(format.getByteBuffer("csd-0"));
+            if (audioSpecificConfig == null) return;
+            if (mRenderer != null) mRenderer.release();
+            mRenderer = new AudioRenderer(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), audioSpecificConfig,
+                    new PlayoutDelay(MIN_PLAYOUT_DELAY_MS, MAX_PLAYOUT_DELAY_MS), mCallback);
+        }
+
+        @Override
+        public synchronized void onEncodedFrame(byte[] data, MediaCodec.BufferInfo info) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || mRenderer == null) return;
+            mRenderer.onAccessUnit(toAccessUnit(data, info));
+        }
+
+        synchronized void release() {
+            if (mRenderer != null) mRenderer.release();
+            mRenderer = null;
+        }
+    }
+}
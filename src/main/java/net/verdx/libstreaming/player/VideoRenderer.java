@@ -0,0 +1,127 @@
+package net.verdx.libstreaming.player;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+import net.verdx.libstreaming.mp4.SpsReader;
+import net.verdx.libstreaming.rtp.AccessUnit;
+
+/**
+ * Decodifica H.264 sobre una Surface. Cada frame se libera con su hora de render, calculada con
+ * el {@link PlayoutDelay}, para que el compositor lo muestre en el vsync adecuado. Los frames que
+ * salen del decoder con mas de {@link #MAX_LATE_US} de retraso se descartan.
+ */
+class VideoRenderer extends MediaRenderer {
+
+    private static final long MAX_LATE_US = 40000;
+
+    private static final int NAL_IDR = 5;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+
+    private final Surface mSurface;
+    private byte[] mSps;
+    private byte[] mPps;
+    private boolean mFirstFrame = true;
+
+    /**
+     * @param sps Parameter sets announced in the SDP, null to take them from the first key frame
+     */
+    VideoRenderer(Surface surface, byte[] sps, byte[] pps, PlayoutDelay playoutDelay, StreamPlayer.Callback callback) {
+        super("VideoRenderer", playoutDelay, callback);
+        mSurface = surface;
+        mSps = sps;
+        mPps = pps;
+    }
+
+    /**
+     * Takes the SPS and PPS of a buffer in Annex B format, like the csd-0 and csd-1 of an encoder.
+     * They are used if the decoder has not been created yet.
+     */
+    synchronized void setParameterSets(byte[] annexB) {
+        findParameterSets(annexB);
+    }
+
+    @Override
+    protected MediaFormat createFormat(AccessUnit accessUnit) {
+        if (!accessUnit.isKeyFrame()) return null;
+        findParameterSets(accessUnit.getData());
+        if (mSps == null || mPps == null) return null;
+
+        SpsReader sps = new SpsReader(mSps);
+        MediaFormat format = MediaFormat.createVideoFormat("video/avc", sps.getWidth(), sps.getHeight());
+        format.setByteBuffer("csd-0", withStartCode(mSps));
+        format.setByteBuffer("csd-1", withStartCode(mPps));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            format.setInteger(MediaFormat.KEY_LOW_LATENCY, 1);
+        }
+        return format;
+    }
+
+    @Override
+    protected void configure(MediaCodec codec, MediaFormat format) {
+        codec.configure(format, mSurface, null, 0);
+    }
+
+    @Override
+    protected boolean canResumeWith(AccessUnit accessUnit) {
+        return accessUnit.isKeyFrame();
+    }
+
+    @Override
+    public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+        if (isReleased()) return;
+        long renderUs = mPlayoutDelay.getRenderTimeUs(info.presentationTimeUs);
+        long nowUs = System.nanoTime() / 1000L;
+        try {
+            if (renderUs < nowUs - MAX_LATE_US) {
+                codec.releaseOutputBuffer(index, false);
+            } else {
+                codec.releaseOutputBuffer(index, Math.max(renderUs, nowUs) * 1000L);
+                if (mFirstFrame) {
+                    mFirstFrame = false;
+                    mCallback.onFirstFrame();
+                }
+            }
+        } catch (IllegalStateException ignored) {
+            // Released meanwhile
+        }
+    }
+
+    private void findParameterSets(byte[] frame) {
+        int i = 0;
+        while (i + 3 < frame.length) {
+            if (frame[i] == 0 && frame[i + 1] == 0 && frame[i + 2] == 1) {
+                int start = i + 3;
+                int end = start;
+                while (end + 2 < frame.length && !(frame[end] == 0 && frame[end + 1] == 0 && (frame[end + 2] == 1 || frame[end + 2] == 0))) end++;
+                if (end + 2 >= frame.length) end = frame.length;
+                int type = frame[start] & 0x1F;
+                if (type == NAL_SPS || type == NAL_PPS) {
+                    byte[] nal = new byte[end - start];
+                    System.arraycopy(frame, start, nal, 0, nal.length);
+                    if (type == NAL_SPS) mSps = nal;
+                    else mPps = nal;
+                } else if (type == NAL_IDR) {
+                    return;
+                }
+                i = end;
+            } else {
+                i++;
+            }
+        }
+    }
+
+    private static ByteBuffer withStartCode(byte[] nal) {
+        ByteBuffer buffer = ByteBuffer.allocate(nal.length + 4);
+        buffer.put(new byte[]{0, 0, 0, 1}).put(nal);
+        buffer.flip();
+        return buffer;
+    }
+}
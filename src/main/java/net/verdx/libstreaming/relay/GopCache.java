@@ -0,0 +1,131 @@
+package net.verdx.libstreaming.relay;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.verdx.libstreaming.rtp.RtpPacket;
+import net.verdx.libstreaming.rtp.RtpPacketListener;
+
+/**
+ * Paquetes RTP H.264 de un track recibido desde el ultimo IDR (o desde los SPS/PPS que lo
+ * preceden). Cuando un destino nuevo empieza a recibir el reenvio se le pasa primero este GOP,
+ * asi el decoder arranca con un keyframe en vez de esperar al siguiente IDR del origen, que
+ * puede estar a varios saltos.
+ *
+ * Si el GOP supera los limites de paquetes o de bytes se descarta entero, un GOP incompleto no
+ * sirve para arrancar, y no se vuelve a guardar nada hasta el siguiente IDR.
+ */
+public class GopCache implements RtpPacketListener {
+
+    public final static String TAG = "GopCache";
+
+    /** Max packets cached, below the queue of a RelayTrack so the replay is never cut. */
+    public static final int MAX_PACKETS = 384;
+    /** Max bytes cached, below the queue of a RelayTrack so the replay is never cut. */
+    public static final int MAX_BYTES = 768 * 1024;
+
+    private static final int NAL_IDR = 5;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+    private static final int NAL_STAP_A = 24;
+    private static final int NAL_FU_A = 28;
+
+    private final List<RtpPacket> mPackets = new ArrayList<>();
+    private int mBytes = 0;
+    private boolean mHasSsrc = false;
+    private int mSsrc;
+    /** Timestamp of the first packet of the GOP, -1 while no keyframe has been seen. */
+    private long mGopTimestamp = -1;
+    /** False while the GOP only has parameter sets, the IDR that follows belongs to it. */
+    private boolean mGopHasSlice = false;
+
+    @Override
+    public synchronized void onRtpPacket(RtpPacket packet) {
+        if (!mHasSsrc || packet.getSsrc() != mSsrc) {
+            clear();
+            mSsrc = packet.getSsrc();
+            mHasSsrc = true;
+        }
+
+        int nalType = getStartingNalType(packet);
+        boolean parameterSet = nalType == NAL_SPS || nalType == NAL_PPS;
+        boolean keyStart = parameterSet || nalType == NAL_IDR;
+        if (keyStart && packet.getTimestamp() != mGopTimestamp && (mGopTimestamp < 0 || mGopHasSlice)) {
+            mPackets.clear();
+            mBytes = 0;
+            mGopTimestamp = packet.getTimestamp();
+            mGopHasSlice = false;
+        }
+        if (mGopTimestamp < 0) return;
+
+        if (!parameterSet) mGopHasSlice = true;
+        mPackets.add(packet);
+        mBytes += packet.getLength();
+        if (mPackets.size() > MAX_PACKETS || mBytes > MAX_BYTES) {
+            // The GOP does not fit, wait for the next keyframe
+            mPackets.clear();
+            mBytes = 0;
+            mGopTimestamp = -1;
+        }
+    }
+
+    /**
+     * Hands the cached GOP to a new consumer and then subscribes it to the live packets.
+     * Packets arriving meanwhile wait for the subscription, so none is missed between the
+     * cache and the live stream (at most one is delivered twice, which RTP tolerates).
+     * @param subscribeLive Subscribes the consumer to the live packets of the track
+     */
+    public synchronized void replay(RtpPacketListener listener, Runnable subscribeLive) {
+        for (RtpPacket packet : mPackets) {
+            listener.onRtpPacket(packet);
+        }
+        subscribeLive.run();
+    }
+
+    public synchronized void clear() {
+        mPackets.clear();
+        mBytes = 0;
+        mGopTimestamp = -1;
+        mGopHasSlice = false;
+        mHasSsrc = false;
+    }
+
+    public synchronized int getPacketCount() {
+        return mPackets.size();
+    }
+
+    public synchronized int getByteCount() {
+        return mBytes;
+    }
+
+    /**
+     * @return Type of the NAL unit starting in this packet, the first one of a STAP-A that is a
+     * parameter set or an IDR, or -1 if it only carries the continuation of a fragment
+     */
+    private static int getStartingNalType(RtpPacket packet) {
+        if (packet.getPayloadLength() < 1) return -1;
+        byte[] data = packet.getData();
+        int offset = packet.getPayloadOffset();
+        int end = offset + packet.getPayloadLength();
+        int type = data[offset] & 0x1F;
+
+        if (type == NAL_FU_A) {
+            if (offset + 2 > end) return -1;
+            boolean start = (data[offset + 1] & 0x80) != 0;
+            return start ? data[offset + 1] & 0x1F : -1;
+        }
+        if (type == NAL_STAP_A) {
+            int first = -1;
+            int i = offset + 1;
+            while (i + 3 <= end) {
+                int size = ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+                int nalType = data[i + 2] & 0x1F;
+                if (nalType == NAL_SPS || nalType == NAL_PPS || nalType == NAL_IDR) return nalType;
+                if (first < 0) first = nalType;
+                i += 2 + size;
+            }
+            return first;
+        }
+        return type;
+    }
+}
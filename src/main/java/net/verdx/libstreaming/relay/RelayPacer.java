@@ -0,0 +1,83 @@
+package net.verdx.libstreaming.relay;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hilo unico que vacia las colas de todos los {@link RelayTrack}. Cada track le dice cuando
+ * puede volver a enviar segun su {@link net.verdx.libstreaming.rtp.Pacer} y el hilo duerme hasta
+ * el primero de esos instantes, o hasta que llega un paquete nuevo. Asi el numero de hilos no
+ * crece con los destinos.
+ *
+ * Los tracks se recorren por prioridad, el audio antes que el video, para que en cada vuelta
+ * salga primero lo que antes tiene que salir.
+ */
+public class RelayPacer implements Runnable {
+
+    public final static String TAG = "RelayPacer";
+
+    /** Max sleep when no track has anything to send. */
+    private static final long IDLE_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static RelayPacer INSTANCE = null;
+
+    private final List<RelayTrack> mTracks = new CopyOnWriteArrayList<>();
+    private volatile Thread mThread;
+    private volatile boolean mPending = false;
+
+    private RelayPacer() {}
+
+    public static synchronized RelayPacer getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new RelayPacer();
+        }
+        return INSTANCE;
+    }
+
+    public synchronized void addTrack(RelayTrack track) {
+        if (!mTracks.contains(track)) {
+            int index = 0;
+            while (index < mTracks.size() && mTracks.get(index).getPriority() <= track.getPriority()) index++;
+            mTracks.add(index, track);
+        }
+        if (mThread == null) {
+            mThread = new Thread(this, TAG);
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+        wakeup();
+    }
+
+    public void removeTrack(RelayTrack track) {
+        mTracks.remove(track);
+    }
+
+    public int getTrackCount() {
+        return mTracks.size();
+    }
+
+    /** Called when a track has queued a packet. */
+    void wakeup() {
+        mPending = true;
+        Thread thread = mThread;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            mPending = false;
+            long now = System.nanoTime();
+            long next = now + IDLE_NS;
+            for (RelayTrack track : mTracks) {
+                next = Math.min(next, track.drain(now));
+            }
+            long wait = next - System.nanoTime();
+            if (wait > 0 && !mPending) {
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+    }
+}
@@ -0,0 +1,510 @@
+package net.verdx.libstreaming.relay;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.verdx.libstreaming.metrics.MetricsRegistry;
+import net.verdx.libstreaming.rtcp.NtpClock;
+import net.verdx.libstreaming.rtcp.ReceptionStatistics;
+import net.verdx.libstreaming.rtcp.RtcpPacket;
+import net.verdx.libstreaming.rtcp.RttEstimator;
+import net.verdx.libstreaming.rtp.EgressScheduler;
+import net.verdx.libstreaming.rtp.InterleavedChannel;
+import net.verdx.libstreaming.rtp.Pacer;
+import net.verdx.libstreaming.rtp.RtpPacket;
+import net.verdx.libstreaming.rtp.RtpPacketListener;
+import net.verdx.libstreaming.rtp.RtpReceiver;
+
+/**
+ * Reenvio de un track recibido a un unico destino.
+ *
+ * Los paquetes llegan del bus de StreamingRecord y salen con el SSRC propio del track, y con
+ * el numero de secuencia y el timestamp desplazados para que sigan siendo continuos aunque
+ * cambie la fuente (el emisor reinicia o se cambia de padre). Antes de salir pasan por una
+ * cola acotada y un {@link Pacer}, el mismo de los emisores locales, que reparte las rafagas del
+ * encoder segun la tasa media de entrada; si la cola se llena se descartan los paquetes mas
+ * antiguos, primero los de la capa de mejora del video.
+ *
+ * Los paquetes salen por orden de prioridad con el resto del trafico del dispositivo (ver
+ * {@link EgressScheduler}): el video de un reenvio espera al audio local y al reenviado, y cada
+ * paquete lleva el DSCP de su prioridad.
+ *
+ * El track es un emisor RTP a todos los efectos: envia sus propios SR y lee los RR que el
+ * destino devuelve a su puerto RTCP. El RTCP del emisor original no se reenvia, pero el retardo
+ * desde el origen que anuncia se propaga en el SR, sumandole el tiempo en cola y medio RTT.
+ *
+ * Si el destino pidio RTP/AVP/TCP el track no abre sockets UDP: los paquetes y el RTCP van
+ * intercalados en su conexion RTSP ({@link InterleavedChannel}) y los RR llegan por
+ * {@link #receiveReport(byte[], int, int)}.
+ */
+public class RelayTrack implements RtpPacketListener {
+
+    public final static String TAG = "RelayTrack";
+
+    /** Max packets waiting to be paced out. */
+    public static final int MAX_QUEUE_PACKETS = 512;
+    /** Max bytes waiting to be paced out. */
+    public static final int MAX_QUEUE_BYTES = 1024 * 1024;
+
+    /** Window over which the input rate is measured. */
+    private static final long RATE_WINDOW_NS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final long SR_INTERVAL_NS = TimeUnit.SECONDS.toNanos(5);
+    /** Time after which a track blocked by a higher priority is drained again. */
+    private static final long BLOCKED_RETRY_NS = TimeUnit.MICROSECONDS.toNanos(500);
+
+    private final DatagramChannel mRtpChannel;
+    private final DatagramChannel mRtcpChannel;
+    private final InterleavedChannel mInterleavedChannel;
+    private final int mChannelIdentifier;
+    private final int mClockRate;
+    private final int mSsrc;
+    private final int mPriority;
+    private final EgressScheduler.Sender mEgress = EgressScheduler.getInstance().newSender();
+    private int mTrafficClass = -1;
+    /** Prefix of the metrics of the track: relay.destination.ssrc */
+    private final String mMetricsName;
+
+    private final ArrayDeque<QueuedPacket> mQueue = new ArrayDeque<>();
+    private int mQueuedBytes = 0;
+    private final Pacer mPacer;
+    private final byte[] mRtcpBuffer = new byte[1500];
+    private volatile RtpReceiver mUpstream;
+
+    // Rewriting of the incoming source
+    private boolean mHasSource = false;
+    private int mSourceSsrc;
+    private int mSeqOffset;
+    private long mTsOffset;
+    private int mLastSeq;
+    private long mLastTs;
+    private long mLastTsNs;
+
+    // Input rate
+    private long mWindowStartNs;
+    private long mWindowBytes = 0;
+    private double mInputRate = 0;
+
+    // Sender statistics
+    private long mInputCount = 0;
+    private long mPacketCount = 0;
+    private long mOctetCount = 0;
+    private long mDroppedCount = 0;
+    private long mNextSrNs;
+
+    // Last report of the destination
+    private RtcpPacket.ReportBlock mLastReport;
+    private volatile long mLastReportNs = 0;
+    private final RttEstimator mRtt = new RttEstimator();
+    /** Average time a packet waits in the queue, in ns. */
+    private double mQueueDelayNs = 0;
+
+    private static class QueuedPacket {
+        final byte[] data;
+        final long enqueuedNs;
+        final int priority;
+
+        QueuedPacket(byte[] data, long enqueuedNs, int priority) {
+            this.data = data;
+            this.enqueuedNs = enqueuedNs;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * @param destination Address of the node the track is relayed to
+     * @param rtpPort RTP port of the destination
+     * @param rtcpPort RTCP port of the destination
+     * @param clockRate Clock rate of the RTP timestamps of the track
+     * @param priority {@link EgressScheduler#PRIORITY_AUDIO}, or {@link EgressScheduler#PRIORITY_VIDEO_BASE}
+     *                 for an H.264 track, whose packets are classified into base and enhancement
+     */
+    public RelayTrack(InetAddress destination, int rtpPort, int rtcpPort, int clockRate, int priority) throws IOException {
+        mClockRate = clockRate > 0 ? clockRate : 90000;
+        mSsrc = new Random().nextInt();
+        mPriority = priority;
+
+        mInterleavedChannel = null;
+        mChannelIdentifier = -1;
+        mMetricsName = "relay." + destination.getHostAddress() + ":" + rtpPort + "." + Integer.toHexString(mSsrc);
+        mRtpChannel = DatagramChannel.open();
+        mRtcpChannel = DatagramChannel.open();
+        try {
+            mRtpChannel.bind(null);
+            mRtpChannel.connect(new InetSocketAddress(destination, rtpPort));
+            mRtpChannel.configureBlocking(false);
+            mRtcpChannel.bind(null);
+            mRtcpChannel.connect(new InetSocketAddress(destination, rtcpPort));
+            mRtcpChannel.configureBlocking(false);
+            mRtcpChannel.socket().setTrafficClass(EgressScheduler.getTrafficClass(priority));
+        } catch (IOException e) {
+            mRtpChannel.close();
+            mRtcpChannel.close();
+            throw e;
+        }
+
+        long now = System.nanoTime();
+        mPacer = new Pacer(0, now);
+        mWindowStartNs = now;
+        mNextSrNs = now + SR_INTERVAL_NS;
+    }
+
+    /**
+     * Track sent interleaved in the RTSP connection of the destination.
+     * @param channelIdentifier Interleaved channel of the RTP packets, the RTCP goes on the next one
+     */
+    public RelayTrack(InterleavedChannel channel, int channelIdentifier, int clockRate, int priority) {
+        mClockRate = clockRate > 0 ? clockRate : 90000;
+        mSsrc = new Random().nextInt();
+        mPriority = priority;
+        mRtpChannel = null;
+        mRtcpChannel = null;
+        mInterleavedChannel = channel;
+        mChannelIdentifier = channelIdentifier;
+        mMetricsName = "relay.interleaved" + channelIdentifier + "." + Integer.toHexString(mSsrc);
+
+        long now = System.nanoTime();
+        mPacer = new Pacer(0, now);
+        mWindowStartNs = now;
+        mNextSrNs = now + SR_INTERVAL_NS;
+    }
+
+    /** Starts pacing the packets out, they are fed with {@link #onRtpPacket(RtpPacket)}. */
+    public void start() {
+        RelayPacer.getInstance().addTrack(this);
+        MetricsRegistry.getInstance().register(mMetricsName, gauges -> {
+            synchronized (RelayTrack.this) {
+                gauges.put("in", (double) mInputCount);
+                gauges.put("out", (double) mPacketCount);
+                gauges.put("dropped", (double) mDroppedCount);
+                gauges.put("queue", (double) mQueue.size());
+                gauges.put("queue_delay_ms", mQueueDelayNs / 1e6);
+                gauges.put("input_rate", mInputRate);
+            }
+            gauges.put("pacing_rate", mPacer.getRate());
+            gauges.put("rtt_ms", (double) getRttMs());
+        });
+    }
+
+    public void release() {
+        MetricsRegistry.getInstance().unregister(mMetricsName);
+        RelayPacer.getInstance().removeTrack(this);
+        synchronized (this) {
+            for (QueuedPacket packet : mQueue) {
+                mEgress.dequeued(packet.priority);
+            }
+            mQueue.clear();
+            mQueuedBytes = 0;
+        }
+        if (mInterleavedChannel != null) return;
+        try {
+            mRtpChannel.close();
+        } catch (IOException ignored) {}
+        try {
+            mRtcpChannel.close();
+        } catch (IOException ignored) {}
+    }
+
+    /** Local ports the track sends from, to be announced as server_port, 0 if it is interleaved. */
+    public int[] getLocalPorts() {
+        if (mInterleavedChannel != null) return new int[]{0, 0};
+        return new int[]{mRtpChannel.socket().getLocalPort(), mRtcpChannel.socket().getLocalPort()};
+    }
+
+    /** Interleaved channel of the RTP packets, -1 if they are sent over UDP. */
+    public int getChannelIdentifier() {
+        return mChannelIdentifier;
+    }
+
+    public int getSsrc() {
+        return mSsrc;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Receive pipeline the track is fed from, its statistics give the delay from the origin
+     * that is passed on to the destination.
+     */
+    public void setUpstream(RtpReceiver upstream) {
+        mUpstream = upstream;
+    }
+
+    @Override
+    public void onRtpPacket(RtpPacket packet) {
+        long now = System.nanoTime();
+        int priority = mPriority == EgressScheduler.PRIORITY_AUDIO ? mPriority
+                : EgressScheduler.getH264Priority(packet.getData(), packet.getPayloadOffset(), packet.getPayloadLength());
+        synchronized (this) {
+            byte[] data = rewrite(packet, now);
+            updateInputRate(data.length, now);
+            mInputCount++;
+
+            mQueue.add(new QueuedPacket(data, now, priority));
+            mEgress.enqueued(priority);
+            mQueuedBytes += data.length;
+            while (mQueue.size() > MAX_QUEUE_PACKETS || mQueuedBytes > MAX_QUEUE_BYTES) {
+                QueuedPacket dropped = dropOne();
+                mQueuedBytes -= dropped.data.length;
+                mEgress.dequeued(dropped.priority);
+                mDroppedCount++;
+            }
+        }
+        RelayPacer.getInstance().wakeup();
+    }
+
+    /** Removes the oldest packet of the enhancement layer, or the oldest one if there is none. */
+    private QueuedPacket dropOne() {
+        if (mPriority != EgressScheduler.PRIORITY_AUDIO) {
+            Iterator<QueuedPacket> iterator = mQueue.iterator();
+            while (iterator.hasNext()) {
+                QueuedPacket packet = iterator.next();
+                if (packet.priority == EgressScheduler.PRIORITY_VIDEO_ENHANCEMENT) {
+                    iterator.remove();
+                    return packet;
+                }
+            }
+        }
+        return mQueue.poll();
+    }
+
+    /**
+     * Copies the packet with the SSRC of the track. When the source changes the offsets are
+     * recalculated so the output sequence goes on from the last packet sent and the timestamp
+     * advances with the time elapsed since then.
+     */
+    private byte[] rewrite(RtpPacket packet, long now) {
+        if (!mHasSource || packet.getSsrc() != mSourceSsrc) {
+            Random random = new Random();
+            int nextSeq = mHasSource ? (mLastSeq + 1) & 0xFFFF : random.nextInt(0x10000);
+            long nextTs = mHasSource
+                    ? mLastTs + (now - mLastTsNs) * mClockRate / 1000000000L + 1
+                    : random.nextInt() & 0xFFFFFFFFL;
+            mSeqOffset = nextSeq - packet.getSequenceNumber();
+            mTsOffset = nextTs - packet.getTimestamp();
+            mSourceSsrc = packet.getSsrc();
+            if (mHasSource) Log.d(TAG, "Source changed, spliced at seq " + nextSeq);
+            mHasSource = true;
+            mLastSeq = (nextSeq - 1) & 0xFFFF;
+        }
+
+        int seq = (packet.getSequenceNumber() + mSeqOffset) & 0xFFFF;
+        long timestamp = (packet.getTimestamp() + mTsOffset) & 0xFFFFFFFFL;
+        // Reordered packets keep their place but do not move the splice point back
+        if (((seq - mLastSeq) & 0x8000) == 0) {
+            mLastSeq = seq;
+            mLastTs = timestamp;
+            mLastTsNs = now;
+        }
+
+        byte[] data = new byte[packet.getLength()];
+        System.arraycopy(packet.getData(), 0, data, 0, data.length);
+        data[2] = (byte) (seq >> 8);
+        data[3] = (byte) seq;
+        data[4] = (byte) (timestamp >> 24);
+        data[5] = (byte) (timestamp >> 16);
+        data[6] = (byte) (timestamp >> 8);
+        data[7] = (byte) timestamp;
+        data[8] = (byte) (mSsrc >> 24);
+        data[9] = (byte) (mSsrc >> 16);
+        data[10] = (byte) (mSsrc >> 8);
+        data[11] = (byte) mSsrc;
+        return data;
+    }
+
+    private void updateInputRate(int bytes, long now) {
+        mWindowBytes += bytes;
+        long elapsed = now - mWindowStartNs;
+        if (elapsed < RATE_WINDOW_NS) return;
+        double rate = mWindowBytes * 1e9 / elapsed;
+        mInputRate = mInputRate == 0 ? rate : 0.75 * mInputRate + 0.25 * rate;
+        mPacer.setTargetBitrate((int) (mInputRate * 8));
+        mWindowBytes = 0;
+        mWindowStartNs = now;
+    }
+
+    /**
+     * Sends the queued packets the pacer lets out, and the RTCP of the track.
+     * @return Time at which the track wants to be drained again
+     */
+    long drain(long now) {
+        receiveReports();
+        if (now >= mNextSrNs) {
+            sendSenderReport(now);
+            mNextSrNs = now + SR_INTERVAL_NS;
+        }
+
+        while (true) {
+            long delay = mPacer.getDelayNs(now);
+            if (delay > 0) return Math.min(now + delay, mNextSrNs);
+
+            QueuedPacket packet;
+            synchronized (this) {
+                packet = mQueue.peek();
+                if (packet == null) return mNextSrNs;
+                // Audio or base layer video waiting somewhere else goes first
+                if (mEgress.isBlocked(packet.priority, now)) return Math.min(now + BLOCKED_RETRY_NS, mNextSrNs);
+                mQueue.poll();
+                mQueuedBytes -= packet.data.length;
+                mQueueDelayNs += (now - packet.enqueuedNs - mQueueDelayNs) / 16;
+            }
+            byte[] data = packet.data;
+            boolean sent;
+            if (mInterleavedChannel != null) {
+                // Full connection, dropped like it would be lost over UDP
+                sent = mInterleavedChannel.write(mChannelIdentifier, data, 0, data.length);
+            } else {
+                try {
+                    setTrafficClass(EgressScheduler.getTrafficClass(packet.priority));
+                    mRtpChannel.write(ByteBuffer.wrap(data));
+                    sent = true;
+                } catch (IOException e) {
+                    // Nobody listening at the destination (ICMP port unreachable), the packet is lost
+                    sent = false;
+                }
+            }
+            synchronized (this) {
+                if (sent) {
+                    mPacketCount++;
+                    mOctetCount += data.length - RtpPacket.FIXED_HEADER_LENGTH;
+                } else {
+                    mDroppedCount++;
+                }
+            }
+            mEgress.dequeued(packet.priority);
+            mPacer.onPacketSent(data.length, now);
+        }
+    }
+
+    private void setTrafficClass(int trafficClass) throws IOException {
+        if (trafficClass == mTrafficClass) return;
+        mRtpChannel.socket().setTrafficClass(trafficClass);
+        mTrafficClass = trafficClass;
+    }
+
+    private void sendSenderReport(long now) {
+        byte[] report = new byte[RtcpPacket.SENDER_REPORT_LENGTH + RtcpPacket.PATH_DELAY_LENGTH];
+        int length;
+        long ntp = NtpClock.toNtp(now);
+        synchronized (this) {
+            if (!mHasSource) return;
+            long rtpTimestamp = (mLastTs + (now - mLastTsNs) * mClockRate / 1000000000L) & 0xFFFFFFFFL;
+            length = RtcpPacket.writeSenderReport(report, mSsrc, ntp, rtpTimestamp, mPacketCount, mOctetCount);
+        }
+        long pathDelayUs = getPathDelayUs();
+        if (pathDelayUs >= 0) {
+            length += RtcpPacket.writePathDelay(report, length, mSsrc, pathDelayUs);
+        }
+        mRtt.onSenderReportSent(ntp, now);
+        if (mInterleavedChannel != null) {
+            mInterleavedChannel.write(mChannelIdentifier + 1, report, 0, length);
+            return;
+        }
+        try {
+            mRtcpChannel.write(ByteBuffer.wrap(report, 0, length));
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Delay from the capture at the origin to the destination: the delay announced upstream,
+     * the time packets wait here and half the RTT to the destination.
+     * @return The delay in us, or -1 while the upstream delay or the RTT are not known
+     */
+    public long getPathDelayUs() {
+        RtpReceiver upstream = mUpstream;
+        ReceptionStatistics statistics = upstream != null ? upstream.getCurrentStatistics() : null;
+        long upstreamUs = statistics != null ? statistics.getPathDelayUs() : -1;
+        long rttMs = mRtt.getSmoothedRttMs();
+        if (upstreamUs < 0 || rttMs < 0) return -1;
+        synchronized (this) {
+            return upstreamUs + (long) (mQueueDelayNs / 1000) + rttMs * 1000 / 2;
+        }
+    }
+
+    private void receiveReports() {
+        if (mRtcpChannel == null) return;
+        ByteBuffer buffer = ByteBuffer.wrap(mRtcpBuffer);
+        while (true) {
+            buffer.clear();
+            try {
+                if (mRtcpChannel.receive(buffer) == null) return;
+            } catch (IOException e) {
+                return;
+            }
+            onReport(mRtcpBuffer, buffer.position(), System.nanoTime());
+        }
+    }
+
+    /** Handles a RTCP packet of the destination that came interleaved in its RTSP connection. */
+    public void receiveReport(byte[] buffer, int offset, int length) {
+        onReport(Arrays.copyOfRange(buffer, offset, offset + length), length, System.nanoTime());
+    }
+
+    private void onReport(byte[] buffer, int length, long arrival) {
+        mLastReportNs = arrival;
+        for (RtcpPacket.ReportBlock block : RtcpPacket.parseReportBlocks(buffer, length)) {
+            if (block.ssrc != mSsrc) continue;
+            synchronized (this) {
+                mLastReport = block;
+            }
+            mRtt.onReportBlock(block, arrival);
+        }
+    }
+
+    public synchronized long getPacketCount() {
+        return mPacketCount;
+    }
+
+    public synchronized long getOctetCount() {
+        return mOctetCount;
+    }
+
+    /** Packets discarded because the queue was full or the destination was unreachable. */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public synchronized int getQueuedPackets() {
+        return mQueue.size();
+    }
+
+    /** Average input rate, in bytes/s. */
+    public synchronized double getInputRate() {
+        return mInputRate;
+    }
+
+    public double getPacingRate() {
+        return mPacer.getRate();
+    }
+
+    /** @return Arrival of the last RTCP packet of the destination, in ns of {@link System#nanoTime()}, 0 if none */
+    public long getLastReportNs() {
+        return mLastReportNs;
+    }
+
+    /** @return The last report block received from the destination, or null */
+    public synchronized RtcpPacket.ReportBlock getLastReport() {
+        return mLastReport;
+    }
+
+    /** @return Round trip time to the destination in ms, or -1 if it is not known yet */
+    public long getRttMs() {
+        return mRtt.getSmoothedRttMs();
+    }
+
+    /** Average time packets wait to be paced out, in ms. */
+    public synchronized double getQueueDelayMs() {
+        return mQueueDelayNs / 1e6;
+    }
+}
@@ -0,0 +1,31 @@
+package net.verdx.libstreaming.rtcp;
+
+/**
+ * Reloj NTP para los SR: la hora de pared se lee una sola vez al cargar la clase y a partir de
+ * ahi se avanza con {@link System#nanoTime()}. Asi los timestamps son hora real (los receptores
+ * pueden pasar de tiempo RTP a tiempo real) pero no saltan si se cambia la hora del sistema, y
+ * se puede calcular el instante NTP de cualquier marca de tiempo del reloj monotonico.
+ */
+public final class NtpClock {
+
+    private static final long ANCHOR_NTP = RtcpPacket.toNtp(System.currentTimeMillis());
+    private static final long ANCHOR_NS = System.nanoTime();
+
+    private NtpClock() {}
+
+    /** Current time as a 64 bits NTP timestamp. */
+    public static long now() {
+        return toNtp(System.nanoTime());
+    }
+
+    /**
+     * @param nanoTime An instant of {@link System#nanoTime()}
+     * @return The instant as a 64 bits NTP timestamp
+     */
+    public static long toNtp(long nanoTime) {
+        long elapsed = nanoTime - ANCHOR_NS;
+        long seconds = Math.floorDiv(elapsed, 1000000000L);
+        long nanos = Math.floorMod(elapsed, 1000000000L);
+        return ANCHOR_NTP + (seconds << 32) + (nanos << 32) / 1000000000L;
+    }
+}
@@ -0,0 +1,189 @@
+package net.verdx.libstreaming.rtcp;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.verdx.libstreaming.rtp.RtpPacket;
+import net.verdx.libstreaming.rtp.RtpPacketListener;
+import net.verdx.libstreaming.rtp.RtpReceiver;
+import net.verdx.libstreaming.threads.selectors.UDPServerSelector;
+
+/**
+ * Envia los RR de un track recibido al emisor (RFC 3550, 6.4.2).
+ *
+ * Los informes salen del puerto RTCP del track hacia la direccion desde la que llegan los SR del
+ * emisor, que es la unica fiable: los clientes de este proyecto no anuncian sus puertos reales en
+ * el SETUP. El intervalo sigue el calculo del RFC 3550 A.7 con la parte del ancho de banda de
+ * sesion medido que corresponde a RTCP, con el minimo reducido de la seccion 6.2.
+ *
+ * Si los paquetes llevan el numero de secuencia de transporte, ademas se devuelve cada
+ * {@link #FEEDBACK_INTERVAL_NS} un {@link TransportFeedback} con sus llegadas, del que el emisor
+ * estima el ancho de banda disponible.
+ *
+ * No tiene hilo propio: se comprueba si toca enviar con cada paquete RTP recibido.
+ */
+public class ReceiverReporter implements RtpPacketListener, RtcpPacketListener {
+
+    public final static String TAG = "ReceiverReporter";
+
+    /** Fraction of the session bandwidth used by RTCP. */
+    private static final double RTCP_BANDWIDTH_FRACTION = 0.05;
+    private static final double RTCP_MIN_TIME_S = 5;
+    /** Compensation of the timer reconsideration algorithm (RFC 3550 A.7). */
+    private static final double COMPENSATION = Math.E - 1.5;
+    private static final int IP_UDP_OVERHEAD = 28;
+    /** The session of a track has a single sender and, as far as we know, this receiver. */
+    private static final int MEMBERS = 2;
+    /** Window over which the session bandwidth is measured. */
+    private static final long BANDWIDTH_WINDOW_NS = TimeUnit.SECONDS.toNanos(1);
+    /** Sources not heard for this long are no longer reported. */
+    private static final long SOURCE_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(30);
+    private static final int MAX_REPORT_BLOCKS = 31;
+    /** Interval between transport feedbacks. */
+    public static final long FEEDBACK_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final RtpReceiver mReceiver;
+    private final UDPServerSelector mRtcpServer;
+    private final int mSsrc;
+    private final Random mRandom = new Random();
+
+    private volatile SocketAddress mDestination;
+    private long mNextReportNs;
+    private boolean mInitial = true;
+    private double mAvgRtcpSize = RtcpPacket.RECEIVER_REPORT_HEADER_LENGTH + RtcpPacket.REPORT_BLOCK_LENGTH + IP_UDP_OVERHEAD;
+
+    private final TransportFeedbackBuilder mFeedback = new TransportFeedbackBuilder();
+    private final byte[] mFeedbackBuffer = new byte[TransportFeedback.HEADER_LENGTH + 2 * TransportFeedback.MAX_PACKETS];
+    private int mFeedbackSsrc;
+    private long mNextFeedbackNs;
+
+    private long mWindowStartNs;
+    private long mWindowBytes = 0;
+    private double mSessionBandwidth = 0;
+
+    /**
+     * @param receiver Receive pipeline of the track, holds the statistics of its sources
+     * @param rtcpServer Selector listening on the RTCP port of the track
+     */
+    public ReceiverReporter(RtpReceiver receiver, UDPServerSelector rtcpServer) {
+        mReceiver = receiver;
+        mRtcpServer = rtcpServer;
+        mSsrc = mRandom.nextInt();
+        long now = System.nanoTime();
+        mWindowStartNs = now;
+        mNextReportNs = now + computeIntervalNs();
+    }
+
+    public int getSsrc() {
+        return mSsrc;
+    }
+
+    /** Address of the sender the reports go to, null until a SR has been received. */
+    public SocketAddress getDestination() {
+        return mDestination;
+    }
+
+    @Override
+    public void onRtcpPacket(byte[] data, int length, SocketAddress source) {
+        long now = System.nanoTime();
+        List<RtcpPacket.SenderInfo> infos = RtcpPacket.parseSenderInfos(data, length);
+        for (RtcpPacket.SenderInfo info : infos) {
+            mReceiver.onSenderReport(info, now);
+        }
+        synchronized (this) {
+            if (!infos.isEmpty() && source != null) mDestination = source;
+            mAvgRtcpSize += (length + IP_UDP_OVERHEAD - mAvgRtcpSize) / 16;
+        }
+    }
+
+    @Override
+    public void onRtpPacket(RtpPacket packet) {
+        long now = System.nanoTime();
+        int transportSequence = packet.getTransportSequenceNumber();
+        if (transportSequence >= 0) {
+            onTransportSequence(packet.getSsrc(), transportSequence, now);
+        }
+        synchronized (this) {
+            mWindowBytes += packet.getLength() + IP_UDP_OVERHEAD;
+            long elapsed = now - mWindowStartNs;
+            if (elapsed >= BANDWIDTH_WINDOW_NS) {
+                double bandwidth = mWindowBytes * 1e9 / elapsed;
+                mSessionBandwidth = mSessionBandwidth == 0 ? bandwidth : 0.75 * mSessionBandwidth + 0.25 * bandwidth;
+                mWindowBytes = 0;
+                mWindowStartNs = now;
+            }
+            if (now < mNextReportNs) return;
+            mNextReportNs = now + computeIntervalNs();
+            mInitial = false;
+        }
+        sendReport(now);
+    }
+
+    private void onTransportSequence(int ssrc, int sequence, long now) {
+        SocketAddress destination = mDestination;
+        int length = 0;
+        synchronized (this) {
+            if (ssrc != mFeedbackSsrc) {
+                mFeedback.reset();
+                mFeedbackSsrc = ssrc;
+            }
+            mFeedback.onPacket(sequence, now);
+            if (now >= mNextFeedbackNs && destination != null) {
+                mNextFeedbackNs = now + FEEDBACK_INTERVAL_NS;
+                length = mFeedback.write(mFeedbackBuffer, mSsrc, ssrc);
+            }
+        }
+        if (length > 0) {
+            byte[] feedback = new byte[length];
+            System.arraycopy(mFeedbackBuffer, 0, feedback, 0, length);
+            mRtcpServer.sendTo(feedback, destination);
+        }
+    }
+
+    private void sendReport(long now) {
+        SocketAddress destination = mDestination;
+        if (destination == null) return;
+
+        List<ReceptionStatistics> sources = new ArrayList<>();
+        for (ReceptionStatistics statistics : mReceiver.getReceptionStatistics()) {
+            if (statistics.hasNewPackets() && now - statistics.getLastPacketNs() < SOURCE_TIMEOUT_NS) {
+                sources.add(statistics);
+                if (sources.size() == MAX_REPORT_BLOCKS) break;
+            }
+        }
+
+        byte[] report = new byte[RtcpPacket.RECEIVER_REPORT_HEADER_LENGTH + sources.size() * RtcpPacket.REPORT_BLOCK_LENGTH];
+        int offset = RtcpPacket.RECEIVER_REPORT_HEADER_LENGTH;
+        RtcpPacket.writeReceiverReportHeader(report, mSsrc, sources.size());
+        for (ReceptionStatistics statistics : sources) {
+            statistics.writeReportBlock(report, offset, now);
+            offset += RtcpPacket.REPORT_BLOCK_LENGTH;
+        }
+        mRtcpServer.sendTo(report, destination);
+
+        synchronized (this) {
+            mAvgRtcpSize += (report.length + IP_UDP_OVERHEAD - mAvgRtcpSize) / 16;
+        }
+    }
+
+    /**
+     * Deterministic interval of RFC 3550 A.7 for a receiver, randomized and compensated.
+     */
+    private long computeIntervalNs() {
+        // Until the first second of media is measured assume a low rate, which gives the 5 s minimum
+        double sessionBandwidth = Math.max(mSessionBandwidth, 1000);
+        // Senders are more than 25% of the members, so the RTCP bandwidth is shared by all of them
+        double rtcpBandwidth = sessionBandwidth * RTCP_BANDWIDTH_FRACTION;
+        double n = MEMBERS;
+        // Reduced minimum of section 6.2, 360 divided by the session bandwidth in kb/s
+        double minTime = Math.min(RTCP_MIN_TIME_S, 360 / (sessionBandwidth * 8 / 1000));
+        if (mInitial) minTime /= 2;
+
+        double interval = Math.max(mAvgRtcpSize * n / rtcpBandwidth, minTime);
+        interval = interval * (mRandom.nextDouble() + 0.5) / COMPENSATION;
+        return (long) (interval * 1e9);
+    }
+}
@@ -0,0 +1,232 @@
+package net.verdx.libstreaming.rtcp;
+
+/**
+ * Estadisticas de recepcion de una fuente RTP (un SSRC) segun el RFC 3550: numero de secuencia
+ * extendido (A.1), paquetes perdidos acumulados y fraccion de perdidas entre informes (A.3),
+ * jitter entre llegadas (A.8) y el ultimo SR recibido para rellenar LSR/DLSR (6.4.1), con el
+ * retardo desde el origen que el emisor anuncia junto a el.
+ *
+ * La actualiza el hilo de recepcion y la leen los informes y la API de {@link net.verdx.libstreaming.Streaming},
+ * por eso todos los metodos son sincronizados.
+ */
+public class ReceptionStatistics {
+
+    private static final int MAX_DROPOUT = 3000;
+    private static final int MAX_MISORDER = 100;
+    private static final int MIN_SEQUENTIAL = 2;
+    private static final int RTP_SEQ_MOD = 1 << 16;
+
+    private final int mSsrc;
+    private final int mClockRate;
+
+    // Sequence number state (RFC 3550 A.1)
+    private int mMaxSeq;
+    private long mCycles = 0;
+    private int mBaseSeq;
+    private int mBadSeq = RTP_SEQ_MOD + 1;
+    private int mProbation = MIN_SEQUENTIAL;
+    private long mReceived = 0;
+    private long mExpectedPrior = 0;
+    private long mReceivedPrior = 0;
+    private boolean mInitialized = false;
+
+    // Interarrival jitter (RFC 3550 A.8), in timestamp units
+    private boolean mHasTransit = false;
+    private int mTransit;
+    private double mJitter = 0;
+
+    private int mFractionLost = 0;
+    private long mReceivedSinceReport = 0;
+    private long mLastPacketNs;
+
+    // Last SR of the source
+    private long mLastSrNtp = 0;
+    private long mLastSrArrivalNs = 0;
+    private long mPathDelayUs = -1;
+
+    public ReceptionStatistics(int ssrc, int clockRate) {
+        mSsrc = ssrc;
+        mClockRate = clockRate > 0 ? clockRate : 90000;
+    }
+
+    public int getSsrc() {
+        return mSsrc;
+    }
+
+    /**
+     * Accounts a received packet.
+     * @return False if the packet does not belong to a valid sequence yet (probation, or a
+     * jump that has to be confirmed by the next packet)
+     */
+    public synchronized boolean onPacket(int seq, long timestamp, long arrivalNs) {
+        mLastPacketNs = arrivalNs;
+        if (!mInitialized) {
+            initSeq(seq);
+            mMaxSeq = seq - 1;
+            mProbation = MIN_SEQUENTIAL;
+            mInitialized = true;
+        }
+        if (!updateSeq(seq)) return false;
+
+        mReceivedSinceReport++;
+        // Modulo 2^32 like the RTP timestamps, so the difference stays right across a wrap
+        long arrival = (long) (arrivalNs / 1e9 * mClockRate);
+        int transit = (int) (arrival - timestamp);
+        if (mHasTransit) {
+            int d = Math.abs(transit - mTransit);
+            mJitter += (d - mJitter) / 16;
+        }
+        mTransit = transit;
+        mHasTransit = true;
+        return true;
+    }
+
+    private void initSeq(int seq) {
+        mBaseSeq = seq;
+        mMaxSeq = seq;
+        mBadSeq = RTP_SEQ_MOD + 1;
+        mCycles = 0;
+        mReceived = 0;
+        mReceivedPrior = 0;
+        mExpectedPrior = 0;
+    }
+
+    private boolean updateSeq(int seq) {
+        int delta = (seq - mMaxSeq) & 0xFFFF;
+
+        if (mProbation > 0) {
+            // Source is not valid until MIN_SEQUENTIAL packets in sequence have been received
+            if (seq == ((mMaxSeq + 1) & 0xFFFF)) {
+                mProbation--;
+                mMaxSeq = seq;
+                if (mProbation == 0) {
+                    initSeq(seq);
+                    mReceived++;
+                    return true;
+                }
+            } else {
+                mProbation = MIN_SEQUENTIAL - 1;
+                mMaxSeq = seq;
+            }
+            return false;
+        } else if (delta < MAX_DROPOUT) {
+            // In order, with permissible gap
+            if (seq < mMaxSeq) {
+                mCycles += RTP_SEQ_MOD;
+            }
+            mMaxSeq = seq;
+        } else if (delta <= RTP_SEQ_MOD - MAX_MISORDER) {
+            // The sequence number made a very large jump
+            if (seq == mBadSeq) {
+                // Two sequential packets, the other side restarted without telling us
+                initSeq(seq);
+            } else {
+                mBadSeq = (seq + 1) & (RTP_SEQ_MOD - 1);
+                return false;
+            }
+        }
+        // else duplicate or reordered packet
+        mReceived++;
+        return true;
+    }
+
+    /**
+     * Stores the arrival of a SR of this source, for the LSR/DLSR fields of the next report.
+     * @param pathDelayUs Delay from the origin announced with the SR, -1 if it was not announced
+     */
+    public synchronized void onSenderReport(long ntp, long arrivalNs, long pathDelayUs) {
+        mLastSrNtp = ntp;
+        mLastSrArrivalNs = arrivalNs;
+        if (pathDelayUs >= 0) mPathDelayUs = pathDelayUs;
+    }
+
+    /** True if packets have been received since the previous report block. */
+    public synchronized boolean hasNewPackets() {
+        return mReceivedSinceReport > 0;
+    }
+
+    public synchronized long getLastPacketNs() {
+        return mLastPacketNs;
+    }
+
+    /**
+     * Writes the report block of this source and starts a new reporting interval (RFC 3550 A.3).
+     * @param buffer At least {@link RtcpPacket#REPORT_BLOCK_LENGTH} bytes from offset
+     */
+    public synchronized void writeReportBlock(byte[] buffer, int offset, long nowNs) {
+        long extendedMax = getExtendedHighestSeqLocked();
+        long expected = extendedMax - mBaseSeq + 1;
+        long lost = expected - mReceived;
+        // Cumulative lost is clamped to a signed 24 bits value
+        lost = Math.max(-0x800000, Math.min(0x7FFFFF, lost));
+
+        long expectedInterval = expected - mExpectedPrior;
+        mExpectedPrior = expected;
+        long receivedInterval = mReceived - mReceivedPrior;
+        mReceivedPrior = mReceived;
+        long lostInterval = expectedInterval - receivedInterval;
+        mFractionLost = (expectedInterval == 0 || lostInterval <= 0) ? 0 : (int) ((lostInterval << 8) / expectedInterval);
+        mReceivedSinceReport = 0;
+
+        long dlsr = 0;
+        if (mLastSrNtp != 0) {
+            dlsr = (nowNs - mLastSrArrivalNs) * 65536 / 1000000000L;
+        }
+
+        RtcpPacket.writeInt(buffer, offset, mSsrc);
+        RtcpPacket.writeInt(buffer, offset + 4, ((long) mFractionLost << 24) | (lost & 0xFFFFFF));
+        RtcpPacket.writeInt(buffer, offset + 8, extendedMax);
+        RtcpPacket.writeInt(buffer, offset + 12, (long) mJitter);
+        RtcpPacket.writeInt(buffer, offset + 16, mLastSrNtp != 0 ? RtcpPacket.ntpMiddle(mLastSrNtp) : 0);
+        RtcpPacket.writeInt(buffer, offset + 20, dlsr);
+    }
+
+    private long getExtendedHighestSeqLocked() {
+        return (mCycles + mMaxSeq) & 0xFFFFFFFFL;
+    }
+
+    public synchronized long getExtendedHighestSeq() {
+        return getExtendedHighestSeqLocked();
+    }
+
+    public synchronized long getReceived() {
+        return mReceived;
+    }
+
+    public synchronized long getExpected() {
+        return mInitialized && mProbation == 0 ? getExtendedHighestSeqLocked() - mBaseSeq + 1 : 0;
+    }
+
+    /** Packets expected and not received, negative if duplicates were received. */
+    public synchronized long getCumulativeLost() {
+        return getExpected() - mReceived;
+    }
+
+    /** Fraction of packets lost in the last reporting interval, between 0 and 1. */
+    public synchronized double getFractionLost() {
+        return mFractionLost / 256.0;
+    }
+
+    /** Interarrival jitter in RTP timestamp units. */
+    public synchronized long getJitter() {
+        return (long) mJitter;
+    }
+
+    public synchronized double getJitterMs() {
+        return mJitter * 1000 / mClockRate;
+    }
+
+    /**
+     * Delay from the capture at the origin to the arrival at this node, as announced by the
+     * sender: the delay of the origin plus half the RTT and the queueing time of every hop.
+     * @return The delay in us, or -1 if the sender has not announced it yet
+     */
+    public synchronized long getPathDelayUs() {
+        return mPathDelayUs;
+    }
+
+    /** NTP timestamp of the last SR received from the source, 0 if none. */
+    public synchronized long getLastSenderReportNtp() {
+        return mLastSrNtp;
+    }
+}
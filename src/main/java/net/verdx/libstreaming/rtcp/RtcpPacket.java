@@ -0,0 +1,214 @@
+package net.verdx.libstreaming.rtcp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Construccion y lectura de los paquetes RTCP de informes (RFC 3550, secciones 6.4.1 y 6.4.2).
+ * Solo se tratan los SR y RR, y el APP con el que cada emisor anuncia junto a su SR el retardo
+ * acumulado desde el origen del streaming. El resto de paquetes de un RTCP compuesto se saltan.
+ *
+ * APP de retardo (RFC 3550 6.7), nombre "HOPD":
+ *   ssrc del emisor | "HOPD" | retardo desde la captura en el origen hasta este receptor, en us
+ */
+public class RtcpPacket {
+
+    public static final int PT_SR = 200;
+    public static final int PT_RR = 201;
+    public static final int PT_APP = 204;
+
+    public static final int SENDER_REPORT_LENGTH = 28;
+    public static final int RECEIVER_REPORT_HEADER_LENGTH = 8;
+    public static final int REPORT_BLOCK_LENGTH = 24;
+    public static final int PATH_DELAY_LENGTH = 16;
+
+    private static final byte[] PATH_DELAY_NAME = {'H', 'O', 'P', 'D'};
+
+    /** Seconds between 1900 (NTP epoch) and 1970 (unix epoch). */
+    private static final long NTP_EPOCH_OFFSET = 2208988800L;
+
+    /**
+     * Report block of a SR or RR: the reception statistics of one source.
+     */
+    public static class ReportBlock {
+        public int ssrc;
+        /** Fraction of packets lost since the previous report, in 1/256. */
+        public int fractionLost;
+        public int cumulativeLost;
+        public long extendedHighestSeq;
+        /** Interarrival jitter, in RTP timestamp units. */
+        public long jitter;
+        /** Middle 32 bits of the NTP timestamp of the last SR received from the source. */
+        public long lastSr;
+        /** Delay since that SR was received, in 1/65536 s. */
+        public long delaySinceLastSr;
+    }
+
+    /**
+     * Sender info of a SR.
+     */
+    public static class SenderInfo {
+        public int ssrc;
+        public long ntp;
+        public long rtpTimestamp;
+        public long packetCount;
+        public long octetCount;
+        /** Delay from the capture at the origin announced with the SR, in us, -1 if not announced. */
+        public long pathDelayUs = -1;
+    }
+
+    /**
+     * Converts a wall clock time to a 64 bits NTP timestamp.
+     * @param unixMillis Milliseconds since 1970
+     */
+    public static long toNtp(long unixMillis) {
+        long seconds = unixMillis / 1000 + NTP_EPOCH_OFFSET;
+        long fraction = ((unixMillis % 1000) << 32) / 1000;
+        return (seconds << 32) | fraction;
+    }
+
+    /** Middle 32 bits of an NTP timestamp, the unit of LSR. */
+    public static long ntpMiddle(long ntp) {
+        return (ntp >>> 16) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Builds a SR without report blocks.
+     * @param buffer At least {@link #SENDER_REPORT_LENGTH} bytes
+     * @return Length of the packet
+     */
+    public static int writeSenderReport(byte[] buffer, int ssrc, long ntp, long rtpTimestamp, long packetCount, long octetCount) {
+        buffer[0] = (byte) 0x80;
+        buffer[1] = (byte) PT_SR;
+        writeShort(buffer, 2, SENDER_REPORT_LENGTH / 4 - 1);
+        writeInt(buffer, 4, ssrc);
+        writeInt(buffer, 8, ntp >>> 32);
+        writeInt(buffer, 12, ntp);
+        writeInt(buffer, 16, rtpTimestamp);
+        writeInt(buffer, 20, packetCount);
+        writeInt(buffer, 24, octetCount);
+        return SENDER_REPORT_LENGTH;
+    }
+
+    /**
+     * Builds the APP packet with the path delay, sent in the same compound packet as the SR.
+     * @param buffer At least {@link #PATH_DELAY_LENGTH} bytes from offset
+     * @return Length of the packet
+     */
+    public static int writePathDelay(byte[] buffer, int offset, int ssrc, long delayUs) {
+        buffer[offset] = (byte) 0x80;
+        buffer[offset + 1] = (byte) PT_APP;
+        writeShort(buffer, offset + 2, PATH_DELAY_LENGTH / 4 - 1);
+        writeInt(buffer, offset + 4, ssrc);
+        System.arraycopy(PATH_DELAY_NAME, 0, buffer, offset + 8, 4);
+        writeInt(buffer, offset + 12, Math.max(0, Math.min(0xFFFFFFFFL, delayUs)));
+        return PATH_DELAY_LENGTH;
+    }
+
+    /**
+     * Writes the header of a RR, followed by count report blocks the caller writes after it.
+     * @return Length of the packet, header and report blocks
+     */
+    public static int writeReceiverReportHeader(byte[] buffer, int ssrc, int count) {
+        int length = RECEIVER_REPORT_HEADER_LENGTH + count * REPORT_BLOCK_LENGTH;
+        buffer[0] = (byte) (0x80 | (count & 0x1F));
+        buffer[1] = (byte) PT_RR;
+        writeShort(buffer, 2, length / 4 - 1);
+        writeInt(buffer, 4, ssrc);
+        return length;
+    }
+
+    /**
+     * Reads the sender info of the SR found in a (compound) RTCP packet.
+     */
+    public static List<SenderInfo> parseSenderInfos(byte[] data, int length) {
+        List<SenderInfo> infos = new ArrayList<>();
+        int offset = 0;
+        while (offset + 8 <= length) {
+            if (((data[offset] & 0xC0) >> 6) != 2) break;
+            int type = data[offset + 1] & 0xFF;
+            int packetLength = 4 * (readShort(data, offset + 2) + 1);
+            if (offset + packetLength > length) break;
+            if (type == PT_SR && packetLength >= SENDER_REPORT_LENGTH) {
+                SenderInfo info = new SenderInfo();
+                info.ssrc = (int) readInt(data, offset + 4);
+                info.ntp = (readInt(data, offset + 8) << 32) | readInt(data, offset + 12);
+                info.rtpTimestamp = readInt(data, offset + 16);
+                info.packetCount = readInt(data, offset + 20);
+                info.octetCount = readInt(data, offset + 24);
+                infos.add(info);
+            } else if (type == PT_APP && packetLength >= PATH_DELAY_LENGTH && isPathDelay(data, offset + 8)) {
+                int ssrc = (int) readInt(data, offset + 4);
+                for (SenderInfo info : infos) {
+                    if (info.ssrc == ssrc) info.pathDelayUs = readInt(data, offset + 12);
+                }
+            }
+            offset += packetLength;
+        }
+        return infos;
+    }
+
+    /**
+     * Reads the report blocks of the SR and RR found in a (compound) RTCP packet.
+     */
+    public static List<ReportBlock> parseReportBlocks(byte[] data, int length) {
+        List<ReportBlock> blocks = new ArrayList<>();
+        int offset = 0;
+        while (offset + 8 <= length) {
+            if (((data[offset] & 0xC0) >> 6) != 2) break;
+            int count = data[offset] & 0x1F;
+            int type = data[offset + 1] & 0xFF;
+            int packetLength = 4 * (readShort(data, offset + 2) + 1);
+            if (offset + packetLength > length) break;
+
+            int blockOffset = -1;
+            if (type == PT_SR) blockOffset = offset + SENDER_REPORT_LENGTH;
+            else if (type == PT_RR) blockOffset = offset + 8;
+            for (int i = 0; blockOffset >= 0 && i < count; i++, blockOffset += REPORT_BLOCK_LENGTH) {
+                if (blockOffset + REPORT_BLOCK_LENGTH > offset + packetLength) break;
+                ReportBlock block = new ReportBlock();
+                block.ssrc = (int) readInt(data, blockOffset);
+                block.fractionLost = data[blockOffset + 4] & 0xFF;
+                // Cumulative lost is a signed 24 bits value
+                block.cumulativeLost = ((int) (readInt(data, blockOffset + 4) << 8)) >> 8;
+                block.extendedHighestSeq = readInt(data, blockOffset + 8);
+                block.jitter = readInt(data, blockOffset + 12);
+                block.lastSr = readInt(data, blockOffset + 16);
+                block.delaySinceLastSr = readInt(data, blockOffset + 20);
+                blocks.add(block);
+            }
+            offset += packetLength;
+        }
+        return blocks;
+    }
+
+    private static boolean isPathDelay(byte[] data, int offset) {
+        for (int i = 0; i < PATH_DELAY_NAME.length; i++) {
+            if (data[offset + i] != PATH_DELAY_NAME[i]) return false;
+        }
+        return true;
+    }
+
+    static void writeShort(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >> 8);
+        buffer[offset + 1] = (byte) value;
+    }
+
+    static void writeInt(byte[] buffer, int offset, long value) {
+        buffer[offset] = (byte) (value >> 24);
+        buffer[offset + 1] = (byte) (value >> 16);
+        buffer[offset + 2] = (byte) (value >> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    static long readInt(byte[] data, int offset) {
+        return ((long) (data[offset] & 0xFF) << 24)
+                | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8)
+                | (data[offset + 3] & 0xFF);
+    }
+}
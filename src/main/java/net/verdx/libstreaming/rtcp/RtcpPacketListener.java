@@ -0,0 +1,13 @@
+package net.verdx.libstreaming.rtcp;
+
+import java.net.SocketAddress;
+
+/**
+ * Consumidor de los datagramas RTCP que llegan al puerto RTCP de un track recibido.
+ */
+public interface RtcpPacketListener {
+    /**
+     * @param source Address the datagram came from, where the reports of the sender have to be sent
+     */
+    void onRtcpPacket(byte[] data, int length, SocketAddress source);
+}
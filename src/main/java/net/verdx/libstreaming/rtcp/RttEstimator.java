@@ -0,0 +1,51 @@
+package net.verdx.libstreaming.rtcp;
+
+/**
+ * Calculo del RTT de un emisor a partir del LSR/DLSR de los report blocks que le devuelven
+ * (RFC 3550, 6.4.1). Se guarda el instante de envio de los ultimos SR, indexado por el LSR que
+ * los identifica, para no depender de que el NTP del SR sea la hora de envio.
+ */
+public class RttEstimator {
+
+    private static final int HISTORY = 8;
+
+    private final long[] mSentNtpMiddle = new long[HISTORY];
+    private final long[] mSentNs = new long[HISTORY];
+    private int mNext = 0;
+
+    private long mRttMs = -1;
+    private double mSmoothedRttMs = -1;
+
+    /** Remembers a SR that has just been sent. */
+    public synchronized void onSenderReportSent(long ntp, long nowNs) {
+        mSentNtpMiddle[mNext] = RtcpPacket.ntpMiddle(ntp);
+        mSentNs[mNext] = nowNs;
+        mNext = (mNext + 1) % HISTORY;
+    }
+
+    /**
+     * @return True if the block answers one of the last SR sent, and the RTT has been updated
+     */
+    public synchronized boolean onReportBlock(RtcpPacket.ReportBlock block, long arrivalNs) {
+        if (block.lastSr == 0) return false;
+        for (int i = 0; i < HISTORY; i++) {
+            if (mSentNs[i] == 0 || mSentNtpMiddle[i] != block.lastSr) continue;
+            long heldNs = block.delaySinceLastSr * 1000000000L / 65536;
+            long rttNs = Math.max(0, arrivalNs - mSentNs[i] - heldNs);
+            mRttMs = rttNs / 1000000;
+            mSmoothedRttMs = mSmoothedRttMs < 0 ? mRttMs : 0.875 * mSmoothedRttMs + 0.125 * mRttMs;
+            return true;
+        }
+        return false;
+    }
+
+    /** @return Last RTT measured in ms, or -1 if none yet */
+    public synchronized long getRttMs() {
+        return mRttMs;
+    }
+
+    /** @return RTT averaged over the last reports in ms, or -1 if none yet */
+    public synchronized long getSmoothedRttMs() {
+        return (long) mSmoothedRttMs;
+    }
+}
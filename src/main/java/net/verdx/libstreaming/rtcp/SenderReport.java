@@ -21,33 +21,47 @@ package net.verdx.libstreaming.rtcp;
 import android.os.SystemClock;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+import net.verdx.libstreaming.congestion.CongestionController;
+import net.verdx.libstreaming.rtp.InterleavedChannel;
 
 import static net.verdx.libstreaming.rtp.RtpSocket.TRANSPORT_TCP;
 import static net.verdx.libstreaming.rtp.RtpSocket.TRANSPORT_UDP;
 
 /**
  * Implementation of Sender Report RTCP packets.
+ * The NTP timestamp is the capture time of the packet on {@link NtpClock}, the receiver reports
+ * sent back give the RTT, and from it the delay announced to the receivers with each report.
  */
 public class SenderReport {
 
 	public static final int MTU = 1500;
 
 	private static final int PACKET_LENGTH = 28;
-	
-	private MulticastSocket usock;
-	private DatagramPacket upack;
+
+	/** Media timestamps further than this from the current time are not taken as capture times. */
+	private static final long MAX_CAPTURE_AGE_NS = 5000000000L;
+
+	private DatagramChannel mChannel;
+	private InetSocketAddress mDestination;
+	private final ByteBuffer mReceiveBuffer = ByteBuffer.allocate(MTU);
+	private final RttEstimator mRtt = new RttEstimator();
+	private long mSendDelayNs = -1;
+	private volatile CongestionController mCongestionController;
+	private volatile long mLastReportNs = 0;
 
 	private int mTransport;
-	private OutputStream mOutputStream = null;
+	private InterleavedChannel mInterleavedChannel = null;
+	private byte mChannelIdentifier;
 	private byte[] mBuffer = new byte[MTU];
 	private int mSSRC, mPort = -1;
 	private int mOctetCount = 0, mPacketCount = 0;
 	private long interval, delta, now, oldnow;
-	private byte mTcpHeader[];
 
 	public SenderReport(int ssrc) throws IOException {
 		super();
@@ -57,7 +71,6 @@ public class SenderReport {
 	public SenderReport() {
 
 		mTransport = TRANSPORT_UDP;
-		mTcpHeader = new byte[] {'$',0,0,PACKET_LENGTH};
 		
 		/*							     Version(2)  Padding(0)					 					*/
 		/*									 ^		  ^			PT = 0	    						*/
@@ -82,12 +95,13 @@ public class SenderReport {
 		/* Byte 24,25,26,27  ->  octet count			         */
 
 		try {
-			usock = new MulticastSocket();
+			mChannel = DatagramChannel.open();
+			mChannel.bind(null);
+			mChannel.configureBlocking(false);
 		} catch (IOException e) {
 			// Very unlikely to happen. Means that all UDP ports are already being used
 			throw new RuntimeException(e.getMessage());
 		}
-		upack = new DatagramPacket(mBuffer, 1);
 
 		// By default we sent one report every 3 secconde
 		interval = 3000;
@@ -95,7 +109,9 @@ public class SenderReport {
 	}
 
 	public void close() {
-		usock.close();
+		try {
+			mChannel.close();
+		} catch (IOException ignored) {}
 	}
 
 	/**
@@ -116,22 +132,95 @@ public class SenderReport {
 	 * @throws IOException 
 	 **/
 	public void update(int length, long rtpts) throws IOException {
+		update(length, rtpts, System.nanoTime());
+	}
+
+	/**
+	 * Updates the number of packets sent, and the total amount of data sent.
+	 * @param length The length of the packet
+	 * @param rtpts The RTP timestamp.
+	 * @param timestamp The media timestamp of the packet in ns, on the {@link System#nanoTime()}
+	 *                  clock when the encoder gives capture times
+	 **/
+	public void update(int length, long rtpts, long timestamp) throws IOException {
 		mPacketCount += 1;
 		mOctetCount += length;
 		setLong(mPacketCount, 20, 24);
 		setLong(mOctetCount, 24, 28);
 
+		long nowNs = System.nanoTime();
+		boolean captureTime = Math.abs(nowNs - timestamp) < MAX_CAPTURE_AGE_NS;
+		if (captureTime) {
+			// Time from the capture to the network, encoder and FIFO included
+			long sendDelay = Math.max(0, nowNs - timestamp);
+			mSendDelayNs = mSendDelayNs < 0 ? sendDelay : mSendDelayNs + (sendDelay - mSendDelayNs) / 16;
+		}
+		receiveReports();
+
 		now = SystemClock.elapsedRealtime();
 		delta += oldnow != 0 ? now-oldnow : 0;
 		oldnow = now;
 		if (interval>0 && delta>=interval) {
 			// We send a Sender Report
-			send(System.nanoTime(), rtpts);
+			send(NtpClock.toNtp(captureTime ? timestamp : nowNs), rtpts, nowNs);
 			delta = 0;
 		}
 		
 	}
 
+	/** Receives the transport feedback and the loss reported by the receiver, null to stop. */
+	public void setCongestionController(CongestionController controller) {
+		mCongestionController = controller;
+	}
+
+	/** Reads the receiver reports sent back to our port, they give the RTT and the feedback of the congestion control. */
+	private void receiveReports() {
+		if (mTransport != TRANSPORT_UDP) return;
+		while (true) {
+			mReceiveBuffer.clear();
+			try {
+				if (mChannel.receive(mReceiveBuffer) == null) return;
+			} catch (IOException e) {
+				return;
+			}
+			onReport(mReceiveBuffer.array(), mReceiveBuffer.position(), System.nanoTime());
+		}
+	}
+
+	/** Handles a RTCP packet of the receiver that came interleaved in the RTSP connection. */
+	public void receiveReport(byte[] buffer, int offset, int length) {
+		onReport(Arrays.copyOfRange(buffer, offset, offset + length), length, System.nanoTime());
+	}
+
+	private void onReport(byte[] buffer, int length, long arrival) {
+		mLastReportNs = arrival;
+		for (RtcpPacket.ReportBlock block : RtcpPacket.parseReportBlocks(buffer, length)) {
+			if (block.ssrc == mSSRC) mRtt.onReportBlock(block, arrival);
+		}
+		CongestionController controller = mCongestionController;
+		if (controller != null) controller.onRtcpPacket(buffer, length, mSSRC, arrival);
+	}
+
+	/** @return Arrival of the last RTCP packet of the receiver, in ns of {@link System#nanoTime()}, 0 if none */
+	public long getLastReportNs() {
+		return mLastReportNs;
+	}
+
+	/** @return Round trip time to the receiver in ms, or -1 if it has not sent reports yet */
+	public long getRttMs() {
+		return mRtt.getSmoothedRttMs();
+	}
+
+	/**
+	 * Delay from the capture to the receiver: the time spent in the encoder and the FIFO plus half the RTT.
+	 * @return The delay in us, or -1 while the RTT is not known
+	 */
+	public long getPathDelayUs() {
+		long rtt = mRtt.getSmoothedRttMs();
+		if (rtt < 0) return -1;
+		return Math.max(0, mSendDelayNs) / 1000 + rtt * 1000 / 2;
+	}
+
 	public void setSSRC(int ssrc) {
 		this.mSSRC = ssrc; 
 		setLong(ssrc,4,8);
@@ -141,22 +230,24 @@ public class SenderReport {
 		setLong(mOctetCount, 24, 28);
 	}
 
+	/** Sets the traffic class (DSCP) of the reports, the one of the stream they describe. */
+	public void setTrafficClass(int trafficClass) {
+		try {
+			mChannel.socket().setTrafficClass(trafficClass);
+		} catch (IOException ignored) {}
+	}
+
 	public void setDestination(InetAddress dest, int dport) {
 		mTransport = TRANSPORT_UDP;
 		mPort = dport;
-		upack.setPort(dport);
-		upack.setAddress(dest);
+		mDestination = new InetSocketAddress(dest, dport);
 	}
 
-	/**
-	 * If a TCP is used as the transport protocol for the RTP session,
-	 * the output stream to which RTP packets will be written to must
-	 * be specified with this method.
-	 */ 
-	public void setOutputStream(OutputStream os, byte channelIdentifier) {
+	/** Sends the reports interleaved in the RTSP connection, on the channel given. */
+	public void setInterleavedChannel(InterleavedChannel channel, byte channelIdentifier) {
 		mTransport = TRANSPORT_TCP;
-		mOutputStream = os;
-		mTcpHeader[1] = channelIdentifier;
+		mInterleavedChannel = channel;
+		mChannelIdentifier = channelIdentifier;
 	}	
 	
 	public int getPort() {
@@ -164,7 +255,7 @@ public class SenderReport {
 	}
 
 	public int getLocalPort() {
-		return usock.getLocalPort();
+		return mChannel.socket().getLocalPort();
 	}
 
 	public int getSSRC() {
@@ -190,29 +281,27 @@ public class SenderReport {
 	}	
 
 	/**
-	 * Sends the RTCP packet over the network.
+	 * Sends the RTCP packet over the network, with the path delay when it is known.
 	 * 
 	 * @param ntpts
 	 *            the NTP timestamp.
 	 * @param rtpts
 	 *            the RTP timestamp.
 	 */
-	private void send(long ntpts, long rtpts) throws IOException {
-		long hb = ntpts/1000000000;
-		long lb = ( ( ntpts - hb*1000000000 ) * 4294967296L )/1000000000;
-		setLong(hb, 8, 12);
-		setLong(lb, 12, 16);
+	private void send(long ntpts, long rtpts, long nowNs) throws IOException {
+		setLong(ntpts >>> 32, 8, 12);
+		setLong(ntpts & 0xFFFFFFFFL, 12, 16);
 		setLong(rtpts, 16, 20);
+		int length = PACKET_LENGTH;
+		long pathDelay = getPathDelayUs();
+		if (pathDelay >= 0) {
+			length += RtcpPacket.writePathDelay(mBuffer, PACKET_LENGTH, mSSRC, pathDelay);
+		}
+		mRtt.onSenderReportSent(ntpts, nowNs);
 		if (mTransport == TRANSPORT_UDP) {
-			upack.setLength(PACKET_LENGTH);
-			usock.send(upack);		
+			if (mDestination != null) mChannel.send(ByteBuffer.wrap(mBuffer, 0, length), mDestination);
 		} else {
-			synchronized (mOutputStream) {
-				try {
-					mOutputStream.write(mTcpHeader);
-					mOutputStream.write(mBuffer, 0, PACKET_LENGTH);
-				} catch (Exception e) {}
-			}
+			mInterleavedChannel.write(mChannelIdentifier, mBuffer, 0, length);
 		}
 	}
 		
@@ -0,0 +1,116 @@
+package net.verdx.libstreaming.rtcp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Feedback de transporte que un receptor devuelve al emisor con el instante de llegada de cada
+ * paquete, identificado por el numero de secuencia de transporte que el emisor pone en la
+ * extension de cabecera RTP (ver {@link net.verdx.libstreaming.rtp.RtpPacket#getTransportSequenceNumber()}).
+ *
+ * Es un RTPFB (RFC 4585) con FMT 15, como el transport-cc de WebRTC, pero con un cuerpo mas
+ * sencillo: una llegada de 16 bits por paquete en vez de los chunks de estado y los deltas de
+ * tamano variable, suficiente para los pocos cientos de paquetes por segundo de un streaming.
+ *
+ *   cabecera (V=2, FMT=15, PT=205) | ssrc del receptor | ssrc del medio
+ *   secuencia base (16) | numero de paquetes (16)
+ *   instante de referencia en us (32), llegada del primer paquete recibido del lote
+ *   por paquete: llegada respecto a la referencia en unidades de 250 us (16),
+ *                0xFFFF si no ha llegado
+ *   relleno hasta multiplo de 4
+ */
+public class TransportFeedback {
+
+    public static final int PT_RTPFB = 205;
+    public static final int FMT = 15;
+
+    public static final int HEADER_LENGTH = 20;
+    /** Max packets per feedback, keeps it below the MTU. */
+    public static final int MAX_PACKETS = 512;
+    /** Resolution of the arrival deltas. */
+    public static final int DELTA_UNIT_US = 250;
+
+    private static final int NOT_RECEIVED = 0xFFFF;
+
+    /**
+     * Feedback parsed, with the arrivals already converted back to us.
+     */
+    public static class Feedback {
+        public int senderSsrc;
+        public int mediaSsrc;
+        /** Transport-wide sequence number of the first packet, 16 bits. */
+        public int baseSequence;
+        /** Reference time of the receiver, 32 bits of us that wrap around. */
+        public long referenceUs;
+        /** Arrival of each packet on the receiver clock in us from the reference, -1 if lost. */
+        public long[] arrivalUs;
+    }
+
+    /**
+     * Builds a feedback.
+     * @param arrivalUs Arrival of the packets from baseSequence on the receiver clock, in us, -1 if lost
+     * @param count Number of packets, at most {@link #MAX_PACKETS}
+     * @return Length of the packet
+     */
+    public static int write(byte[] buffer, int senderSsrc, int mediaSsrc, int baseSequence, long[] arrivalUs, int count) {
+        count = Math.min(count, MAX_PACKETS);
+        long reference = -1;
+        for (int i = 0; i < count; i++) {
+            if (arrivalUs[i] >= 0 && (reference < 0 || arrivalUs[i] < reference)) reference = arrivalUs[i];
+        }
+        if (reference < 0) reference = 0;
+
+        int length = HEADER_LENGTH + ((2 * count + 3) & ~3);
+        buffer[0] = (byte) (0x80 | FMT);
+        buffer[1] = (byte) PT_RTPFB;
+        RtcpPacket.writeShort(buffer, 2, length / 4 - 1);
+        RtcpPacket.writeInt(buffer, 4, senderSsrc);
+        RtcpPacket.writeInt(buffer, 8, mediaSsrc);
+        RtcpPacket.writeShort(buffer, 12, baseSequence & 0xFFFF);
+        RtcpPacket.writeShort(buffer, 14, count);
+        RtcpPacket.writeInt(buffer, 16, reference);
+        int offset = HEADER_LENGTH;
+        for (int i = 0; i < count; i++, offset += 2) {
+            int delta = NOT_RECEIVED;
+            if (arrivalUs[i] >= 0) {
+                delta = (int) Math.min(NOT_RECEIVED - 1, (arrivalUs[i] - reference) / DELTA_UNIT_US);
+            }
+            RtcpPacket.writeShort(buffer, offset, delta);
+        }
+        for (; offset < length; offset++) buffer[offset] = 0;
+        return length;
+    }
+
+    /**
+     * Reads the transport feedbacks found in a (compound) RTCP packet.
+     */
+    public static List<Feedback> parse(byte[] data, int length) {
+        List<Feedback> feedbacks = new ArrayList<>();
+        int offset = 0;
+        while (offset + 8 <= length) {
+            if (((data[offset] & 0xC0) >> 6) != 2) break;
+            int format = data[offset] & 0x1F;
+            int type = data[offset + 1] & 0xFF;
+            int packetLength = 4 * (RtcpPacket.readShort(data, offset + 2) + 1);
+            if (offset + packetLength > length) break;
+            if (type == PT_RTPFB && format == FMT && packetLength >= HEADER_LENGTH) {
+                int count = RtcpPacket.readShort(data, offset + 14);
+                if (HEADER_LENGTH + 2 * count <= packetLength) {
+                    Feedback feedback = new Feedback();
+                    feedback.senderSsrc = (int) RtcpPacket.readInt(data, offset + 4);
+                    feedback.mediaSsrc = (int) RtcpPacket.readInt(data, offset + 8);
+                    feedback.baseSequence = RtcpPacket.readShort(data, offset + 12);
+                    feedback.referenceUs = RtcpPacket.readInt(data, offset + 16);
+                    feedback.arrivalUs = new long[count];
+                    for (int i = 0; i < count; i++) {
+                        int delta = RtcpPacket.readShort(data, offset + HEADER_LENGTH + 2 * i);
+                        feedback.arrivalUs[i] = delta == NOT_RECEIVED ? -1 : (long) delta * DELTA_UNIT_US;
+                    }
+                    feedbacks.add(feedback);
+                }
+            }
+            offset += packetLength;
+        }
+        return feedbacks;
+    }
+}
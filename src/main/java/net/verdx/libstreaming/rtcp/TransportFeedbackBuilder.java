@@ -0,0 +1,81 @@
+package net.verdx.libstreaming.rtcp;
+
+import java.util.Arrays;
+
+/**
+ * Guarda las llegadas de los paquetes con numero de secuencia de transporte de una fuente hasta
+ * que se envian en el siguiente {@link TransportFeedback}. Cada feedback empieza donde acabo el
+ * anterior, los paquetes que llegan despues de haberse informado como perdidos ya no se cuentan.
+ */
+public class TransportFeedbackBuilder {
+
+    private static final int HISTORY_SIZE = 1024;
+    private static final int HISTORY_MASK = HISTORY_SIZE - 1;
+
+    private final long[] mSequences = new long[HISTORY_SIZE];
+    private final long[] mArrivalsUs = new long[HISTORY_SIZE];
+    private final long[] mFeedbackArrivals = new long[TransportFeedback.MAX_PACKETS];
+
+    private boolean mHasPackets = false;
+    /** Extended sequence of the first packet of the next feedback. */
+    private long mNextSeq;
+    /** Highest extended sequence received. */
+    private long mMaxSeq;
+
+    public TransportFeedbackBuilder() {
+        Arrays.fill(mSequences, -1);
+    }
+
+    /**
+     * Accounts the arrival of a packet.
+     * @param sequence Transport-wide sequence number, 16 bits
+     */
+    public synchronized void onPacket(int sequence, long arrivalNs) {
+        long extended;
+        if (!mHasPackets) {
+            extended = sequence;
+            mNextSeq = extended;
+            mMaxSeq = extended;
+            mHasPackets = true;
+        } else {
+            extended = mMaxSeq + (short) (sequence - (int) (mMaxSeq & 0xFFFF));
+            if (extended < mNextSeq) return;
+            if (extended > mMaxSeq) mMaxSeq = extended;
+        }
+        if (mMaxSeq - mNextSeq >= HISTORY_SIZE) {
+            // Feedback did not go out for a long time, forget the oldest arrivals
+            mNextSeq = mMaxSeq - HISTORY_SIZE + 1;
+        }
+        int index = (int) (extended & HISTORY_MASK);
+        mSequences[index] = extended;
+        mArrivalsUs[index] = arrivalNs / 1000;
+    }
+
+    /** True if packets arrived since the last feedback. */
+    public synchronized boolean hasPendingPackets() {
+        return mHasPackets && mMaxSeq >= mNextSeq;
+    }
+
+    public synchronized void reset() {
+        mHasPackets = false;
+        Arrays.fill(mSequences, -1);
+    }
+
+    /**
+     * Writes the feedback of the packets received since the previous one.
+     * @param buffer At least {@link TransportFeedback#HEADER_LENGTH} + 2 * {@link TransportFeedback#MAX_PACKETS} bytes
+     * @return Length of the packet, 0 if there is nothing to report
+     */
+    public synchronized int write(byte[] buffer, int senderSsrc, int mediaSsrc) {
+        if (!hasPendingPackets()) return 0;
+        int count = (int) Math.min(TransportFeedback.MAX_PACKETS, mMaxSeq - mNextSeq + 1);
+        for (int i = 0; i < count; i++) {
+            long sequence = mNextSeq + i;
+            int index = (int) (sequence & HISTORY_MASK);
+            mFeedbackArrivals[i] = mSequences[index] == sequence ? mArrivalsUs[index] : -1;
+        }
+        int length = TransportFeedback.write(buffer, senderSsrc, mediaSsrc, (int) (mNextSeq & 0xFFFF), mFeedbackArrivals, count);
+        mNextSeq += count;
+        return length;
+    }
+}
@@ -23,8 +23,6 @@ import android.util.Log;
 
 import java.io.IOException;
 
-import net.verdx.libstreaming.audio.AACStream;
-
 /**
  *   
  *   RFC 3640.  
@@ -39,11 +37,32 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 
 	private final static String TAG = "AACADTSPacketizer";
 
+	/** There are 13 supported frequencies by ADTS, indexed by the sampling_frequency_index of the header. **/
+	public static final int[] AUDIO_SAMPLING_RATES = {
+		96000, // 0
+		88200, // 1
+		64000, // 2
+		48000, // 3
+		44100, // 4
+		32000, // 5
+		24000, // 6
+		22050, // 7
+		16000, // 8
+		12000, // 9
+		11025, // 10
+		8000,  // 11
+		7350,  // 12
+		-1,   // 13
+		-1,   // 14
+		-1,   // 15
+	};
+
 	private Thread t;
 	private int samplingRate = 8000;
 
 	public AACADTSPacketizer() {
 		super();
+		socket.setPriority(EgressScheduler.PRIORITY_AUDIO);
 	}
 
 	public void start() {
@@ -117,7 +136,7 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 				// Read CRS if any
 				if (!protection) is.read(header,0,2);
 
-				samplingRate = AACStream.AUDIO_SAMPLING_RATES[(header[2]&0x3C) >> 2];
+				samplingRate = AUDIO_SAMPLING_RATES[(header[2]&0x3C) >> 2];
 				profile = ( (header[2]&0xC0) >> 6 ) + 1 ;
 
 				// We update the RTP timestamp
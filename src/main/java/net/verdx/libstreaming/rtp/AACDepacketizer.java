@@ -0,0 +1,113 @@
+package net.verdx.libstreaming.rtp;
+
+/**
+ * RFC 3640, modo AAC-hbr.
+ *
+ * Extrae las AU de AAC de los paquetes generados por {@link AACLATMPacketizer}: una seccion
+ * AU-headers (13 bits de tamaño y 3 de indice por AU) seguida de las AU concatenadas.
+ * Las AU que llegan fragmentadas en varios paquetes se reensamblan usando el bit de marca.
+ */
+public class AACDepacketizer extends AbstractDepacketizer {
+
+    private static final int SIZE_LENGTH = 13;
+
+    private final byte[] mConfig;
+
+    private byte[] mFragment;
+    private int mFragmentSize = 0;
+
+    /**
+     * @param samplingRate Clock rate of the track
+     * @param config AudioSpecificConfig announced in the SDP, null if unknown
+     */
+    public AACDepacketizer(int samplingRate, byte[] config) {
+        super(samplingRate);
+        mConfig = config;
+    }
+
+    /** AudioSpecificConfig of the stream, as announced in the "config" parameter of the SDP, null if unknown. */
+    public byte[] getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * Channel configuration of the AudioSpecificConfig (ISO 14496-3 1.6.2.1).
+     * @return The number of channels, 1 if the config is unknown or does not carry it
+     */
+    public int getChannelCount() {
+        if (mConfig == null) return 1;
+        long bits = 0;
+        for (int i = 0; i < Math.min(mConfig.length, 7); i++) {
+            bits |= (mConfig[i] & 0xFFL) << (48 - 8 * i);
+        }
+        int pos = 5;
+        if ((bits >>> (56 - 5)) == 31) pos += 6; // Escaped audioObjectType
+        int frequencyIndex = (int) ((bits >>> (56 - pos - 4)) & 0x0F);
+        pos += 4;
+        if (frequencyIndex == 15) pos += 24; // Explicit samplingFrequency
+        if (pos + 4 > 8 * mConfig.length) return 1;
+        int channels = (int) ((bits >>> (56 - pos - 4)) & 0x0F);
+        return channels != 0 ? channels : 1;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        mFragment = null;
+        mFragmentSize = 0;
+    }
+
+    @Override
+    protected void process(RtpPacket packet, boolean discontinuity) {
+        if (discontinuity) {
+            mFragment = null;
+            mFragmentSize = 0;
+        }
+
+        byte[] data = packet.getData();
+        int offset = packet.getPayloadOffset();
+        int end = offset + packet.getPayloadLength();
+        if (end - offset < 2) return;
+
+        int headersBits = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+        int headersBytes = (headersBits + 7) / 8;
+        int count = headersBits / 16;
+        int headerPos = offset + 2;
+        int pos = headerPos + headersBytes;
+        if (count == 0 || pos > end) return;
+
+        if (count == 1) {
+            int size = ((data[headerPos] & 0xFF) << 8 | (data[headerPos + 1] & 0xFF)) >> (16 - SIZE_LENGTH);
+            int available = end - pos;
+            if (size > available || mFragment != null) {
+                // Fragmented access unit, the marker bit is set on its last packet
+                if (mFragment == null) {
+                    mFragment = new byte[size];
+                    mFragmentSize = 0;
+                }
+                int copy = Math.min(available, mFragment.length - mFragmentSize);
+                System.arraycopy(data, pos, mFragment, mFragmentSize, copy);
+                mFragmentSize += copy;
+                if (packet.isMarker() || mFragmentSize == mFragment.length) {
+                    if (mFragmentSize == mFragment.length) {
+                        dispatch(mFragment, packet.getTimestamp(), true);
+                    }
+                    mFragment = null;
+                    mFragmentSize = 0;
+                }
+                return;
+            }
+        }
+
+        // One or more complete access units, consecutive ones are spaced by 1024 samples
+        for (int i = 0; i < count && pos < end; i++) {
+            int h = headerPos + 2 * i;
+            int size = ((data[h] & 0xFF) << 8 | (data[h + 1] & 0xFF)) >> (16 - SIZE_LENGTH);
+            if (size <= 0 || pos + size > end) break;
+            byte[] au = new byte[size];
+            System.arraycopy(data, pos, au, 0, size);
+            dispatch(au, (packet.getTimestamp() + 1024L * i) & 0xFFFFFFFFL, true);
+            pos += size;
+        }
+    }
+}
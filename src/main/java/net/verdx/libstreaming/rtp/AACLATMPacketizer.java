@@ -46,6 +46,7 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 	public AACLATMPacketizer() {
 		super();
 		socket.setCacheSize(0);
+		socket.setPriority(EgressScheduler.PRIORITY_AUDIO);
 	}
 
 	public void start() {
@@ -46,6 +46,7 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 	public AMRNBPacketizer() {
 		super();
 		socket.setClockFrequency(samplingRate);
+		socket.setPriority(EgressScheduler.PRIORITY_AUDIO);
 	}
 
 	public void start() {
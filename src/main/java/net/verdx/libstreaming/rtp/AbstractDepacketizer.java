@@ -0,0 +1,83 @@
+package net.verdx.libstreaming.rtp;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Operacion inversa de {@link AbstractPacketizer}: recibe los paquetes RTP de un track ya
+ * ordenados por el {@link JitterBuffer} y reconstruye las unidades de acceso, que se
+ * entregan a los {@link AccessUnitListener} registrados.
+ */
+public abstract class AbstractDepacketizer {
+
+    private final List<AccessUnitListener> mListeners = new CopyOnWriteArrayList<>();
+    private final int mClockRate;
+
+    private long mFirstTimestamp = -1;
+    private long mLastTimestamp;
+    private long mTimestampCycles = 0;
+
+    protected int mLastSequence = -1;
+
+    protected AbstractDepacketizer(int clockRate) {
+        mClockRate = clockRate;
+    }
+
+    public int getClockRate() {
+        return mClockRate;
+    }
+
+    public void addListener(AccessUnitListener listener) {
+        if (!mListeners.contains(listener)) mListeners.add(listener);
+    }
+
+    public void removeListener(AccessUnitListener listener) {
+        mListeners.remove(listener);
+    }
+
+    public boolean hasListeners() {
+        return !mListeners.isEmpty();
+    }
+
+    /** Processes the next packet of the track, in sequence order. */
+    public void depacketize(RtpPacket packet) {
+        boolean discontinuity = mLastSequence >= 0
+                && ((mLastSequence + 1) & 0xFFFF) != packet.getSequenceNumber();
+        mLastSequence = packet.getSequenceNumber();
+        process(packet, discontinuity);
+    }
+
+    /** Drops any partially assembled unit, the next packet starts from scratch. */
+    public void reset() {
+        mLastSequence = -1;
+        mFirstTimestamp = -1;
+        mTimestampCycles = 0;
+    }
+
+    /**
+     * @param packet The packet to process
+     * @param discontinuity True if one or more packets were lost right before this one
+     */
+    protected abstract void process(RtpPacket packet, boolean discontinuity);
+
+    protected void dispatch(byte[] data, long rtpTimestamp, boolean keyFrame) {
+        AccessUnit accessUnit = new AccessUnit(data, rtpTimestamp, toPresentationTimeUs(rtpTimestamp), keyFrame);
+        for (AccessUnitListener listener : mListeners) {
+            listener.onAccessUnit(accessUnit);
+        }
+    }
+
+    /** Converts an RTP timestamp to microseconds since the first unit, handling the 32 bit wrap around. */
+    protected long toPresentationTimeUs(long rtpTimestamp) {
+        if (mFirstTimestamp < 0) {
+            mFirstTimestamp = rtpTimestamp;
+            mLastTimestamp = rtpTimestamp;
+        }
+        long delta = (int) (rtpTimestamp - mLastTimestamp);
+        if (delta > 0 && rtpTimestamp < mLastTimestamp) mTimestampCycles++;
+        else if (delta < 0 && rtpTimestamp > mLastTimestamp && mTimestampCycles > 0) mTimestampCycles--;
+        mLastTimestamp = rtpTimestamp;
+        long extended = (mTimestampCycles << 32) + rtpTimestamp - mFirstTimestamp;
+        return extended * 1000000L / mClockRate;
+    }
+}
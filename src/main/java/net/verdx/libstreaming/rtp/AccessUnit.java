@@ -0,0 +1,40 @@
+package net.verdx.libstreaming.rtp;
+
+/**
+ * Unidad de acceso (un frame de video o de audio) reconstruida a partir de los paquetes RTP.
+ * Los frames H.264 se entregan en formato Annex B (cada NAL precedida de 00 00 00 01)
+ * y los de AAC como AU crudas, sin cabecera ADTS.
+ */
+public class AccessUnit {
+
+    private final byte[] mData;
+    private final long mRtpTimestamp;
+    private final long mPresentationTimeUs;
+    private final boolean mKeyFrame;
+
+    public AccessUnit(byte[] data, long rtpTimestamp, long presentationTimeUs, boolean keyFrame) {
+        mData = data;
+        mRtpTimestamp = rtpTimestamp;
+        mPresentationTimeUs = presentationTimeUs;
+        mKeyFrame = keyFrame;
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    /** 32 bit RTP timestamp of the packets carrying this unit. */
+    public long getRtpTimestamp() {
+        return mRtpTimestamp;
+    }
+
+    /** Presentation time relative to the first unit of the stream. */
+    public long getPresentationTimeUs() {
+        return mPresentationTimeUs;
+    }
+
+    /** True for H.264 frames containing an IDR slice, always true for audio. */
+    public boolean isKeyFrame() {
+        return mKeyFrame;
+    }
+}
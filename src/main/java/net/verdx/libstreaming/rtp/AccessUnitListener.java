@@ -0,0 +1,9 @@
+package net.verdx.libstreaming.rtp;
+
+/**
+ * Consumidor en proceso de las unidades de acceso de un track recibido.
+ * Se llama desde el thread del worker UDP, las implementaciones no deben bloquearlo.
+ */
+public interface AccessUnitListener {
+    void onAccessUnit(AccessUnit accessUnit);
+}
@@ -63,6 +63,11 @@ public class ByteBufferInputStream extends BufferInfoInputStream {
         return min;
     }
 
+    /** Buffers added and not read yet. */
+    public synchronized int getQueuedBuffers() {
+        return mByteBufferInfos.size();
+    }
+
     public synchronized int available() {
         return mByteBuffer.remaining();
     }
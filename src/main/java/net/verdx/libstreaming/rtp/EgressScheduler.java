@@ -0,0 +1,137 @@
+package net.verdx.libstreaming.rtp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Prioridad estricta entre todo lo que sale del dispositivo: audio, despues la capa base del
+ * video y por ultimo la de mejora (los frames H.264 que no son referencia, nal_ref_idc 0).
+ *
+ * Los emisores locales ({@link RtpSocket}) y los reenvios ({@link net.verdx.libstreaming.relay.RelayTrack})
+ * apuntan aqui los paquetes que tienen en cola por prioridad, y antes de enviar uno se espera a
+ * que no quede ninguno de una prioridad mayor. Asi un audio no espera detras de los 40 fragmentos
+ * de un keyframe. La espera esta acotada: si una prioridad mayor no avanza en
+ * {@link #MAX_WAIT_NS} se deja pasar al resto, un emisor parado no bloquea a los demas.
+ *
+ * Cada emisor lleva la cuenta a traves de su {@link Sender}, que descuenta sus propios paquetes:
+ * un frame de mejora a la cabeza de una cola no espera a la capa base que tiene detras en la misma
+ * cola, que de todas formas no puede salir antes que el.
+ *
+ * Ademas cada prioridad tiene su DSCP, para que WMM ponga el audio en la cola de voz del
+ * punto de acceso y el video en la de video (RFC 8325).
+ */
+public class EgressScheduler {
+
+    public final static String TAG = "EgressScheduler";
+
+    public static final int PRIORITY_AUDIO = 0;
+    public static final int PRIORITY_VIDEO_BASE = 1;
+    public static final int PRIORITY_VIDEO_ENHANCEMENT = 2;
+    private static final int PRIORITIES = 3;
+
+    /** DSCP EF, in the position of the traffic class byte, mapped to AC_VO. */
+    public static final int TRAFFIC_CLASS_AUDIO = 46 << 2;
+    /** DSCP AF41, mapped to AC_VI. */
+    public static final int TRAFFIC_CLASS_VIDEO_BASE = 34 << 2;
+    /** DSCP AF42, AC_VI too but dropped before AF41 by routers that honour it. */
+    public static final int TRAFFIC_CLASS_VIDEO_ENHANCEMENT = 36 << 2;
+
+    /** Max time a packet waits for a higher priority that makes no progress. */
+    public static final long MAX_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long POLL_NS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private static EgressScheduler INSTANCE = null;
+
+    private final AtomicIntegerArray mPending = new AtomicIntegerArray(PRIORITIES);
+    /** Last time each priority sent a packet or started having packets pending. */
+    private final AtomicLongArray mLastProgressNs = new AtomicLongArray(PRIORITIES);
+
+    private EgressScheduler() {}
+
+    public static synchronized EgressScheduler getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new EgressScheduler();
+        }
+        return INSTANCE;
+    }
+
+    public static int getTrafficClass(int priority) {
+        switch (priority) {
+            case PRIORITY_AUDIO:
+                return TRAFFIC_CLASS_AUDIO;
+            case PRIORITY_VIDEO_BASE:
+                return TRAFFIC_CLASS_VIDEO_BASE;
+            default:
+                return TRAFFIC_CLASS_VIDEO_ENHANCEMENT;
+        }
+    }
+
+    /**
+     * Priority of an H.264 packet (RFC 6184): the NRI of the NAL unit header, also present in
+     * the STAP-A and FU-A indicators, is 0 for the frames no other frame refers to.
+     */
+    public static int getH264Priority(byte[] data, int payloadOffset, int payloadLength) {
+        if (payloadLength < 1) return PRIORITY_VIDEO_BASE;
+        return (data[payloadOffset] & 0x60) == 0 ? PRIORITY_VIDEO_ENHANCEMENT : PRIORITY_VIDEO_BASE;
+    }
+
+    /** Accounting of the packets of a new sender, one per queue. */
+    public Sender newSender() {
+        return new Sender();
+    }
+
+    /** Packets of a priority waiting to be sent, of all the senders. */
+    public int getPending(int priority) {
+        return mPending.get(priority);
+    }
+
+    /**
+     * Packets one sender has queued. They count for the other senders, but never block the
+     * sender itself, its queue is sent in order anyway.
+     */
+    public class Sender {
+
+        private final AtomicIntegerArray mOwn = new AtomicIntegerArray(PRIORITIES);
+
+        private Sender() {}
+
+        /** A packet of this priority has been queued to be sent. */
+        public void enqueued(int priority) {
+            // Own count first, the difference with the total is never an own packet
+            mOwn.incrementAndGet(priority);
+            if (mPending.getAndIncrement(priority) == 0) {
+                mLastProgressNs.set(priority, System.nanoTime());
+            }
+        }
+
+        /** A packet of this priority has been sent or discarded. */
+        public void dequeued(int priority) {
+            mLastProgressNs.set(priority, System.nanoTime());
+            mPending.decrementAndGet(priority);
+            mOwn.decrementAndGet(priority);
+        }
+
+        /** @return True if a packet of this priority has to let a higher priority of another sender go first */
+        public boolean isBlocked(int priority, long nowNs) {
+            for (int higher = 0; higher < priority; higher++) {
+                if (mPending.get(higher) - mOwn.get(higher) > 0 && nowNs - mLastProgressNs.get(higher) < MAX_WAIT_NS) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Waits until no other sender has packets of a higher priority pending, or they stop making progress. */
+        public void awaitTurn(int priority) throws InterruptedException {
+            long start = System.nanoTime();
+            long now = start;
+            while (isBlocked(priority, now) && now - start < MAX_WAIT_NS) {
+                LockSupport.parkNanos(POLL_NS);
+                if (Thread.interrupted()) throw new InterruptedException();
+                now = System.nanoTime();
+            }
+        }
+    }
+}
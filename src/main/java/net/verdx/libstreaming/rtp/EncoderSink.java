@@ -0,0 +1,24 @@
+package net.verdx.libstreaming.rtp;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+/**
+ * Suscriptor de la salida de un encoder que, a diferencia de los packetizers, recibe cada
+ * unidad de acceso completa junto con su BufferInfo. Lo usan los dispatchers de audio y video
+ * para grabar el streaming local sin pasar por RTP.
+ *
+ * Los metodos se llaman desde el thread del MediaCodecBufferReader.
+ */
+public interface EncoderSink {
+
+    /** Called with the output format of the encoder (csd-0/csd-1) before the first frame and whenever it changes. */
+    void onOutputFormatChanged(MediaFormat format);
+
+    /**
+     * Called for every encoded access unit.
+     * @param data The access unit, owned by the sink
+     * @param info Size, presentation time and flags of the unit, offset is always 0
+     */
+    void onEncodedFrame(byte[] data, MediaCodec.BufferInfo info);
+}
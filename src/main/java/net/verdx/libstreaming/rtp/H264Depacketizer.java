@@ -0,0 +1,163 @@
+package net.verdx.libstreaming.rtp;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * RFC 3984.
+ *
+ * Reconstruye los frames H.264 enviados por {@link H264Packetizer}: NAL units simples,
+ * agregados STAP-A y fragmentos FU-A. Cada frame se entrega en formato Annex B.
+ *
+ * Un frame se da por terminado cuando cambia el timestamp RTP o cuando llega el bit de
+ * marca tras una NAL de tipo slice (el packetizer marca el final de cada NAL, y los
+ * encoders de Android generan un slice por frame).
+ * Tras una perdida se descartan los frames hasta el siguiente IDR para no entregar al
+ * decoder frames que referencian datos que no tiene.
+ */
+public class H264Depacketizer extends AbstractDepacketizer {
+
+    public static final int CLOCK_RATE = 90000;
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private static final int NAL_IDR = 5;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+    private static final int NAL_STAP_A = 24;
+    private static final int NAL_FU_A = 28;
+
+    private final ByteArrayOutputStream mFrame = new ByteArrayOutputStream(64 * 1024);
+    private long mFrameTimestamp = -1;
+    private boolean mFrameKey = false;
+    private boolean mFrameCorrupted = false;
+    private boolean mWaitKeyFrame = true;
+
+    private final ByteArrayOutputStream mFragment = new ByteArrayOutputStream(64 * 1024);
+    private boolean mInFragment = false;
+
+    private byte[] mSps;
+    private byte[] mPps;
+
+    public H264Depacketizer() {
+        super(CLOCK_RATE);
+    }
+
+    /** Parameter sets announced in the SDP (sprop-parameter-sets), used until the stream carries its own. */
+    public synchronized void setParameterSets(byte[] sps, byte[] pps) {
+        mSps = sps;
+        mPps = pps;
+    }
+
+    public synchronized byte[] getSps() {
+        return mSps;
+    }
+
+    public synchronized byte[] getPps() {
+        return mPps;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        mFrame.reset();
+        mFragment.reset();
+        mInFragment = false;
+        mFrameTimestamp = -1;
+        mFrameKey = false;
+        mFrameCorrupted = false;
+        mWaitKeyFrame = true;
+    }
+
+    @Override
+    protected void process(RtpPacket packet, boolean discontinuity) {
+        if (mFrameTimestamp >= 0 && packet.getTimestamp() != mFrameTimestamp) {
+            flushFrame();
+        }
+        if (discontinuity) {
+            mFrameCorrupted = true;
+            mInFragment = false;
+            mFragment.reset();
+        }
+        mFrameTimestamp = packet.getTimestamp();
+
+        byte[] data = packet.getData();
+        int offset = packet.getPayloadOffset();
+        int length = packet.getPayloadLength();
+        if (length < 1) return;
+
+        int type = data[offset] & 0x1F;
+        int lastType = type;
+        if (type == NAL_STAP_A) {
+            int pos = offset + 1;
+            int end = offset + length;
+            while (pos + 2 <= end) {
+                int size = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+                pos += 2;
+                if (size == 0 || pos + size > end) break;
+                appendNal(data, pos, size);
+                lastType = data[pos] & 0x1F;
+                pos += size;
+            }
+        } else if (type == NAL_FU_A) {
+            if (length < 2) return;
+            int fuHeader = data[offset + 1] & 0xFF;
+            boolean start = (fuHeader & 0x80) != 0;
+            boolean end = (fuHeader & 0x40) != 0;
+            lastType = fuHeader & 0x1F;
+            if (start) {
+                mFragment.reset();
+                mFragment.write((data[offset] & 0xE0) | lastType);
+                mInFragment = true;
+            } else if (!mInFragment) {
+                // The start of this NAL unit was lost
+                mFrameCorrupted = true;
+                return;
+            }
+            mFragment.write(data, offset + 2, length - 2);
+            if (!end) return;
+            byte[] nal = mFragment.toByteArray();
+            mFragment.reset();
+            mInFragment = false;
+            appendNal(nal, 0, nal.length);
+        } else if (type >= 1 && type <= 23) {
+            appendNal(data, offset, length);
+        } else {
+            return;
+        }
+
+        if (packet.isMarker() && lastType >= 1 && lastType <= NAL_IDR) {
+            flushFrame();
+        }
+    }
+
+    private void appendNal(byte[] data, int offset, int length) {
+        int type = data[offset] & 0x1F;
+        if (type == NAL_SPS || type == NAL_PPS) {
+            byte[] ps = new byte[length];
+            System.arraycopy(data, offset, ps, 0, length);
+            synchronized (this) {
+                if (type == NAL_SPS) mSps = ps;
+                else mPps = ps;
+            }
+        } else if (type == NAL_IDR) {
+            mFrameKey = true;
+        }
+        mFrame.write(START_CODE, 0, START_CODE.length);
+        mFrame.write(data, offset, length);
+    }
+
+    private void flushFrame() {
+        if (mFrame.size() > 0) {
+            if (mFrameKey && !mFrameCorrupted) mWaitKeyFrame = false;
+            else if (mFrameCorrupted) mWaitKeyFrame = true;
+
+            if (!mWaitKeyFrame) {
+                dispatch(mFrame.toByteArray(), mFrameTimestamp, mFrameKey);
+            }
+        }
+        mFrame.reset();
+        mFrameKey = false;
+        mFrameCorrupted = false;
+        mFrameTimestamp = -1;
+    }
+}
@@ -186,8 +186,12 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
 		// We send two packets containing NALU type 7 (SPS) and 8 (PPS)
 		// Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
+		// The first packet of an IDR gets the keyframe allowance of the pacer
+		boolean keyframe = type == 5;
 		if (type == 5 && sps != null && pps != null) {
 			buffer = socket.requestBuffer();
+			socket.markKeyframe();
+			keyframe = false;
 			socket.markNextPacket();
 			socket.updateTimestamp(ts);
 			System.arraycopy(stapa, 0, buffer, rtphl, stapa.length);
@@ -200,6 +204,8 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		if (naluLength<=MAXPACKETSIZE-rtphl-2) {
 			buffer = socket.requestBuffer();
 			buffer[rtphl] = header[4];
+			if (keyframe) socket.markKeyframe();
+			if ((header[4] & 0x60) == 0) socket.setNextPacketPriority(EgressScheduler.PRIORITY_VIDEO_ENHANCEMENT);
 			len = fill(buffer, rtphl+1,  naluLength-1);
 			socket.updateTimestamp(ts);
 			socket.markNextPacket();
@@ -220,6 +226,12 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 				buffer = socket.requestBuffer();
 				buffer[rtphl] = header[0];
 				buffer[rtphl+1] = header[1];
+				if (keyframe) {
+					socket.markKeyframe();
+					keyframe = false;
+				}
+				// Fragments of a frame nothing refers to can go after the rest of the video
+				if ((header[0] & 0x60) == 0) socket.setNextPacketPriority(EgressScheduler.PRIORITY_VIDEO_ENHANCEMENT);
 				socket.updateTimestamp(ts);
 				if ((len = fill(buffer, rtphl+2,  naluLength-sum > MAXPACKETSIZE-rtphl-2 ? MAXPACKETSIZE-rtphl-2 : naluLength-sum  ))<0) return; sum += len;
 				// Last packet before next NAL
@@ -0,0 +1,23 @@
+package net.verdx.libstreaming.rtp;
+
+/**
+ * Conexion RTSP por la que van intercaladas las tramas RTP y RTCP de una sesion
+ * (RTP/AVP/TCP, RFC 2326 seccion 10.12): cada paquete va precedido de '$', el identificador de
+ * canal y su longitud en 16 bits. Sirve de alternativa fiable al UDP en enlaces con perdidas,
+ * donde perder un fragmento FU-A estropea el frame entero.
+ *
+ * Las implementaciones no bloquean a quien envia: si la conexion no da abasto el paquete se
+ * descarta, como se perderia en UDP, en vez de frenar el envio del resto de destinos.
+ */
+public interface InterleavedChannel {
+
+    /** Length of the header that precedes each packet. */
+    int HEADER_LENGTH = 4;
+
+    /**
+     * Writes a packet in a frame of the channel.
+     * @param channelIdentifier Interleaved channel of the packet, RTP on the even ones and RTCP on the next
+     * @return False if the packet has been dropped
+     */
+    boolean write(int channelIdentifier, byte[] buffer, int offset, int length);
+}
@@ -0,0 +1,176 @@
+package net.verdx.libstreaming.rtp;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Buffer de reordenacion para los paquetes RTP de un unico SSRC.
+ *
+ * Los paquetes se indexan por su numero de secuencia extendido (32 bits, ver RFC 3550 A.1)
+ * y se entregan en orden. Si falta un paquete se espera como mucho el retardo objetivo,
+ * que se recalcula con el jitter entre llegadas (RFC 3550 A.8) que mide la
+ * {@link net.verdx.libstreaming.rtcp.ReceptionStatistics} de la fuente, antes de darlo por perdido.
+ *
+ * No es thread-safe, lo usa siempre un unico {@link RtpReceiver}.
+ */
+public class JitterBuffer {
+
+    /** Lower bound of the playout delay applied to a missing packet, in ms. */
+    public static final int MIN_DELAY_MS = 10;
+    /** Upper bound of the playout delay applied to a missing packet, in ms. */
+    public static final int MAX_DELAY_MS = 400;
+    /** Number of jitter deviations the target delay covers. */
+    private static final int JITTER_FACTOR = 4;
+    /** Packets further than this from the highest sequence seen reset the buffer. */
+    private static final int MAX_DROPOUT = 3000;
+
+    private final int mCapacity;
+    private final TreeMap<Long, Entry> mPackets = new TreeMap<>();
+
+    private long mHighestSeq = -1;
+    private long mNextSeq = -1;
+
+    private double mJitterMs;
+
+    private long mLost = 0;
+    private long mLate = 0;
+
+    private static class Entry {
+        final RtpPacket packet;
+        final long arrivalNs;
+
+        Entry(RtpPacket packet, long arrivalNs) {
+            this.packet = packet;
+            this.arrivalNs = arrivalNs;
+        }
+    }
+
+    /**
+     * @param capacity Max number of packets held, the oldest ones are released when it is reached
+     */
+    public JitterBuffer(int capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * Adds a packet to the buffer.
+     * @param packet The received packet
+     * @param arrivalNs Arrival time of the packet, in the System.nanoTime() time base
+     * @return false if the packet is a duplicate or arrived after its slot was released
+     */
+    public boolean insert(RtpPacket packet, long arrivalNs) {
+        long seq = extendSequence(packet.getSequenceNumber());
+
+        if (mNextSeq < 0) {
+            mNextSeq = seq;
+        } else if (seq < mNextSeq) {
+            mLate++;
+            return false;
+        }
+        if (mPackets.containsKey(seq)) return false;
+
+        mPackets.put(seq, new Entry(packet, arrivalNs));
+        return true;
+    }
+
+    /**
+     * Returns the next packet in sequence order if it can be released at time nowNs.
+     * A packet following a gap is only released once it has waited the target delay,
+     * the missing packets are then counted as lost.
+     * @param nowNs Current time, in the System.nanoTime() time base
+     * @return The next packet or null if none can be released yet
+     */
+    public RtpPacket poll(long nowNs) {
+        Map.Entry<Long, Entry> head = mPackets.firstEntry();
+        if (head == null) return null;
+
+        long seq = head.getKey();
+        if (seq != mNextSeq) {
+            long waitedNs = nowNs - head.getValue().arrivalNs;
+            if (mPackets.size() < mCapacity && waitedNs < getTargetDelayMs() * 1000000L) {
+                return null;
+            }
+            mLost += seq - mNextSeq;
+        }
+        mPackets.pollFirstEntry();
+        mNextSeq = seq + 1;
+        return head.getValue().packet;
+    }
+
+    /**
+     * Time left until {@link #poll(long)} releases the packet that waits for a missing one.
+     * @param nowNs Current time, in the System.nanoTime() time base
+     * @return The time in ns, 0 if a packet can be released now, or -1 if none is waiting
+     */
+    public long getReleaseDelayNs(long nowNs) {
+        Map.Entry<Long, Entry> head = mPackets.firstEntry();
+        if (head == null) return -1;
+        if (head.getKey() == mNextSeq || mPackets.size() >= mCapacity) return 0;
+        long waitedNs = nowNs - head.getValue().arrivalNs;
+        return Math.max(0, getTargetDelayMs() * 1000000L - waitedNs);
+    }
+
+    /** Releases the buffered packets in order, regardless of the gaps between them. */
+    public RtpPacket pollAny() {
+        Map.Entry<Long, Entry> head = mPackets.pollFirstEntry();
+        if (head == null) return null;
+        if (head.getKey() != mNextSeq) mLost += head.getKey() - mNextSeq;
+        mNextSeq = head.getKey() + 1;
+        return head.getValue().packet;
+    }
+
+    public void clear() {
+        mPackets.clear();
+        mHighestSeq = -1;
+        mNextSeq = -1;
+        mJitterMs = 0;
+    }
+
+    /** Target delay waited for a missing packet, derived from the measured jitter. */
+    public int getTargetDelayMs() {
+        int delay = (int) (JITTER_FACTOR * getJitterMs());
+        return Math.max(MIN_DELAY_MS, Math.min(MAX_DELAY_MS, delay));
+    }
+
+    /**
+     * Sets the interarrival jitter of the source the target delay covers, the one of its
+     * {@link net.verdx.libstreaming.rtcp.ReceptionStatistics} so it matches the receiver reports.
+     */
+    public void setJitterMs(double jitterMs) {
+        mJitterMs = jitterMs;
+    }
+
+    public double getJitterMs() {
+        return mJitterMs;
+    }
+
+    public int size() {
+        return mPackets.size();
+    }
+
+    public long getLostCount() {
+        return mLost;
+    }
+
+    public long getLateCount() {
+        return mLate;
+    }
+
+    private long extendSequence(int seq) {
+        if (mHighestSeq < 0) {
+            mHighestSeq = seq;
+            return seq;
+        }
+        int delta = (short) (seq - (int) (mHighestSeq & 0xFFFF));
+        long extended = mHighestSeq + delta;
+        if (extended < 0 || Math.abs(delta) > MAX_DROPOUT) {
+            // The sender restarted or jumped, start over from this packet
+            mPackets.clear();
+            mHighestSeq = seq;
+            mNextSeq = -1;
+            return seq;
+        }
+        if (extended > mHighestSeq) mHighestSeq = extended;
+        return extended;
+    }
+}
@@ -1,11 +1,20 @@
 package net.verdx.libstreaming.rtp;
 
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.verdx.libstreaming.metrics.Counter;
+import net.verdx.libstreaming.metrics.MetricsRegistry;
 
 /**
  * En vez de hacer una nueva copia para cada packetizer, del buffer leido del MediaCodecInputStream, se podria cambiar para hacer solo una (.asReadOnlyBuffer()) y distribuirla a todos.
@@ -16,12 +25,58 @@ public class MediaCodecBufferReader implements Runnable {
     private final int mBufferSize;
     private final MediaCodecInputStream mMediaCodecInputStream;
     private final Map<AbstractPacketizer, InputStream> mPacketizersInputsMap;
+    private final List<EncoderSink> mSinks = new CopyOnWriteArrayList<>();
+    private final ByteArrayOutputStream mPendingFrame = new ByteArrayOutputStream();
+    private volatile MediaFormat mOutputFormat;
     private boolean mRunning = true;
 
-    public MediaCodecBufferReader(int BuffSize, MediaCodecInputStream mediaCodecInputStream, Map<AbstractPacketizer, InputStream> map){
+    // Output of the encoder, and buffers waiting for each packetizer
+    private final String mName;
+    private final Counter mFrames;
+    private final Counter mBytes;
+
+    /**
+     * @param name "audio" or "video", names its metrics: encoder.name.frames, dispatcher.name.queue_max...
+     */
+    public MediaCodecBufferReader(String name, int BuffSize, MediaCodecInputStream mediaCodecInputStream, Map<AbstractPacketizer, InputStream> map){
         mBufferSize = BuffSize;
         mMediaCodecInputStream = mediaCodecInputStream;
         mPacketizersInputsMap = map;
+        mName = name;
+        mFrames = MetricsRegistry.getInstance().counter("encoder." + name + ".frames");
+        mBytes = MetricsRegistry.getInstance().counter("encoder." + name + ".bytes");
+        MetricsRegistry.getInstance().register("dispatcher." + name, gauges -> {
+            int max = 0, total = 0;
+            synchronized (mPacketizersInputsMap) {
+                for (InputStream input : mPacketizersInputsMap.values()) {
+                    int queued = ((ByteBufferInputStream) input).getQueuedBuffers();
+                    max = Math.max(max, queued);
+                    total += queued;
+                }
+                gauges.put("packetizers", (double) mPacketizersInputsMap.size());
+            }
+            gauges.put("queue_max", (double) max);
+            gauges.put("queue_total", (double) total);
+            gauges.put("sinks", (double) mSinks.size());
+        });
+    }
+
+    /**
+     * Adds a subscriber of the whole access units. If the output format of the encoder is
+     * already known it is passed to the sink right away.
+     */
+    public void addSink(EncoderSink sink) {
+        MediaFormat format = mOutputFormat;
+        if (format != null) sink.onOutputFormatChanged(format);
+        mSinks.add(sink);
+    }
+
+    public void removeSink(EncoderSink sink) {
+        mSinks.remove(sink);
+    }
+
+    public boolean hasSinks() {
+        return !mSinks.isEmpty();
     }
 
     @Override
@@ -36,12 +91,16 @@ public class MediaCodecBufferReader implements Runnable {
 
                 if(read > 0) {
                     //Log.v(TAG, "readen from MediaCodecInputStream >= bufferSize: " + read);
+                    mBytes.add(read);
+                    // The last read of an output buffer of the encoder
+                    if (mMediaCodecInputStream.available() <= 0) mFrames.increment();
                     synchronized (mPacketizersInputsMap) {
                         for(Map.Entry<AbstractPacketizer, InputStream> entry : mPacketizersInputsMap.entrySet()) {
                             ((ByteBufferInputStream) entry.getValue())
                                     .addBufferInput(Arrays.copyOfRange(buffer,0, read), mMediaCodecInputStream.getLastBufferInfo().presentationTimeUs);
                         }
                     }
+                    dispatchToSinks(buffer, read);
                     read = 0;
                 }
             } catch (IOException e) {
@@ -49,6 +108,36 @@ public class MediaCodecBufferReader implements Runnable {
             }
         }
 
+        MetricsRegistry.getInstance().unregister("dispatcher." + mName);
         Log.v(TAG, "Thread has been interrupted and its stopping...");
     }
+
+    /**
+     * Rebuilds the access units for the sinks, the encoder output buffers can be bigger than
+     * the read buffer so a unit may span several reads.
+     */
+    @SuppressLint("NewApi")
+    private void dispatchToSinks(byte[] buffer, int read) {
+        MediaFormat format = mMediaCodecInputStream.mMediaFormat;
+        if (format != null && format != mOutputFormat) {
+            mOutputFormat = format;
+            for (EncoderSink sink : mSinks) sink.onOutputFormatChanged(format);
+        }
+        if (mSinks.isEmpty()) {
+            mPendingFrame.reset();
+            return;
+        }
+
+        mPendingFrame.write(buffer, 0, read);
+        if (mMediaCodecInputStream.available() > 0) return;
+
+        MediaCodec.BufferInfo lastInfo = mMediaCodecInputStream.getLastBufferInfo();
+        byte[] frame = mPendingFrame.toByteArray();
+        mPendingFrame.reset();
+        for (EncoderSink sink : mSinks) {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            info.set(0, frame.length, lastInfo.presentationTimeUs, lastInfo.flags);
+            sink.onEncodedFrame(frame, info);
+        }
+    }
 }
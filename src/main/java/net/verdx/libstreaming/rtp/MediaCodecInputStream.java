@@ -68,13 +68,13 @@ public class MediaCodecInputStream extends BufferInfoInputStream {
 					if (mIndex>=0 ){
 						//Log.d(TAG,"Index: "+mIndex+" Time: "+mBufferInfo.presentationTimeUs+" size: "+mBufferInfo.size);
 						mBuffer = mMediaCodec.getOutputBuffer(mIndex);
-						mMediaFormat = mMediaCodec.getOutputFormat(mIndex);
 						// old mBuffer = mBuffers[mIndex];
 						// old mBuffer.position(0);
 						break;
-					//} else if (mIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-					//	mMediaFormat = mMediaCodec.getOutputFormat();
-					//	Log.i(TAG,mMediaFormat.toString());
+					} else if (mIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+						// Only replaced when the encoder reports a change, readers compare the reference
+						mMediaFormat = mMediaCodec.getOutputFormat();
+						Log.i(TAG,mMediaFormat.toString());
 					} else if (mIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
 						Log.v(TAG,"No buffer available...");
 						//return 0;
@@ -0,0 +1,70 @@
+package net.verdx.libstreaming.rtp;
+
+/**
+ * Ritmo de envio de un {@link RtpSocket}: un {@link TokenBucket} que se llena a
+ * {@link #PACING_FACTOR} veces el bitrate objetivo del stream, el del encoder o el que estima el
+ * control de congestion. Los frames normales salen casi sin espera y las rafagas del encoder se
+ * reparten en vez de llenar de golpe la cola del punto de acceso.
+ *
+ * Cuando empieza un keyframe se concede ademas una rafaga extra de
+ * {@link #KEYFRAME_ALLOWANCE_MS} ms del bitrate objetivo: el principio del IDR sale sin esperar
+ * y el resto se espacia al ritmo normal, asi el keyframe no tarda varios frames en llegar.
+ *
+ * Los tiempos se pasan como parametro para poder probarlo sin reloj real.
+ */
+public class Pacer {
+
+    /** The pacing rate is this many times the target bitrate. */
+    public static final double PACING_FACTOR = 2.5;
+    /** Lower bound of the pacing rate, in bytes/s. */
+    public static final double MIN_PACING_RATE = 64 * 1024;
+    /** Burst allowed at line rate, in bytes. */
+    public static final int BURST = 4 * 1500;
+    /** Extra burst at the start of a keyframe, in ms of the target bitrate. */
+    public static final int KEYFRAME_ALLOWANCE_MS = 40;
+
+    private final TokenBucket mBucket;
+    private int mTargetBitrate;
+
+    /**
+     * @param targetBitrate Bitrate of the stream in bps, 0 if not known yet
+     */
+    public Pacer(int targetBitrate, long nowNs) {
+        mBucket = new TokenBucket(MIN_PACING_RATE, BURST, nowNs);
+        setTargetBitrate(targetBitrate);
+    }
+
+    public synchronized void setTargetBitrate(int bitrate) {
+        if (bitrate < 0) return;
+        mTargetBitrate = bitrate;
+        mBucket.setRate(Math.max(MIN_PACING_RATE, PACING_FACTOR * bitrate / 8));
+    }
+
+    public synchronized int getTargetBitrate() {
+        return mTargetBitrate;
+    }
+
+    /** The packet about to be sent starts a keyframe. */
+    public synchronized void onKeyframe(long nowNs) {
+        mBucket.credit(getKeyframeAllowance(), nowNs);
+    }
+
+    /** Extra bytes a keyframe can send at once. */
+    public synchronized int getKeyframeAllowance() {
+        return (int) Math.max(BURST, (long) mTargetBitrate * KEYFRAME_ALLOWANCE_MS / 8000);
+    }
+
+    /** @return Time in ns to wait before sending the next packet, 0 if it can be sent now */
+    public long getDelayNs(long nowNs) {
+        return mBucket.getDelayNs(nowNs);
+    }
+
+    public void onPacketSent(int bytes, long nowNs) {
+        mBucket.consume(bytes, nowNs);
+    }
+
+    /** Rate at which packets leave, in bytes per second. */
+    public double getRate() {
+        return mBucket.getRate();
+    }
+}
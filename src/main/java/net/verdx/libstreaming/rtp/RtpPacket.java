@@ -0,0 +1,170 @@
+package net.verdx.libstreaming.rtp;
+
+/**
+ * Vista de solo lectura de un paquete RTP recibido (RFC 3550, seccion 5.1).
+ * No copia los bytes: la cabecera se decodifica sobre el array original y el payload
+ * se expone como offset/longitud dentro de ese mismo array.
+ */
+public class RtpPacket {
+
+    public static final int RTP_VERSION = 2;
+    public static final int FIXED_HEADER_LENGTH = 12;
+
+    /** "defined by profile" value of the one-byte header extensions (RFC 8285). */
+    public static final int ONE_BYTE_EXTENSION_PROFILE = 0xBEDE;
+    /** Local id of the extension with the transport-wide sequence number, see {@link RtpSocket}. */
+    public static final int TRANSPORT_SEQUENCE_EXTENSION_ID = 1;
+
+    private final byte[] mData;
+    private final int mLength;
+
+    private boolean mMarker;
+    private int mPayloadType;
+    private int mSequenceNumber;
+    private long mTimestamp;
+    private int mSsrc;
+    private int mCsrcCount;
+
+    private int mExtensionProfile = -1;
+    private int mExtensionOffset;
+    private int mExtensionLength;
+
+    private int mPayloadOffset;
+    private int mPayloadLength;
+
+    private RtpPacket(byte[] data, int length) {
+        mData = data;
+        mLength = length;
+    }
+
+    /**
+     * Parses the header of an RTP packet.
+     * @param data The datagram, starting at the RTP header
+     * @param length Number of valid bytes in data
+     * @return The parsed packet, or null if data is not a valid RTP packet
+     */
+    public static RtpPacket parse(byte[] data, int length) {
+        if (data == null || length < FIXED_HEADER_LENGTH || length > data.length) return null;
+        if (((data[0] & 0xC0) >> 6) != RTP_VERSION) return null;
+
+        RtpPacket packet = new RtpPacket(data, length);
+        boolean padding = (data[0] & 0x20) != 0;
+        boolean extension = (data[0] & 0x10) != 0;
+        packet.mCsrcCount = data[0] & 0x0F;
+        packet.mMarker = (data[1] & 0x80) != 0;
+        packet.mPayloadType = data[1] & 0x7F;
+        packet.mSequenceNumber = ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+        packet.mTimestamp = readUnsignedInt(data, 4);
+        packet.mSsrc = (int) readUnsignedInt(data, 8);
+
+        int offset = FIXED_HEADER_LENGTH + 4 * packet.mCsrcCount;
+        if (extension) {
+            if (offset + 4 > length) return null;
+            packet.mExtensionProfile = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+            packet.mExtensionLength = 4 * (((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF));
+            packet.mExtensionOffset = offset + 4;
+            offset += 4 + packet.mExtensionLength;
+        }
+
+        int end = length;
+        if (padding) {
+            end -= data[length - 1] & 0xFF;
+        }
+        if (offset > end) return null;
+
+        packet.mPayloadOffset = offset;
+        packet.mPayloadLength = end - offset;
+        return packet;
+    }
+
+    static long readUnsignedInt(byte[] data, int offset) {
+        return ((long) (data[offset] & 0xFF) << 24)
+                | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8)
+                | (data[offset + 3] & 0xFF);
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public boolean isMarker() {
+        return mMarker;
+    }
+
+    public int getPayloadType() {
+        return mPayloadType;
+    }
+
+    /** 16 bit sequence number, as an unsigned value. */
+    public int getSequenceNumber() {
+        return mSequenceNumber;
+    }
+
+    /** 32 bit RTP timestamp, as an unsigned value. */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getSsrc() {
+        return mSsrc;
+    }
+
+    public int getCsrcCount() {
+        return mCsrcCount;
+    }
+
+    public boolean hasExtension() {
+        return mExtensionProfile >= 0;
+    }
+
+    /** "defined by profile" field of the header extension, or -1 if there is none. */
+    public int getExtensionProfile() {
+        return mExtensionProfile;
+    }
+
+    public int getExtensionOffset() {
+        return mExtensionOffset;
+    }
+
+    public int getExtensionLength() {
+        return mExtensionLength;
+    }
+
+    /**
+     * Reads the transport-wide sequence number of the one-byte header extension.
+     * @return The 16 bit sequence number, or -1 if the packet does not carry it
+     */
+    public int getTransportSequenceNumber() {
+        if (mExtensionProfile != ONE_BYTE_EXTENSION_PROFILE) return -1;
+        int i = mExtensionOffset;
+        int end = mExtensionOffset + mExtensionLength;
+        while (i < end) {
+            int id = (mData[i] & 0xF0) >> 4;
+            int length = (mData[i] & 0x0F) + 1;
+            if (id == 0) {
+                // Padding
+                i++;
+                continue;
+            }
+            if (id == 15 || i + 1 + length > end) return -1;
+            if (id == TRANSPORT_SEQUENCE_EXTENSION_ID && length == 2) {
+                return ((mData[i + 1] & 0xFF) << 8) | (mData[i + 2] & 0xFF);
+            }
+            i += 1 + length;
+        }
+        return -1;
+    }
+
+    public int getPayloadOffset() {
+        return mPayloadOffset;
+    }
+
+    public int getPayloadLength() {
+        return mPayloadLength;
+    }
+}
@@ -0,0 +1,10 @@
+package net.verdx.libstreaming.rtp;
+
+/**
+ * Consumidor en proceso de los paquetes RTP de un track recibido, tal y como llegan y antes de
+ * pasar por el jitter buffer. El paquete se comparte por referencia entre todos los consumidores,
+ * no se debe modificar.
+ */
+public interface RtpPacketListener {
+    void onRtpPacket(RtpPacket packet);
+}
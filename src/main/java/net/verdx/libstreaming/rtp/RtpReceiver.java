@@ -0,0 +1,242 @@
+package net.verdx.libstreaming.rtp;
+
+import android.util.Base64;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.verdx.libstreaming.rtcp.ReceptionStatistics;
+import net.verdx.libstreaming.rtcp.RtcpPacket;
+
+/**
+ * Pipeline de recepcion de un track: parsea los datagramas RTP, los reordena en un
+ * {@link JitterBuffer} y se los pasa en orden al {@link AbstractDepacketizer}, que entrega
+ * las unidades de acceso a los consumidores en proceso.
+ *
+ * Se alimenta desde el worker del UDPServerSelector del track, que tambien llama a
+ * {@link #poll()} cuando vence la espera de los paquetes que esperan a uno perdido, para que
+ * no queden retenidos hasta la llegada de los siguientes si la fuente hace una pausa.
+ */
+public class RtpReceiver {
+
+    public final static String TAG = "RtpReceiver";
+
+    private static final int JITTER_BUFFER_CAPACITY = 512;
+
+    /** An AudioSpecificConfig is a few bytes, anything longer in the SDP is not one. */
+    private static final int MAX_AUDIO_CONFIG_LENGTH = 64;
+
+    private static final Pattern regexAudioClock = Pattern.compile("mpeg4-generic/(\\d+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern regexAudioConfig = Pattern.compile("config=([0-9a-fA-F]+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern regexVideo = Pattern.compile("H264/90000", Pattern.CASE_INSENSITIVE);
+    private static final Pattern regexParameterSets = Pattern.compile("sprop-parameter-sets=([^,;\\s]+),([^,;\\s]+)", Pattern.CASE_INSENSITIVE);
+
+    private final AbstractDepacketizer mDepacketizer;
+    private final JitterBuffer mJitterBuffer;
+    private final List<RtpPacketListener> mPacketListeners = new CopyOnWriteArrayList<>();
+    private int mSsrc;
+    private boolean mHasSsrc = false;
+    private long mReceivedCount = 0;
+    private final Map<Integer, ReceptionStatistics> mStatistics = new HashMap<>();
+
+    public RtpReceiver(AbstractDepacketizer depacketizer) {
+        mDepacketizer = depacketizer;
+        mJitterBuffer = new JitterBuffer(JITTER_BUFFER_CAPACITY);
+    }
+
+    /**
+     * Creates the receiver matching the media description of an announced track.
+     * @param sessionDescription The m= block of the track, as stored in TrackInfo
+     * @return The receiver or null if the codec is not supported
+     */
+    public static RtpReceiver fromSessionDescription(String sessionDescription) {
+        if (sessionDescription == null) return null;
+
+        if (regexVideo.matcher(sessionDescription).find()) {
+            H264Depacketizer depacketizer = new H264Depacketizer();
+            Matcher m = regexParameterSets.matcher(sessionDescription);
+            if (m.find()) {
+                try {
+                    depacketizer.setParameterSets(Base64.decode(m.group(1), Base64.NO_WRAP),
+                            Base64.decode(m.group(2), Base64.NO_WRAP));
+                } catch (IllegalArgumentException ignored) {}
+            }
+            return new RtpReceiver(depacketizer);
+        }
+
+        Matcher m = regexAudioClock.matcher(sessionDescription);
+        if (m.find()) {
+            int samplingRate = Integer.parseInt(m.group(1));
+            byte[] config = null;
+            Matcher c = regexAudioConfig.matcher(sessionDescription);
+            if (c.find()) {
+                try {
+                    config = parseAudioConfig(c.group(1));
+                } catch (IllegalArgumentException e) {
+                    // The decoders build their own config from the clock rate in this case
+                    Log.w(TAG, "Ignoring the AAC config of the session description: " + e.getMessage());
+                }
+            }
+            return new RtpReceiver(new AACDepacketizer(samplingRate, config));
+        }
+        return null;
+    }
+
+    /**
+     * Decodes the "config" parameter of an RFC 3640 fmtp line.
+     * @param hex The AudioSpecificConfig as hexadecimal digits
+     * @throws IllegalArgumentException If it is not a whole number of bytes or is too long
+     */
+    static byte[] parseAudioConfig(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("odd number of digits in config=" + hex);
+        }
+        if (hex.length() / 2 > MAX_AUDIO_CONFIG_LENGTH) {
+            throw new IllegalArgumentException("config of " + hex.length() / 2 + " bytes");
+        }
+        byte[] config = new byte[hex.length() / 2];
+        for (int i = 0; i < config.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) throw new IllegalArgumentException("not hexadecimal: config=" + hex);
+            config[i] = (byte) ((high << 4) | low);
+        }
+        return config;
+    }
+
+    public AbstractDepacketizer getDepacketizer() {
+        return mDepacketizer;
+    }
+
+    public void addListener(AccessUnitListener listener) {
+        mDepacketizer.addListener(listener);
+    }
+
+    public void removeListener(AccessUnitListener listener) {
+        mDepacketizer.removeListener(listener);
+    }
+
+    public void addPacketListener(RtpPacketListener listener) {
+        if (!mPacketListeners.contains(listener)) mPacketListeners.add(listener);
+    }
+
+    public void removePacketListener(RtpPacketListener listener) {
+        mPacketListeners.remove(listener);
+    }
+
+    /**
+     * Feeds a received datagram into the pipeline.
+     * Invalid packets and packets from a different SSRC than the first one are ignored.
+     */
+    public synchronized void onPacketReceived(byte[] data, int length) {
+        onPacketReceived(data, length, System.nanoTime());
+    }
+
+    synchronized void onPacketReceived(byte[] data, int length, long arrivalNs) {
+        RtpPacket packet = RtpPacket.parse(data, length);
+        if (packet == null) return;
+
+        if (!mHasSsrc || packet.getSsrc() != mSsrc) {
+            if (mHasSsrc) {
+                // New source (the sender restarted), drop the state of the previous one
+                mJitterBuffer.clear();
+                mDepacketizer.reset();
+            }
+            mSsrc = packet.getSsrc();
+            mHasSsrc = true;
+        }
+
+        mReceivedCount++;
+        ReceptionStatistics statistics = mStatistics.get(mSsrc);
+        if (statistics == null) {
+            statistics = new ReceptionStatistics(mSsrc, mDepacketizer.getClockRate());
+            mStatistics.put(mSsrc, statistics);
+        }
+        statistics.onPacket(packet.getSequenceNumber(), packet.getTimestamp(), arrivalNs);
+        mJitterBuffer.setJitterMs(statistics.getJitterMs());
+
+        for (RtpPacketListener listener : mPacketListeners) {
+            listener.onRtpPacket(packet);
+        }
+        mJitterBuffer.insert(packet, arrivalNs);
+        release(arrivalNs);
+    }
+
+    /** Hands the packets whose wait for a missing one is over to the depacketizer. */
+    public synchronized void poll() {
+        release(System.nanoTime());
+    }
+
+    /**
+     * Time until {@link #poll()} can release the packets waiting for a missing one.
+     * @return The time in ms, rounded up, or -1 if no packet is waiting
+     */
+    public synchronized long getReleaseDelayMs() {
+        long delayNs = mJitterBuffer.getReleaseDelayNs(System.nanoTime());
+        return delayNs < 0 ? -1 : (delayNs + 999999) / 1000000;
+    }
+
+    private void release(long nowNs) {
+        RtpPacket next;
+        while ((next = mJitterBuffer.poll(nowNs)) != null) {
+            mDepacketizer.depacketize(next);
+        }
+    }
+
+    /** Hands the buffered packets to the depacketizer, used when the track stops. */
+    public synchronized void flush() {
+        RtpPacket next;
+        while ((next = mJitterBuffer.pollAny()) != null) {
+            mDepacketizer.depacketize(next);
+        }
+    }
+
+    public synchronized void reset() {
+        mJitterBuffer.clear();
+        mDepacketizer.reset();
+        mHasSsrc = false;
+        mStatistics.clear();
+    }
+
+    /** Stores a SR of one of the sources, for the LSR/DLSR of the next receiver report and its path delay. */
+    public synchronized void onSenderReport(RtcpPacket.SenderInfo info, long arrivalNs) {
+        ReceptionStatistics statistics = mStatistics.get(info.ssrc);
+        if (statistics != null) statistics.onSenderReport(info.ntp, arrivalNs, info.pathDelayUs);
+    }
+
+    /** RFC 3550 statistics of every source received since the last reset. */
+    public synchronized List<ReceptionStatistics> getReceptionStatistics() {
+        return new ArrayList<>(mStatistics.values());
+    }
+
+    /** @return RFC 3550 statistics of the current source, or null if nothing has been received */
+    public synchronized ReceptionStatistics getCurrentStatistics() {
+        return mHasSsrc ? mStatistics.get(mSsrc) : null;
+    }
+
+    public synchronized int getSsrc() {
+        return mSsrc;
+    }
+
+    public synchronized long getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    public synchronized long getLostCount() {
+        return mJitterBuffer.getLostCount();
+    }
+
+    public synchronized double getJitterMs() {
+        return mJitterBuffer.getJitterMs();
+    }
+
+    public synchronized int getTargetDelayMs() {
+        return mJitterBuffer.getTargetDelayMs();
+    }
+}
@@ -29,14 +29,19 @@ import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
+import net.verdx.libstreaming.congestion.CongestionController;
+import net.verdx.libstreaming.metrics.Histogram;
+import net.verdx.libstreaming.metrics.MetricsRegistry;
 import net.verdx.libstreaming.rtcp.SenderReport;
 
 /**
  * A basic implementation of an RTP socket.
  * It implements a buffering mechanism, relying on a FIFO of buffers and a Thread.
  * That way, if a packetizer tries to send many packets too quickly, the FIFO will
- * grow and packets will be sent one by one smoothly.
+ * grow and packets will be sent one by one smoothly, at the pace of a {@link Pacer}.
  */
 
 /**
@@ -60,6 +65,9 @@ public class RtpSocket implements Runnable {
 	public static final int RTP_HEADER_LENGTH = 12;
 	public static final int MTU = 1300;
 
+	/** Length of the header extension with the transport-wide sequence number. */
+	public static final int TRANSPORT_SEQUENCE_LENGTH = 8;
+
 	private MulticastSocket mSocket;
 	private DatagramPacket[] mPackets;
 	private byte[][] mBuffers;
@@ -73,14 +81,31 @@ public class RtpSocket implements Runnable {
 	private int mTransport;
 	private long mCacheSize;
 	private long mClock = 0;
-	private long mOldTimestamp = 0;
 	private int mSsrc, mSeq = 0, mPort = -1;
 	private int mBufferCount, mBufferIn, mBufferOut;
 	private int mCount = 0;
-	private byte mTcpHeader[];
-	protected OutputStream mOutputStream = null;
+	private byte mChannelIdentifier;
+	protected InterleavedChannel mInterleavedChannel = null;
+	private long mInterleavedDropped = 0;
 	private AverageBitrate mAverageBitrate;
 
+	private volatile CongestionController mCongestionController;
+	private final byte[] mExtendedBuffer = new byte[MTU + TRANSPORT_SEQUENCE_LENGTH];
+	private final DatagramPacket mExtendedPacket = new DatagramPacket(mExtendedBuffer, 1);
+
+	private final EgressScheduler.Sender mEgress = EgressScheduler.getInstance().newSender();
+	private int mPriority = EgressScheduler.PRIORITY_VIDEO_BASE;
+	private int[] mPriorities;
+	private boolean[] mKeyframes;
+	private final Pacer mPacer = new Pacer(0, System.nanoTime());
+	private volatile int mTargetBitrate = 0;
+	private int mTrafficClass = -1;
+
+	/** Time each packet waits for the pacer, in us, of all the sockets. */
+	private static final Histogram PACING_DELAY = MetricsRegistry.getInstance().histogram("rtp.pacing_delay_us");
+	private static final AtomicInteger sNextId = new AtomicInteger();
+	private final String mMetricsName = "rtp.socket" + sNextId.incrementAndGet();
+
 	/**
 	 * This RTP socket implements a buffering mechanism relying on a FIFO of buffers and a Thread.
 	 * @throws IOException
@@ -91,10 +116,11 @@ public class RtpSocket implements Runnable {
 		mBufferCount = 300; // TODO: readjust that when the FIFO is full 
 		mBuffers = new byte[mBufferCount][];
 		mPackets = new DatagramPacket[mBufferCount];
+		mPriorities = new int[mBufferCount];
+		mKeyframes = new boolean[mBufferCount];
 		mReport = new SenderReport();
 		mAverageBitrate = new AverageBitrate();
 		mTransport = TRANSPORT_UDP;
-		mTcpHeader = new byte[] {'$',0,0,0};
 		
 		resetFifo();
 
@@ -126,7 +152,7 @@ public class RtpSocket implements Runnable {
 		} catch (Exception e) {
 			throw new RuntimeException(e.getMessage());
 		}
-		
+		setPriority(mPriority);
 	}
 
 	private void resetFifo() {
@@ -142,6 +168,7 @@ public class RtpSocket implements Runnable {
 	
 	/** Closes the underlying socket. */
 	public void close() {
+		MetricsRegistry.getInstance().unregister(mMetricsName);
 		mSocket.close();
 	}
 
@@ -169,6 +196,48 @@ public class RtpSocket implements Runnable {
 		mCacheSize = cacheSize;
 	}
 	
+	/**
+	 * Sets the priority of the stream in the {@link EgressScheduler} and the DSCP of its RTP and
+	 * RTCP packets. Packets of lower priority streams wait while this one has packets queued.
+	 * @param priority {@link EgressScheduler#PRIORITY_AUDIO} or {@link EgressScheduler#PRIORITY_VIDEO_BASE}
+	 */
+	public void setPriority(int priority) {
+		mPriority = priority;
+		mReport.setTrafficClass(EgressScheduler.getTrafficClass(priority));
+	}
+
+	public int getPriority() {
+		return mPriority;
+	}
+
+	/**
+	 * Lowers the priority of the packet in the buffer requested last, for example to
+	 * {@link EgressScheduler#PRIORITY_VIDEO_ENHANCEMENT} for the frames nothing refers to.
+	 */
+	public void setNextPacketPriority(int priority) {
+		mPriorities[mBufferIn] = Math.max(mPriority, priority);
+	}
+
+	/**
+	 * Sets the bitrate of the encoder, the {@link Pacer} sends at a few times this rate.
+	 * When the congestion control is enabled its estimation is used instead, and when it is not
+	 * known the bitrate measured on the socket.
+	 * @param bitrate The bitrate in bps
+	 */
+	public void setTargetBitrate(int bitrate) {
+		mTargetBitrate = bitrate;
+		mPacer.setTargetBitrate(bitrate);
+	}
+
+	public Pacer getPacer() {
+		return mPacer;
+	}
+
+	/** The packet in the buffer requested last starts a keyframe, it gets the burst allowance of the pacer. */
+	public void markKeyframe() {
+		mKeyframes[mBufferIn] = true;
+	}
+
 	/** Sets the Time To Live of the UDP packets. */
 	public void setTimeToLive(int ttl) throws IOException {
 		mSocket.setTimeToLive(ttl);
@@ -183,6 +252,8 @@ public class RtpSocket implements Runnable {
 				mPackets[i].setPort(dport);
 				mPackets[i].setAddress(dest);
 			}
+			mExtendedPacket.setPort(dport);
+			mExtendedPacket.setAddress(dest);
 			mReport.setDestination(dest, rtcpPort);
 		}
 	}
@@ -194,13 +265,38 @@ public class RtpSocket implements Runnable {
 	 */ 
 	public void setOutputStream(OutputStream outputStream, byte channelIdentifier) {
 		if (outputStream != null) {
+			setInterleavedChannel(new StreamInterleavedChannel(outputStream), channelIdentifier);
+		}
+	}
+
+	/**
+	 * Sends the RTP packets interleaved in the RTSP connection, on the channel given, and the
+	 * RTCP on the next one. Packets the connection can not take are dropped.
+	 */
+	public void setInterleavedChannel(InterleavedChannel channel, byte channelIdentifier) {
+		if (channel != null) {
 			mTransport = TRANSPORT_TCP;
-			mOutputStream = outputStream;
-			mTcpHeader[1] = channelIdentifier;
-			mReport.setOutputStream(outputStream, (byte) (channelIdentifier+1));
+			mInterleavedChannel = channel;
+			mChannelIdentifier = channelIdentifier;
+			mReport.setInterleavedChannel(channel, (byte) (channelIdentifier+1));
 		}
 	}
 
+	/** Interleaved channel of the RTP packets, -1 if they are sent over UDP. */
+	public int getChannelIdentifier() {
+		return mTransport == TRANSPORT_TCP ? mChannelIdentifier : -1;
+	}
+
+	/** Handles a RTCP packet of the receiver that came interleaved in the RTSP connection. */
+	public void receiveReport(byte[] buffer, int offset, int length) {
+		mReport.receiveReport(buffer, offset, length);
+	}
+
+	/** Packets dropped because the RTSP connection they are interleaved in was full. */
+	public long getInterleavedDropped() {
+		return mInterleavedDropped;
+	}
+
 	public int getPort() {
 		return mPort;
 	}
@@ -221,6 +317,8 @@ public class RtpSocket implements Runnable {
 	public byte[] requestBuffer() throws InterruptedException {
 		mBufferRequested.acquire();
 		mBuffers[mBufferIn][1] &= 0x7F;
+		mPriorities[mBufferIn] = mPriority;
+		mKeyframes[mBufferIn] = false;
 		return mBuffers[mBufferIn];
 	}
 
@@ -232,6 +330,7 @@ public class RtpSocket implements Runnable {
 			mThread.start();
 		}
 		
+		mEgress.enqueued(mPriorities[mBufferIn]);
 		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
 		mBufferCommitted.release();
 
@@ -244,6 +343,7 @@ public class RtpSocket implements Runnable {
 
 		mAverageBitrate.push(length);
 
+		mEgress.enqueued(mPriorities[mBufferIn]);
 		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
 		mBufferCommitted.release();
 
@@ -254,6 +354,31 @@ public class RtpSocket implements Runnable {
 		
 	}
 
+	/**
+	 * Enables the congestion control: the packets carry the transport-wide sequence number in a
+	 * one-byte header extension (RFC 8285, id {@link RtpPacket#TRANSPORT_SEQUENCE_EXTENSION_ID}),
+	 * the feedback of the receiver drives the estimation of the controller and the packets leave
+	 * at its pacing rate instead of following the timestamps. Null disables it.
+	 */
+	public void setCongestionController(CongestionController controller) {
+		mCongestionController = controller;
+		mReport.setCongestionController(controller);
+	}
+
+	public CongestionController getCongestionController() {
+		return mCongestionController;
+	}
+
+	/** Returns when the receiver sent its last RTCP packet, in ns of {@link System#nanoTime()}, 0 if never. */
+	public long getLastReportNs() {
+		return mReport.getLastReportNs();
+	}
+
+	/** Returns the round trip time to the receiver in ms, or -1 if it is not known yet. */
+	public long getRttMs() {
+		return mReport.getRttMs();
+	}
+
 	/** Returns an approximation of the bitrate of the RTP stream in bits per second. */
 	public long getBitrate() {
 		return mAverageBitrate.average();
@@ -278,63 +403,123 @@ public class RtpSocket implements Runnable {
 		mBuffers[mBufferIn][1] |= 0x80;
 	}
 
-	/** The Thread sends the packets in the FIFO one by one at a constant rate. */
+	/**
+	 * The Thread sends the packets in the FIFO one by one, at the pace of the {@link Pacer}:
+	 * a burst of the encoder (a keyframe) is spread at a few times the bitrate of the stream.
+	 */
 	@Override
 	public void run() {
-		Statistics stats = new Statistics(50,3000);
+		// The figures of the socket are published while it sends, the registry does not keep
+		// the sockets of the sessions released
+		MetricsRegistry.getInstance().register(mMetricsName, gauges -> {
+			gauges.put("fifo_packets", (double) (mBufferCount - mBufferRequested.availablePermits()));
+			gauges.put("bitrate", (double) getBitrate());
+			gauges.put("priority", (double) mPriority);
+			gauges.put("interleaved_dropped", (double) mInterleavedDropped);
+		});
 		try {
 			// Caches mCacheSize milliseconds of the stream in the FIFO.
 			Thread.sleep(mCacheSize);
-			long delta = 0;
 			while (mBufferCommitted.tryAcquire(4,TimeUnit.SECONDS)) {
-				if (mOldTimestamp != 0) {
-					// We use our knowledge of the clock rate of the stream and the difference between two timestamps to
-					// compute the time lapse that the packet represents.
-					if ((mTimestamps[mBufferOut]-mOldTimestamp)>0) {
-						stats.push(mTimestamps[mBufferOut]-mOldTimestamp);
-						long d = stats.average()/1000000;
-						//Log.d(TAG,"delay: "+d+" d: "+(mTimestamps[mBufferOut]-mOldTimestamp)/1000000);
-						// We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
-						if (mCacheSize>0) Thread.sleep(d);
-					} else if ((mTimestamps[mBufferOut]-mOldTimestamp)<0) {
-						Log.e(TAG, "TS: "+mTimestamps[mBufferOut]+" OLD: "+mOldTimestamp);
-					}
-					delta += mTimestamps[mBufferOut]-mOldTimestamp;
-					if (delta>500000000 || delta<0) {
-						//Log.d(TAG,"permits: "+mBufferCommitted.availablePermits());
-						delta = 0;
-					}
-				}
-				mReport.update(mPackets[mBufferOut].getLength(), (mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L);
-				mOldTimestamp = mTimestamps[mBufferOut];
+				CongestionController controller = mCongestionController;
+				mReport.update(mPackets[mBufferOut].getLength(), (mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L, mTimestamps[mBufferOut]);
 				if (mCount++>30) {
-					if (mTransport == TRANSPORT_UDP) {
+					if (controller != null) {
+						mPacer.setTargetBitrate(controller.getTargetBitrate());
+					} else if (mTargetBitrate <= 0) {
+						mPacer.setTargetBitrate(mAverageBitrate.average());
+					}
+					pace();
+					mEgress.awaitTurn(mPriorities[mBufferOut]);
+					setTrafficClass(EgressScheduler.getTrafficClass(mPriorities[mBufferOut]));
+					int length;
+					if (controller != null) {
+						length = sendWithTransportSequence(controller);
+					} else if (mTransport == TRANSPORT_UDP) {
 						mSocket.send(mPackets[mBufferOut]);
+						length = mPackets[mBufferOut].getLength();
 					} else {
-						sendTCP();
+						length = mPackets[mBufferOut].getLength();
+						sendTCP(mBuffers[mBufferOut], length);
 					}
+					mPacer.onPacketSent(length, System.nanoTime());
 				}
+				mEgress.dequeued(mPriorities[mBufferOut]);
 				if (++mBufferOut>=mBufferCount) mBufferOut = 0;
 				mBufferRequested.release();
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		// Packets left in the FIFO will not be sent, they must not hold back other streams
+		while (mBufferCommitted.tryAcquire()) {
+			mEgress.dequeued(mPriorities[mBufferOut]);
+			if (++mBufferOut>=mBufferCount) mBufferOut = 0;
+		}
+		MetricsRegistry.getInstance().unregister(mMetricsName);
 		mThread = null;
 		resetFifo();
 	}
 
-	private void sendTCP() {
-		synchronized (mOutputStream) {
-			int len = mPackets[mBufferOut].getLength();
-			Log.d(TAG,"sent "+len);
-			mTcpHeader[2] = (byte) (len>>8);
-			mTcpHeader[3] = (byte) (len&0xFF);
-			try {
-				mOutputStream.write(mTcpHeader);
-				mOutputStream.write(mBuffers[mBufferOut], 0, len);
-			} catch (Exception e) {}
+	/** Waits until the pacer lets the packet in mBufferOut go. */
+	private void pace() throws InterruptedException {
+		long now = System.nanoTime();
+		long start = now;
+		if (mKeyframes[mBufferOut]) mPacer.onKeyframe(now);
+		long delay;
+		while ((delay = mPacer.getDelayNs(now)) > 0) {
+			LockSupport.parkNanos(delay);
+			if (Thread.interrupted()) throw new InterruptedException();
+			now = System.nanoTime();
 		}
+		PACING_DELAY.record((now - start) / 1000);
+	}
+
+	/**
+	 * Sends the packet with the header extension of the transport-wide sequence number,
+	 * inserted after the 12 bytes header the packetizers write.
+	 * @return Length of the packet sent
+	 */
+	private int sendWithTransportSequence(CongestionController controller) throws IOException {
+		byte[] buffer = mBuffers[mBufferOut];
+		int length = mPackets[mBufferOut].getLength();
+		int extendedLength = length + TRANSPORT_SEQUENCE_LENGTH;
+		int sequence = controller.onPacketSent(extendedLength, System.nanoTime());
+
+		System.arraycopy(buffer, 0, mExtendedBuffer, 0, RTP_HEADER_LENGTH);
+		mExtendedBuffer[0] |= 0x10;
+		mExtendedBuffer[RTP_HEADER_LENGTH] = (byte) (RtpPacket.ONE_BYTE_EXTENSION_PROFILE >> 8);
+		mExtendedBuffer[RTP_HEADER_LENGTH+1] = (byte) RtpPacket.ONE_BYTE_EXTENSION_PROFILE;
+		mExtendedBuffer[RTP_HEADER_LENGTH+2] = 0;
+		mExtendedBuffer[RTP_HEADER_LENGTH+3] = 1;
+		mExtendedBuffer[RTP_HEADER_LENGTH+4] = (byte) ((RtpPacket.TRANSPORT_SEQUENCE_EXTENSION_ID << 4) | 1);
+		mExtendedBuffer[RTP_HEADER_LENGTH+5] = (byte) (sequence >> 8);
+		mExtendedBuffer[RTP_HEADER_LENGTH+6] = (byte) sequence;
+		mExtendedBuffer[RTP_HEADER_LENGTH+7] = 0;
+		System.arraycopy(buffer, RTP_HEADER_LENGTH, mExtendedBuffer, RTP_HEADER_LENGTH + TRANSPORT_SEQUENCE_LENGTH, length - RTP_HEADER_LENGTH);
+
+		if (mTransport == TRANSPORT_UDP) {
+			mExtendedPacket.setLength(extendedLength);
+			mSocket.send(mExtendedPacket);
+		} else {
+			sendTCP(mExtendedBuffer, extendedLength);
+		}
+		return extendedLength;
+	}
+
+	private void setTrafficClass(int trafficClass) {
+		if (trafficClass == mTrafficClass || mTransport != TRANSPORT_UDP) return;
+		try {
+			mSocket.setTrafficClass(trafficClass);
+			mTrafficClass = trafficClass;
+		} catch (IOException e) {
+			Log.e(TAG, "Could not set the traffic class: " + e.getMessage());
+			mTrafficClass = trafficClass;
+		}
+	}
+
+	private void sendTCP(byte[] buffer, int len) {
+		if (!mInterleavedChannel.write(mChannelIdentifier, buffer, 0, len)) mInterleavedDropped++;
 	}
 
 	private void setLong(byte[] buffer, long n, int begin, int end) {
@@ -406,54 +591,5 @@ public class RtpSocket implements Runnable {
 		}
 		
 	}
-	
-	/** Computes the proper rate at which packets are sent. */
-	protected static class Statistics {
-
-		public final static String TAG = "Statistics";
-		
-		private int count=500, c = 0;
-		private float m = 0, q = 0;
-		private long elapsed = 0;
-		private long start = 0;
-		private long duration = 0;
-		private long period = 6000000000L;
-		private boolean initoffset = false;
-
-		public Statistics(int count, long period) {
-			this.count = count;
-			this.period = period*1000000L; 
-		}
-		
-		public void push(long value) {
-			duration += value;
-			elapsed += value;
-			if (elapsed>period) {
-				elapsed = 0;
-				long now = System.nanoTime();
-				if (!initoffset || (now - start < 0)) {
-					start = now;
-					duration = 0;
-					initoffset = true;
-				}
-				value -= (now - start) - duration;
-				//Log.d(TAG, "sum1: "+duration/1000000+" sum2: "+(now-start)/1000000+" drift: "+((now-start)-duration)/1000000+" v: "+value/1000000);
-			}
-			if (c<40) {
-				// We ignore the first 40 measured values because they may not be accurate
-				c++;
-				m = value;
-			} else {
-				m = (m*q+value)/(q+1);
-				if (q<count) q++;
-			}
-		}
-		
-		public long average() {
-			long l = (long)m-2000000;
-			return l>0 ? l : 0;
-		}
-
-	}
 
 }
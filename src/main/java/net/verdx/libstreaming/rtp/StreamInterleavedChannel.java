@@ -0,0 +1,36 @@
+package net.verdx.libstreaming.rtp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Tramas intercaladas sobre un OutputStream, para el RtspClient que publica por TCP con un
+ * socket bloqueante. Las tramas de los distintos tracks se escriben enteras, sin mezclarse,
+ * sincronizando sobre el stream que comparten.
+ */
+public class StreamInterleavedChannel implements InterleavedChannel {
+
+    private final OutputStream mOutputStream;
+    private final byte[] mHeader = new byte[HEADER_LENGTH];
+
+    public StreamInterleavedChannel(OutputStream outputStream) {
+        mOutputStream = outputStream;
+        mHeader[0] = '$';
+    }
+
+    @Override
+    public boolean write(int channelIdentifier, byte[] buffer, int offset, int length) {
+        synchronized (mOutputStream) {
+            mHeader[1] = (byte) channelIdentifier;
+            mHeader[2] = (byte) (length >> 8);
+            mHeader[3] = (byte) length;
+            try {
+                mOutputStream.write(mHeader);
+                mOutputStream.write(buffer, offset, length);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+}
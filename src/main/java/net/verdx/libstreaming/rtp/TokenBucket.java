@@ -0,0 +1,83 @@
+package net.verdx.libstreaming.rtp;
+
+/**
+ * Token bucket para espaciar el envio de paquetes. Los tokens son bytes, se reponen a la tasa
+ * configurada y se acumulan como mucho hasta la capacidad, que es la rafaga que se deja salir
+ * de golpe. Un paquete puede salir mientras el cubo no este en deficit, asi que los paquetes
+ * mayores que la capacidad no se bloquean: dejan el cubo en negativo y retrasan a los siguientes.
+ * Con {@link #credit(double, long)} se puede dar una rafaga puntual por encima de la capacidad.
+ *
+ * Los tiempos se pasan como parametro (en ns, de {@link System#nanoTime()}) para poder usar
+ * el mismo instante con varios cubos y para poder probarlo sin reloj real.
+ */
+public class TokenBucket {
+
+    private double mRate;
+    private double mCapacity;
+    private double mTokens;
+    private long mLastNs;
+
+    /**
+     * @param rate Fill rate in bytes per second
+     * @param capacity Max burst in bytes
+     * @param nowNs Current time, the bucket starts full
+     */
+    public TokenBucket(double rate, double capacity, long nowNs) {
+        if (rate <= 0 || capacity <= 0) throw new IllegalArgumentException("Invalid token bucket " + rate + "/" + capacity);
+        mRate = rate;
+        mCapacity = capacity;
+        mTokens = capacity;
+        mLastNs = nowNs;
+    }
+
+    public synchronized void setRate(double rate) {
+        if (rate > 0) mRate = rate;
+    }
+
+    public synchronized double getRate() {
+        return mRate;
+    }
+
+    public synchronized void setCapacity(double capacity) {
+        if (capacity <= 0) return;
+        mCapacity = capacity;
+        if (mTokens > capacity) mTokens = capacity;
+    }
+
+    public synchronized double getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return Time in ns until a packet can be sent, 0 if it can be sent now
+     */
+    public synchronized long getDelayNs(long nowNs) {
+        refill(nowNs);
+        if (mTokens >= 0) return 0;
+        return (long) Math.ceil(-mTokens / mRate * 1e9);
+    }
+
+    /** Takes the bytes of a packet that has just been sent. */
+    public synchronized void consume(int bytes, long nowNs) {
+        refill(nowNs);
+        mTokens -= bytes;
+    }
+
+    /**
+     * Grants a one-off burst: the bucket can hold up to capacity plus these bytes until they are
+     * spent. Credits do not add up beyond that.
+     */
+    public synchronized void credit(double bytes, long nowNs) {
+        if (bytes <= 0) return;
+        refill(nowNs);
+        mTokens = Math.min(mTokens + bytes, mCapacity + bytes);
+    }
+
+    private void refill(long nowNs) {
+        long elapsed = nowNs - mLastNs;
+        if (elapsed <= 0) return;
+        mLastNs = nowNs;
+        // Credited tokens above the capacity are kept, but the bucket does not fill beyond it
+        if (mTokens < mCapacity) mTokens = Math.min(mCapacity, mTokens + mRate * elapsed / 1e9);
+    }
+}
@@ -0,0 +1,73 @@
+package net.verdx.libstreaming.rtsp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.verdx.libstreaming.CatalogEntry;
+
+/**
+ * Cuerpo text/parameters del SET_PARAMETER con el que un RtspClient anuncia su catalogo al
+ * servidor del vecino, y de la respuesta con los streamings que el vecino quiere recibir:
+ *
+ *   Peticion:  x-catalog: numero_de_entradas
+ *              x-stream: uuid saltos nombre       (una linea por entrada)
+ *   Respuesta: x-interest: uuid                   (una linea por streaming pedido)
+ */
+public class CatalogParameters {
+
+    public static final String PARAMETER_CATALOG = "x-catalog";
+    public static final String PARAMETER_STREAM = "x-stream";
+    public static final String PARAMETER_INTEREST = "x-interest";
+
+    private static final Pattern regexCatalog = Pattern.compile("^" + PARAMETER_CATALOG + ":\\s*(\\d+)", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+    private static final Pattern regexStream = Pattern.compile("^" + PARAMETER_STREAM + ":\\s*(\\S+)[ \\t]+(\\d+)[ \\t]*([^\\r\\n]*)", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+    private static final Pattern regexInterest = Pattern.compile("^" + PARAMETER_INTEREST + ":\\s*(\\S+)", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+
+    public static String encodeCatalog(List<CatalogEntry> catalog) {
+        StringBuilder body = new StringBuilder();
+        body.append(PARAMETER_CATALOG).append(": ").append(catalog.size()).append("\r\n");
+        for (CatalogEntry entry : catalog) {
+            body.append(PARAMETER_STREAM).append(": ").append(entry.getUUID()).append(" ").append(entry.getHops())
+                    .append(" ").append(entry.getName() != null ? entry.getName() : "").append("\r\n");
+        }
+        return body.toString();
+    }
+
+    /**
+     * @return The advertised catalog, or null if the body does not carry one
+     */
+    public static List<CatalogEntry> decodeCatalog(String body) {
+        if (body == null || !regexCatalog.matcher(body).find()) return null;
+        List<CatalogEntry> catalog = new ArrayList<>();
+        Matcher m = regexStream.matcher(body);
+        while (m.find()) {
+            try {
+                catalog.add(new CatalogEntry(UUID.fromString(m.group(1)), m.group(3), Integer.parseInt(m.group(2))));
+            } catch (IllegalArgumentException ignored) {}
+        }
+        return catalog;
+    }
+
+    public static String encodeInterest(List<UUID> interest) {
+        StringBuilder body = new StringBuilder();
+        for (UUID id : interest) {
+            body.append(PARAMETER_INTEREST).append(": ").append(id).append("\r\n");
+        }
+        return body.toString();
+    }
+
+    public static List<UUID> decodeInterest(String body) {
+        List<UUID> interest = new ArrayList<>();
+        if (body == null) return interest;
+        Matcher m = regexInterest.matcher(body);
+        while (m.find()) {
+            try {
+                interest.add(UUID.fromString(m.group(1)));
+            } catch (IllegalArgumentException ignored) {}
+        }
+        return interest;
+    }
+}
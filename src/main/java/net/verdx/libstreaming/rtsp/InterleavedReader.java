@@ -0,0 +1,93 @@
+package net.verdx.libstreaming.rtsp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Separa lo que llega por una conexion RTSP con transporte RTP/AVP/TCP: las tramas
+ * intercaladas ('$', canal, longitud de 16 bits y paquete) de los mensajes RTSP de texto.
+ * TCP no respeta los limites de los paquetes, asi que una trama o un mensaje puede llegar
+ * partido entre dos lecturas; lo que falta se guarda hasta la siguiente.
+ *
+ * No es thread-safe: cada conexion tiene el suyo y lo usa solo el hilo que lee.
+ */
+public class InterleavedReader {
+
+    /** Max bytes kept waiting for the rest of a frame or a message. */
+    private static final int MAX_PENDING = 64 * 1024;
+
+    private static final Pattern regexContentLength = Pattern.compile("content-length:\\s*(\\d+)", Pattern.CASE_INSENSITIVE);
+
+    /** Receives the interleaved frames. */
+    public interface Listener {
+        void onFrame(int channelIdentifier, byte[] buffer, int offset, int length);
+    }
+
+    private final Listener mListener;
+    private byte[] mPending = new byte[0];
+
+    public InterleavedReader(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Takes the bytes read from the connection, the frames complete go to the listener.
+     * @return The RTSP messages complete, in order
+     */
+    public List<byte[]> read(byte[] data, int length) {
+        byte[] buffer;
+        if (mPending.length == 0) {
+            buffer = data;
+        } else {
+            buffer = Arrays.copyOf(mPending, mPending.length + length);
+            System.arraycopy(data, 0, buffer, mPending.length, length);
+            length = buffer.length;
+        }
+
+        List<byte[]> messages = new ArrayList<>();
+        int position = 0;
+        while (position < length) {
+            int end;
+            if (buffer[position] == '$') {
+                if (length - position < 4) break;
+                int frameLength = ((buffer[position + 2] & 0xFF) << 8) | (buffer[position + 3] & 0xFF);
+                end = position + 4 + frameLength;
+                if (end > length) break;
+                mListener.onFrame(buffer[position + 1] & 0xFF, buffer, position + 4, frameLength);
+            } else {
+                end = messageEnd(buffer, position, length);
+                if (end < 0) break;
+                messages.add(Arrays.copyOfRange(buffer, position, end));
+            }
+            position = end;
+        }
+
+        int left = length - position;
+        if (left > MAX_PENDING) {
+            // Nothing that can be parsed, the connection has lost the framing
+            mPending = new byte[0];
+        } else {
+            mPending = Arrays.copyOfRange(buffer, position, length);
+        }
+        return messages;
+    }
+
+    /** @return End of the RTSP message that starts at position, -1 if it is not complete */
+    private static int messageEnd(byte[] buffer, int position, int length) {
+        for (int i = position; i + 3 < length; i++) {
+            if (buffer[i] == '\r' && buffer[i + 1] == '\n' && buffer[i + 2] == '\r' && buffer[i + 3] == '\n') {
+                int headerEnd = i + 4;
+                String headers = new String(buffer, position, headerEnd - position, StandardCharsets.UTF_8).toLowerCase(Locale.US);
+                Matcher matcher = regexContentLength.matcher(headers);
+                int end = headerEnd + (matcher.find() ? Integer.parseInt(matcher.group(1)) : 0);
+                return end <= length ? end : -1;
+            }
+        }
+        return -1;
+    }
+}
@@ -19,26 +19,28 @@
 package net.verdx.libstreaming.rtsp;
 
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.net.Socket;
 import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
-import java.util.concurrent.Semaphore;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -46,17 +48,26 @@ import net.verdx.libstreaming.Stream;
 import net.verdx.libstreaming.Streaming;
 import net.verdx.libstreaming.StreamingRecord;
 import net.verdx.libstreaming.StreamingRecordObserver;
+import net.verdx.libstreaming.metrics.Histogram;
+import net.verdx.libstreaming.metrics.MetricsRegistry;
 import net.verdx.libstreaming.network.INetworkManager;
+import net.verdx.libstreaming.network.ReconnectBackoff;
 import net.verdx.libstreaming.rtp.RtpSocket;
 import net.verdx.libstreaming.sessions.RebroadcastSession;
 import net.verdx.libstreaming.sessions.Session;
 import net.verdx.libstreaming.sessions.SessionBuilder;
+import net.verdx.libstreaming.threads.EventLoop;
+import net.verdx.libstreaming.threads.SessionExecutor;
+import net.verdx.libstreaming.threads.selectors.RTSPClientSelector;
 
 /**
  * RFC 2326.
  * A basic and asynchronous RTSP client.
  * The original purpose of this class was to implement a small RTSP client compatible with Wowza.
  * It implements Digest Access Authentication according to RFC 2069. 
+ * The connections of all the clients are multiplexed by the {@link RTSPClientSelector}: requests
+ * are queued without blocking and each answer continues its chain on the loop of the client, so
+ * a slow neighbour does not delay the streamings sent to the others.
  */
 public class RtspClient implements StreamingRecordObserver {
 
@@ -81,7 +92,7 @@ public class RtspClient implements StreamingRecordObserver {
 	 * Message sent when the connection with the RTSP server has been lost for
 	 * some reason (for example, the user is going under a bridge).
 	 * When the connection with the server is lost, the client will automatically try to
-	 * reconnect as long as {@link #stop()} is not called.
+	 * reconnect as long as {@link #stop()} is not called, waiting longer after each failure.
 	 **/
 	public final static int ERROR_CONNECTION_LOST = 0x04;
 
@@ -100,17 +111,27 @@ public class RtspClient implements StreamingRecordObserver {
 
 	protected final static int MAX_NETWORK_REQUESTS = 100;
 
+	/** Period of the catalog exchange with the server, its answer carries the streamings it wants. */
+	protected final static int CATALOG_INTERVAL_MS = 1000;
+
+	/** Time a relayed streaming keeps being sent after the server stops asking for it. */
+	protected final static int INTEREST_GRACE_MS = 10000;
+
+	/** Wait before the first reconnection attempt, it doubles after each failure up to the maximum. */
+	protected final static int RECONNECT_BASE_MS = 500;
+	protected final static int RECONNECT_MAX_MS = 30000;
+
 	protected UUID mLocalStreamingUUID = null;
 	String mLocalStreamingName = null;
 	protected Session mLocalStreamingSession;
 	protected Map<UUID, RebroadcastSession> mRebroadcastStreamings;
 
-	protected Socket mSocket;
-	protected BufferedReader mBufferedReader;
-	protected OutputStream mOutputStream;
+	protected RTSPClientSelector.Connection mConnection;
+	protected boolean mConnectionEstablished;
+	protected int mNextChannelIdentifier;
 	protected Callback mCallback;
 	protected final Handler mMainHandler;
-	protected Handler mHandler;
+	protected final EventLoop mLoop;
 
 	protected int mTotalNetworkRequests;
 	protected SessionBuilder mSessionBuilder;
@@ -119,6 +140,26 @@ public class RtspClient implements StreamingRecordObserver {
 	protected Parameters mParameters;
 	protected StreamingState mLocalStreamingState;
 	protected Map<UUID, StreamingState> mRebroadcastStreamingStates;
+
+	/*
+	 * Los streamings recibidos solo se reenvian al servidor mientras los pida en la respuesta al
+	 * catalogo, mas un periodo de gracia. Si el servidor no entiende el catalogo se le envian todos.
+	 */
+	protected boolean mCatalogSupported;
+	protected Map<UUID, Long> mPeerInterest;
+	protected long mLinkRttMs = -1;
+
+	/** Time to the answer of each request, and the RTT measured by the catalog exchange, of all the clients. */
+	protected static final Histogram RESPONSE_TIME = MetricsRegistry.getInstance().histogram("rtsp.client.response_ms");
+	protected static final Histogram LINK_RTT = MetricsRegistry.getInstance().histogram("rtsp.client.rtt_ms");
+
+	/*
+	 * Si se pierde la conexion los streamings enviados por UDP siguen saliendo hacia los puertos
+	 * que abrio el servidor; al reconectar se reanudan con un RECORD de su sesion, sin ANNOUNCE,
+	 * si el servidor aun la mantiene
+	 */
+	protected final ReconnectBackoff mBackoff = new ReconnectBackoff(RECONNECT_BASE_MS, RECONNECT_MAX_MS, new Random());
+	protected boolean mRecovering = false;
 	/**
 	 * The callback interface you need to implement to know what's going on with the
 	 * RTSP server (for example your Wowza Media Server).
@@ -150,14 +191,22 @@ public class RtspClient implements StreamingRecordObserver {
 		}
 	}
 
+	/*
+	 * The CSeq is not kept per streaming: it is unique in the connection, see
+	 * RTSPClientSelector.Connection#nextCSeq(), so the answers can be matched when pipelined
+	 */
 	protected class StreamingState{
-		public int mCSeq;
 		public String mSessionID;
 		public String mAuthorization;
+		/** The server answered the RECORD, the streaming can be resumed with its session. */
+		public boolean mRecorded;
+		/** The connection was lost while it was published, it waits to be resumed. */
+		public boolean mSuspended;
 		public StreamingState(){
-			mCSeq = 0;
 			mAuthorization = null;
 			mSessionID = null;
+			mRecorded = false;
+			mSuspended = false;
 		}
 	}
 
@@ -178,18 +227,11 @@ public class RtspClient implements StreamingRecordObserver {
 
 		mNetworkManager = netMana;
 
-		final Semaphore signal = new Semaphore(0);
-		new HandlerThread("d2d.testing.streaming.RtspClient"){
-			@Override
-			protected void onLooperPrepared() {
-				mHandler = new Handler();
-				signal.release();
-			}
-		}.start();
-		signal.acquireUninterruptibly();
+		mLoop = SessionExecutor.getInstance().newLoop(TAG);
 
 		mRebroadcastStreamingStates = new HashMap<>();
 		mRebroadcastStreamings = new HashMap<>();
+		mPeerInterest = new HashMap<>();
 		mTotalNetworkRequests = 0;
 	}
 
@@ -272,65 +314,196 @@ public class RtspClient implements StreamingRecordObserver {
 	}
 
 
+	/**
+	 * The connection is probed by the catalog exchange and the OPTIONS monitor: the selector
+	 * closes it when a request is not answered in time.
+	 */
 	public boolean isConnected(){
-		if(mSocket!=null){
-			String aux = "req";
-			try {
-				mOutputStream.write(aux.getBytes("UTF-8"));
-				mOutputStream.flush();
-			} catch (SocketException e){
-				return false;
-			} catch (IOException e) {
-				return false;
-			}
-
-			return !mSocket.isClosed();
-
-		}
-		return false;
+		RTSPClientSelector.Connection connection = mConnection;
+		return connection != null && connection.isConnected();
 	}
 
 
 	/*
-		Obtiene red y crea socket a partir de ella
+		Abre la conexion con el servidor en el selector compartido, sin esperar a que se establezca
 	 */
 	public void start(){
-		mHandler.post(new Runnable () {
+		mLoop.post(mReconnect);
+	}
+
+	/**
+	 * The network came back, or changed: a client waiting to retry the connection tries now, and
+	 * the next waits start again from the shortest one.
+	 */
+	public void reconnectNow(){
+		mLoop.post(new Runnable () {
 			@Override
 			public void run() {
+				if (mState != STATE_STARTED || mConnection != null) return;
+				mLoop.removeCallbacks(mReconnect);
+				mBackoff.reset();
+				connect();
+			}
+		});
+	}
+
+	protected final Runnable mReconnect = new Runnable() {
+		@Override
+		public void run() {
+			connect();
+		}
+	};
 
-				if(mState == STATE_STARTED) {
+	private void connect() {
+		// A connection still being established is not opened again
+		if(mState == STATE_STARTED && mConnection == null) {
+			Log.d(TAG,"Connecting to RTSP server...");
+			// If the user calls some methods to configure the client, it won't modify
+			// its behavior until the stream is restarted
+			mParameters = mTmpParameters.clone();
+			try {
+				mConnection = RTSPClientSelector.getInstance().connect(mParameters.host, mParameters.port, mConnectionListener);
+			} catch (IOException e) {
+				Log.e(TAG,"Failed to connect to RTSP server", e);
+				postError(ERROR_CONNECTION_FAILED, e);
+				scheduleReconnect();
+			}
+		}
+	}
 
-					try {
-						String peerAddr = mTmpParameters.host;
-						int peerPort = mTmpParameters.port;
+	/** Tries to connect again after the wait of the backoff, unless the client is stopped meanwhile. */
+	private void scheduleReconnect() {
+		if (mState != STATE_STARTED) return;
+		long delayMs = mBackoff.nextDelayMs();
+		Log.d(TAG, "Reconnecting to " + mParameters.host + " in " + delayMs + " ms");
+		mLoop.removeCallbacks(mReconnect);
+		mLoop.postDelayed(mReconnect, delayMs);
+	}
 
-						Log.d(TAG,"Connecting to RTSP server...");
+	private void onConnected(RTSPClientSelector.Connection connection) {
+		if (connection != mConnection || mState != STATE_STARTED) return;
+		mConnectionEstablished = true;
+		mBackoff.reset();
+		if (mRecovering) {
+			mRecovering = false;
+			postMessage(MESSAGE_CONNECTION_RECOVERED);
+		}
+		mNextChannelIdentifier = 0;
+		if (mParameters.transport == TRANSPORT_UDP) {
+			mLoop.post(mConnectionMonitor);
+		}
+		// The first exchange tells if the server supports the catalog before the
+		// streamings are offered by the observer
+		mCatalogSupported = true;
+		exchangeCatalog(true);
+	}
 
-						mSocket = new Socket(peerAddr, peerPort);
-						mBufferedReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
-						mOutputStream = new BufferedOutputStream(mSocket.getOutputStream());
-						// If the user calls some methods to configure the client, it won't modify
-						// its behavior until the stream is restarted
+	private void onConnectionClosed(RTSPClientSelector.Connection connection, IOException cause) {
+		if (connection != mConnection) return;
+		if (!mConnectionEstablished) {
+			// A neighbour that is down gets fewer attempts the longer it stays down
+			Log.e(TAG,"Failed to connect to RTSP server", cause);
+			mConnection = null;
+			postError(ERROR_CONNECTION_FAILED, cause);
+			scheduleReconnect();
+			return;
+		}
+		onConnectionLost(cause);
+	}
 
-						mParameters = mTmpParameters.clone();
+	/** A request could not be sent or its answer was not understood, as if the server was gone. */
+	private void onConnectionLost(Exception cause) {
+		if (mConnection == null) return;
+		postError(ERROR_CONNECTION_LOST, cause);
+		Log.e(TAG, "Connection lost with the server...");
+		suspendClient();
+		scheduleReconnect();
+	}
 
-						if (mParameters.transport == TRANSPORT_UDP) {
-							mHandler.post(mConnectionMonitor);
-						}
-						StreamingRecord.getInstance().addObserver(RtspClient.this);
-					} catch (IOException e) {
-						Log.e(TAG,"Failed to connect to RTSP server", e);
-						postError(ERROR_CONNECTION_FAILED, e);
+	/**
+	 * Drops the connection but not the streamings sent over UDP, they keep going to the ports the
+	 * server opened and are resumed when it reconnects. The ones interleaved in the lost connection,
+	 * and those whose RECORD was not answered yet, are closed and published again after reconnecting.
+	 */
+	private void suspendClient() {
+		StreamingRecord.getInstance().removeObserver(this);
+		mLoop.removeCallbacks(mConnectionMonitor);
+		mLoop.removeCallbacks(mCatalogMonitor);
+		mConnection.close();
+		mConnection = null;
+		mConnectionEstablished = false;
+		mRecovering = true;
+
+		if (mParameters.transport == TRANSPORT_TCP) {
+			closeConnections();
+			return;
+		}
+		if (mLocalStreamingState != null && mLocalStreamingState.mRecorded) {
+			mLocalStreamingState.mSuspended = true;
+		} else {
+			closeLocalStreaming();
+		}
+		for (UUID id : new ArrayList<>(mRebroadcastStreamingStates.keySet())) {
+			StreamingState st = mRebroadcastStreamingStates.get(id);
+			if (st.mRecorded) {
+				st.mSuspended = true;
+			} else {
+				closeStreaming(id);
+			}
+		}
+	}
 
-						// Start mete un ejecutable a la cola de un hilo. No es recursivo llamar start dentro de otro.
-						//Para la versión sin WFA, se reintentará la conexión en unos segundos
-					}
-				}
+	/**
+	 * After the observer offered the streamings again, the suspended ones it did not offer are not
+	 * available anymore.
+	 */
+	private void closeSuspended() {
+		if (mLocalStreamingState != null && mLocalStreamingState.mSuspended) {
+			closeLocalStreaming();
+		}
+		for (UUID id : new ArrayList<>(mRebroadcastStreamingStates.keySet())) {
+			if (mRebroadcastStreamingStates.get(id).mSuspended) {
+				closeStreaming(id);
 			}
-		});
+		}
+	}
+
+	/** The server sends the RTCP of the streams it receives on the odd channels. */
+	private void onInterleavedFrame(int channelIdentifier, byte[] buffer) {
+		if (channelIdentifier % 2 == 0) return;
+		if (mLocalStreamingSession != null) {
+			mLocalStreamingSession.receiveInterleavedReport(channelIdentifier, buffer, 0, buffer.length);
+		}
+		for (RebroadcastSession session : mRebroadcastStreamings.values()) {
+			session.receiveInterleavedReport(channelIdentifier, buffer, 0, buffer.length);
+		}
 	}
 
+	/*
+	 * The selector calls from its thread, everything is handed over to the loop of the client so
+	 * its state is only touched there
+	 */
+	protected final RTSPClientSelector.Listener mConnectionListener = new RTSPClientSelector.Listener() {
+		@Override
+		public void onConnected(final RTSPClientSelector.Connection connection) {
+			mLoop.post(() -> RtspClient.this.onConnected(connection));
+		}
+
+		@Override
+		public void onFrame(RTSPClientSelector.Connection connection, final int channelIdentifier, byte[] buffer, int offset, int length) {
+			final byte[] report = new byte[length];
+			System.arraycopy(buffer, offset, report, 0, length);
+			mLoop.post(() -> {
+				if (connection == mConnection) onInterleavedFrame(channelIdentifier, report);
+			});
+		}
+
+		@Override
+		public void onClosed(final RTSPClientSelector.Connection connection, final IOException cause) {
+			mLoop.post(() -> onConnectionClosed(connection, cause));
+		}
+	};
+
 	protected void onFailedStart(){
 		start();
 	}
@@ -339,7 +512,7 @@ public class RtspClient implements StreamingRecordObserver {
 	 * Stops the stream, and informs the RTSP server.
 	 */
 	public void stop() { //Restaurar para poder hacer onConnectionCreated
-		mHandler.post(new Runnable () {
+		mLoop.post(new Runnable () {
 			@Override
 			public void run() {
 				restartClient();
@@ -349,7 +522,7 @@ public class RtspClient implements StreamingRecordObserver {
 
 	public void release() {
 		stop();
-		mHandler.getLooper().quitSafely();
+		mLoop.quitSafely();
 	}
 
 
@@ -361,11 +534,7 @@ public class RtspClient implements StreamingRecordObserver {
 
 	private void closeLocalStreaming(){
 		if(mLocalStreamingUUID != null){
-			try {
-				sendRequestTeardown(mLocalStreamingState, mLocalStreamingUUID.toString());
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
+			sendRequestTeardown(mLocalStreamingState, mLocalStreamingUUID.toString());
 			if(mLocalStreamingSession != null){
 				if (mLocalStreamingSession.isStreaming()) {
 					mLocalStreamingSession.syncStop();
@@ -383,9 +552,7 @@ public class RtspClient implements StreamingRecordObserver {
 	private void closeStreaming(UUID id){
 		RebroadcastSession session = mRebroadcastStreamings.remove(id);
 		if(session != null){
-			try {
-				sendRequestTeardown(mRebroadcastStreamingStates.remove(id), id.toString());
-			} catch (Exception ignore) {}
+			sendRequestTeardown(mRebroadcastStreamingStates.remove(id), id.toString());
 			session.stop();
 		}
 	}
@@ -393,35 +560,46 @@ public class RtspClient implements StreamingRecordObserver {
 	private void closeConnections(){
 		closeLocalStreaming();
 		for(Map.Entry<UUID, RebroadcastSession> entry : mRebroadcastStreamings.entrySet()){
-			try {
-				sendRequestTeardown(mRebroadcastStreamingStates.get(entry.getKey()), entry.getKey().toString());
-			} catch (Exception ignore) {}
+			sendRequestTeardown(mRebroadcastStreamingStates.get(entry.getKey()), entry.getKey().toString());
 			entry.getValue().stop();
 		}
 		mRebroadcastStreamings.clear();
 		mRebroadcastStreamingStates.clear();
+		for(UUID id : mPeerInterest.keySet()){
+			StreamingRecord.getInstance().releaseDemand(id);
+		}
+		mPeerInterest.clear();
 	}
 
 
 	protected void clearClient(){
 		mState = STATE_STOPPED;
 
-		try {
-			if(mSocket != null) mSocket.close();
-		} catch (Exception ignore) {}
-		mSocket = null;
-		mBufferedReader = null;
-		mOutputStream = null;
+		// The TEARDOWN requests already queued are still written
+		if(mConnection != null) mConnection.close();
+		mConnection = null;
+		mConnectionEstablished = false;
 
 		mCallback = null;
-		mHandler.removeCallbacks(mConnectionMonitor);
+		mRecovering = false;
+		mBackoff.reset();
+		mLoop.removeCallbacks(mReconnect);
+		mLoop.removeCallbacks(mConnectionMonitor);
+		mLoop.removeCallbacks(mCatalogMonitor);
 	}
 
 	@Override
 	public void onLocalStreamingAvailable(final UUID id, final String name, final SessionBuilder sessionBuilder) {
-		mHandler.post(new Runnable() {
+		mLoop.post(new Runnable() {
 			@Override
 			public void run() {
+				if (mLocalStreamingState != null && mLocalStreamingState.mSuspended) {
+					if (id.equals(mLocalStreamingUUID)) {
+						resumeLocalStreaming();
+						return;
+					}
+					closeLocalStreaming();
+				}
 				mLocalStreamingUUID = id;
 				mSessionBuilder = sessionBuilder;
 				mLocalStreamingName = name;
@@ -433,7 +611,7 @@ public class RtspClient implements StreamingRecordObserver {
 
 	@Override
 	public void onLocalStreamingUnavailable() {
-		mHandler.post(new Runnable() {
+		mLoop.post(new Runnable() {
 			@Override
 			public void run() {
 				closeLocalStreaming();
@@ -444,7 +622,7 @@ public class RtspClient implements StreamingRecordObserver {
 
 	@Override
 	public void onStreamingAvailable(final Streaming streaming, final boolean bAllowDispatch) {
-		mHandler.post(new Runnable() {
+		mLoop.post(new Runnable() {
 			@Override
 			public void run() {
 				UUID streamingUUID = streaming.getUUID();
@@ -454,24 +632,61 @@ public class RtspClient implements StreamingRecordObserver {
 						closeStreaming(streamingUUID);
 					}
 				}
-				else{
-					if(st == null){
-						st = new StreamingState();
-						RebroadcastSession session = new RebroadcastSession();
-						session.setServerSession(streaming.getReceiveSession());
-
-						mRebroadcastStreamings.put(streamingUUID, session);
-						mRebroadcastStreamingStates.put(streamingUUID, st);
-						sendStreaming(streamingUUID);
-					}
+				else if(st != null && st.mSuspended){
+					resumeStreaming(streamingUUID);
+				}
+				else if(st == null && (!mCatalogSupported || mPeerInterest.containsKey(streamingUUID))){
+					startRelay(streaming);
 				}
 			}
 		});
 	}
 
+	private void startRelay(Streaming streaming){
+		UUID streamingUUID = streaming.getUUID();
+		RebroadcastSession session = new RebroadcastSession();
+		session.setServerSession(streaming.getReceiveSession());
+
+		mRebroadcastStreamings.put(streamingUUID, session);
+		mRebroadcastStreamingStates.put(streamingUUID, new StreamingState());
+		sendStreaming(streamingUUID);
+	}
+
+	private void resumeLocalStreaming(){
+		final Session session = mLocalStreamingSession;
+		final StreamingState st = mLocalStreamingState;
+		st.mSuspended = false;
+		sendRequestResume(st, mLocalStreamingUUID.toString(), () -> {}, () -> {
+			if (session != mLocalStreamingSession) return;
+			// The server released it meanwhile, it is announced again
+			if (session.isStreaming()) {
+				session.syncStop();
+			}
+			session.release();
+			mLocalStreamingState = new StreamingState();
+			sendLocalStreaming();
+		});
+	}
+
+	private void resumeStreaming(final UUID streamUUID){
+		final RebroadcastSession session = mRebroadcastStreamings.get(streamUUID);
+		StreamingState st = mRebroadcastStreamingStates.get(streamUUID);
+		st.mSuspended = false;
+		sendRequestResume(st, streamUUID.toString(), () -> {}, () -> {
+			if (mRebroadcastStreamings.get(streamUUID) != session) return;
+			session.stop();
+			mRebroadcastStreamings.remove(streamUUID);
+			mRebroadcastStreamingStates.remove(streamUUID);
+			Streaming streaming = StreamingRecord.getInstance().getStreaming(streamUUID);
+			if (streaming != null && StreamingRecord.getInstance().isStreamingDispatchable(streamUUID)) {
+				startRelay(streaming);
+			}
+		});
+	}
+
 	@Override
 	public void onStreamingUnavailable(final Streaming streaming) {
-		mHandler.post(new Runnable() {
+		mLoop.post(new Runnable() {
 			@Override
 			public void run() {
 				UUID streamingUUID = streaming.getUUID();
@@ -490,86 +705,104 @@ public class RtspClient implements StreamingRecordObserver {
 
 	protected void sendLocalStreaming(){
 		if(mState == STATE_STARTED){
+			final Session session;
 			try {
-				mLocalStreamingSession = mSessionBuilder.build();
-				mLocalStreamingSession.setNameStreaming(mLocalStreamingName);
-				mLocalStreamingSession.setDestinationAddress(InetAddress.getByName(mParameters.host), true);
-				mLocalStreamingSession.setDestinationPort(mParameters.port);
-				mLocalStreamingSession.setOriginAddress(mSocket.getLocalAddress(), true);
-				mLocalStreamingSession.syncConfigure();
+				session = mSessionBuilder.build();
+				session.setNameStreaming(mLocalStreamingName);
+				session.setDestinationAddress(InetAddress.getByName(mParameters.host), true);
+				session.setDestinationPort(mParameters.port);
+				session.setOriginAddress(mConnection.getLocalAddress(), true);
 			} catch (Exception e) {
 				mLocalStreamingSession = null;
 				return;
 			}
+			mLocalStreamingSession = session;
+
+			// The clients of every neighbour share the configuration of the local streaming, the
+			// session is configured on its own loop and the announce goes on once it is described
+			session.describe(mLocalStreamingUUID, mSessionBuilder.getConfigurationKey(), error -> mLoop.post(() -> {
+				// The streaming may have been removed or the client restarted while it was configured
+				if (session != mLocalStreamingSession) return;
+				if (error != null) {
+					mLocalStreamingSession = null;
+					session.release();
+				} else if (mState != STATE_STARTED) {
+					postError(ERROR_NETWORK_LOST, null);
+					restartClient();
+				} else {
+					announceLocalStreaming(session);
+				}
+			}));
+		}
+		else{
+			postError(ERROR_NETWORK_LOST, null);
+			restartClient();
+		}
+	}
 
+	private void announceLocalStreaming(final Session session){
+		tryLocalStreamingConnection(session, () -> {
+			// The streaming may have been removed while it was being announced
+			if (session != mLocalStreamingSession) return;
 			try {
-				tryLocalStreamingConnection();
-			}catch(SecurityException e){ //Credenciales de conexion invalidas
-				postError(ERROR_WRONG_CREDENTIALS, new Exception("Credenciales invalidas para streaming " + mLocalStreamingUUID.toString(), e));
-				mLocalStreamingSession = null;
-				return;
-			}
-			catch (IOException e) { //Se perdio la conexion con el RTSPServer
+				session.syncStart();
+				mLocalStreamingState.mRecorded = true;
+			} catch (Exception e) { //Se perdio la conexion con el RTSPServer
 				postError(ERROR_CONNECTION_FAILED, e);
 				restartClient();
-				return;
 			}
-			catch(IllegalStateException e){ //Fallo en protocolo o en configuracion del cliente
+		}, e -> {
+			if (session != mLocalStreamingSession) return;
+			if (e instanceof SecurityException) { //Credenciales de conexion invalidas
+				postError(ERROR_WRONG_CREDENTIALS, new Exception("Credenciales invalidas para streaming " + mLocalStreamingUUID.toString(), e));
+				mLocalStreamingSession = null;
+			} else if (e instanceof IOException) { //Se perdio la conexion con el RTSPServer
+				onConnectionLost(e);
+			} else if (e instanceof IllegalStateException) { //Fallo en protocolo o en configuracion del cliente
 				restartClient();
-				return;
-			}
-			catch(RuntimeException e){ //El servidor rechazo el envio
+			} else { //El servidor rechazo el envio
 				//Como de momento solo rechaza por bucles no volvemos a intentar el envio
 				mLocalStreamingSession = null;
-				return;
 			}
-			try {
-				mLocalStreamingSession.syncStart();
-			} catch (Exception e) { //Se perdio la conexion con el RTSPServer
-				postError(ERROR_CONNECTION_FAILED, e);
-				restartClient();
-			}
-		}
-		else{
-			postError(ERROR_NETWORK_LOST, null);
-			restartClient();
-		}
+		});
 	}
 
-	private void sendStreaming(UUID streamUUID){
+	private void sendStreaming(final UUID streamUUID){
 		if(mState == STATE_STARTED){
-			StreamingState st = mRebroadcastStreamingStates.get(streamUUID);
-			RebroadcastSession session = mRebroadcastStreamings.get(streamUUID);
+			final StreamingState st = mRebroadcastStreamingStates.get(streamUUID);
+			final RebroadcastSession session = mRebroadcastStreamings.get(streamUUID);
 			try {
 				session.setDestinationAddress(InetAddress.getByName(mParameters.host), true);
-				session.setOriginAddress(mSocket.getLocalAddress(), true);
+				session.setOriginAddress(mConnection.getLocalAddress(), true);
 			} catch (Exception e) {
 				mRebroadcastStreamingStates.remove(streamUUID);
 				mRebroadcastStreamings.remove(streamUUID);
+				return;
 			}
 
-			try {
-				tryConnection(st, streamUUID.toString(), session);
+			tryConnection(st, streamUUID.toString(), session, () -> {
+				// The streaming may have been closed while it was being announced
+				if (mRebroadcastStreamings.get(streamUUID) != session) return;
 				session.startTrack(0);	//0=audio
 				session.startTrack(1);	//1=video
-			}catch(SecurityException e){ //Credenciales de conexion invalidas
-				postError(ERROR_WRONG_CREDENTIALS, new Exception("Credenciales invalidas para streaming " + streamUUID.toString(), e));
-				mRebroadcastStreamingStates.remove(streamUUID);
-				mRebroadcastStreamings.remove(streamUUID);
-			}
-			catch (IOException e) { //Se perdio la conexion con el RTSPServer
-				postError(ERROR_CONNECTION_FAILED, e);
-				restartClient();
-			}
-			catch(IllegalStateException e){ //Fallo en protocolo o en configuracion del cliente
-				restartClient();
-			}
-			catch(RuntimeException e){ //El servidor rechazo el envio
-				//Como de momento solo rechaza por bucles no volvemos a intentar el envio
-				mRebroadcastStreamingStates.remove(streamUUID);
-				mRebroadcastStreamings.remove(streamUUID);
-				session.stop();
-			}
+				st.mRecorded = true;
+			}, e -> {
+				if (mRebroadcastStreamings.get(streamUUID) != session) return;
+				if (e instanceof SecurityException) { //Credenciales de conexion invalidas
+					postError(ERROR_WRONG_CREDENTIALS, new Exception("Credenciales invalidas para streaming " + streamUUID.toString(), e));
+					mRebroadcastStreamingStates.remove(streamUUID);
+					mRebroadcastStreamings.remove(streamUUID);
+				} else if (e instanceof IOException) { //Se perdio la conexion con el RTSPServer
+					onConnectionLost(e);
+				} else if (e instanceof IllegalStateException) { //Fallo en protocolo o en configuracion del cliente
+					restartClient();
+				} else { //El servidor rechazo el envio
+					//Como de momento solo rechaza por bucles no volvemos a intentar el envio
+					mRebroadcastStreamingStates.remove(streamUUID);
+					mRebroadcastStreamings.remove(streamUUID);
+					session.stop();
+				}
+			});
 		}
 		else{
 			postError(ERROR_NETWORK_LOST, null);
@@ -580,52 +813,127 @@ public class RtspClient implements StreamingRecordObserver {
 	/*
 		LocalClient --> LocalServer
 	 */
-	private void tryLocalStreamingConnection() throws SecurityException, IOException, IllegalStateException, RuntimeException {
-		mLocalStreamingState.mCSeq = 0;
-		String path = mLocalStreamingUUID.toString();
-		Log.d(TAG, "pipi" +  path);
-
-		sendRequestAnnounce(mLocalStreamingState, path, mLocalStreamingSession.getSessionDescription());
-		sendRequestSetup(mLocalStreamingState, path, mLocalStreamingSession.getTrack(0), 0);
-		sendRequestSetup(mLocalStreamingState, path, mLocalStreamingSession.getTrack(1), 1);
-		sendRequestRecord(mLocalStreamingState, path);
+	private void tryLocalStreamingConnection(final Session session, Runnable onRecorded, RequestFailure failure) {
+		final StreamingState st = mLocalStreamingState;
+		final String path = mLocalStreamingUUID.toString();
+		publish(st, path, session.getSessionDescription(), StreamingRecord.getInstance().getNodeId().toString(), 1,
+				(trackNo, next, trackFailure) -> sendRequestSetup(st, path, session.getTrack(trackNo), trackNo, next, trackFailure),
+				onRecorded, failure);
 	}
 
-	private void tryConnection(StreamingState st, String path, RebroadcastSession session) throws IOException {
-		st.mCSeq = 0;
-		sendRequestAnnounce(st, path, session.getSessionDescription());
-		sendRequestSetup(st, path, session, 0);
-		sendRequestSetup(st, path, session, 1);
-		sendRequestRecord(st, path);
+	private void tryConnection(final StreamingState st, final String path, final RebroadcastSession session, Runnable onRecorded, RequestFailure failure) {
+		Streaming streaming = StreamingRecord.getInstance().getStreaming(UUID.fromString(path));
+		if (streaming == null) {
+			failure.onFailure(new RuntimeException("Streaming " + path + " is not available anymore"));
+			return;
+		}
+		publish(st, path, session.getSessionDescription(), streaming.getOrigin(), streaming.getHops() + 1,
+				(trackNo, next, trackFailure) -> sendRequestSetup(st, path, session, trackNo, next, trackFailure),
+				onRecorded, failure);
 	}
 
+	/** Sends the SETUP of a track, or goes on if the track does not exist. */
+	protected interface TrackSetup {
+		void setup(int trackNo, Runnable next, RequestFailure failure);
+	}
 
+	/**
+	 * ANNOUNCE, SETUP of each track and RECORD of a streaming. A server of the mesh (it answers
+	 * the catalog) keeps the announced session by connection and path, so the four requests are
+	 * pipelined and the publication takes one RTT; the SETUPs go without the Session header, the
+	 * RECORD controls the whole aggregate. Any other server, or one that asks for credentials,
+	 * gets each request once the previous one is answered.
+	 */
+	private void publish(final StreamingState st, final String path, String description, String origin, int hops,
+						 final TrackSetup setup, final Runnable onRecorded, final RequestFailure failure) {
+		if (mCatalogSupported && mParameters.username == null) {
+			final Pipeline pipeline = new Pipeline(4, onRecorded, failure);
+			sendRequestAnnounce(st, path, description, origin, hops, pipeline::onAnswered, pipeline::onFailure);
+			setup.setup(0, pipeline::onAnswered, pipeline::onFailure);
+			setup.setup(1, pipeline::onAnswered, pipeline::onFailure);
+			sendRequestRecord(st, path, pipeline::onAnswered, pipeline::onFailure);
+		} else {
+			sendRequestAnnounce(st, path, description, origin, hops,
+					() -> setup.setup(0,
+							() -> setup.setup(1,
+									() -> sendRequestRecord(st, path, onRecorded, failure), failure), failure), failure);
+		}
+	}
 
 	/**
-	 * Forges and sends the ANNOUNCE request
+	 * Requests sent without waiting for each other: the chain goes on when all of them are
+	 * answered, and ends at the first failure, the answers after it are ignored.
 	 */
-	//IOException fallo de conexion
-	//IllegalStateException fallo en protocolo o configuracion de cliente
-	//
-	private void sendRequestAnnounce(StreamingState st, String path, String sessionDesc) throws SecurityException, IOException, IllegalStateException, RuntimeException{
-		String body = sessionDesc;
-		String request = "ANNOUNCE rtsp://"+mParameters.host+":"+mParameters.port+"/"+path+" RTSP/1.0\r\n" +
-				"CSeq: " + (++st.mCSeq) + "\r\n" +
-				"Content-Length: " + body.length() + "\r\n" +
-				"Content-Type: application/sdp\r\n\r\n" +
-				body;
-		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
+	private static class Pipeline {
+		private final Runnable mNext;
+		private final RequestFailure mFailure;
+		private int mWaiting;
+		private boolean mFailed = false;
+
+		Pipeline(int requests, Runnable next, RequestFailure failure) {
+			mWaiting = requests;
+			mNext = next;
+			mFailure = failure;
+		}
 
-		mOutputStream.write(request.getBytes("UTF-8"));
-		mOutputStream.flush();
-		Response response = Response.parseResponse(mBufferedReader);
+		void onAnswered() {
+			if (mFailed) return;
+			if (--mWaiting == 0) mNext.run();
+		}
 
-		if (response.headers.containsKey("server")) {
-			Log.v(TAG,"RTSP server name:" + response.headers.get("server"));
-		} else {
-			Log.v(TAG,"RTSP server name unknown");
+		void onFailure(Exception e) {
+			if (mFailed) return;
+			mFailed = true;
+			mFailure.onFailure(e);
 		}
+	}
+
+	/** Continues a chain of requests with the answer of the server. */
+	protected interface ResponseHandler {
+		void onResponse(Response response) throws IOException;
+	}
+
+	/**
+	 * Ends a chain of requests that failed: IOException if the connection was lost,
+	 * SecurityException for bad credentials, IllegalStateException for a protocol error and
+	 * other RuntimeException if the server refused the streaming.
+	 */
+	protected interface RequestFailure {
+		void onFailure(Exception e);
+	}
+
+	/**
+	 * Queues a request in the connection without waiting for its answer, the handler runs on the
+	 * loop of the client when it arrives. Answers to a connection closed meanwhile are dropped.
+	 */
+	private void sendRequest(int cseq, String request, final ResponseHandler handler, final RequestFailure failure) {
+		final RTSPClientSelector.Connection connection = mConnection;
+		final long sentAt = SystemClock.elapsedRealtime();
+		boolean queued = connection != null && connection.request(cseq, request, data -> mLoop.post(() -> {
+			RESPONSE_TIME.record(SystemClock.elapsedRealtime() - sentAt);
+			if (connection != mConnection) return;
+			try {
+				handler.onResponse(Response.parseResponse(data));
+			} catch (Exception e) {
+				failure.onFailure(e);
+			}
+		}));
+		if (!queued) failure.onFailure(new SocketException("Connection lost"));
+	}
+
+	private int nextCSeq() {
+		RTSPClientSelector.Connection connection = mConnection;
+		return connection != null ? connection.nextCSeq() : 0;
+	}
 
+	/** Allocates the interleaved channels of a track, RTP on the even one and RTCP on the next. */
+	private int nextChannelIdentifier() {
+		int channelIdentifier = mNextChannelIdentifier;
+		mNextChannelIdentifier = (mNextChannelIdentifier + 2) % 254;
+		return channelIdentifier;
+	}
+
+	private static void parseSessionId(StreamingState st, Response response) {
 		if (response.headers.containsKey("session")) {
 			try {
 				Matcher m = Response.rexegSession.matcher(response.headers.get("session"));
@@ -635,81 +943,108 @@ public class RtspClient implements StreamingRecordObserver {
 				throw new IllegalStateException("Invalid response from server. Session id: "+st.mSessionID);
 			}
 		}
+	}
 
-		if (response.status == 401) {
-			String nonce, realm;
-			Matcher m;
-
-			if (mParameters.username == null || mParameters.password == null) throw new IllegalStateException("Authentication is enabled and setCredentials(String,String) was not called !");
+	/**
+	 * Forges and sends the ANNOUNCE request
+	 */
+	//IOException fallo de conexion
+	//IllegalStateException fallo en protocolo o configuracion de cliente
+	//
+	private void sendRequestAnnounce(final StreamingState st, final String path, final String sessionDesc, String origin, int hops, final Runnable next, final RequestFailure failure) {
+		final String body = sessionDesc;
+		// Hops the streaming will have gone through at the server, and the node that produces it
+		final String meshHeaders = "X-Hop-Count: " + hops + "\r\n" +
+				(origin != null ? "X-Stream-Origin: " + origin + "\r\n" : "");
+		int cseq = nextCSeq();
+		String request = "ANNOUNCE rtsp://"+mParameters.host+":"+mParameters.port+"/"+path+" RTSP/1.0\r\n" +
+				"CSeq: " + cseq + "\r\n" +
+				meshHeaders +
+				"Content-Length: " + body.length() + "\r\n" +
+				"Content-Type: application/sdp\r\n\r\n" +
+				body;
+		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
 
-			try {
-				m = Response.rexegAuthenticate.matcher(response.headers.get("www-authenticate")); m.find();
-				nonce = m.group(2);
-				realm = m.group(1);
-			} catch (Exception e) {
-				throw new IllegalStateException("Invalid response from server");
+		sendRequest(cseq, request, response -> {
+			if (response.headers.containsKey("server")) {
+				Log.v(TAG,"RTSP server name:" + response.headers.get("server"));
+			} else {
+				Log.v(TAG,"RTSP server name unknown");
 			}
 
-			String uri = "rtsp://"+mParameters.host+":"+mParameters.port+"/"+path;
-			String hash1 = computeMd5Hash(mParameters.username+":"+m.group(1)+":"+mParameters.password);
-			String hash2 = computeMd5Hash("ANNOUNCE"+":"+uri);
-			String hash3 = computeMd5Hash(hash1+":"+m.group(2)+":"+hash2);
-
-			st.mAuthorization = "Digest username=\""+mParameters.username+"\",realm=\""+realm+"\",nonce=\""+nonce+"\",uri=\""+uri+"\",response=\""+hash3+"\"";
-
-			request = "ANNOUNCE rtsp://"+mParameters.host+":"+mParameters.port+"/"+path+" RTSP/1.0\r\n" +
-					"CSeq: " + (++st.mCSeq) + "\r\n" +
-					"Content-Length: " + body.length() + "\r\n" +
-					"Authorization: " + st.mAuthorization + "\r\n" +
-					"Session: " + st.mSessionID + "\r\n" +
-					"Content-Type: application/sdp\r\n\r\n" +
-					body;
+			parseSessionId(st, response);
 
-			Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
+			if (response.status == 401) {
+				String nonce, realm;
+				Matcher m;
 
-			mOutputStream.write(request.getBytes("UTF-8"));
-			mOutputStream.flush();
-			response = Response.parseResponse(mBufferedReader);
+				if (mParameters.username == null || mParameters.password == null) throw new IllegalStateException("Authentication is enabled and setCredentials(String,String) was not called !");
 
-			if (response.status == 401) throw new SecurityException("Bad credentials !");
+				try {
+					m = Response.rexegAuthenticate.matcher(response.headers.get("www-authenticate")); m.find();
+					nonce = m.group(2);
+					realm = m.group(1);
+				} catch (Exception e) {
+					throw new IllegalStateException("Invalid response from server");
+				}
 
-		} else if (response.status == 403) {
-			Log.d(TAG, "Streaming " + path + " refused by server");
-			throw new RuntimeException("Streaming " + path + " refused by server");
-		}
+				String uri = "rtsp://"+mParameters.host+":"+mParameters.port+"/"+path;
+				String hash1 = computeMd5Hash(mParameters.username+":"+m.group(1)+":"+mParameters.password);
+				String hash2 = computeMd5Hash("ANNOUNCE"+":"+uri);
+				String hash3 = computeMd5Hash(hash1+":"+m.group(2)+":"+hash2);
+
+				st.mAuthorization = "Digest username=\""+mParameters.username+"\",realm=\""+realm+"\",nonce=\""+nonce+"\",uri=\""+uri+"\",response=\""+hash3+"\"";
+
+				int retryCSeq = nextCSeq();
+				String retry = "ANNOUNCE rtsp://"+mParameters.host+":"+mParameters.port+"/"+path+" RTSP/1.0\r\n" +
+						"CSeq: " + retryCSeq + "\r\n" +
+						meshHeaders +
+						"Content-Length: " + body.length() + "\r\n" +
+						"Authorization: " + st.mAuthorization + "\r\n" +
+						"Session: " + st.mSessionID + "\r\n" +
+						"Content-Type: application/sdp\r\n\r\n" +
+						body;
+
+				Log.i(TAG,retry.substring(0, retry.indexOf("\r\n")));
+
+				sendRequest(retryCSeq, retry, authenticated -> {
+					if (authenticated.status == 401) throw new SecurityException("Bad credentials !");
+					next.run();
+				}, failure);
+
+			} else if (response.status == 403) {
+				Log.d(TAG, "Streaming " + path + " refused by server");
+				throw new RuntimeException("Streaming " + path + " refused by server");
+			} else {
+				next.run();
+			}
+		}, failure);
 	}
 
 	/**
 	 * Forges and sends the SETUP request
 	 */
-	private void sendRequestSetup(StreamingState st, String path, Stream stream, int trackNo) throws IllegalStateException, IOException {
-		if (stream != null) {
-			String params = mParameters.transport==TRANSPORT_TCP ?
-					("TCP;interleaved="+2*trackNo+"-"+(2*trackNo+1)) : ("UDP;unicast;client_port="+(5000+2*trackNo)+"-"+(5000+2*trackNo+1)+";mode=receive");
-			String request = "SETUP rtsp://"+mParameters.host+":"+mParameters.port+"/"+path+"/trackID="+trackNo+" RTSP/1.0\r\n" +
-					"Transport: RTP/AVP/"+params+"\r\n" +
-					addHeaders(st);
-
-			Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
+	private void sendRequestSetup(final StreamingState st, String path, final Stream stream, int trackNo, final Runnable next, RequestFailure failure) {
+		if (stream == null) {
+			next.run();
+			return;
+		}
+		final int channelIdentifier = mParameters.transport == TRANSPORT_TCP ? nextChannelIdentifier() : -1;
+		String params = mParameters.transport==TRANSPORT_TCP ?
+				("TCP;interleaved="+channelIdentifier+"-"+(channelIdentifier+1)) : ("UDP;unicast;client_port="+(5000+2*trackNo)+"-"+(5000+2*trackNo+1)+";mode=receive");
+		int cseq = nextCSeq();
+		String request = "SETUP rtsp://"+mParameters.host+":"+mParameters.port+"/"+path+"/trackID="+trackNo+" RTSP/1.0\r\n" +
+				"Transport: RTP/AVP/"+params+"\r\n" +
+				addHeaders(st, cseq);
 
-			mOutputStream.write(request.getBytes("UTF-8"));
-			mOutputStream.flush();
-			Response response = Response.parseResponse(mBufferedReader);
-			Matcher m;
+		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
 
-			if (response.headers.containsKey("session")) {
-				try {
-					m = Response.rexegSession.matcher(response.headers.get("session"));
-					m.find();
-					st.mSessionID = m.group(1);
-				} catch (Exception e) {
-					throw new IllegalStateException("Invalid response from server. Session id: "+st.mSessionID);
-				}
-			}
+		sendRequest(cseq, request, response -> {
+			parseSessionId(st, response);
 
 			if (mParameters.transport == TRANSPORT_UDP) {
 				try {
-					m = Response.rexegTransport.matcher(response.headers.get("transport")); m.find();
+					Matcher m = Response.rexegTransport.matcher(response.headers.get("transport")); m.find();
 					stream.setDestinationPorts(Integer.parseInt(m.group(3)), Integer.parseInt(m.group(4)));
 					Log.d(TAG, "Setting destination ports: "+Integer.parseInt(m.group(3))+", "+Integer.parseInt(m.group(4)));
 				} catch (Exception e) {
@@ -718,44 +1053,39 @@ public class RtspClient implements StreamingRecordObserver {
 					Log.d(TAG,"Server did not specify ports, using default ports: "+ports[0]+"-"+ports[1]);
 				}
 			} else {
-				stream.setOutputStream(mOutputStream, (byte)(2*trackNo));
+				// The packets are queued in the selector with the requests, never blocking the encoder
+				stream.setInterleavedChannel(mConnection, (byte) channelIdentifier);
 			}
-		}
+			next.run();
+		}, failure);
 	}
 
 	/**
 	 * Forges and sends the SETUP request
 	 */
-	private void sendRequestSetup(StreamingState st, String path, RebroadcastSession session, int trackNo) throws IllegalStateException, IOException {
-		if (session.serverTrackExists(trackNo)) {
-			String params = mParameters.transport==TRANSPORT_TCP
-					? ("TCP;interleaved="+2*trackNo+"-"+(2*trackNo+1))
-					: ("UDP;unicast;client_port="+(5000+2*trackNo)+"-"+(5000+2*trackNo+1)+";mode=receive");
-			String request = "SETUP rtsp://"+mParameters.host+":"+mParameters.port+"/"+path+"/trackID="+trackNo+" RTSP/1.0\r\n" +
-					"Transport: RTP/AVP/"+params+"\r\n" +
-					addHeaders(st);
-
-			Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
+	private void sendRequestSetup(final StreamingState st, String path, final RebroadcastSession session, final int trackNo, final Runnable next, RequestFailure failure) {
+		if (!session.serverTrackExists(trackNo)) {
+			next.run();
+			return;
+		}
+		final int channelIdentifier = mParameters.transport == TRANSPORT_TCP ? nextChannelIdentifier() : -1;
+		String params = mParameters.transport==TRANSPORT_TCP
+				? ("TCP;interleaved="+channelIdentifier+"-"+(channelIdentifier+1))
+				: ("UDP;unicast;client_port="+(5000+2*trackNo)+"-"+(5000+2*trackNo+1)+";mode=receive");
+		int cseq = nextCSeq();
+		String request = "SETUP rtsp://"+mParameters.host+":"+mParameters.port+"/"+path+"/trackID="+trackNo+" RTSP/1.0\r\n" +
+				"Transport: RTP/AVP/"+params+"\r\n" +
+				addHeaders(st, cseq);
 
-			mOutputStream.write(request.getBytes("UTF-8"));
-			mOutputStream.flush();
-			Response response = Response.parseResponse(mBufferedReader);
-			Matcher m;
+		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
 
-			if (response.headers.containsKey("session")) {
-				try {
-					m = Response.rexegSession.matcher(response.headers.get("session"));
-					m.find();
-					st.mSessionID = m.group(1);
-				} catch (Exception e) {
-					throw new IllegalStateException("Invalid response from server. Session id: "+st.mSessionID);
-				}
-			}
+		sendRequest(cseq, request, response -> {
+			parseSessionId(st, response);
 			RebroadcastSession.RebroadcastTrackInfo rebroadcastTrackInfo = session.getRebroadcastTrack(trackNo);
 
 			if (mParameters.transport == TRANSPORT_UDP) {
 				try {
-					m = Response.rexegTransport.matcher(response.headers.get("transport")); m.find();
+					Matcher m = Response.rexegTransport.matcher(response.headers.get("transport")); m.find();
 					rebroadcastTrackInfo.setRemotePorts(Integer.parseInt(m.group(3)), Integer.parseInt(m.group(4)));
 					Log.d(TAG, "Setting destination ports: "+Integer.parseInt(m.group(3))+", "+Integer.parseInt(m.group(4)));
 				} catch (Exception e) {
@@ -764,52 +1094,147 @@ public class RtspClient implements StreamingRecordObserver {
 					Log.d(TAG,"Server did not specify ports, using default ports: "+ports[0]+"-"+ports[1]);
 				}
 			} else {
-				throw new IOException("TCP no implementado");
+				rebroadcastTrackInfo.setChannelIdentifier(channelIdentifier);
+				session.setInterleavedChannel(mConnection);
 			}
-		}
+			next.run();
+		}, failure);
 	}
 
 	/**
 	 * Forges and sends the RECORD request
 	 */
-	private void sendRequestRecord(StreamingState st, String path) throws IOException, RuntimeException{
+	private void sendRequestRecord(StreamingState st, final String path, final Runnable next, RequestFailure failure) {
+		int cseq = nextCSeq();
 		String request = "RECORD rtsp://"+mParameters.host+":"+mParameters.port+"/"+path+" RTSP/1.0\r\n" +
 				"Range: npt=0.000-\r\n" +
-				addHeaders(st);
+				addHeaders(st, cseq);
 		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
-		mOutputStream.write(request.getBytes("UTF-8"));
-		mOutputStream.flush();
-		Response response =  Response.parseResponse(mBufferedReader);
-		if (response.status == 403) {
-			Log.d(TAG, "Streaming " + path + " refused by server");
-			throw new RuntimeException("Streaming " + path + " refused by server");
+		sendRequest(cseq, request, response -> {
+			if (response.status == 403) {
+				Log.d(TAG, "Streaming " + path + " refused by server");
+				throw new RuntimeException("Streaming " + path + " refused by server");
+			}
+			next.run();
+		}, failure);
+	}
+
+	/**
+	 * Forges and sends the RECORD of a streaming published before the connection was lost, with
+	 * the Session the server gave it: a server that still holds the session attaches it to the new
+	 * connection and answers 200, any other answer means it has to be published again
+	 */
+	private void sendRequestResume(StreamingState st, final String path, final Runnable resumed, final Runnable lost) {
+		int cseq = nextCSeq();
+		String request = "RECORD rtsp://"+mParameters.host+":"+mParameters.port+"/"+path+" RTSP/1.0\r\n" +
+				addHeaders(st, cseq);
+		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
+		// If the connection is lost again the streaming is suspended again
+		sendRequest(cseq, request, response -> {
+			if (response.status == 200) {
+				Log.d(TAG, "Streaming " + path + " resumed");
+				resumed.run();
+			} else {
+				Log.d(TAG, "Streaming " + path + " not resumed, status " + response.status);
+				lost.run();
+			}
+		}, e -> {});
+	}
+
+	/**
+	 * Forges and sends the SET_PARAMETER request with the catalog of this node, and relays the
+	 * streamings the server asks for in its answer
+	 * @param first The exchange after connecting, the streamings are offered by the observer once it is answered
+	 */
+	private void exchangeCatalog(final boolean first) {
+		String body = CatalogParameters.encodeCatalog(StreamingRecord.getInstance().getCatalog());
+		int cseq = nextCSeq();
+		String request = "SET_PARAMETER rtsp://"+mParameters.host+":"+mParameters.port+"/ RTSP/1.0\r\n" +
+				"CSeq: " + cseq + "\r\n" +
+				"Content-Length: " + body.length() + "\r\n" +
+				(mLinkRttMs >= 0 ? "X-Link-Rtt: " + mLinkRttMs + "\r\n" : "") +
+				"Content-Type: text/parameters\r\n\r\n" +
+				body;
+		final long sentAt = SystemClock.elapsedRealtime();
+		sendRequest(cseq, request, response -> {
+			// The server chooses the parent of each streaming with the link measured here
+			mLinkRttMs = SystemClock.elapsedRealtime() - sentAt;
+			LINK_RTT.record(mLinkRttMs);
+
+			if (response.status != 200) {
+				Log.d(TAG, "Server without catalog support, all the streamings are relayed");
+				mCatalogSupported = false;
+				for (Streaming streaming : StreamingRecord.getInstance().getStreamings()) {
+					if (!mRebroadcastStreamingStates.containsKey(streaming.getUUID())
+							&& StreamingRecord.getInstance().isStreamingDispatchable(streaming.getUUID())) {
+						startRelay(streaming);
+					}
+				}
+			} else {
+				updatePeerInterest(CatalogParameters.decodeInterest(response.body));
+			}
+			if (first) {
+				// The suspended streamings that are not offered again are closed after the offers
+				StreamingRecord.getInstance().addObserver(RtspClient.this, () -> mLoop.post(RtspClient.this::closeSuspended));
+			}
+			if (mCatalogSupported) {
+				mLoop.postDelayed(mCatalogMonitor, CATALOG_INTERVAL_MS);
+			}
+		}, this::onConnectionLost);
+	}
+
+	private void updatePeerInterest(List<UUID> interest) {
+		long now = SystemClock.elapsedRealtime();
+		for (UUID id : interest) {
+			// The local streaming is always sent
+			if (id.equals(mLocalStreamingUUID)) continue;
+			if (mPeerInterest.put(id, now) == null) {
+				// Requests it to our own neighbours in case we are not receiving it yet
+				StreamingRecord.getInstance().acquireDemand(id);
+				Streaming streaming = StreamingRecord.getInstance().getStreaming(id);
+				if (streaming != null && !mRebroadcastStreamingStates.containsKey(id)
+						&& StreamingRecord.getInstance().isStreamingDispatchable(id)) {
+					startRelay(streaming);
+				}
+			}
+		}
+
+		Iterator<Map.Entry<UUID, Long>> it = mPeerInterest.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<UUID, Long> entry = it.next();
+			if (now - entry.getValue() >= INTEREST_GRACE_MS) {
+				it.remove();
+				Log.d(TAG, "Nobody wants " + entry.getKey() + " anymore, stop relaying it");
+				if (mRebroadcastStreamingStates.containsKey(entry.getKey())) {
+					closeStreaming(entry.getKey());
+				}
+				StreamingRecord.getInstance().releaseDemand(entry.getKey());
+			}
 		}
 	}
 
 	/**
-	 * Forges and sends the TEARDOWN request
+	 * Forges and sends the TEARDOWN request, its answer is not waited for
 	 */
-	private void sendRequestTeardown(StreamingState st, String path) throws IOException {
-		String request = "TEARDOWN rtsp://"+mParameters.host+":"+mParameters.port+"/"+path+" RTSP/1.0\r\n" + addHeaders(st);
+	private void sendRequestTeardown(StreamingState st, String path) {
+		int cseq = nextCSeq();
+		String request = "TEARDOWN rtsp://"+mParameters.host+":"+mParameters.port+"/"+path+" RTSP/1.0\r\n" + addHeaders(st, cseq);
 		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
-		mOutputStream.write(request.getBytes("UTF-8"));
-		mOutputStream.flush();
-		Response.parseResponse(mBufferedReader);
+		sendRequest(cseq, request, response -> {}, e -> {});
 	}
 
 	/**
 	 * Forges and sends the OPTIONS request
 	 */
-	private void sendRequestOption(StreamingState st, String path) throws IOException {
-		String request = "OPTIONS rtsp://"+mParameters.host+":"+mParameters.port+"/"+path+" RTSP/1.0\r\n" + addHeaders(st);
+	private void sendRequestOption(StreamingState st, String path, final Runnable next, RequestFailure failure) {
+		int cseq = nextCSeq();
+		String request = "OPTIONS rtsp://"+mParameters.host+":"+mParameters.port+"/"+path+" RTSP/1.0\r\n" + addHeaders(st, cseq);
 		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
-		mOutputStream.write(request.getBytes("UTF-8"));
-		mOutputStream.flush();
-		Response.parseResponse(mBufferedReader);
+		sendRequest(cseq, request, response -> next.run(), failure);
 	}
 
-	private String addHeaders(StreamingState st) {
-		return "CSeq: " + (++st.mCSeq) + "\r\n" +
+	private String addHeaders(StreamingState st, int cseq) {
+		return "CSeq: " + cseq + "\r\n" +
 				"Content-Length: 0\r\n" +
 				(st.mSessionID != null ? "Session: " + st.mSessionID + "\r\n" : "") +
 				// For some reason you may have to remove last "\r\n" in the next line to make the RTSP client work with your wowza server :/
@@ -818,23 +1243,25 @@ public class RtspClient implements StreamingRecordObserver {
 
 	/**
 	 * If the connection with the RTSP server is lost, we try to reconnect to it as
-	 * long as {@link #stop()} is not called.
+	 * long as {@link #stop()} is not called. A server that does not answer in
+	 * {@link RTSPClientSelector#RESPONSE_TIMEOUT_MS} is considered lost.
 	 */
 	protected Runnable mConnectionMonitor = new Runnable() {
 		@Override
 		public void run() {
 			if (mState == STATE_STARTED) {
-				try {
-					// We poll the RTSP server with OPTION requests
-					StreamingState st = new StreamingState();
-					sendRequestOption(st, "");
-					mHandler.postDelayed(mConnectionMonitor, 15000);
-				} catch (IOException e) {
-					// Happens if the OPTION request fails
-					postError(ERROR_CONNECTION_LOST, null);
-					Log.e(TAG, "Connection lost with the server...");
-					restartClient();
-				}
+				// We poll the RTSP server with OPTION requests
+				sendRequestOption(new StreamingState(), "",
+						() -> mLoop.postDelayed(mConnectionMonitor, 15000), RtspClient.this::onConnectionLost);
+			}
+		}
+	};
+
+	protected Runnable mCatalogMonitor = new Runnable() {
+		@Override
+		public void run() {
+			if (mState == STATE_STARTED && mCatalogSupported) {
+				exchangeCatalog(false);
 			}
 		}
 	};
@@ -899,8 +1326,8 @@ public class RtspClient implements StreamingRecordObserver {
 		public static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)",Pattern.CASE_INSENSITIVE);
 		// Parses a WWW-Authenticate header
 		public static final Pattern rexegAuthenticate = Pattern.compile("realm=\"(.+)\",\\s+nonce=\"(\\w+)\"",Pattern.CASE_INSENSITIVE);
-		// Parses a Session header
-		public static final Pattern rexegSession = Pattern.compile("(\\d+)",Pattern.CASE_INSENSITIVE);
+		// Parses a Session header, the id goes up to the parameters (;timeout=...)
+		public static final Pattern rexegSession = Pattern.compile("([^;\\s]+)",Pattern.CASE_INSENSITIVE);
 		// Parses a Transport header
 		public static final Pattern rexegTransport = Pattern.compile("client_port=(\\d+)-(\\d+).+server_port=(\\d+)-(\\d+)",Pattern.CASE_INSENSITIVE);
 
@@ -909,6 +1336,12 @@ public class RtspClient implements StreamingRecordObserver {
 
 		public int status;
 		public Map<String,String> headers = new HashMap<>();
+		public String body;
+
+		/** Parse a response the {@link RTSPClientSelector} received whole */
+		public static Response parseResponse(byte[] data) throws IOException, IllegalStateException {
+			return parseResponse(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data), StandardCharsets.UTF_8)));
+		}
 
 		/** Parse the method, URI & headers of a RTSP request */
 		public static Response parseResponse(BufferedReader input) throws IOException, IllegalStateException, SocketException {
@@ -933,6 +1366,19 @@ public class RtspClient implements StreamingRecordObserver {
 			}
 			if (line==null) throw new SocketException("Connection lost");
 
+			// The body has to be consumed, or it would be parsed as the next response
+			int length = 0;
+			try {
+				if (response.headers.containsKey("content-length")) length = Integer.parseInt(response.headers.get("content-length").trim());
+			} catch (NumberFormatException ignore) {}
+			if (length > 0) {
+				char[] body = new char[length];
+				int read = 0, count;
+				while (read < length && (count = input.read(body, read, length - read)) != -1) read += count;
+				if (read < length) throw new SocketException("Connection lost");
+				response.body = new String(body);
+			}
+
 			Log.d(TAG, "Response from server: "+response.status);
 
 			return response;
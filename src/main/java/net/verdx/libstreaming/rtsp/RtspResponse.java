@@ -16,13 +16,17 @@ public class RtspResponse {
     public static final String STATUS_UNAUTHORIZED = "401 Unauthorized";
     public static final String STATUS_FORBIDDEN = "403 Forbidden";
     public static final String STATUS_NOT_FOUND = "404 Not Found";
+    public static final String STATUS_PARAMETER_NOT_UNDERSTOOD = "451 Parameter Not Understood";
+    public static final String STATUS_SESSION_NOT_FOUND = "454 Session Not Found";
+    public static final String STATUS_UNSUPPORTED_TRANSPORT = "461 Unsupported Transport";
     public static final String STATUS_INTERNAL_SERVER_ERROR = "500 Internal Server Error";
+    public static final String STATUS_SERVICE_UNAVAILABLE = "503 Service Unavailable";
 
     public String status = STATUS_INTERNAL_SERVER_ERROR;
     public String content = "";
     public String attributes = "";
 
-    private final RtspRequest mRequest;
+    private RtspRequest mRequest;
 
     public RtspResponse(RtspRequest request) {
         this.mRequest = request;
@@ -33,6 +37,11 @@ public class RtspResponse {
         mRequest = null;
     }
 
+    /** The request answered, its CSeq is echoed so a client that pipelines can match the response. */
+    public void setRequest(RtspRequest request) {
+        mRequest = request;
+    }
+
     public String build() throws IOException {
         int seqid = -1;
 
@@ -44,7 +53,7 @@ public class RtspResponse {
 
         String response = 	"RTSP/1.0 "+status+"\r\n" +
                 "Server: "+SERVER_NAME+"\r\n" +
-                (seqid>=0?("Cseq: " + seqid + "\r\n"):"") +
+                (seqid>=0?("CSeq: " + seqid + "\r\n"):"") +
                 "Content-Length: " + content.length() + "\r\n" +
                 attributes +
                 "\r\n" +
@@ -1,19 +1,29 @@
 package net.verdx.libstreaming.sessions;
 
-import android.os.HandlerThread;
+import android.util.Log;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.channels.SelectableChannel;
 import java.util.Random;
+import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import net.verdx.libstreaming.StreamingRecord;
+import net.verdx.libstreaming.relay.GopCache;
+import net.verdx.libstreaming.relay.RelayTrack;
+import net.verdx.libstreaming.rtp.EgressScheduler;
+import net.verdx.libstreaming.rtp.H264Depacketizer;
+import net.verdx.libstreaming.rtp.InterleavedChannel;
+import net.verdx.libstreaming.rtp.RtpReceiver;
+
 import static java.util.UUID.randomUUID;
 
 public class RebroadcastSession {
 
-    public final static String TAG = "ReceiveSession";
+    public final static String TAG = "RebroadcastSession";
 
     private InetAddress mOrigin;
     private boolean mOriginIPv6;
@@ -25,11 +35,9 @@ public class RebroadcastSession {
     private RebroadcastTrackInfo mVideoRebroadcastTrackInfo;
     private RebroadcastTrackInfo mAudioRebroadcastTrackInfo;
     private ReceiveSession mReceiveSession;
-    private SelectableChannel rtcpVideoTrackChannel;
-    private SelectableChannel rtpVideoTrackChannel;
-    private SelectableChannel rtcpAudioTrackChannel;
-    private SelectableChannel rtpAudioTrackChannel;
+    private final RelayTrack[] mRelayTracks = new RelayTrack[2];
     private SelectableChannel mRtspChannel;
+    private InterleavedChannel mInterleavedChannel;
     public String mStreamingName;
 
     /**
@@ -38,9 +46,6 @@ public class RebroadcastSession {
     public RebroadcastSession() {
         long uptime = System.currentTimeMillis();
 
-        HandlerThread thread = new HandlerThread("net.verdx.libstreaming.sessions.Session");
-        thread.start();
-
         mTimestamp = (uptime/1000)<<32 & (((uptime-((uptime/1000)*1000))>>32)/1000); // NTP timestamp
         try {
             mOrigin = InetAddress.getByName("127.0.0.1");
@@ -89,6 +94,11 @@ public class RebroadcastSession {
         return mRtspChannel;
     }
 
+    /** RTSP connection the tracks set up with RTP/AVP/TCP are interleaved in. */
+    public synchronized void setInterleavedChannel(InterleavedChannel channel) {
+        mInterleavedChannel = channel;
+    }
+
     /**
      * Returns a Session Description that can be stored in a file or sent to a client with RTSP.
      * @return The Session Description.
@@ -146,12 +156,8 @@ public class RebroadcastSession {
 
     /** Stops all existing streams. */
     public void stop() {
-        if(serverTrackExists(0)) {
-            getServerTrack(0).removeSession(rtcpVideoTrackChannel,rtpVideoTrackChannel);
-        }
-
-        if(serverTrackExists(1)) {
-            getServerTrack(1).removeSession(rtcpAudioTrackChannel,rtpAudioTrackChannel);
+        for (int trackId = 0; trackId < mRelayTracks.length; trackId++) {
+            stopTrack(trackId);
         }
     }
 
@@ -179,34 +185,74 @@ public class RebroadcastSession {
             return mVideoRebroadcastTrackInfo;
     }
 
-    public void startTrack(int trackId) {
-        if (trackId == 0 && serverTrackExists(0)){
-            rtcpAudioTrackChannel = getServerTrack(0).addRtcpEchoSession(
-                    getDestination().getHostAddress(),
-                    getRebroadcastTrack(0).getRemoteRctpPort()
-            );
+    /**
+     * Starts relaying a track of the received streaming to the destination, through its own
+     * {@link RelayTrack} fed from the bus of StreamingRecord. The video starts with the GOP
+     * cached by the receiving track.
+     */
+    public synchronized void startTrack(int trackId) {
+        if (trackId < 0 || trackId >= mRelayTracks.length || !serverTrackExists(trackId) || mRelayTracks[trackId] != null) return;
+
+        RtpReceiver receiver = getServerTrack(trackId).getRtpReceiver();
+        int clockRate = receiver != null ? receiver.getDepacketizer().getClockRate() : 90000;
+        RebroadcastTrackInfo trackInfo = getRebroadcastTrack(trackId);
+        try {
+            boolean video = receiver != null ? receiver.getDepacketizer() instanceof H264Depacketizer : trackId == 1;
+            int priority = video ? EgressScheduler.PRIORITY_VIDEO_BASE : EgressScheduler.PRIORITY_AUDIO;
+            RelayTrack relayTrack = trackInfo.getChannelIdentifier() >= 0 && mInterleavedChannel != null
+                    ? new RelayTrack(mInterleavedChannel, trackInfo.getChannelIdentifier(), clockRate, priority)
+                    : new RelayTrack(getDestination(), trackInfo.getRemoteRtpPort(), trackInfo.getRemoteRctpPort(), clockRate, priority);
+            relayTrack.setUpstream(receiver);
+            relayTrack.start();
+            final UUID id = UUID.fromString(getPath());
+            GopCache gopCache = getServerTrack(trackId).getGopCache();
+            if (gopCache != null) {
+                // The destination starts on the last keyframe, paced like the live packets
+                gopCache.replay(relayTrack, () -> StreamingRecord.getInstance().subscribePackets(id, trackId, relayTrack));
+            } else {
+                StreamingRecord.getInstance().subscribePackets(id, trackId, relayTrack);
+            }
+            mRelayTracks[trackId] = relayTrack;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not relay track " + trackId + " to " + getDestination().getHostAddress(), e);
+        }
+    }
+
+    public synchronized void stopTrack(int trackId) {
+        RelayTrack relayTrack = mRelayTracks[trackId];
+        if (relayTrack == null) return;
+        StreamingRecord.getInstance().unsubscribePackets(UUID.fromString(getPath()), trackId, relayTrack);
+        relayTrack.release();
+        mRelayTracks[trackId] = null;
+    }
 
-            rtpAudioTrackChannel = getServerTrack(0).addRtpEchoSession(
-                    getDestination().getHostAddress(),
-                    getRebroadcastTrack(0).getRemoteRtpPort()
-            );
+    /** Last RTCP packet the viewer sent on any track, in ns of {@link System#nanoTime()}, 0 if none. */
+    public synchronized long getLastReportNs() {
+        long last = 0;
+        for (RelayTrack relayTrack : mRelayTracks) {
+            if (relayTrack != null) last = Math.max(last, relayTrack.getLastReportNs());
         }
-        if (trackId == 1 && serverTrackExists(1)){
-            rtcpVideoTrackChannel = getServerTrack(1).addRtcpEchoSession(
-                    getDestination().getHostAddress(),
-                    getRebroadcastTrack(1).getRemoteRctpPort()
-            );
+        return last;
+    }
 
-            rtpVideoTrackChannel = getServerTrack(1).addRtpEchoSession(
-                    getDestination().getHostAddress(),
-                    getRebroadcastTrack(1).getRemoteRtpPort()
-            );
+    /** Hands a RTCP packet interleaved in the RTSP connection to the track it reports on. */
+    public synchronized void receiveInterleavedReport(int channelIdentifier, byte[] buffer, int offset, int length) {
+        for (RelayTrack relayTrack : mRelayTracks) {
+            if (relayTrack != null && relayTrack.getChannelIdentifier() >= 0 && relayTrack.getChannelIdentifier() + 1 == channelIdentifier) {
+                relayTrack.receiveReport(buffer, offset, length);
+            }
         }
     }
 
+    /** @return The track relaying to the destination, or null if it has not been set up */
+    public synchronized RelayTrack getRelayTrack(int trackId) {
+        return trackId >= 0 && trackId < mRelayTracks.length ? mRelayTracks[trackId] : null;
+    }
+
     public static class RebroadcastTrackInfo {
         private int mRemoteRtpPort;
         private int mRemoteRtcpPort;
+        private int mChannelIdentifier = -1;
 
         public RebroadcastTrackInfo() {
             setRemotePorts(18000 + new Random().nextInt(2000));
@@ -242,5 +288,15 @@ public class RebroadcastSession {
             mRemoteRtpPort = rtpPort;
             mRemoteRtcpPort = rtcpPort;
         }
+
+        /** Sends the track interleaved in the RTSP connection, RTP on this channel and RTCP on the next. */
+        public void setChannelIdentifier(int channelIdentifier) {
+            mChannelIdentifier = channelIdentifier;
+        }
+
+        /** Interleaved channel of the RTP packets, -1 if the track goes over UDP. */
+        public int getChannelIdentifier() {
+            return mChannelIdentifier;
+        }
     }
 }
@@ -1,11 +1,13 @@
 package net.verdx.libstreaming.sessions;
 
 import android.net.Network;
-import android.os.HandlerThread;
 
 import java.io.IOException;
 import java.net.InetAddress;
 
+import net.verdx.libstreaming.rtp.AccessUnitListener;
+import net.verdx.libstreaming.rtp.RtpReceiver;
+
 import static java.util.UUID.randomUUID;
 
 public class ReceiveSession {
@@ -31,9 +33,6 @@ public class ReceiveSession {
     public ReceiveSession() {
         long uptime = System.currentTimeMillis();
 
-        HandlerThread thread = new HandlerThread("net.verdx.libstreaming.sessions.Session");
-        thread.start();
-
         mSessionID = randomUUID().toString();
         path = "";
         mReceiveNet = null;
@@ -140,10 +139,37 @@ public class ReceiveSession {
             return mVideoTrackInfo;
     }
 
+    /**
+     * Registers an in-process consumer of the access units received on a track.
+     * @param id 0 for audio, 1 for video
+     * @return false if the track does not exist or its codec can not be depacketized
+     */
+    public boolean addAccessUnitListener(int id, AccessUnitListener listener) {
+        if(!trackExists(id)) return false;
+        RtpReceiver receiver = getTrack(id).getRtpReceiver();
+        if(receiver == null) return false;
+        receiver.addListener(listener);
+        return true;
+    }
+
+    public void removeAccessUnitListener(int id, AccessUnitListener listener) {
+        if(!trackExists(id)) return;
+        RtpReceiver receiver = getTrack(id).getRtpReceiver();
+        if(receiver != null) receiver.removeListener(listener);
+    }
+
     public void release(){
 
     }
 
+    /** Arrival of the last RTP packet of any track, in ns of {@link System#nanoTime()}, 0 if none. */
+    public long getLastPacketNs() {
+        long last = 0;
+        if(trackExists(0)) last = Math.max(last, mAudioTrackInfo.getLastPacketNs());
+        if(trackExists(1)) last = Math.max(last, mVideoTrackInfo.getLastPacketNs());
+        return last;
+    }
+
     public String getTimeout() {
         return "60";
     }
@@ -21,7 +21,6 @@ package net.verdx.libstreaming.sessions;
 import static java.util.UUID.randomUUID;
 
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 
 import java.io.IOException;
@@ -29,6 +28,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.UUID;
 
+import net.verdx.libstreaming.MediaStream;
 import net.verdx.libstreaming.Stream;
 import net.verdx.libstreaming.audio.AudioQuality;
 import net.verdx.libstreaming.audio.AudioStream;
@@ -36,7 +36,11 @@ import net.verdx.libstreaming.exceptions.CameraInUseException;
 import net.verdx.libstreaming.exceptions.ConfNotSupportedException;
 import net.verdx.libstreaming.exceptions.InvalidSurfaceException;
 import net.verdx.libstreaming.exceptions.StorageUnavailableException;
+import net.verdx.libstreaming.rtp.RtpSocket;
 import net.verdx.libstreaming.rtsp.RtspClient;
+import net.verdx.libstreaming.threads.EventLoop;
+import net.verdx.libstreaming.threads.SessionExecutor;
+import net.verdx.libstreaming.video.H264Stream;
 import net.verdx.libstreaming.video.VideoQuality;
 import net.verdx.libstreaming.video.VideoStream;
 import inet.ipaddr.HostName;
@@ -118,8 +122,9 @@ public class Session {
 	private Callback mCallback;
 	private Handler mMainHandler;
 
-	private Handler mHandler;
+	private final EventLoop mLoop;
 	private UUID mStreamUUID;
+	private String mMediaDescription = null;
 
 	/** 
 	 * Creates a streaming session that can be customized by adding tracks.
@@ -127,10 +132,7 @@ public class Session {
 	public Session() {
 		long uptime = System.currentTimeMillis();
 
-		HandlerThread thread = new HandlerThread("net.verdx.libstreaming.sessions.Session");
-		thread.start();
-
-		mHandler = new Handler(thread.getLooper());
+		mLoop = SessionExecutor.getInstance().newLoop(TAG);
 		mMainHandler = new Handler(Looper.getMainLooper());
 		mTimestamp = (uptime/1000)<<32 & (((uptime-((uptime/1000)*1000))>>32)/1000); // NTP timestamp
 		mSessionID = randomUUID().toString();
@@ -362,17 +364,77 @@ public class Session {
 		// t=0 0 means the session is permanent (we don't know when it will stop)
 		sessionDescription.append("t=0 0\r\n");
 		sessionDescription.append("a=recvonly\r\n");
+		sessionDescription.append(mMediaDescription != null ? mMediaDescription : getMediaDescription());
+
+		return sessionDescription.toString();
+	}
+
+	/**
+	 * Returns the media sections of the Session Description, one per track.
+	 * The streams need to be configured first.
+	 */
+	public String getMediaDescription() {
+		StringBuilder mediaDescription = new StringBuilder();
 		// Prevents two different sessions from using the same peripheral at the same time
 		if (mAudioStream != null) {
-			sessionDescription.append(mAudioStream.getSessionDescription());
-			sessionDescription.append("a=control:trackID="+0+"\r\n");
+			mediaDescription.append(mAudioStream.getSessionDescription());
+			mediaDescription.append("a=control:trackID="+0+"\r\n");
 		}
 		if (mVideoStream != null) {
-			sessionDescription.append(mVideoStream.getSessionDescription());
-			sessionDescription.append("a=control:trackID="+1+"\r\n");
+			mediaDescription.append(mVideoStream.getSessionDescription());
+			mediaDescription.append("a=control:trackID="+1+"\r\n");
 		}
+		return mediaDescription.toString();
+	}
 
-		return sessionDescription.toString();
+	/**
+	 * Configures the streams like {@link #syncConfigure()} and returns what another session
+	 * with the same configuration can reuse with {@link #setDescription(SessionDescriptionCache.Description)}.
+	 */
+	public SessionDescriptionCache.Description syncConfigureDescription() throws IOException {
+		syncConfigure();
+		H264Stream h264 = mVideoStream instanceof H264Stream ? (H264Stream) mVideoStream : null;
+		return new SessionDescriptionCache.Description(getMediaDescription(), h264 != null ? h264.getConfig() : null);
+	}
+
+	/**
+	 * Takes the description of a session configured before with the same configuration:
+	 * the session can be described without configuring the streams, and the H.264 stream
+	 * does not test the encoder again when it starts. The ports in the media sections are
+	 * the ones of that session, the client gives its own in the SETUP.
+	 */
+	public void setDescription(SessionDescriptionCache.Description description) {
+		mMediaDescription = description.getMediaDescription();
+		if (mVideoStream instanceof H264Stream && description.getVideoConfig() != null) {
+			((H264Stream) mVideoStream).setConfig(description.getVideoConfig());
+		}
+	}
+
+	/** Called on the loop of the session once {@link #describe(UUID, String, DescribeCallback)} finishes. */
+	public interface DescribeCallback {
+		/** @param error Why the session could not be described, null if it was */
+		void onDescribed(Exception error);
+	}
+
+	/**
+	 * Takes the description of the streaming from the {@link SessionDescriptionCache}, configuring
+	 * the session if there is none for that configuration. Runs on the loop of the session, so the
+	 * thread that asks for it does not wait for the encoders.
+	 */
+	public void describe(final UUID streamingId, final String configurationKey, final DescribeCallback callback) {
+		mLoop.post(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					setDescription(SessionDescriptionCache.getInstance()
+							.get(streamingId, configurationKey, Session.this::syncConfigureDescription));
+				} catch (Exception e) {
+					callback.onDescribed(e);
+					return;
+				}
+				callback.onDescribed(null);
+			}
+		});
 	}
 
 	public String getSessionID() {
@@ -393,6 +455,25 @@ public class Session {
 		return sum;
 	}
 
+	/** Returns when the receiver sent its last RTCP packet on any track, in ns of {@link System#nanoTime()}, 0 if never. */
+	public long getLastReportNs() {
+		long last = 0;
+		if (mAudioStream != null) last = Math.max(last, mAudioStream.getPacketizer().getRtpSocket().getLastReportNs());
+		if (mVideoStream != null) last = Math.max(last, mVideoStream.getPacketizer().getRtpSocket().getLastReportNs());
+		return last;
+	}
+
+	/** Hands a RTCP packet interleaved in the RTSP connection to the track it reports on. */
+	public void receiveInterleavedReport(int channelIdentifier, byte[] buffer, int offset, int length) {
+		for (MediaStream stream : new MediaStream[] {mAudioStream, mVideoStream}) {
+			if (stream == null) continue;
+			RtpSocket socket = stream.getPacketizer().getRtpSocket();
+			if (socket.getChannelIdentifier() >= 0 && socket.getChannelIdentifier() + 1 == channelIdentifier) {
+				socket.receiveReport(buffer, offset, length);
+			}
+		}
+	}
+
 	/** Indicates if a track is currently running. */
 	public boolean isStreaming() {
 		return (mAudioStream!=null && mAudioStream.isStreaming()) || (mVideoStream!=null && mVideoStream.isStreaming());
@@ -402,7 +483,7 @@ public class Session {
 	 * Configures all streams of the session.
 	 **/
 	public void configure() {
-		mHandler.post(new Runnable() {
+		mLoop.post(new Runnable() {
 			@Override
 			public void run() {
 				try {
@@ -459,7 +540,7 @@ public class Session {
 	 * Asynchronously starts all streams of the session.
 	 **/
 	public void start() {
-		mHandler.post(new Runnable() {
+		mLoop.post(new Runnable() {
 			@Override
 			public void run() {
 				try {
@@ -492,7 +573,7 @@ public class Session {
 					postSessionStarted();
 				}
 				if (getTrack(1-id) == null || !getTrack(1-id).isStreaming()) {
-					mHandler.post(mUpdateBitrate);
+					mLoop.post(mUpdateBitrate);
 				}
 			} catch (UnknownHostException e) {
 				postError(ERROR_UNKNOWN_HOST, id, e);
@@ -547,7 +628,7 @@ public class Session {
 
 	/** Stops all existing streams. */
 	public void stop() {
-		mHandler.post(new Runnable() {
+		mLoop.post(new Runnable() {
 			@Override
 			public void run() {
 				syncStop();
@@ -579,7 +660,7 @@ public class Session {
 	public void release() {
 		removeAudioTrack();
 		removeVideoTrack();
-		mHandler.getLooper().quit();
+		mLoop.quit();
 	}
 
 	private void postPreviewStarted() {
@@ -653,7 +734,7 @@ public class Session {
 		public void run() {
 			if (isStreaming()) { 
 				postBitRate(getBitrate());
-				mHandler.postDelayed(mUpdateBitrate, 500);
+				mLoop.postDelayed(mUpdateBitrate, 500);
 			} else {
 				postBitRate(0);
 			}
@@ -22,8 +22,11 @@ import net.verdx.libstreaming.audio.AACStream;
 import net.verdx.libstreaming.audio.AMRNBStream;
 import net.verdx.libstreaming.audio.AudioQuality;
 import net.verdx.libstreaming.audio.AudioStream;
+import net.verdx.libstreaming.congestion.CongestionController;
+import net.verdx.libstreaming.rtp.AbstractPacketizer;
 import net.verdx.libstreaming.video.H263Stream;
 import net.verdx.libstreaming.video.H264Stream;
+import net.verdx.libstreaming.video.VideoPacketizerDispatcher;
 import net.verdx.libstreaming.video.VideoQuality;
 import net.verdx.libstreaming.video.VideoStream;
 
@@ -62,6 +65,7 @@ public class SessionBuilder {
 	private int mVideoEncoder = VIDEO_H264;
 	private int mAudioEncoder = AUDIO_AAC;
 	private int mTimeToLive = 64;
+	private boolean mCongestionControl = false;
 	private int mOrientation = 0;
 	private String mOrigin = null;
 	private String mDestination = null;
@@ -129,6 +133,12 @@ public class SessionBuilder {
 			video.setStreamingMethod(VideoStream.MODE_MEDIACODEC_API_2);
 			video.setVideoQuality(mVideoQuality);
 			video.setDestinationPorts(5000 + (int)(Math.random()*1000));
+			if (mCongestionControl) {
+				final AbstractPacketizer packetizer = video.getPacketizer();
+				CongestionController controller = new CongestionController(mVideoQuality.bitrate);
+				controller.setTargetBitrateListener(bitrate -> VideoPacketizerDispatcher.requestBitrate(packetizer, bitrate));
+				packetizer.getRtpSocket().setCongestionController(controller);
+			}
 		}
 
 		if (session.getAudioTrack()!=null) {
@@ -190,6 +200,15 @@ public class SessionBuilder {
 		mTimeToLive = ttl;
 		return this;
 	}
+
+	/**
+	 * Enables the congestion control of the video: the receiver returns the arrival of each
+	 * packet and the estimated bandwidth paces the packets and sets the bitrate of the encoder.
+	 */
+	public SessionBuilder setCongestionControl(boolean enabled) {
+		mCongestionControl = enabled;
+		return this;
+	}
 	
 	/** 
 	 * Sets the orientation of the preview.
@@ -246,6 +265,20 @@ public class SessionBuilder {
 		return mTimeToLive;
 	}
 
+	/** Returns true if the congestion control was enabled with {@link #setCongestionControl(boolean)}. */
+	public boolean getCongestionControl() {
+		return mCongestionControl;
+	}
+
+	/**
+	 * Returns a key of what the session description depends on: the encoders and their quality.
+	 * Two builders with the same key build sessions with the same SDP, except for the addresses.
+	 */
+	public String getConfigurationKey() {
+		return "v"+mVideoEncoder+":"+mVideoQuality.resX+"x"+mVideoQuality.resY+"@"+mVideoQuality.framerate+","+mVideoQuality.bitrate+
+				";a"+mAudioEncoder+":"+mAudioQuality.samplingRate+","+mAudioQuality.bitRate;
+	}
+
 	/** Returns a new {@link SessionBuilder} with the same configuration. */
 	public SessionBuilder clone() {
 		return new SessionBuilder()
@@ -258,6 +291,7 @@ public class SessionBuilder {
 		.setAudioEncoder(mAudioEncoder)
 		.setAudioQuality(mAudioQuality)
 		.setContext(mContext)
+		.setCongestionControl(mCongestionControl)
 		.setCallback(mCallback);
 	}
 
@@ -0,0 +1,121 @@
+package net.verdx.libstreaming.sessions;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import net.verdx.libstreaming.mp4.MP4Config;
+
+/**
+ * Descripcion ya configurada del streaming local, para que un DESCRIBE no tenga que volver a
+ * configurar los streams: con H.264 eso prueba el encoder (EncoderDebugger) y saca el SPS y el
+ * PPS antes de poder contestar. Se guarda por UUID del streaming y configuracion del encoder
+ * ({@link SessionBuilder#getConfigurationKey()}), asi que un cambio de calidad o de encoder no
+ * encuentra la entrada vieja; al quitar o cambiar el streaming local se invalida.
+ *
+ * Si llegan varios DESCRIBE a la vez sin entrada, solo el primero configura y el resto espera
+ * su resultado. Un fallo no se guarda, el siguiente DESCRIBE lo vuelve a intentar.
+ */
+public class SessionDescriptionCache {
+
+    public final static String TAG = "SessionDescriptionCache";
+
+    /** What a session configured before leaves for the next ones with the same configuration. */
+    public static class Description {
+        private final String mMediaDescription;
+        private final MP4Config mVideoConfig;
+
+        /**
+         * @param mediaDescription The media sections of the SDP, see {@link Session#getMediaDescription()}
+         * @param videoConfig Profile, SPS and PPS of the H.264 track, null if there is none
+         */
+        public Description(String mediaDescription, MP4Config videoConfig) {
+            mMediaDescription = mediaDescription;
+            mVideoConfig = videoConfig;
+        }
+
+        public String getMediaDescription() {
+            return mMediaDescription;
+        }
+
+        public MP4Config getVideoConfig() {
+            return mVideoConfig;
+        }
+    }
+
+    /** Configures a session when there is no description yet. */
+    public interface Loader {
+        Description load() throws IOException;
+    }
+
+    private static class Entry {
+        final String configurationKey;
+        final FutureTask<Description> task;
+
+        Entry(String configurationKey, FutureTask<Description> task) {
+            this.configurationKey = configurationKey;
+            this.task = task;
+        }
+    }
+
+    private static SessionDescriptionCache INSTANCE = null;
+
+    /** One entry per streaming, the one of its current configuration. */
+    private final Map<UUID, Entry> mEntries = new ConcurrentHashMap<>();
+
+    SessionDescriptionCache() {}
+
+    public static synchronized SessionDescriptionCache getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new SessionDescriptionCache();
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the description of the streaming with this configuration, running the loader if
+     * there is none. Concurrent calls without entry wait for the same load.
+     */
+    public Description get(UUID id, String configurationKey, final Loader loader) throws IOException {
+        Entry entry = mEntries.get(id);
+        boolean owner = false;
+        if (entry == null || !entry.configurationKey.equals(configurationKey)) {
+            final Entry created = new Entry(configurationKey, new FutureTask<>(loader::load));
+            entry = mEntries.compute(id, (key, current) ->
+                    current != null && current.configurationKey.equals(configurationKey) ? current : created);
+            owner = entry == created;
+        }
+        if (owner) entry.task.run();
+        try {
+            return entry.task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while the session was configured", e);
+        } catch (ExecutionException e) {
+            // Not kept, the next request tries again
+            mEntries.remove(id, entry);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /** True if the description of the streaming with this configuration is ready. */
+    public boolean contains(UUID id, String configurationKey) {
+        Entry entry = mEntries.get(id);
+        return entry != null && entry.configurationKey.equals(configurationKey) && entry.task.isDone();
+    }
+
+    /** Forgets the description of a streaming, the next DESCRIBE configures it again. */
+    public void invalidate(UUID id) {
+        if (id != null) mEntries.remove(id);
+    }
+
+    public void clear() {
+        mEntries.clear();
+    }
+}
@@ -4,9 +4,13 @@ import android.net.Network;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.nio.channels.SelectableChannel;
 import java.util.Random;
 
+import net.verdx.libstreaming.relay.GopCache;
+import net.verdx.libstreaming.rtcp.ReceiverReporter;
+import net.verdx.libstreaming.rtcp.ReceptionStatistics;
+import net.verdx.libstreaming.rtp.H264Depacketizer;
+import net.verdx.libstreaming.rtp.RtpReceiver;
 import net.verdx.libstreaming.threads.selectors.UDPServerSelector;
 
 public class TrackInfo {
@@ -18,6 +22,9 @@ public class TrackInfo {
 
     private UDPServerSelector mRtpUdpServer;
     private UDPServerSelector mRtcpUdpServer;
+    private RtpReceiver mRtpReceiver;
+    private GopCache mGopCache;
+    private ReceiverReporter mReceiverReporter;
 
     private InetAddress mLocalAddress;
 
@@ -35,10 +42,22 @@ public class TrackInfo {
     }
 
     public void startServer(Network receiveNet) throws IOException {
+        RtpReceiver receiver = getRtpReceiver();
+
         mRtcpUdpServer = new UDPServerSelector(mLocalAddress, mLocalRtcpPort, receiveNet, null);
+        if(receiver != null) {
+            mReceiverReporter = new ReceiverReporter(receiver, mRtcpUdpServer);
+            receiver.addPacketListener(mReceiverReporter);
+            mRtcpUdpServer.setRtcpListener(mReceiverReporter);
+        }
         mRtcpUdpServer.start();
 
         mRtpUdpServer = new UDPServerSelector(mLocalAddress, mLocalRtpPort, receiveNet, null);
+        if(receiver != null && receiver.getDepacketizer() instanceof H264Depacketizer) {
+            mGopCache = new GopCache();
+            receiver.addPacketListener(mGopCache);
+        }
+        mRtpUdpServer.setRtpReceiver(receiver);
         mRtpUdpServer.start();
     }
 
@@ -52,36 +71,48 @@ public class TrackInfo {
             mRtpUdpServer.stop();
             mRtpUdpServer = null;
         }
-    }
 
-    public SelectableChannel addRtcpEchoSession(String address, int rtcpPort) {
-        SelectableChannel channel = null;
-        try {
-            channel = mRtcpUdpServer.addConnectionUDP(InetAddress.getByName(address), rtcpPort);
-        } catch (IOException | NullPointerException e) {
-            e.printStackTrace();
+        if(mRtpReceiver != null) {
+            mRtpReceiver.flush();
+            mRtpReceiver.reset();
         }
-        return channel;
-    }
 
-    public SelectableChannel addRtpEchoSession(String address, int rtpPort) {
-        SelectableChannel channel = null;
-        try {
-            channel = mRtpUdpServer.addConnectionUDP(InetAddress.getByName(address), rtpPort);
-        } catch (IOException | NullPointerException e) {
-            e.printStackTrace();
+        if(mReceiverReporter != null) {
+            if(mRtpReceiver != null) mRtpReceiver.removePacketListener(mReceiverReporter);
+            mReceiverReporter = null;
         }
-        return channel;
-    }
 
-    public void removeSession(SelectableChannel rtcpChannel, SelectableChannel rtpChannel) {
-        if(mRtcpUdpServer != null && rtcpChannel != null) {
-            mRtcpUdpServer.disconnectClient(rtcpChannel);
+        if(mGopCache != null) {
+            if(mRtpReceiver != null) mRtpReceiver.removePacketListener(mGopCache);
+            mGopCache.clear();
+            mGopCache = null;
         }
+    }
+
+    /**
+     * Receive pipeline (jitter buffer + depacketizer) of this track, created from its session description.
+     * @return The receiver or null if the codec of the track is not supported
+     */
+    /** Arrival of the last RTP packet of the track, in ns of {@link System#nanoTime()}, 0 if none. */
+    public synchronized long getLastPacketNs() {
+        if(mRtpReceiver == null) return 0;
+        ReceptionStatistics statistics = mRtpReceiver.getCurrentStatistics();
+        return statistics != null ? statistics.getLastPacketNs() : 0;
+    }
 
-        if(mRtpUdpServer != null && rtpChannel != null) {
-            mRtpUdpServer.disconnectClient(rtpChannel);
+    public synchronized RtpReceiver getRtpReceiver() {
+        if(mRtpReceiver == null) {
+            mRtpReceiver = RtpReceiver.fromSessionDescription(mSessionDescription);
         }
+        return mRtpReceiver;
+    }
+
+    /**
+     * Packets of the received video since its last keyframe, replayed to new relay destinations.
+     * @return The cache, or null if the track is not H.264 or is not being received
+     */
+    public GopCache getGopCache() {
+        return mGopCache;
     }
 
     public int[] getRemotePorts() {
@@ -0,0 +1,126 @@
+package net.verdx.libstreaming.threads;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Cola serie de tareas sobre el pool de {@link SessionExecutor}, con la misma semantica que
+ * un Handler con su Looper: las tareas se ejecutan en el orden en que se encolan, nunca dos a la
+ * vez, y las diferidas entran en la cola cuando vence su retardo. Ningun hilo queda asociado al
+ * loop, solo se ocupa uno del pool mientras hay tareas pendientes.
+ */
+public class EventLoop {
+
+    public final static String TAG = "EventLoop";
+
+    private final SessionExecutor mExecutor;
+    private final String mName;
+
+    private final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+    private final Map<Runnable, List<ScheduledFuture<?>>> mDelayed = new HashMap<>();
+    private boolean mRunning = false;
+    private boolean mQuit = false;
+    private volatile Thread mThread;
+
+    EventLoop(SessionExecutor executor, String name) {
+        mExecutor = executor;
+        mName = name;
+    }
+
+    /** @return False if the loop has been quit and the task will not run */
+    public synchronized boolean post(Runnable task) {
+        if (mQuit) return false;
+        mQueue.add(task);
+        if (!mRunning) {
+            mRunning = true;
+            mExecutor.execute(this::drain);
+        }
+        return true;
+    }
+
+    /** @return False if the loop has been quit and the task will not run */
+    public synchronized boolean postDelayed(final Runnable task, long delayMs) {
+        if (mQuit) return false;
+        if (delayMs <= 0) return post(task);
+        final ScheduledFuture<?>[] future = new ScheduledFuture<?>[1];
+        future[0] = mExecutor.schedule(() -> {
+            synchronized (EventLoop.this) {
+                List<ScheduledFuture<?>> futures = mDelayed.get(task);
+                if (futures == null || !futures.remove(future[0])) return;
+                if (futures.isEmpty()) mDelayed.remove(task);
+                post(task);
+            }
+        }, delayMs);
+        List<ScheduledFuture<?>> futures = mDelayed.get(task);
+        if (futures == null) {
+            futures = new ArrayList<>(1);
+            mDelayed.put(task, futures);
+        }
+        futures.add(future[0]);
+        return true;
+    }
+
+    /** Removes the pending runs of a task, queued or delayed. */
+    public synchronized void removeCallbacks(Runnable task) {
+        while (mQueue.remove(task)) ;
+        List<ScheduledFuture<?>> futures = mDelayed.remove(task);
+        if (futures != null) {
+            for (ScheduledFuture<?> future : futures) future.cancel(false);
+        }
+    }
+
+    /** Stops the loop, the tasks pending are discarded. */
+    public synchronized void quit() {
+        mQueue.clear();
+        quitSafely();
+    }
+
+    /** Stops the loop once the tasks already queued have run, the delayed ones are discarded. */
+    public synchronized void quitSafely() {
+        if (mQuit) return;
+        mQuit = true;
+        for (List<ScheduledFuture<?>> futures : mDelayed.values()) {
+            for (ScheduledFuture<?> future : futures) future.cancel(false);
+        }
+        mDelayed.clear();
+        mExecutor.onLoopQuit();
+    }
+
+    public synchronized boolean isQuit() {
+        return mQuit;
+    }
+
+    /** True if the caller is running a task of this loop. */
+    public boolean isCurrentThread() {
+        return mThread == Thread.currentThread();
+    }
+
+    private void drain() {
+        mThread = Thread.currentThread();
+        try {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = mQueue.poll();
+                    if (task == null) {
+                        mRunning = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Task of " + mName + " failed", e);
+                }
+            }
+        } finally {
+            mThread = null;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package net.verdx.libstreaming.threads;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.verdx.libstreaming.metrics.MetricsRegistry;
+
+/**
+ * Pool compartido donde corren las maquinas de estado de las sesiones y de los clientes RTSP.
+ * Antes cada Session, ReceiveSession, RebroadcastSession y RtspClient arrancaba su HandlerThread
+ * y casi ninguno lo paraba, asi que un nodo que reenvia durante dias acumulaba cientos de hilos.
+ *
+ * Cada sesion o cliente pide su {@link EventLoop} con {@link #newLoop(String)}: las tareas de un mismo loop
+ * se ejecutan en orden y de una en una, como con un Handler, pero los hilos son los del pool.
+ * Los hilos que llevan un rato sin trabajo se cierran, el numero de hilos depende de la carga y
+ * no de cuantas sesiones se han creado.
+ */
+public class SessionExecutor {
+
+    public final static String TAG = "SessionExecutor";
+
+    /**
+     * Threads of the pool. The RTSP clients no longer block on their sockets, they share the
+     * thread of the {@link net.verdx.libstreaming.threads.selectors.RTSPClientSelector}, so the
+     * loops only hold a thread for long while a session starts or the encoders are configured.
+     * Four threads leave room for a couple of those without delaying the rest of the loops, and
+     * more threads than cores would only compete for the CPU.
+     */
+    public static final int POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private static final long KEEP_ALIVE_S = 30;
+
+    private static SessionExecutor INSTANCE = null;
+
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private final AtomicInteger mThreadCount = new AtomicInteger();
+    private final AtomicInteger mLoopCount = new AtomicInteger();
+
+    private SessionExecutor() {
+        final AtomicInteger index = new AtomicInteger();
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(() -> {
+                mThreadCount.incrementAndGet();
+                try {
+                    runnable.run();
+                } finally {
+                    mThreadCount.decrementAndGet();
+                }
+            }, "SessionExecutor-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        mExecutor = new ScheduledThreadPoolExecutor(POOL_SIZE, factory);
+        mExecutor.setKeepAliveTime(KEEP_ALIVE_S, TimeUnit.SECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+        // Cancelled delayed tasks, like the monitors of a stopped client, do not stay in the queue
+        mExecutor.setRemoveOnCancelPolicy(true);
+
+        MetricsRegistry.getInstance().register("executor", gauges -> {
+            gauges.put("threads", (double) getThreadCount());
+            gauges.put("loops", (double) getLoopCount());
+            gauges.put("queued_tasks", (double) getQueuedTaskCount());
+        });
+        MetricsRegistry.getInstance().register("threads.process", () -> Thread.activeCount());
+    }
+
+    public static synchronized SessionExecutor getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new SessionExecutor();
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Creates the serial queue of a session or client. The owner has to call
+     * {@link EventLoop#quit()} or {@link EventLoop#quitSafely()} when it is released.
+     * @param name Shown in the logs when a task fails
+     */
+    public EventLoop newLoop(String name) {
+        mLoopCount.incrementAndGet();
+        return new EventLoop(this, name);
+    }
+
+    void execute(Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        return mExecutor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    void onLoopQuit() {
+        mLoopCount.decrementAndGet();
+    }
+
+    /** Threads of the pool alive now. */
+    public int getThreadCount() {
+        return mThreadCount.get();
+    }
+
+    /** Loops created and not quit yet, one per live session or client. */
+    public int getLoopCount() {
+        return mLoopCount.get();
+    }
+
+    /** Tasks waiting for a thread or for their delay, across all the loops. */
+    public int getQueuedTaskCount() {
+        return mExecutor.getQueue().size();
+    }
+}
@@ -0,0 +1,102 @@
+package net.verdx.libstreaming.threads;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rueda de temporizadores (hashed timing wheel, Varghese y Lauck): cada plazo cae en la ranura
+ * de su tick modulo el numero de ranuras, asi que programar, reprogramar y cancelar cuesta O(1)
+ * y cada tick solo mira una ranura, con miles de sesiones vigiladas a la vez. Los plazos de mas
+ * de una vuelta se quedan en su ranura hasta la vuelta que toca.
+ *
+ * No tiene hilo propio: quien la usa llama a {@link #advance(long)} periodicamente con la hora
+ * y recibe las claves vencidas. Los tiempos se pasan como parametro para poder probarla.
+ */
+public class TimerWheel<K> {
+
+    private static class Timeout<K> {
+        final K key;
+        final long deadlineTick;
+
+        Timeout(K key, long deadlineTick) {
+            this.key = key;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    private final long mTickMs;
+    private final List<Set<Timeout<K>>> mSlots;
+    private final Map<K, Timeout<K>> mTimeouts = new HashMap<>();
+    private long mTick;
+
+    /**
+     * @param tickMs Resolution of the deadlines
+     * @param slots Number of slots, a deadline more than slots * tickMs away waits some rounds
+     * @param nowMs Current time
+     */
+    public TimerWheel(long tickMs, int slots, long nowMs) {
+        if (tickMs <= 0 || slots <= 0) throw new IllegalArgumentException("Invalid timer wheel " + tickMs + "/" + slots);
+        mTickMs = tickMs;
+        mSlots = new ArrayList<>(slots);
+        for (int i = 0; i < slots; i++) mSlots.add(new HashSet<>());
+        mTick = nowMs / tickMs;
+    }
+
+    /** Sets the deadline of a key, replacing the one it had. */
+    public synchronized void schedule(K key, long deadlineMs) {
+        cancel(key);
+        // Rounded up, a key never expires before its deadline
+        long tick = Math.max(mTick + 1, (deadlineMs + mTickMs - 1) / mTickMs);
+        Timeout<K> timeout = new Timeout<>(key, tick);
+        mTimeouts.put(key, timeout);
+        slot(tick).add(timeout);
+    }
+
+    public synchronized boolean cancel(K key) {
+        Timeout<K> timeout = mTimeouts.remove(key);
+        if (timeout == null) return false;
+        slot(timeout.deadlineTick).remove(timeout);
+        return true;
+    }
+
+    public synchronized boolean contains(K key) {
+        return mTimeouts.containsKey(key);
+    }
+
+    public synchronized int size() {
+        return mTimeouts.size();
+    }
+
+    /**
+     * Moves the wheel to the current time.
+     * @return The keys whose deadline has passed, they are no longer scheduled
+     */
+    public synchronized List<K> advance(long nowMs) {
+        List<K> expired = new ArrayList<>();
+        long now = nowMs / mTickMs;
+        if (now <= mTick) return expired;
+        // After a long pause each slot is visited once, it holds every round
+        long ticks = Math.min(now - mTick, mSlots.size());
+        for (long i = 1; i <= ticks; i++) {
+            Iterator<Timeout<K>> iterator = slot(mTick + i).iterator();
+            while (iterator.hasNext()) {
+                Timeout<K> timeout = iterator.next();
+                if (timeout.deadlineTick > now) continue;
+                iterator.remove();
+                mTimeouts.remove(timeout.key);
+                expired.add(timeout.key);
+            }
+        }
+        mTick = now;
+        return expired;
+    }
+
+    private Set<Timeout<K>> slot(long tick) {
+        return mSlots.get((int) (tick % mSlots.size()));
+    }
+}
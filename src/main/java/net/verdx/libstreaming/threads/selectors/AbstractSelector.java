@@ -4,6 +4,7 @@ import android.net.ConnectivityManager;
 import android.util.Log;
 
 import java.io.IOException;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.DatagramChannel;
@@ -20,7 +21,9 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -76,6 +79,8 @@ public abstract class AbstractSelector implements Runnable{
     protected final List<SelectableChannel> mConnections = new ArrayList<>();
     protected final List<ChangeRequest> mPendingChangeRequests = new LinkedList<>();
     protected final Map<SelectableChannel, Queue<ByteBuffer>> mPendingData = new HashMap<>();
+    /** Bytes queued to each channel and not written yet, in this selector or in the writer thread. */
+    private final Map<SelectableChannel, AtomicLong> mPendingBytes = new ConcurrentHashMap<>();
     private final ByteBuffer mReadBuffer = ByteBuffer.allocate(BUFFER_SIZE);
 
     //protected int mPortTCP = PORT_TCP;
@@ -187,6 +192,24 @@ public abstract class AbstractSelector implements Runnable{
             }
             queue.add(ByteBuffer.wrap(data));
         }
+        AtomicLong pending = mPendingBytes.get(socket);
+        if (pending == null) {
+            pending = new AtomicLong();
+            AtomicLong current = mPendingBytes.putIfAbsent(socket, pending);
+            if (current != null) pending = current;
+        }
+        pending.addAndGet(data.length);
+    }
+
+    /** Bytes queued to the channel that have not been written to the socket yet. */
+    public long getPendingBytes(SelectableChannel socket) {
+        AtomicLong pending = mPendingBytes.get(socket);
+        return pending != null ? pending.get() : 0;
+    }
+
+    private void onWritten(SelectableChannel socket, int bytes) {
+        AtomicLong pending = mPendingBytes.get(socket);
+        if (pending != null) pending.addAndGet(-bytes);
     }
 
     protected void accept(SelectionKey key) throws IOException {
@@ -231,14 +254,14 @@ public abstract class AbstractSelector implements Runnable{
 
             mWorker.addData(this, socketChannel, mReadBuffer.array(), numRead);
         } else if(socketChannel instanceof DatagramChannel) {
-            ((DatagramChannel) socketChannel).receive(mReadBuffer);
+            SocketAddress source = ((DatagramChannel) socketChannel).receive(mReadBuffer);
             mReadBuffer.flip();
 
             if (mReadBuffer.limit() <= 0) {
                 throw new IOException("Read buffer limit under 0");
             }
 
-            mWorker.addData(this, socketChannel, mReadBuffer.array(), mReadBuffer.limit());
+            mWorker.addData(this, socketChannel, mReadBuffer.array(), mReadBuffer.limit(), source);
         }
     }
 
@@ -261,6 +284,10 @@ public abstract class AbstractSelector implements Runnable{
         } catch (IOException ignored) {}
 
         mConnections.remove(channel);
+        synchronized (mPendingData) {
+            mPendingData.remove(channel);
+        }
+        mPendingBytes.remove(channel);
         if(notify) onClientDisconnected(channel);
 
         if(printLogs){
@@ -395,7 +422,7 @@ public abstract class AbstractSelector implements Runnable{
                     Queue<ByteBuffer> buffers = mPendingBuffers.get(chan);
                     ByteBuffer buff = buffers.peek();
                     try {
-                        ((ByteChannel) chan).write(buff);
+                        mSelector.onWritten(chan, ((ByteChannel) chan).write(buff));
                         if(buff.remaining() <= 0){
                             buffers.remove();
                         }
@@ -0,0 +1,476 @@
+package net.verdx.libstreaming.threads.selectors;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.verdx.libstreaming.rtp.InterleavedChannel;
+import net.verdx.libstreaming.rtsp.InterleavedReader;
+import net.verdx.libstreaming.threads.TimerWheel;
+
+/**
+ * Conexiones de todos los RtspClient con los servidores RTSP de los vecinos, en un unico hilo
+ * con un Selector. Antes cada cliente tenia su Socket bloqueante y esperaba cada respuesta
+ * leyendo de el, asi que un vecino lento retrasaba el envio de los streamings a todos los demas.
+ *
+ * Cada {@link Connection} tiene su cola de salida y las peticiones que esperan respuesta, por
+ * CSeq: se pueden encadenar varias sin esperar (pipelining) y cada respuesta va a la peticion
+ * de su CSeq. Un servidor que no lo devuelve contesta en orden, asi que una respuesta sin CSeq
+ * es de la primera pendiente. Las respuestas se entregan a quien hizo la peticion desde este
+ * hilo, que no debe bloquearse en ellas. Lo que llega separa los mensajes RTSP de las tramas RTP/RTCP
+ * intercaladas con un {@link InterleavedReader}, y la conexion sirve a su vez de
+ * {@link InterleavedChannel} para enviar los streams por TCP sin bloquear.
+ *
+ * El tiempo para conectar y para recibir cada respuesta se vigila con una {@link TimerWheel}:
+ * una conexion que no contesta se cierra y su cliente se entera como de cualquier desconexion.
+ *
+ * No hereda de AbstractSelector: aquel escribe desde otro hilo, con OP_WRITE siempre activo,
+ * y lleva un unico estado de conexion; aqui cada conexion tiene el suyo.
+ */
+public class RTSPClientSelector implements Runnable {
+
+    public final static String TAG = "RTSPClientSelector";
+
+    /** Time to establish a connection. */
+    public static final int CONNECT_TIMEOUT_MS = 5000;
+    /** Time the server has to answer a request. */
+    public static final int RESPONSE_TIMEOUT_MS = 10000;
+    /** Bytes queued to a connection beyond which the interleaved packets are dropped. */
+    public static final int MAX_PENDING_BYTES = 512 * 1024;
+
+    private static final long TICK_MS = 100;
+    private static final int SLOTS = 256;
+    private static final int BUFFER_SIZE = 8192;
+
+    /** What happens on a connection, called from the thread of the selector. */
+    public interface Listener {
+        void onConnected(Connection connection);
+
+        /** An interleaved frame sent by the server, RTCP of the streams sent to it. */
+        void onFrame(Connection connection, int channelIdentifier, byte[] buffer, int offset, int length);
+
+        /** The connection failed, was closed by the server or did not answer in time. */
+        void onClosed(Connection connection, IOException cause);
+    }
+
+    /** Receives the response to a request, called from the thread of the selector. */
+    public interface ResponseListener {
+        void onResponse(byte[] response);
+    }
+
+    private static RTSPClientSelector INSTANCE = null;
+
+    private final Selector mSelector;
+    private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    private final TimerWheel<Connection> mDeadlines = new TimerWheel<>(TICK_MS, SLOTS, nowMs());
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final Thread mThread;
+
+    private RTSPClientSelector() throws IOException {
+        mSelector = Selector.open();
+        mThread = new Thread(this, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public static synchronized RTSPClientSelector getInstance() throws IOException {
+        if (INSTANCE == null) {
+            INSTANCE = new RTSPClientSelector();
+        }
+        return INSTANCE;
+    }
+
+    /** Opens a connection to a server, the listener is told when it is established. */
+    public Connection connect(String host, int port, Listener listener) {
+        return connect(host, port, listener, RESPONSE_TIMEOUT_MS);
+    }
+
+    /** @param responseTimeoutMs Time the server has to answer each request */
+    Connection connect(String host, int port, Listener listener, int responseTimeoutMs) {
+        final Connection connection = new Connection(host, port, listener, responseTimeoutMs);
+        execute(connection::open);
+        return connection;
+    }
+
+    /** Number of connections open or being established. */
+    public int getConnectionCount() {
+        return mSelector.keys().size();
+    }
+
+    private void execute(Runnable task) {
+        mTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    private static long nowMs() {
+        return System.nanoTime() / 1000000;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Runnable task;
+                while ((task = mTasks.poll()) != null) task.run();
+
+                mSelector.select(TICK_MS);
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    if (!key.isValid()) continue;
+                    try {
+                        if (key.isConnectable()) connection.finishConnect();
+                        if (key.isValid() && key.isReadable()) connection.read();
+                        if (key.isValid() && key.isWritable()) connection.write();
+                    } catch (IOException e) {
+                        connection.fail(e);
+                    }
+                }
+
+                for (Connection connection : mDeadlines.advance(nowMs())) {
+                    connection.checkDeadline();
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Selector loop failed", e);
+            }
+        }
+    }
+
+    /**
+     * Conexion con un servidor RTSP. Las peticiones y las tramas se pueden enviar desde
+     * cualquier hilo, solo se encolan.
+     */
+    public class Connection implements InterleavedChannel {
+
+        private final String mHost;
+        private final int mPort;
+        private final Listener mListener;
+        private final InterleavedReader mReader;
+        private final int mResponseTimeoutMs;
+
+        // Only the thread of the selector
+        private SocketChannel mChannel;
+        private SelectionKey mKey;
+        private long mConnectDeadlineMs;
+
+        // Any thread, guarded by this
+        private final ArrayDeque<ByteBuffer> mOutgoing = new ArrayDeque<>();
+        /** By CSeq, in the order they were sent */
+        private final LinkedHashMap<Integer, Pending> mPending = new LinkedHashMap<>();
+        private int mCSeq = 0;
+        private long mPendingBytes = 0;
+        private boolean mConnected = false;
+        private boolean mClosed = false;
+        private long mDropped = 0;
+
+        private Connection(String host, int port, Listener listener, int responseTimeoutMs) {
+            mHost = host;
+            mPort = port;
+            mListener = listener;
+            mResponseTimeoutMs = responseTimeoutMs;
+            mReader = new InterleavedReader((id, buffer, offset, length) -> mListener.onFrame(this, id, buffer, offset, length));
+        }
+
+        public String getHost() {
+            return mHost;
+        }
+
+        public int getPort() {
+            return mPort;
+        }
+
+        /** Local address of the connection, null until it is established. */
+        public InetAddress getLocalAddress() {
+            SocketChannel channel = mChannel;
+            return channel != null && channel.isConnected() ? channel.socket().getLocalAddress() : null;
+        }
+
+        public synchronized boolean isConnected() {
+            return mConnected && !mClosed;
+        }
+
+        public synchronized boolean isClosed() {
+            return mClosed;
+        }
+
+        /** CSeq for the next request, unique in the connection whatever streaming it is for. */
+        public synchronized int nextCSeq() {
+            return ++mCSeq;
+        }
+
+        /**
+         * Queues a request, the listener gets its response. Several requests can be waiting
+         * at once, the responses are matched by CSeq.
+         * @param cseq CSeq of the request, see {@link #nextCSeq()}
+         * @return False if the connection is closed, the listener will not be called
+         */
+        public boolean request(int cseq, String request, ResponseListener listener) {
+            byte[] data = request.getBytes(StandardCharsets.UTF_8);
+            boolean oldest;
+            synchronized (this) {
+                if (mClosed) return false;
+                oldest = mPending.isEmpty();
+                mPending.put(cseq, new Pending(listener, nowMs() + mResponseTimeoutMs));
+            }
+            enqueue(ByteBuffer.wrap(data));
+            // The deadline follows the oldest request, only a first one changes it
+            if (oldest) execute(this::scheduleDeadline);
+            return true;
+        }
+
+        /** Queues the packet in a '$' frame, dropped if the server does not read fast enough. */
+        @Override
+        public boolean write(int channelIdentifier, byte[] buffer, int offset, int length) {
+            synchronized (this) {
+                if (mClosed || !mConnected) return false;
+                if (mPendingBytes > MAX_PENDING_BYTES) {
+                    if (mDropped++ % 100 == 0) Log.w(TAG, "Connection to " + mHost + " full, " + mDropped + " packets dropped");
+                    return false;
+                }
+            }
+            byte[] frame = new byte[HEADER_LENGTH + length];
+            frame[0] = '$';
+            frame[1] = (byte) channelIdentifier;
+            frame[2] = (byte) (length >> 8);
+            frame[3] = (byte) length;
+            System.arraycopy(buffer, offset, frame, HEADER_LENGTH, length);
+            enqueue(ByteBuffer.wrap(frame));
+            return true;
+        }
+
+        /**
+         * Closes the connection once what is queued has been written, like the TEARDOWN of the
+         * streamings. The requests waiting for a response are forgotten and the listener is not called.
+         */
+        public void close() {
+            synchronized (this) {
+                if (mClosed) return;
+                mClosed = true;
+                mPending.clear();
+            }
+            execute(this::finishClose);
+        }
+
+        private void finishClose() {
+            boolean flushed;
+            synchronized (this) {
+                flushed = !mConnected || mOutgoing.isEmpty();
+            }
+            if (flushed) {
+                release();
+            } else {
+                // A server that does not read is not waited for
+                mDeadlines.schedule(this, nowMs() + mResponseTimeoutMs);
+                updateInterest();
+            }
+        }
+
+        private void enqueue(ByteBuffer buffer) {
+            boolean wakeup;
+            synchronized (this) {
+                if (mClosed) return;
+                wakeup = mOutgoing.isEmpty();
+                mOutgoing.add(buffer);
+                mPendingBytes += buffer.remaining();
+            }
+            // Only the first buffer of a burst needs the selector to look at the connection
+            if (wakeup) execute(this::updateInterest);
+        }
+
+        private void open() {
+            try {
+                mChannel = SocketChannel.open();
+                mChannel.configureBlocking(false);
+                mChannel.socket().setTcpNoDelay(true);
+                mKey = mChannel.register(mSelector, SelectionKey.OP_CONNECT, this);
+                mConnectDeadlineMs = nowMs() + CONNECT_TIMEOUT_MS;
+                mDeadlines.schedule(this, mConnectDeadlineMs);
+                if (mChannel.connect(new InetSocketAddress(mHost, mPort))) finishConnect();
+            } catch (IOException | RuntimeException e) {
+                fail(e instanceof IOException ? (IOException) e : new IOException(e));
+            }
+        }
+
+        private void finishConnect() throws IOException {
+            if (!mChannel.finishConnect()) return;
+            synchronized (this) {
+                mConnected = true;
+            }
+            mDeadlines.cancel(this);
+            scheduleDeadline();
+            updateInterest();
+            mListener.onConnected(this);
+        }
+
+        private void read() throws IOException {
+            mReadBuffer.clear();
+            int count = mChannel.read(mReadBuffer);
+            if (count < 0) throw new IOException("Connection closed by " + mHost);
+            if (count == 0) return;
+            List<byte[]> messages = mReader.read(mReadBuffer.array(), count);
+            if (isClosed()) return;
+            for (byte[] message : messages) {
+                int cseq = parseCSeq(message);
+                Pending pending;
+                synchronized (this) {
+                    pending = cseq >= 0 ? mPending.remove(cseq) : pollOldest();
+                }
+                if (pending == null) {
+                    Log.w(TAG, "Response from " + mHost + " to no request, CSeq " + cseq);
+                    continue;
+                }
+                pending.listener.onResponse(message);
+            }
+            if (!messages.isEmpty()) scheduleDeadline();
+        }
+
+        private Pending peekOldest() {
+            return mPending.isEmpty() ? null : mPending.values().iterator().next();
+        }
+
+        private Pending pollOldest() {
+            Iterator<Pending> iterator = mPending.values().iterator();
+            if (!iterator.hasNext()) return null;
+            Pending oldest = iterator.next();
+            iterator.remove();
+            return oldest;
+        }
+
+        private void write() throws IOException {
+            while (true) {
+                ByteBuffer buffer;
+                synchronized (this) {
+                    buffer = mOutgoing.peek();
+                    if (buffer == null) break;
+                }
+                int written = mChannel.write(buffer);
+                synchronized (this) {
+                    mPendingBytes -= written;
+                    if (buffer.hasRemaining()) return;
+                    mOutgoing.poll();
+                }
+            }
+            if (isClosed()) {
+                release();
+            } else {
+                updateInterest();
+            }
+        }
+
+        private void updateInterest() {
+            if (mKey == null || !mKey.isValid()) return;
+            int ops;
+            synchronized (this) {
+                if (!mConnected) return;
+                ops = SelectionKey.OP_READ | (mOutgoing.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+            }
+            mKey.interestOps(ops);
+        }
+
+        /** Watches the oldest request without response, if any. Until connected the connect deadline is watched. */
+        private void scheduleDeadline() {
+            Pending oldest;
+            synchronized (this) {
+                if (!mConnected || mClosed) return;
+                oldest = peekOldest();
+            }
+            if (oldest != null) {
+                mDeadlines.schedule(this, oldest.deadlineMs);
+            } else {
+                mDeadlines.cancel(this);
+            }
+        }
+
+        private void checkDeadline() {
+            long now = nowMs();
+            boolean connected;
+            Pending oldest;
+            synchronized (this) {
+                if (mClosed) {
+                    release();
+                    return;
+                }
+                connected = mConnected;
+                oldest = peekOldest();
+            }
+            if (!connected) {
+                if (now >= mConnectDeadlineMs) fail(new IOException("Timeout connecting to " + mHost));
+                else mDeadlines.schedule(this, mConnectDeadlineMs);
+            } else if (oldest != null) {
+                if (now >= oldest.deadlineMs) fail(new IOException("Timeout waiting for a response of " + mHost));
+                else mDeadlines.schedule(this, oldest.deadlineMs);
+            }
+        }
+
+        private void fail(IOException cause) {
+            boolean notify;
+            synchronized (this) {
+                notify = !mClosed;
+                mClosed = true;
+                mPending.clear();
+            }
+            release();
+            if (notify) mListener.onClosed(this, cause);
+        }
+
+        private void release() {
+            synchronized (this) {
+                mOutgoing.clear();
+                mPendingBytes = 0;
+            }
+            mDeadlines.cancel(this);
+            if (mKey != null) mKey.cancel();
+            try {
+                if (mChannel != null) mChannel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /** CSeq header of a response, -1 if it has none. */
+    static int parseCSeq(byte[] message) {
+        int start = 0;
+        for (int i = 0; i + 1 < message.length; i++) {
+            if (message[i] != '\r' || message[i + 1] != '\n') continue;
+            // The headers end with an empty line
+            if (i == start) break;
+            String line = new String(message, start, i - start, StandardCharsets.UTF_8);
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().toLowerCase(Locale.US).equals("cseq")) {
+                try {
+                    return Integer.parseInt(line.substring(colon + 1).trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+            start = i + 2;
+        }
+        return -1;
+    }
+
+    private static class Pending {
+        final ResponseListener listener;
+        final long deadlineMs;
+
+        Pending(ResponseListener listener, long deadlineMs) {
+            this.listener = listener;
+            this.deadlineMs = deadlineMs;
+        }
+    }
+}
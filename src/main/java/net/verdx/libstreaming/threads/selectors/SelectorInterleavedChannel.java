@@ -0,0 +1,58 @@
+package net.verdx.libstreaming.threads.selectors;
+
+import android.util.Log;
+
+import java.nio.channels.SelectableChannel;
+
+import net.verdx.libstreaming.rtp.InterleavedChannel;
+
+/**
+ * Tramas RTP/RTCP intercaladas en una conexion RTSP del servidor NIO. Se encolan en la cola del
+ * canal del selector, como las respuestas RTSP, y las escribe el hilo escritor sin bloquear:
+ * el hilo que envia el stream nunca espera a la red y todas las conexiones TCP comparten los
+ * hilos del selector.
+ *
+ * Si el cliente no lee al ritmo del stream la cola del canal crece; pasado
+ * {@link #MAX_PENDING_BYTES} los paquetes se descartan hasta que se vacie, igual que se
+ * perderian en UDP, para que la cola no crezca sin limite ni retrase las respuestas RTSP.
+ */
+public class SelectorInterleavedChannel implements InterleavedChannel {
+
+    public final static String TAG = "SelectorInterleavedChannel";
+
+    /** Bytes queued to the connection beyond which the packets are dropped. */
+    public static final int MAX_PENDING_BYTES = 512 * 1024;
+
+    private final AbstractSelector mSelector;
+    private final SelectableChannel mChannel;
+    private long mDropped = 0;
+
+    public SelectorInterleavedChannel(AbstractSelector selector, SelectableChannel channel) {
+        mSelector = selector;
+        mChannel = channel;
+    }
+
+    @Override
+    public boolean write(int channelIdentifier, byte[] buffer, int offset, int length) {
+        if (!mChannel.isOpen()) return false;
+        if (mSelector.getPendingBytes(mChannel) > MAX_PENDING_BYTES) {
+            synchronized (this) {
+                if (mDropped++ % 100 == 0) Log.w(TAG, "Connection full, " + mDropped + " packets dropped");
+            }
+            return false;
+        }
+        // The selector keeps the array until it is written, it can not be the buffer of the caller
+        byte[] frame = new byte[HEADER_LENGTH + length];
+        frame[0] = '$';
+        frame[1] = (byte) channelIdentifier;
+        frame[2] = (byte) (length >> 8);
+        frame[3] = (byte) length;
+        System.arraycopy(buffer, offset, frame, HEADER_LENGTH, length);
+        mSelector.send(mChannel, frame);
+        return true;
+    }
+
+    public synchronized long getDropped() {
+        return mDropped;
+    }
+}
@@ -6,6 +6,7 @@ import android.net.Network;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectableChannel;
@@ -13,11 +14,13 @@ import java.nio.channels.SelectionKey;
 import java.util.HashMap;
 import java.util.Map;
 
+import net.verdx.libstreaming.rtcp.RtcpPacketListener;
+import net.verdx.libstreaming.rtp.RtpReceiver;
 import net.verdx.libstreaming.threads.workers.EchoWorker;
 import net.verdx.libstreaming.utils.Logger;
 
 public class UDPServerSelector extends AbstractSelector {
-    private DatagramChannel mDatagramChannel;
+    private volatile DatagramChannel mDatagramChannel;
     private int mPortUDP;
     private InetAddress mLocalAddress;
     private Network mSocketNet;
@@ -38,6 +41,28 @@ public class UDPServerSelector extends AbstractSelector {
     }
 
 
+    public void setRtpReceiver(RtpReceiver receiver) {
+        ((EchoWorker) mWorker).setRtpReceiver(receiver);
+    }
+
+    public void setRtcpListener(RtcpPacketListener listener) {
+        ((EchoWorker) mWorker).setRtcpListener(listener);
+    }
+
+    /**
+     * Sends a datagram from the listening port, so the answer of a peer reaches the socket the
+     * peer is sending from (RTCP reports). Dropped if the port is not bound yet.
+     */
+    public void sendTo(byte[] data, SocketAddress target) {
+        DatagramChannel channel = mDatagramChannel;
+        if (channel == null || target == null) return;
+        try {
+            channel.send(ByteBuffer.wrap(data), target);
+        } catch (IOException e) {
+            Logger.d("UDPServerSelector: could not send to " + target + ": " + e.getMessage());
+        }
+    }
+
     @Override
     protected void onClientDisconnected(SelectableChannel socketChannel) {}
 
@@ -1,5 +1,6 @@
 package net.verdx.libstreaming.threads.workers;
 
+import java.net.SocketAddress;
 import java.nio.channels.SelectableChannel;
 import java.util.LinkedList;
 import java.util.List;
@@ -38,44 +39,81 @@ public abstract class AbstractWorker implements Runnable {
 
     public void start(){
         if(mEnabled.compareAndSet(false, true)){
-            mThread = new Thread(this);
-            mThread.start();
+            onWorkerStart();
         }
     }
 
     public void stop(){
         if(mEnabled.compareAndSet(true, false)){
-            mThread.interrupt();
-            try {
-                mThread.join();
-            } catch (InterruptedException ignored) {}
-            mThread = null;
+            onWorkerStop();
         }
     }
 
+    /** Starts the threads that parse the data, by default a single one running {@link #run()}. */
+    protected void onWorkerStart() {
+        mThread = new Thread(this);
+        mThread.start();
+    }
+
+    /** Stops the threads started by {@link #onWorkerStart()}, they call {@link #onWorkerRelease()} on exit. */
+    protected void onWorkerStop() {
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException ignored) {}
+        mThread = null;
+    }
+
     @Override
     public void run() {
         DataReceived dataReceived;
 
         while(mEnabled.get()) {                       // Wait for data to become available
+            long timeoutMs = getWaitTimeoutMs();
             synchronized(mDataReceivedQueue) {
-                while(mDataReceivedQueue.isEmpty()) {
+                if(mDataReceivedQueue.isEmpty() && mEnabled.get()) {
                     try {
-                        mDataReceivedQueue.wait();
+                        if(timeoutMs < 0) mDataReceivedQueue.wait();
+                        else if(timeoutMs > 0) mDataReceivedQueue.wait(timeoutMs);
                     } catch (InterruptedException ignored) {}
                 }
-                dataReceived = mDataReceivedQueue.remove(0);
+                dataReceived = mDataReceivedQueue.isEmpty() ? null : mDataReceivedQueue.remove(0);
+            }
+            if(dataReceived != null) {
+                this.parsePackets(dataReceived);
+            } else if(mEnabled.get()) {
+                onWaitTimeout();
             }
-            this.parsePackets(dataReceived);
         }
         onWorkerRelease();
     }
 
+    /**
+     * How long {@link #run()} waits for data before calling {@link #onWaitTimeout()}, asked
+     * before every wait.
+     * @return The time in ms, or -1 to wait until there is data
+     */
+    protected long getWaitTimeoutMs() {
+        return -1;
+    }
+
+    /** Called by {@link #run()} when no data arrived in the time of {@link #getWaitTimeoutMs()}. */
+    protected void onWaitTimeout() {}
+
     public void addData(AbstractSelector selectorThread, SelectableChannel socket, byte[] data, int count) {
+        addData(selectorThread, socket, data, count, null);
+    }
+
+    public void addData(AbstractSelector selectorThread, SelectableChannel socket, byte[] data, int count, SocketAddress source) {
         byte[] dataCopy = new byte[count];
         System.arraycopy(data, 0, dataCopy, 0, count);
+        dispatch(new DataReceived(selectorThread, socket, dataCopy, source));
+    }
+
+    /** Hands the data to the thread that parses it, by default the queue of {@link #run()}. */
+    protected void dispatch(DataReceived dataReceived) {
         synchronized(mDataReceivedQueue) {
-            mDataReceivedQueue.add(new DataReceived(selectorThread, socket, dataCopy));
+            mDataReceivedQueue.add(dataReceived);
             mDataReceivedQueue.notify();
         }
     }
@@ -0,0 +1,124 @@
+package net.verdx.libstreaming.threads.workers;
+
+import android.util.Log;
+
+import java.nio.channels.SelectableChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Reparte el trabajo de un worker entre unos pocos hilos segun el canal: todo lo de un mismo
+ * canal va siempre al mismo hilo, asi que las peticiones de un cliente se procesan en orden,
+ * y un cliente lento (un DESCRIBE que configura el encoder) solo retrasa a los que comparten
+ * su hilo.
+ *
+ * Cada hilo tiene su cola acotada. Cuando una cola esta llena
+ * {@link #offer(SelectableChannel, Runnable)} devuelve false y el worker decide que contestar,
+ * el selector nunca se queda esperando. Las tareas que no se pueden perder, como liberar las
+ * sesiones de un canal cerrado, entran con {@link #execute(SelectableChannel, Runnable)} aunque
+ * la cola este llena: detras de las peticiones del canal que ya esperan y sin bloquear.
+ */
+public class ChannelShards {
+
+    public final static String TAG = "ChannelShards";
+
+    private final String mName;
+    private final Shard[] mShards;
+    private final int mCapacity;
+
+    /**
+     * @param shards Number of threads
+     * @param capacity Tasks each thread can have waiting
+     */
+    public ChannelShards(String name, int shards, int capacity) {
+        mName = name;
+        mShards = new Shard[shards];
+        mCapacity = capacity;
+    }
+
+    public synchronized void start() {
+        for (int i = 0; i < mShards.length; i++) {
+            if (mShards[i] != null) continue;
+            mShards[i] = new Shard(new LinkedBlockingQueue<>());
+            mShards[i].mThread = new Thread(mShards[i], mName + "-" + i);
+            mShards[i].mThread.start();
+        }
+    }
+
+    /** Stops the threads once they finish the task they are running, the tasks queued are discarded. */
+    public synchronized void stop() {
+        for (int i = 0; i < mShards.length; i++) {
+            Shard shard = mShards[i];
+            if (shard == null) continue;
+            shard.mEnabled = false;
+            shard.mThread.interrupt();
+            try {
+                shard.mThread.join();
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+            mShards[i] = null;
+        }
+    }
+
+    /**
+     * Queues a task in the thread of the channel, without waiting.
+     * @return False if the queue of the thread is full or the shards are stopped
+     */
+    public boolean offer(SelectableChannel channel, Runnable task) {
+        Shard shard = getShard(channel);
+        // Only the selector offers, the size can only shrink between the check and the offer
+        return shard != null && shard.mQueue.size() < mCapacity && shard.mQueue.offer(task);
+    }
+
+    /**
+     * Queues a task in the thread of the channel even if its queue is full, without waiting.
+     * For the tasks that can not be lost, like releasing the sessions of a channel that has
+     * been closed, they run after the tasks of the channel already queued.
+     * @return False if the shards are stopped
+     */
+    public boolean execute(SelectableChannel channel, Runnable task) {
+        Shard shard = getShard(channel);
+        return shard != null && shard.mQueue.offer(task);
+    }
+
+    /** Tasks waiting in all the threads. */
+    public int getQueuedTaskCount() {
+        int count = 0;
+        for (Shard shard : mShards) {
+            if (shard != null) count += shard.mQueue.size();
+        }
+        return count;
+    }
+
+    private Shard getShard(SelectableChannel channel) {
+        return mShards[(System.identityHashCode(channel) & 0x7FFFFFFF) % mShards.length];
+    }
+
+    private class Shard implements Runnable {
+        private final BlockingQueue<Runnable> mQueue;
+        private volatile boolean mEnabled = true;
+        private Thread mThread;
+
+        Shard(BlockingQueue<Runnable> queue) {
+            mQueue = queue;
+        }
+
+        @Override
+        public void run() {
+            while (mEnabled) {
+                Runnable task;
+                try {
+                    task = mQueue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Task of " + mName + " failed", e);
+                }
+            }
+        }
+    }
+}
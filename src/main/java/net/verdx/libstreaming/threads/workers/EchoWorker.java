@@ -1,20 +1,55 @@
 package net.verdx.libstreaming.threads.workers;
 
 import net.verdx.libstreaming.packets.DataReceived;
+import net.verdx.libstreaming.rtcp.RtcpPacketListener;
+import net.verdx.libstreaming.rtp.RtpReceiver;
 import net.verdx.libstreaming.threads.selectors.AbstractSelector;
 
 public class EchoWorker extends AbstractWorker {
+    private volatile RtpReceiver mRtpReceiver;
+    private volatile RtcpPacketListener mRtcpListener;
 
     public EchoWorker(AbstractSelector selector){
         super(selector);
     }
 
+    /** Also hands every received packet to this receiver, besides echoing it. */
+    public void setRtpReceiver(RtpReceiver receiver) {
+        mRtpReceiver = receiver;
+    }
+
+    /** Also hands every received packet to this listener, for the RTCP port of a track. */
+    public void setRtcpListener(RtcpPacketListener listener) {
+        mRtcpListener = listener;
+    }
+
     @Override
     protected void onWorkerRelease() {}
 
+    /** Wakes up when the packets the receiver holds behind a missing one can be released. */
+    @Override
+    protected long getWaitTimeoutMs() {
+        RtpReceiver receiver = mRtpReceiver;
+        return receiver != null ? receiver.getReleaseDelayMs() : -1;
+    }
+
+    @Override
+    protected void onWaitTimeout() {
+        RtpReceiver receiver = mRtpReceiver;
+        if (receiver != null) receiver.poll();
+    }
+
     @Override
     protected void parsePackets(DataReceived dataReceived) {
         dataReceived.getSelector().send(dataReceived.getData());
+        RtpReceiver receiver = mRtpReceiver;
+        if (receiver != null) {
+            receiver.onPacketReceived(dataReceived.getData(), dataReceived.getData().length);
+        }
+        RtcpPacketListener rtcpListener = mRtcpListener;
+        if (rtcpListener != null) {
+            rtcpListener.onRtcpPacket(dataReceived.getData(), dataReceived.getData().length, dataReceived.getSource());
+        }
     }
 
 
@@ -4,25 +4,35 @@ import android.util.Base64;
 import android.util.Log;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.StringReader;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import net.verdx.libstreaming.threads.selectors.RTSPServerSelector;
+import net.verdx.libstreaming.threads.selectors.SelectorInterleavedChannel;
+import net.verdx.libstreaming.CatalogEntry;
 import net.verdx.libstreaming.Streaming;
 import net.verdx.libstreaming.StreamingRecord;
+import net.verdx.libstreaming.metrics.Counter;
+import net.verdx.libstreaming.metrics.Histogram;
+import net.verdx.libstreaming.metrics.MetricsRegistry;
 import net.verdx.libstreaming.packets.DataReceived;
+import net.verdx.libstreaming.relay.RelayTrack;
+import net.verdx.libstreaming.rtsp.CatalogParameters;
+import net.verdx.libstreaming.rtsp.InterleavedReader;
 import net.verdx.libstreaming.rtsp.RtspRequest;
 import net.verdx.libstreaming.rtsp.RtspResponse;
 import net.verdx.libstreaming.rtsp.UriParser;
@@ -30,7 +40,11 @@ import net.verdx.libstreaming.sessions.RebroadcastSession;
 import net.verdx.libstreaming.sessions.ReceiveSession;
 import net.verdx.libstreaming.sessions.Session;
 import net.verdx.libstreaming.sessions.SessionBuilder;
+import net.verdx.libstreaming.sessions.SessionDescriptionCache;
 import net.verdx.libstreaming.sessions.TrackInfo;
+import net.verdx.libstreaming.threads.EventLoop;
+import net.verdx.libstreaming.threads.SessionExecutor;
+import net.verdx.libstreaming.threads.TimerWheel;
 import net.verdx.libstreaming.utils.Logger;
 
 
@@ -67,12 +81,37 @@ import net.verdx.libstreaming.utils.Logger;
  * TODO Estudiar si mover las sesiones de metodo
  *
  * Falta estudiar y describir la modalidad de publicacion
+ *
+ * Las peticiones no pasan por un unico hilo: se reparten por canal entre los hilos de
+ * {@link ChannelShards}, asi las de un cliente van en orden y un DESCRIBE lento no para los SETUP
+ * y TEARDOWN del resto. Por eso las tablas de sesiones son concurrentes.
+ *
+ * Los canales que llevan {@link #SESSION_TIMEOUT_S} segundos sin actividad (ni peticiones RTSP,
+ * ni keep-alives GET_PARAMETER/SET_PARAMETER, ni RTP/RTCP del otro extremo) se desconectan y se
+ * liberan sus sesiones, como si el cliente hubiera cerrado. Los plazos van en una
+ * {@link TimerWheel}: cada peticion solo anota la hora y el plazo se comprueba al vencer.
+ *
+ * Los espectadores pueden pedir RTP/AVP/TCP en el SETUP: el RTP y el RTCP van intercalados en
+ * la propia conexion RTSP, encolados en el selector como las respuestas
+ * ({@link SelectorInterleavedChannel}), y lo que llega por ella se separa en mensajes RTSP y
+ * RTCP de los espectadores con un {@link InterleavedReader}. Publicar por TCP (ANNOUNCE) no se
+ * admite, se contesta 461.
+ *
+ * Si se pierde la conexion de un vecino que publica, sus streamings siguen recibiendose por UDP y
+ * se guardan {@link #RESUME_TIMEOUT_S} segundos sin paquetes: al reconectar los reanuda con un
+ * RECORD con su Session, sin volver a hacer ANNOUNCE. Una sesion que ya no existe recibe un 454.
  */
 public class RTSPServerWorker extends AbstractWorker {
 
     private static final String TAG = "RTSPServerWorker";
     // RTSP Server Name
     public static String SERVER_NAME = "D2D RTSP Server";
+    /**
+     * A GET_PARAMETER with "metrics" in its body is answered with a snapshot of the
+     * {@link MetricsRegistry}, to read the figures of a node in the field from any RTSP client.
+     */
+    public static boolean EXPOSE_METRICS = false;
+    public static final String METRICS_PARAMETER = "metrics";
 
 
     /** Expresion regular que encaja con la cabecera de todos los mensajes RSTP: "Tipo_de_operacion(ANNOUNCE,PLAY, etc) uri_del_stream(rtsp://...) RTSP"
@@ -97,10 +136,59 @@ public class RTSPServerWorker extends AbstractWorker {
     // Parse a request header
     public static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)",Pattern.CASE_INSENSITIVE);
 
-    protected HashMap<SelectableChannel, Session> mSessions = new HashMap<>();
-    protected HashMap<SelectableChannel, Map<UUID, Streaming>> mServerSessions = new HashMap<>();
-    protected HashMap<SelectableChannel, RebroadcastSession> mRebroadcastSessions = new HashMap<>();
-    protected HashMap<UUID, List<RebroadcastSession>> mRebroadcastSessionsUUIDIndex = new HashMap<>();
+    // Parse the interleaved channels of a RTP/AVP/TCP transport
+    public static final Pattern regexTcpTransport = Pattern.compile("RTP/AVP/TCP",Pattern.CASE_INSENSITIVE);
+    public static final Pattern regexInterleaved = Pattern.compile("interleaved=(\\d+)(?:-(\\d+))?",Pattern.CASE_INSENSITIVE);
+
+    /** Threads the requests are sharded on, by channel. */
+    public static final int SHARDS = 4;
+    /** Requests each thread can have waiting, beyond that the client gets a 503. */
+    public static final int SHARD_QUEUE_CAPACITY = 64;
+
+    /** Seconds without activity after which the sessions of a channel are closed, advertised in the Session header. */
+    public static final int SESSION_TIMEOUT_S = 60;
+    private static final long KEEP_ALIVE_TICK_MS = 1000;
+    private static final int KEEP_ALIVE_SLOTS = 64;
+    /** Seconds without packets a streaming of a lost connection waits for its publisher to resume it. */
+    public static final int RESUME_TIMEOUT_S = 20;
+
+    protected final Map<SelectableChannel, Session> mSessions = new ConcurrentHashMap<>();
+    protected final Map<SelectableChannel, Map<UUID, Streaming>> mServerSessions = new ConcurrentHashMap<>();
+    protected final Map<SelectableChannel, RebroadcastSession> mRebroadcastSessions = new ConcurrentHashMap<>();
+    protected final Map<UUID, List<RebroadcastSession>> mRebroadcastSessionsUUIDIndex = new ConcurrentHashMap<>();
+
+    private final ChannelShards mShards = new ChannelShards(TAG, SHARDS, SHARD_QUEUE_CAPACITY);
+    /** From the arrival of a request to its response, waiting for its thread included, in us. */
+    private final Histogram mRequestLatency = MetricsRegistry.getInstance().histogram("rtsp.server.request_us");
+    private final Counter mRejected = MetricsRegistry.getInstance().counter("rtsp.server.rejected");
+    /** Two peers announcing the same streaming at once, on different threads, do not both get it. */
+    private final Object mAnnounceLock = new Object();
+
+    /** Last RTSP request of each channel, in ns of System.nanoTime(). */
+    private final Map<SelectableChannel, Long> mLastRequestNs = new ConcurrentHashMap<>();
+    private final TimerWheel<SelectableChannel> mKeepAlive = new TimerWheel<>(KEEP_ALIVE_TICK_MS, KEEP_ALIVE_SLOTS, nowMs());
+    private EventLoop mKeepAliveLoop;
+
+    /** Connections with tracks interleaved in them. */
+    private final Map<SelectableChannel, SelectorInterleavedChannel> mInterleavedChannels = new ConcurrentHashMap<>();
+    /** Demultiplexing of what each connection sends: pipelined requests and interleaved frames. */
+    private final Map<SelectableChannel, InterleavedReader> mInterleavedReaders = new ConcurrentHashMap<>();
+    /** Streamings of lost connections by the id of their ReceiveSession, until resumed or expired. */
+    private final Map<String, Streaming> mDetached = new ConcurrentHashMap<>();
+    private final TimerWheel<String> mResumeDeadlines = new TimerWheel<>(KEEP_ALIVE_TICK_MS, KEEP_ALIVE_SLOTS, nowMs());
+    private final Runnable mKeepAliveTick = new Runnable() {
+        @Override
+        public void run() {
+            for(SelectableChannel channel : mKeepAlive.advance(nowMs())) {
+                checkIdle(channel);
+            }
+            for(String sessionId : mResumeDeadlines.advance(nowMs())) {
+                checkDetached(sessionId);
+            }
+            EventLoop loop = mKeepAliveLoop;
+            if(loop != null) loop.postDelayed(this, KEEP_ALIVE_TICK_MS);
+        }
+    };
 
 
     /** Credentials for Basic Auth */
@@ -117,11 +205,12 @@ public class RTSPServerWorker extends AbstractWorker {
     }
 
     public RtspResponse processRequest(RtspRequest request, SelectableChannel channel) throws IllegalStateException, IOException {
+        onActivity(channel);
         Session requestSession = mSessions.get(channel);
         ReceiveSession receiveSession = null;
         Map<UUID, Streaming> streamings = mServerSessions.get(channel);
         if(streamings == null){
-            streamings = new HashMap<>();
+            streamings = new ConcurrentHashMap<>();
             mServerSessions.put(channel, streamings);
         }
         else if(!request.path.isEmpty()){
@@ -131,6 +220,9 @@ public class RTSPServerWorker extends AbstractWorker {
                 receiveSession = streaming.getReceiveSession();
             }
         }
+        if(receiveSession == null && !request.path.isEmpty() && request.headers.containsKey("session") && isAuthorized(request)){
+            receiveSession = resumeStreaming(request, channel, streamings);
+        }
         RebroadcastSession rebroadcastSession = mRebroadcastSessions.get(channel);
         RtspResponse response = new RtspResponse(request);
 
@@ -146,7 +238,7 @@ public class RTSPServerWorker extends AbstractWorker {
             switch (request.method) {
                 case "OPTIONS":
                     response.status = RtspResponse.STATUS_OK;
-                    response.attributes = "Public: DESCRIBE,ANNOUNCE,SETUP,PLAY,RECORD,PAUSE,TEARDOWN\r\n";
+                    response.attributes = "Public: DESCRIBE,ANNOUNCE,SETUP,PLAY,RECORD,PAUSE,TEARDOWN,GET_PARAMETER,SET_PARAMETER\r\n";
                     break;
                 case "DESCRIBE":
                     return DESCRIBE(request, channel);
@@ -154,11 +246,11 @@ public class RTSPServerWorker extends AbstractWorker {
                     return ANNOUNCE(request, channel);
                 case "SETUP":
                     if(requestSession != null) {
-                        return SETUP(request, requestSession);
+                        return SETUP(request, requestSession, channel);
                     } else if(receiveSession != null) {
                         return SETUP(request, receiveSession);
                     } else if(rebroadcastSession != null) {
-                        return SETUP(request, rebroadcastSession);
+                        return SETUP(request, rebroadcastSession, channel);
                     } else
                         response.status = RtspResponse.STATUS_BAD_REQUEST;
                     break;
@@ -174,6 +266,10 @@ public class RTSPServerWorker extends AbstractWorker {
                     return RECORD(receiveSession, channel);
                 case "PAUSE":
                     return PAUSE();
+                case "GET_PARAMETER":
+                    return GET_PARAMETER(request, channel);
+                case "SET_PARAMETER":
+                    return SET_PARAMETER(request, channel);
                 case "TEARDOWN":
                     if(requestSession != null) {
                         return TEARDOWN(requestSession, channel);
@@ -210,12 +306,9 @@ public class RTSPServerWorker extends AbstractWorker {
                 session.setRtspChannel(channel);
                 mRebroadcastSessions.put(channel, session);
                 UUID sessionUUID = UUID.fromString(request.path);
-                List<RebroadcastSession> rebroadcastSessionList = mRebroadcastSessionsUUIDIndex.get(sessionUUID);
-                if(rebroadcastSessionList == null){
-                    rebroadcastSessionList = new ArrayList<>();
-                    mRebroadcastSessionsUUIDIndex.put(sessionUUID, rebroadcastSessionList);
-                }
-                rebroadcastSessionList.add(session);
+                mRebroadcastSessionsUUIDIndex.computeIfAbsent(sessionUUID, id -> new CopyOnWriteArrayList<>()).add(session);
+                // The viewer keeps the streaming requested to the neighbour that sends it
+                StreamingRecord.getInstance().acquireDemand(sessionUUID);
 
                 // If no exception has been thrown, we reply with OK
                 response.content = session.getSessionDescription();
@@ -235,7 +328,7 @@ public class RTSPServerWorker extends AbstractWorker {
                 response.status = RtspResponse.STATUS_NOT_FOUND;
                 return response;
             }
-            Session mLocalStreamingSession = builder.build();
+            final Session mLocalStreamingSession = builder.build();
             mLocalStreamingSession.setStreamUUID(localStreamingUUID);
             mLocalStreamingSession.setNameStreaming(strLocalStreamName);
             mLocalStreamingSession.setDestinationAddress(socket.getInetAddress(), false);
@@ -243,7 +336,10 @@ public class RTSPServerWorker extends AbstractWorker {
             mLocalStreamingSession.setOriginAddress(socket.getLocalAddress(), false);
 
             mSessions.put(channel, mLocalStreamingSession);
-            mLocalStreamingSession.syncConfigure();
+            // Only the first DESCRIBE of a configuration configures the streams, the rest look it up
+            SessionDescriptionCache.Description description = SessionDescriptionCache.getInstance()
+                    .get(localStreamingUUID, builder.getConfigurationKey(), mLocalStreamingSession::syncConfigureDescription);
+            mLocalStreamingSession.setDescription(description);
 
             response.content = mLocalStreamingSession.getSessionDescription();
             response.attributes = "Content-Base: " + socket.getLocalAddress().getHostAddress() + ":" + socket.getLocalPort() + "/\r\n" +
@@ -265,13 +361,41 @@ public class RTSPServerWorker extends AbstractWorker {
             response.status = RtspResponse.STATUS_BAD_REQUEST;
         }
 
+        UUID streamUUID = UUID.fromString(request.path);
+        int hops = parseIntHeader(request, "x-hop-count", 1);
+        String origin = request.headers.get("x-stream-origin");
+        if(origin != null) origin = origin.trim();
+
+        // Each node receives a streaming from a single parent: the copies that come back through
+        // a loop or from a second neighbour are refused before any port is opened for them
+        if(hops > StreamingRecord.MAX_HOPS
+                || StreamingRecord.getInstance().getNodeId().toString().equals(origin)
+                || StreamingRecord.getInstance().streamingExist(streamUUID)
+                || isAnnouncedByOtherPeer(streamUUID, channel)) {
+            Log.d(TAG, "ANNOUNCE of " + streamUUID + " refused, hops: " + hops + ", origin: " + origin);
+            response.status = RtspResponse.STATUS_FORBIDDEN;
+            return response;
+        }
+
         // Parse the requested URI and configure the session
         ReceiveSession session = handleServerRequest(request, socket);
         session.setReceiveNet(mServerSelector.getChannelNetwork(channel));
 
-        UUID streamUUID = UUID.fromString(request.path);
-
-        mServerSessions.get(channel).put(streamUUID, new Streaming(streamUUID, session.getStreamingName(), session));
+        Streaming streaming = new Streaming(streamUUID, session.getStreamingName(), session);
+        streaming.setHops(hops);
+        streaming.setOrigin(origin);
+
+        // Another peer may have announced it meanwhile from another thread
+        synchronized (mAnnounceLock) {
+            if(isAnnouncedByOtherPeer(streamUUID, channel)) {
+                Log.d(TAG, "ANNOUNCE of " + streamUUID + " refused, announced by another peer meanwhile");
+                session.stop();
+                session.release();
+                response.status = RtspResponse.STATUS_FORBIDDEN;
+                return response;
+            }
+            mServerSessions.get(channel).put(streamUUID, streaming);
+        }
         response.attributes = "Content-Base: " + socket.getLocalAddress().getHostAddress() + ":" + socket.getLocalPort() + "/\r\n" +
                               "Content-Type: application/sdp\r\n" +
                               "Session: " + session.getSessionID() + ";timeout=" + session.getTimeout() +"\r\n";
@@ -281,8 +405,57 @@ public class RTSPServerWorker extends AbstractWorker {
         return response;
     }
 
+    private boolean isAnnouncedByOtherPeer(UUID id, SelectableChannel channel) {
+        for(Map.Entry<SelectableChannel, Map<UUID, Streaming>> entry : mServerSessions.entrySet()) {
+            if(entry.getKey() != channel && entry.getValue().containsKey(id)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Interleaved channels a SETUP asks for with RTP/AVP/TCP, by default 2*trackId and the next.
+     * @return The RTP and RTCP channels, or null if the transport is UDP
+     */
+    private static int[] parseInterleaved(String transport, int trackId) {
+        if(transport == null || !regexTcpTransport.matcher(transport).find()) return null;
+        Matcher m = regexInterleaved.matcher(transport);
+        // The RTCP always goes on the channel after the RTP
+        int rtp = m.find() ? Integer.parseInt(m.group(1)) : 2 * trackId;
+        if(rtp > 254) rtp = 2 * trackId;
+        return new int[]{rtp, rtp + 1};
+    }
+
+    /** The RTSP connection as the channel of the tracks interleaved in it. */
+    private SelectorInterleavedChannel getInterleavedChannel(final SelectableChannel channel) {
+        return mInterleavedChannels.computeIfAbsent(channel, c -> new SelectorInterleavedChannel(mServerSelector, c));
+    }
+
+    private InterleavedReader getInterleavedReader(final SelectableChannel channel) {
+        return mInterleavedReaders.computeIfAbsent(channel, c ->
+                new InterleavedReader((id, buffer, offset, length) -> onInterleavedFrame(c, id, buffer, offset, length)));
+    }
+
+    /** A viewer sent a frame on its connection: the RTCP goes to the track, the rest is ignored. */
+    private void onInterleavedFrame(SelectableChannel channel, int channelIdentifier, byte[] buffer, int offset, int length) {
+        if(channelIdentifier % 2 == 0) return;
+        Session session = mSessions.get(channel);
+        if(session != null) session.receiveInterleavedReport(channelIdentifier, buffer, offset, length);
+        RebroadcastSession rebroadcastSession = mRebroadcastSessions.get(channel);
+        if(rebroadcastSession != null) rebroadcastSession.receiveInterleavedReport(channelIdentifier, buffer, offset, length);
+    }
+
+    private static int parseIntHeader(RtspRequest request, String header, int defaultValue) {
+        String value = request.headers.get(header);
+        if(value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     // SETUP Implementation for live Sessions...
-    private RtspResponse SETUP(RtspRequest request, Session session) throws IOException {
+    private RtspResponse SETUP(RtspRequest request, Session session, SelectableChannel channel) throws IOException {
         RtspResponse response = new RtspResponse();
         Pattern p;
         Matcher m;
@@ -308,6 +481,17 @@ public class RTSPServerWorker extends AbstractWorker {
             return response;
         }
 
+        int[] interleaved = parseInterleaved(request.headers.get("transport"), trackId);
+        if (interleaved != null) {
+            session.getTrack(trackId).setInterleavedChannel(getInterleavedChannel(channel), (byte) interleaved[0]);
+            session.syncStart(trackId);
+            response.attributes = "Transport: RTP/AVP/TCP;unicast;interleaved=" + interleaved[0] + "-" + interleaved[1] + ";mode=play\r\n" +
+                    "Session: " + session.getSessionID() + ";timeout=" + SESSION_TIMEOUT_S + "\r\n" +
+                    "Cache-Control: no-cache\r\n";
+            response.status = RtspResponse.STATUS_OK;
+            return response;
+        }
+
         p = Pattern.compile("client_port=(\\d+)(?:-(\\d+))?", Pattern.CASE_INSENSITIVE);
         m = p.matcher(request.headers.get("transport"));
 
@@ -337,7 +521,7 @@ public class RTSPServerWorker extends AbstractWorker {
                 ";server_port=" + srcPorts[0] + "-" + srcPorts[1] +
                 //";ssrc=" + Integer.toHexString(ssrc) +
                 ";mode=play\r\n" +
-                "Session: " + session.getSessionID() + "\r\n" +
+                "Session: " + session.getSessionID() + ";timeout=" + SESSION_TIMEOUT_S + "\r\n" +
                 "Cache-Control: no-cache\r\n";
 
         // If no exception has been thrown, we reply with OK
@@ -371,6 +555,11 @@ public class RTSPServerWorker extends AbstractWorker {
             response.status = RtspResponse.STATUS_BAD_REQUEST;
             return response;
         }
+        if(parseInterleaved(request.headers.get("transport"), trackId) != null) {
+            // The reception only reads RTP from UDP ports
+            response.status = RtspResponse.STATUS_UNSUPPORTED_TRANSPORT;
+            return response;
+        }
         TrackInfo trackInfo = session.getTrack(trackId);
 
         p = Pattern.compile("client_port=(\\d+)(?:-(\\d+))?", Pattern.CASE_INSENSITIVE);
@@ -400,7 +589,7 @@ public class RTSPServerWorker extends AbstractWorker {
                 ";client_port=" + p1 + "-" + p2 +
                 ";server_port=" + srcPorts[0] + "-" + srcPorts[1] +
                 ";mode=receive\r\n" +
-                "Session: " + session.getSessionID() + "\r\n" +
+                "Session: " + session.getSessionID() + ";timeout=" + session.getTimeout() + "\r\n" +
                 "Cache-Control: no-cache\r\n";
         response.status = RtspResponse.STATUS_OK;
 
@@ -408,7 +597,7 @@ public class RTSPServerWorker extends AbstractWorker {
     }
 
     // SETUP Implementation for RebroadcastSessions...
-    private RtspResponse SETUP(RtspRequest request, RebroadcastSession session) throws IOException {
+    private RtspResponse SETUP(RtspRequest request, RebroadcastSession session, SelectableChannel channel) throws IOException {
         RtspResponse response = new RtspResponse();
         Pattern p;
         Matcher m;
@@ -434,6 +623,18 @@ public class RTSPServerWorker extends AbstractWorker {
         }
         RebroadcastSession.RebroadcastTrackInfo rebroadcastTrackInfo = session.getRebroadcastTrack(trackId);
 
+        int[] interleaved = parseInterleaved(request.headers.get("transport"), trackId);
+        if (interleaved != null) {
+            rebroadcastTrackInfo.setChannelIdentifier(interleaved[0]);
+            session.setInterleavedChannel(getInterleavedChannel(channel));
+            session.startTrack(trackId);
+            response.attributes = "Transport: RTP/AVP/TCP;unicast;interleaved=" + interleaved[0] + "-" + interleaved[1] + ";mode=play\r\n" +
+                    "Session: " + session.getSessionID() + ";timeout=" + SESSION_TIMEOUT_S + "\r\n" +
+                    "Cache-Control: no-cache\r\n";
+            response.status = RtspResponse.STATUS_OK;
+            return response;
+        }
+
         p = Pattern.compile("client_port=(\\d+)(?:-(\\d+))?", Pattern.CASE_INSENSITIVE);
         m = p.matcher(request.headers.get("transport"));
 
@@ -451,8 +652,9 @@ public class RTSPServerWorker extends AbstractWorker {
             rebroadcastTrackInfo.setRemotePorts(p1, p2);
         }
 
-        srcPorts = session.getServerTrack(trackId).getLocalPorts();
         session.startTrack(trackId);
+        RelayTrack relayTrack = session.getRelayTrack(trackId);
+        srcPorts = relayTrack != null ? relayTrack.getLocalPorts() : session.getServerTrack(trackId).getLocalPorts();
 
         response.attributes = "Transport: RTP/AVP/UDP;" + (session.getDestination().isMulticastAddress() ? "multicast" : "unicast") +
                 ";destination=" + session.getDestination() +
@@ -462,7 +664,7 @@ public class RTSPServerWorker extends AbstractWorker {
                 // if so we would need to recover it IN SETUP_RECEIVE AND THEN RESEND HERE
                 //";ssrc=" + trackInfo.getSSRCHex() +
                 ";mode=play\r\n" +
-                "Session: " + session.getSessionID() + "\r\n" +
+                "Session: " + session.getSessionID() + ";timeout=" + SESSION_TIMEOUT_S + "\r\n" +
                 "Cache-Control: no-cache\r\n";
 
         // If no exception has been thrown, we reply with OK
@@ -483,7 +685,7 @@ public class RTSPServerWorker extends AbstractWorker {
         if (requestSession.trackExists(1))
             requestAttributes += "url=rtsp://" + url + "/trackID=" + 1 + ";seq=0,";
         response.attributes = requestAttributes.substring(0, requestAttributes.length() - 1)
-                            + "\r\nSession: " + requestSession.getSessionID() +"\r\n";
+                            + "\r\nSession: " + requestSession.getSessionID() + ";timeout=" + SESSION_TIMEOUT_S + "\r\n";
 
         // If no exception has been thrown, we reply with OK
         response.status = RtspResponse.STATUS_OK;
@@ -503,7 +705,7 @@ public class RTSPServerWorker extends AbstractWorker {
         if (rebroadcastSession.serverTrackExists(1))
             requestAttributes += "url=rtsp://" + url + "/trackID=" + 1 + ";seq=0,";
         response.attributes = requestAttributes.substring(0, requestAttributes.length() - 1)
-                + "\r\nSession: " + rebroadcastSession.getSessionID() +"\r\n";
+                + "\r\nSession: " + rebroadcastSession.getSessionID() + ";timeout=" + SESSION_TIMEOUT_S + "\r\n";
 
         // If no exception has been thrown, we reply with OK
         response.status = RtspResponse.STATUS_OK;
@@ -514,12 +716,22 @@ public class RTSPServerWorker extends AbstractWorker {
     // RECORD Implementation for ServerSessions...
     private RtspResponse RECORD(ReceiveSession receiveSession, SelectableChannel channel) {
         RtspResponse response = new RtspResponse();
+        if(receiveSession == null) {
+            // Neither announced in this connection nor waiting to be resumed
+            response.status = RtspResponse.STATUS_SESSION_NOT_FOUND;
+            return response;
+        }
         response.attributes = "Session: " + receiveSession.getSessionID() + ";timeout=" + receiveSession.getTimeout() +"\r\n";
         response.status = RtspResponse.STATUS_OK;
 
 
         UUID streamUUID = UUID.fromString(receiveSession.getPath());
 
+        // Resumed after a reconnection, it is already recorded
+        if(StreamingRecord.getInstance().getStreaming(streamUUID) == mServerSessions.get(channel).get(streamUUID)) {
+            return response;
+        }
+
         if(StreamingRecord.getInstance().streamingExist(streamUUID)) {
             response.status = RtspResponse.STATUS_FORBIDDEN;
             receiveSession.stop();
@@ -527,7 +739,7 @@ public class RTSPServerWorker extends AbstractWorker {
             return response;
         }
 
-        StreamingRecord.getInstance().addStreaming(mServerSessions.get(channel).get(UUID.fromString(receiveSession.getPath())), true);
+        StreamingRecord.getInstance().addStreaming(mServerSessions.get(channel).get(UUID.fromString(receiveSession.getPath())), true, channel);
 
         return response;
     }
@@ -572,6 +784,48 @@ public class RTSPServerWorker extends AbstractWorker {
         mSelector.send(channel, request.getBytes());
     }
 
+    /**
+     * Sin cuerpo es un keep-alive: solo renueva el plazo de las sesiones del canal, que ya se ha
+     * hecho al recibir la peticion. No se expone ningun parametro, asi que pedir uno es un 451.
+     */
+    private RtspResponse GET_PARAMETER(RtspRequest request, SelectableChannel channel) {
+        RtspResponse response = new RtspResponse();
+        if(request.body != null && !request.body.trim().isEmpty()) {
+            if(EXPOSE_METRICS && request.body.trim().equalsIgnoreCase(METRICS_PARAMETER)) {
+                response.content = MetricsRegistry.getInstance().snapshot().toParameters();
+                response.attributes = "Content-Type: text/parameters\r\n";
+                response.status = RtspResponse.STATUS_OK;
+            } else {
+                response.status = RtspResponse.STATUS_PARAMETER_NOT_UNDERSTOOD;
+            }
+            return response;
+        }
+        String session = request.headers.get("session");
+        if(session != null) {
+            response.attributes = "Session: " + session.trim() + ";timeout=" + SESSION_TIMEOUT_S + "\r\n";
+        }
+        response.status = RtspResponse.STATUS_OK;
+        return response;
+    }
+
+    /**
+     * El cliente de un vecino anuncia su catalogo de streamings y se le contesta con los que
+     * queremos que nos envie. El vecino solo hace ANNOUNCE/RECORD de los streamings pedidos.
+     */
+    private RtspResponse SET_PARAMETER(RtspRequest request, SelectableChannel channel) {
+        RtspResponse response = new RtspResponse();
+        List<CatalogEntry> catalog = CatalogParameters.decodeCatalog(request.body);
+        if(catalog != null) {
+            int rtt = parseIntHeader(request, "x-link-rtt", -1);
+            if(rtt >= 0) StreamingRecord.getInstance().updatePeerRtt(channel, rtt);
+            StreamingRecord.getInstance().setPeerCatalog(channel, catalog);
+            response.content = CatalogParameters.encodeInterest(StreamingRecord.getInstance().getInterest(channel));
+            response.attributes = "Content-Type: text/parameters\r\n";
+        }
+        response.status = RtspResponse.STATUS_OK;
+        return response;
+    }
+
     private RtspResponse PAUSE() {
         RtspResponse response = new RtspResponse();
         response.status = RtspResponse.STATUS_OK;
@@ -579,6 +833,122 @@ public class RTSPServerWorker extends AbstractWorker {
     }
 
 
+    @Override
+    protected void onWorkerStart() {
+        mShards.start();
+        MetricsRegistry.getInstance().register("rtsp.server", gauges -> {
+            int received = 0;
+            for(Map<UUID, Streaming> streamings : mServerSessions.values()) received += streamings.size();
+            gauges.put("connections", (double) mLastRequestNs.size());
+            gauges.put("viewers", (double) mSessions.size());
+            gauges.put("rebroadcasts", (double) mRebroadcastSessions.size());
+            gauges.put("received", (double) received);
+            gauges.put("detached", (double) mDetached.size());
+            gauges.put("interleaved", (double) mInterleavedChannels.size());
+            gauges.put("queued_requests", (double) mShards.getQueuedTaskCount());
+        });
+        synchronized (this) {
+            if(mKeepAliveLoop == null) {
+                mKeepAliveLoop = SessionExecutor.getInstance().newLoop(TAG + "-keepalive");
+                mKeepAliveLoop.postDelayed(mKeepAliveTick, KEEP_ALIVE_TICK_MS);
+            }
+        }
+    }
+
+    @Override
+    protected void onWorkerStop() {
+        MetricsRegistry.getInstance().unregister("rtsp.server");
+        synchronized (this) {
+            if(mKeepAliveLoop != null) {
+                mKeepAliveLoop.quit();
+                mKeepAliveLoop = null;
+            }
+        }
+        mShards.stop();
+        onWorkerRelease();
+    }
+
+    private static long nowMs() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /** Notes a request of the channel, its deadline is only checked when it expires. */
+    private void onActivity(SelectableChannel channel) {
+        mLastRequestNs.put(channel, System.nanoTime());
+        if(!mKeepAlive.contains(channel)) {
+            mKeepAlive.schedule(channel, nowMs() + SESSION_TIMEOUT_S * 1000L);
+        }
+    }
+
+    /** Last activity of the channel: its RTSP requests and the RTP/RTCP of its sessions. */
+    private long getLastActivityNs(SelectableChannel channel) {
+        Long lastRequest = mLastRequestNs.get(channel);
+        long last = lastRequest != null ? lastRequest : 0;
+        Session session = mSessions.get(channel);
+        if(session != null) last = Math.max(last, session.getLastReportNs());
+        Map<UUID, Streaming> streamings = mServerSessions.get(channel);
+        if(streamings != null) {
+            for(Streaming streaming : streamings.values()) {
+                ReceiveSession receiveSession = streaming.getReceiveSession();
+                if(receiveSession != null) last = Math.max(last, receiveSession.getLastPacketNs());
+            }
+        }
+        RebroadcastSession rebroadcastSession = mRebroadcastSessions.get(channel);
+        if(rebroadcastSession != null) last = Math.max(last, rebroadcastSession.getLastReportNs());
+        return last;
+    }
+
+    /** The deadline of the channel has expired: it is renewed if there was activity meanwhile, else closed. */
+    private void checkIdle(SelectableChannel channel) {
+        if(!mLastRequestNs.containsKey(channel)) return;
+        long lastMs = getLastActivityNs(channel) / 1000000;
+        long deadlineMs = lastMs + SESSION_TIMEOUT_S * 1000L;
+        if(deadlineMs > nowMs()) {
+            mKeepAlive.schedule(channel, deadlineMs);
+            return;
+        }
+        Log.i(TAG, "No activity in " + SESSION_TIMEOUT_S + " s, closing the sessions of " + channel);
+        // The selector closes the channel and calls onClientDisconnected, that releases the sessions
+        mSelector.disconnectClient(channel);
+    }
+
+    /**
+     * A read can hold several requests pipelined by the client, or part of one: the reader of
+     * the connection splits them and keeps the rest, besides the interleaved frames.
+     */
+    @Override
+    protected void dispatch(final DataReceived dataReceived) {
+        InterleavedReader reader = getInterleavedReader(dataReceived.getSocket());
+        // Only called from the selector thread, the reader of a connection is never shared
+        for(byte[] message : reader.read(dataReceived.getData(), dataReceived.getData().length)) {
+            dispatchRequest(new DataReceived(dataReceived.getSelector(), dataReceived.getSocket(), message));
+        }
+    }
+
+    private void dispatchRequest(final DataReceived dataReceived) {
+        final long arrivalNs = System.nanoTime();
+        if(mShards.offer(dataReceived.getSocket(), () -> {
+            parsePackets(dataReceived);
+            mRequestLatency.record((System.nanoTime() - arrivalNs) / 1000);
+        })) return;
+
+        mRejected.increment();
+        // The thread of this client is far behind, it is told to retry instead of blocking the selector
+        Log.w(TAG, "Request queue full, " + mShards.getQueuedTaskCount() + " requests waiting");
+        RtspRequest request = null;
+        try {
+            request = RtspRequest.parseRequest(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(dataReceived.getData()))));
+        } catch (IOException | RuntimeException ignored) {}
+        RtspResponse response = new RtspResponse(request);
+        response.status = RtspResponse.STATUS_SERVICE_UNAVAILABLE;
+        response.attributes = "Retry-After: 1\r\n";
+        try {
+            dataReceived.getSelector().send(dataReceived.getSocket(), response.build().getBytes());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     @Override
     protected void parsePackets(DataReceived dataReceived) {
         //TODO POSIBILIDAD DE QUE LOS PAQUETES SE QUEDEN ABIERTOS...!!! HAY QUE CONTROLAR
@@ -654,6 +1024,8 @@ public class RTSPServerWorker extends AbstractWorker {
             e.printStackTrace();
         }
 
+        // The handlers build their responses without the request, the CSeq is added here
+        response.setRequest(request);
         try {
             dataReceived.getSelector().send(dataReceived.getSocket(), response.build().getBytes());
         } catch (IOException e1) {
@@ -749,14 +1121,8 @@ public class RTSPServerWorker extends AbstractWorker {
         //Buscar la serverSession que corresponde al path
         RebroadcastSession session = new RebroadcastSession();
 
-        List<Streaming> streamingsList = StreamingRecord.getInstance().getStreamings();
-        ReceiveSession receiveSession = null;
-        UUID requestedStream = UUID.fromString(path);
-        for(Streaming streaming : streamingsList){
-            if(streaming.getUUID().equals(requestedStream)){
-                receiveSession = streaming.getReceiveSession();
-            }
-        }
+        Streaming streaming = StreamingRecord.getInstance().getStreaming(UUID.fromString(path));
+        ReceiveSession receiveSession = streaming != null ? streaming.getReceiveSession() : null;
         session.setServerSession(receiveSession);
 
         if(receiveSession == null) {
@@ -776,10 +1142,24 @@ public class RTSPServerWorker extends AbstractWorker {
     }
 
     /**
-     * Cerramos las sesiones asociadas al socket
+     * Cerramos las sesiones asociadas al socket, en el hilo del canal para que no se cruce con
+     * una peticion suya que aun se este procesando. Se llama desde el selector, la tarea entra
+     * aunque la cola del hilo este llena y sin esperar
      * @param channel
      */
-    public synchronized void onClientDisconnected(SelectableChannel channel) {
+    public void onClientDisconnected(final SelectableChannel channel) {
+        if(!mShards.execute(channel, () -> releaseChannel(channel))) {
+            releaseChannel(channel);
+        }
+    }
+
+    private void releaseChannel(SelectableChannel channel) {
+        mKeepAlive.cancel(channel);
+        mLastRequestNs.remove(channel);
+        mInterleavedReaders.remove(channel);
+        mInterleavedChannels.remove(channel);
+        StreamingRecord.getInstance().removePeerCatalog(channel);
+
         Session streamingSession = mSessions.remove(channel);
         if(streamingSession != null) {
             onSessionDisconnected(streamingSession);
@@ -788,7 +1168,7 @@ public class RTSPServerWorker extends AbstractWorker {
         Map<UUID, Streaming> streamings = mServerSessions.remove(channel);
         if(streamings != null){
             for(Streaming streaming : streamings.values()){
-                onReceiveSessionDisconnected(streaming);
+                detachStreaming(streaming);
             }
             streamings.clear();
         }
@@ -801,6 +1181,55 @@ public class RTSPServerWorker extends AbstractWorker {
         }
     }
 
+    /**
+     * The publisher lost the connection: what it keeps sending over UDP is still received and
+     * relayed until it resumes the streaming from a new connection, or stops sending for
+     * {@link #RESUME_TIMEOUT_S} seconds. A streaming not recorded yet is released.
+     */
+    private void detachStreaming(Streaming streaming){
+        ReceiveSession receiveSession = streaming.getReceiveSession();
+        if(receiveSession == null || StreamingRecord.getInstance().getStreaming(streaming.getUUID()) != streaming) {
+            onReceiveSessionDisconnected(streaming);
+            return;
+        }
+        mDetached.put(receiveSession.getSessionID(), streaming);
+        mResumeDeadlines.schedule(receiveSession.getSessionID(), nowMs() + RESUME_TIMEOUT_S * 1000L);
+    }
+
+    /**
+     * A request with the Session of a detached streaming of the same path attaches it to this
+     * connection, the publisher goes on without announcing it again.
+     */
+    private ReceiveSession resumeStreaming(RtspRequest request, SelectableChannel channel, Map<UUID, Streaming> streamings){
+        String sessionId = request.headers.get("session").split(";")[0].trim();
+        Streaming streaming = mDetached.get(sessionId);
+        // Whoever removes it owns it, it may have expired meanwhile
+        if(streaming == null || !streaming.getUUID().toString().equals(request.path)
+                || !mDetached.remove(sessionId, streaming)) {
+            return null;
+        }
+        mResumeDeadlines.cancel(sessionId);
+        streamings.put(streaming.getUUID(), streaming);
+        StreamingRecord.getInstance().setStreamingPeer(streaming.getUUID(), channel);
+        Log.i(TAG, "Streaming " + request.path + " resumed by " + channel);
+        return streaming.getReceiveSession();
+    }
+
+    /** The deadline of a detached streaming has expired: it is renewed if packets arrived meanwhile, else released. */
+    private void checkDetached(String sessionId){
+        Streaming streaming = mDetached.get(sessionId);
+        if(streaming == null) return;
+        long deadlineMs = streaming.getReceiveSession().getLastPacketNs() / 1000000 + RESUME_TIMEOUT_S * 1000L;
+        if(deadlineMs > nowMs()) {
+            mResumeDeadlines.schedule(sessionId, deadlineMs);
+            return;
+        }
+        if(mDetached.remove(sessionId, streaming)) {
+            Log.i(TAG, "Streaming " + streaming.getUUID() + " not resumed in " + RESUME_TIMEOUT_S + " s, releasing it");
+            onReceiveSessionDisconnected(streaming);
+        }
+    }
+
     private void onSessionDisconnected(Session streamingSession){
         if (streamingSession.isStreaming()) {
             streamingSession.syncStop();
@@ -828,6 +1257,7 @@ public class RTSPServerWorker extends AbstractWorker {
     }
 
     private void onRebroadcastSessionDisconnected(RebroadcastSession rebroadcastSession){
+        StreamingRecord.getInstance().releaseDemand(UUID.fromString(rebroadcastSession.getPath()));
         rebroadcastSession.stop();
     }
 
@@ -838,6 +1268,9 @@ public class RTSPServerWorker extends AbstractWorker {
             onSessionDisconnected(session);
         }
         mSessions.clear();
+        for(SelectableChannel channel : mServerSessions.keySet()){
+            StreamingRecord.getInstance().removePeerCatalog(channel);
+        }
         for(Map<UUID, Streaming> streamings : mServerSessions.values()){
             for(Streaming streaming : streamings.values()){
                 onReceiveSessionDisconnected(streaming);
@@ -845,10 +1278,18 @@ public class RTSPServerWorker extends AbstractWorker {
             streamings.clear();
         }
         mServerSessions.clear();
+        for(Streaming streaming : mDetached.values()){
+            onReceiveSessionDisconnected(streaming);
+        }
+        mDetached.clear();
         for(RebroadcastSession rebroadcastSession : mRebroadcastSessions.values()){
             onRebroadcastSessionDisconnected(rebroadcastSession);
         }
         mRebroadcastSessions.clear();
         mRebroadcastSessionsUUIDIndex.clear();
+        // The deadlines left in the wheel are ignored without a last request
+        mLastRequestNs.clear();
+        mInterleavedReaders.clear();
+        mInterleavedChannels.clear();
     }
 }
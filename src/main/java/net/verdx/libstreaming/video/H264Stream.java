@@ -43,6 +43,7 @@ public class H264Stream extends VideoStream {
 	public final static String TAG = "H264Stream";
 
 	private MP4Config mConfig;
+	private MP4Config mPresetConfig = null;
 
 	public H264Stream() {
 		mMimeType = "video/avc";
@@ -82,7 +83,20 @@ public class H264Stream extends VideoStream {
 		super.configure();
 		mMode = mRequestedMode;
 		mQuality = mRequestedQuality.clone();
-		mConfig = testH264();
+		mConfig = mPresetConfig != null ? mPresetConfig : testH264();
+	}
+
+	/**
+	 * Sets the profile, SPS and PPS found by a stream configured before with the same quality,
+	 * {@link #configure()} then does not test the encoder.
+	 */
+	public synchronized void setConfig(MP4Config config) {
+		mPresetConfig = config;
+	}
+
+	/** Returns the profile, SPS and PPS of the last {@link #configure()}, null before. */
+	public synchronized MP4Config getConfig() {
+		return mConfig;
 	}
 	
 	/** 
@@ -5,6 +5,8 @@ import android.content.SharedPreferences;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 
@@ -16,6 +18,7 @@ import java.util.Map;
 import net.verdx.libstreaming.hw.EncoderDebugger;
 import net.verdx.libstreaming.rtp.AbstractPacketizer;
 import net.verdx.libstreaming.rtp.ByteBufferInputStream;
+import net.verdx.libstreaming.rtp.EncoderSink;
 import net.verdx.libstreaming.rtp.MediaCodecBufferReader;
 import net.verdx.libstreaming.rtp.MediaCodecInputStream;
 
@@ -23,6 +26,11 @@ public class VideoPacketizerDispatcher{
 
     private static final String TAG = "VideoPacketizerDispatcher";
 
+    /** Min time between two changes of the bitrate of the encoder. */
+    private static final long BITRATE_UPDATE_INTERVAL_MS = 1000;
+    /** Changes of the bitrate smaller than this fraction are not applied. */
+    private static final double BITRATE_UPDATE_THRESHOLD = 0.05;
+
     private Thread mReaderThread;
     private static VideoPacketizerDispatcher mInstance;
 
@@ -31,8 +39,12 @@ public class VideoPacketizerDispatcher{
 
     private MediaCodec mMediaCodec;
     private MediaCodecInputStream mMediaCodecInputStream;
+    private MediaCodecBufferReader mBufferReader;
     private  Surface mEncoderSurface;
     private final Map<AbstractPacketizer, InputStream> mPacketizersInputsMap = new HashMap<>();
+    private final Map<AbstractPacketizer, Integer> mRequestedBitrates = new HashMap<>();
+    private int mCurrentBitrate;
+    private long mLastBitrateUpdate = 0;
 
 
     private VideoPacketizerDispatcher(SharedPreferences settings, VideoQuality quality) throws IOException {
@@ -45,6 +57,7 @@ public class VideoPacketizerDispatcher{
         mMediaCodec = MediaCodec.createByCodecName(debugger.getEncoderName());
         MediaFormat mediaFormat = MediaFormat.createVideoFormat("video/avc", mQuality.resX, mQuality.resY);
         mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
+        mCurrentBitrate = mQuality.bitrate;
         mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);
         mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
         mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
@@ -53,7 +66,8 @@ public class VideoPacketizerDispatcher{
         mMediaCodec.start();
 
         mMediaCodecInputStream = new MediaCodecInputStream(mMediaCodec);
-        mReaderThread = new Thread(new MediaCodecBufferReader(64000, mMediaCodecInputStream, mPacketizersInputsMap));
+        mBufferReader = new MediaCodecBufferReader("video", 64000, mMediaCodecInputStream, mPacketizersInputsMap);
+        mReaderThread = new Thread(mBufferReader);
         mReaderThread.start();
     }
 
@@ -105,6 +119,7 @@ public class VideoPacketizerDispatcher{
         mMediaCodec = null;
         mEncoderSurface = null;
         mMediaCodecInputStream = null;
+        mBufferReader = null;
         mQuality = null;
         mSettings = null;
     }
@@ -122,6 +137,56 @@ public class VideoPacketizerDispatcher{
         }
     }
 
+    /**
+     * Subscribes a sink to the whole encoded frames, for example to record the local streaming.
+     * @return false if the dispatcher is not running
+     */
+    public static synchronized boolean subscribeSink(EncoderSink sink) {
+        if (mInstance == null) return false;
+        mInstance.mBufferReader.addSink(sink);
+        return true;
+    }
+
+    public static synchronized void unsubscribeSink(EncoderSink sink) {
+        if (mInstance != null) {
+            mInstance.mBufferReader.removeSink(sink);
+        }
+    }
+
+    /**
+     * Target bitrate of a packetizer, estimated by the congestion control of its socket. All the
+     * packetizers share the encoder, so it runs at the lowest target of all of them, never
+     * above the configured quality.
+     */
+    public static synchronized void requestBitrate(AbstractPacketizer packetizer, int bitrate) {
+        if (mInstance != null) {
+            mInstance.mRequestedBitrates.put(packetizer, bitrate);
+            mInstance.updateBitrate();
+        }
+    }
+
+    private void updateBitrate() {
+        int bitrate = mQuality.bitrate;
+        for (int requested : mRequestedBitrates.values()) {
+            bitrate = Math.min(bitrate, requested);
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (Math.abs(bitrate - mCurrentBitrate) < BITRATE_UPDATE_THRESHOLD * mCurrentBitrate) return;
+        // Decreases are applied at once, increases wait so the encoder does not oscillate
+        if (bitrate > mCurrentBitrate && now - mLastBitrateUpdate < BITRATE_UPDATE_INTERVAL_MS) return;
+
+        Bundle parameters = new Bundle();
+        parameters.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        try {
+            mMediaCodec.setParameters(parameters);
+            Log.d(TAG, "Encoder bitrate: " + mCurrentBitrate + " -> " + bitrate);
+            mCurrentBitrate = bitrate;
+            mLastBitrateUpdate = now;
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Could not change the bitrate of the encoder: " + e.getMessage());
+        }
+    }
+
     private void addInternalPacketizer(AbstractPacketizer packetizer) {
         InputStream packetizerInput = new ByteBufferInputStream();
         packetizer.setInputStream(packetizerInput);
@@ -136,6 +201,7 @@ public class VideoPacketizerDispatcher{
         synchronized (mPacketizersInputsMap){
             mPacketizersInputsMap.remove(packetizer);
             packetizer.stop();
+            if (mRequestedBitrates.remove(packetizer) != null) updateBitrate();
             Log.e(TAG, "Removed internal packetizer from map!");
         }
     }
@@ -176,6 +176,8 @@ public abstract class VideoStream extends MediaStream {
 
 		 */
 
+		// The socket spreads the keyframes at a few times the bitrate of the encoder
+		mPacketizer.getRtpSocket().setTargetBitrate(mQuality.bitrate);
 		VideoPacketizerDispatcher.subscribe(mPacketizer);
 		mStreaming = true;
 
@@ -0,0 +1,147 @@
+package net.verdx.libstreaming;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.verdx.libstreaming.sessions.SessionBuilder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Avisos del registro de streamings: cada observador los recibe en su propio loop y en orden,
+ * y uno lento (la interfaz) no retrasa ni los cambios del registro ni al resto de observadores.
+ */
+public class StreamingRecordTest {
+
+    private final List<StreamingRecordObserver> mObservers = new ArrayList<>();
+    private final List<UUID> mStreamings = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (StreamingRecordObserver observer : mObservers) StreamingRecord.getInstance().removeObserver(observer);
+        for (UUID id : mStreamings) StreamingRecord.getInstance().removeStreaming(id);
+    }
+
+    private Streaming newStreaming() {
+        UUID id = UUID.randomUUID();
+        mStreamings.add(id);
+        return new Streaming(id, "test", null);
+    }
+
+    /** Observer that notes the streamings offered and removed, waiting on each if asked. */
+    private static class Recorder implements StreamingRecordObserver {
+        final List<String> events = new ArrayList<>();
+        final CountDownLatch release;
+        final CountDownLatch received;
+
+        Recorder(CountDownLatch release, int expected) {
+            this.release = release;
+            this.received = new CountDownLatch(expected);
+        }
+
+        private void note(String event) {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (events) {
+                events.add(event);
+            }
+            received.countDown();
+        }
+
+        @Override
+        public void onLocalStreamingAvailable(UUID id, String name, SessionBuilder sessionBuilder) {}
+
+        @Override
+        public void onLocalStreamingUnavailable() {}
+
+        @Override
+        public void onStreamingAvailable(Streaming streaming, boolean bAllowDispatch) {
+            note("+" + streaming.getUUID());
+        }
+
+        @Override
+        public void onStreamingUnavailable(Streaming streaming) {
+            note("-" + streaming.getUUID());
+        }
+
+        @Override
+        public void onStreamingDownloadStateChanged(Streaming streaming, boolean bIsDownload) {}
+    }
+
+    private Recorder addObserver(CountDownLatch release, int expected) {
+        Recorder recorder = new Recorder(release, expected);
+        mObservers.add(recorder);
+        StreamingRecord.getInstance().addObserver(recorder);
+        return recorder;
+    }
+
+    @Test(timeout = 10000)
+    public void slowObserverBlocksNobody() throws Exception {
+        int streamings = 50;
+        CountDownLatch blocked = new CountDownLatch(1);
+        Recorder slow = addObserver(blocked, streamings);
+        Recorder fast = addObserver(new CountDownLatch(0), streamings);
+
+        List<Streaming> added = new ArrayList<>();
+        for (int i = 0; i < streamings; i++) {
+            Streaming streaming = newStreaming();
+            added.add(streaming);
+            StreamingRecord.getInstance().addStreaming(streaming, true);
+            // Lookups while the slow observer has not returned
+            assertSame(streaming, StreamingRecord.getInstance().getStreaming(streaming.getUUID()));
+        }
+
+        assertTrue(fast.received.await(5, TimeUnit.SECONDS));
+        synchronized (slow.events) {
+            assertEquals(0, slow.events.size());
+        }
+
+        blocked.countDown();
+        assertTrue(slow.received.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < streamings; i++) {
+            assertEquals("+" + added.get(i).getUUID(), slow.events.get(i));
+        }
+    }
+
+    @Test
+    public void changesArriveInOrder() throws Exception {
+        Streaming streaming = newStreaming();
+        int rounds = 20;
+        Recorder recorder = addObserver(new CountDownLatch(0), 2 * rounds);
+        for (int i = 0; i < rounds; i++) {
+            StreamingRecord.getInstance().addStreaming(streaming, true);
+            StreamingRecord.getInstance().removeStreaming(streaming.getUUID());
+        }
+        assertTrue(recorder.received.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 2 * rounds; i++) {
+            assertEquals((i % 2 == 0 ? "+" : "-") + streaming.getUUID(), recorder.events.get(i));
+        }
+        assertFalse(StreamingRecord.getInstance().streamingExist(streaming.getUUID()));
+    }
+
+    @Test
+    public void newObserverIsOfferedTheStreamingsFirst() throws Exception {
+        Streaming streaming = newStreaming();
+        StreamingRecord.getInstance().addStreaming(streaming, true);
+
+        final CountDownLatch offered = new CountDownLatch(1);
+        final Recorder recorder = new Recorder(new CountDownLatch(0), 1);
+        final List<String> seenWhenOffered = new ArrayList<>();
+        mObservers.add(recorder);
+        StreamingRecord.getInstance().addObserver(recorder, () -> {
+            seenWhenOffered.addAll(recorder.events);
+            offered.countDown();
+        });
+        assertTrue(offered.await(5, TimeUnit.SECONDS));
+        assertTrue(seenWhenOffered.contains("+" + streaming.getUUID()));
+    }
+}
@@ -0,0 +1,155 @@
+package net.verdx.libstreaming.congestion;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+import net.verdx.libstreaming.rtcp.TransportFeedback;
+import net.verdx.libstreaming.rtcp.TransportFeedbackBuilder;
+import net.verdx.libstreaming.rtp.Pacer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the send side estimation against an emulated bottleneck: a FIFO queue draining at a fixed
+ * capacity, with tail drop and a propagation delay each way. The feedback goes through the real
+ * wire format. Time is simulated, so the result does not depend on the machine.
+ */
+public class BandwidthEstimatorTest {
+
+    private static final long MS = 1000000L;
+    private static final int PACKET_SIZE = 1200;
+    private static final long FRAME_INTERVAL_NS = 33 * MS;
+    private static final long PROPAGATION_NS = 20 * MS;
+    private static final long MAX_QUEUE_NS = 500 * MS;
+
+    /** Sender, bottleneck and receiver of a simulated link. */
+    private static class Link {
+        final BandwidthEstimator estimator;
+        final TransportFeedbackBuilder receiver = new TransportFeedbackBuilder();
+        final byte[] feedbackBuffer = new byte[TransportFeedback.HEADER_LENGTH + 2 * TransportFeedback.MAX_PACKETS];
+
+        final ArrayDeque<Integer> sendQueue = new ArrayDeque<>();
+        final ArrayDeque<long[]> inFlight = new ArrayDeque<>();
+        final ArrayDeque<Object[]> feedbacks = new ArrayDeque<>();
+
+        long capacityBps;
+        long now = 0;
+        long nextFrameNs = 0;
+        long nextSendNs = 0;
+        long nextFeedbackNs = 0;
+        long bottleneckFreeNs = 0;
+        long sequence = 0;
+        long lastQueueDelayNs = 0;
+
+        Link(int startBitrate, int maxBitrate, long capacityBps) {
+            estimator = new BandwidthEstimator(startBitrate, 50000, maxBitrate);
+            this.capacityBps = capacityBps;
+        }
+
+        /** Advances the simulation 1 ms. */
+        void step() {
+            now += MS;
+
+            // Sender: the encoder follows the target, the pacer sends at 2.5 times the target
+            while (!feedbacks.isEmpty() && (long) feedbacks.peek()[0] <= now) {
+                byte[] feedback = (byte[]) feedbacks.poll()[1];
+                for (TransportFeedback.Feedback parsed : TransportFeedback.parse(feedback, feedback.length)) {
+                    estimator.onFeedback(parsed, now);
+                }
+            }
+            if (now >= nextFrameNs) {
+                nextFrameNs += FRAME_INTERVAL_NS;
+                long frameBytes = (long) estimator.getTargetBitrate() * FRAME_INTERVAL_NS / 8 / 1000000000L;
+                for (long bytes = frameBytes; bytes > 0; bytes -= PACKET_SIZE) {
+                    sendQueue.add((int) Math.min(PACKET_SIZE, bytes));
+                }
+            }
+            double pacingRate = Pacer.PACING_FACTOR * estimator.getTargetBitrate() / 8;
+            while (!sendQueue.isEmpty() && nextSendNs <= now) {
+                int size = sendQueue.poll();
+                long sendNs = Math.max(nextSendNs, now - MS);
+                estimator.onPacketSent(sequence, size, sendNs);
+                nextSendNs = sendNs + (long) (size / pacingRate * 1e9);
+                enterBottleneck(sequence++, size, sendNs);
+            }
+            if (sendQueue.isEmpty() && nextSendNs < now) nextSendNs = now;
+
+            // Receiver: feedback every 100 ms with what arrived until now
+            while (!inFlight.isEmpty() && inFlight.peek()[1] <= now) {
+                long[] packet = inFlight.poll();
+                receiver.onPacket((int) (packet[0] & 0xFFFF), packet[1]);
+            }
+            if (now >= nextFeedbackNs) {
+                nextFeedbackNs = now + 100 * MS;
+                int length = receiver.write(feedbackBuffer, 1, 2);
+                if (length > 0) {
+                    byte[] feedback = new byte[length];
+                    System.arraycopy(feedbackBuffer, 0, feedback, 0, length);
+                    feedbacks.add(new Object[] {now + PROPAGATION_NS, feedback});
+                }
+            }
+        }
+
+        private void enterBottleneck(long sequence, int size, long sendNs) {
+            long start = Math.max(sendNs, bottleneckFreeNs);
+            if (start - sendNs > MAX_QUEUE_NS) return;
+            bottleneckFreeNs = start + size * 8L * 1000000000L / capacityBps;
+            lastQueueDelayNs = bottleneckFreeNs - sendNs;
+            inFlight.add(new long[] {sequence, bottleneckFreeNs + PROPAGATION_NS});
+        }
+    }
+
+    @Test
+    public void convergesBelowBottleneck() {
+        Link link = new Link(2000000, 3000000, 1000000);
+        double targetSum = 0, delaySum = 0;
+        int samples = 0;
+        for (int ms = 0; ms < 40000; ms++) {
+            link.step();
+            if (ms >= 25000) {
+                targetSum += link.estimator.getTargetBitrate();
+                delaySum += link.lastQueueDelayNs;
+                samples++;
+            }
+        }
+        double meanTarget = targetSum / samples;
+        double meanDelayMs = delaySum / samples / MS;
+        assertTrue("Mean target " + meanTarget, meanTarget > 600000 && meanTarget < 1050000);
+        assertTrue("Mean queue delay " + meanDelayMs, meanDelayMs < 150);
+    }
+
+    @Test
+    public void followsCapacityDrop() {
+        Link link = new Link(1000000, 3000000, 2000000);
+        for (int ms = 0; ms < 20000; ms++) link.step();
+        assertTrue("Target before the drop " + link.estimator.getTargetBitrate(), link.estimator.getTargetBitrate() > 1200000);
+
+        link.capacityBps = 600000;
+        for (int ms = 0; ms < 5000; ms++) link.step();
+        assertTrue("Target after the drop " + link.estimator.getTargetBitrate(), link.estimator.getTargetBitrate() < 650000);
+        for (int ms = 0; ms < 10000; ms++) link.step();
+        assertTrue("Queue delay after the drop " + link.lastQueueDelayNs / MS, link.lastQueueDelayNs < 200 * MS);
+    }
+
+    @Test
+    public void feedbackRoundTrip() {
+        TransportFeedbackBuilder builder = new TransportFeedbackBuilder();
+        // Wraps around the 16 bits sequence, 65535 is lost
+        builder.onPacket(65533, 1000000000L);
+        builder.onPacket(65534, 1002000000L);
+        builder.onPacket(0, 1005000000L);
+        byte[] buffer = new byte[TransportFeedback.HEADER_LENGTH + 2 * TransportFeedback.MAX_PACKETS];
+        int length = builder.write(buffer, 7, 9);
+        assertFalse(builder.hasPendingPackets());
+
+        List<TransportFeedback.Feedback> feedbacks = TransportFeedback.parse(buffer, length);
+        assertEquals(1, feedbacks.size());
+        TransportFeedback.Feedback feedback = feedbacks.get(0);
+        assertEquals(9, feedback.mediaSsrc);
+        assertEquals(65533, feedback.baseSequence);
+        assertEquals(1000000, feedback.referenceUs);
+        assertArrayEquals(new long[] {0, 2000, -1, 5000}, feedback.arrivalUs);
+    }
+}
@@ -0,0 +1,108 @@
+package net.verdx.libstreaming.metrics;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Registro de metricas: los contadores no pierden cuentas entre hilos, los percentiles quedan
+ * dentro del doble del valor real y las fuentes solo se leen mientras estan registradas.
+ */
+public class MetricsRegistryTest {
+
+    private static final String PREFIX = "test.";
+
+    @After
+    public void tearDown() {
+        MetricsRegistry.getInstance().unregister(PREFIX + "source");
+        MetricsRegistry.getInstance().unregister(PREFIX + "gauge");
+        MetricsRegistry.getInstance().remove(PREFIX);
+    }
+
+    @Test
+    public void countersAreExactAcrossThreads() throws Exception {
+        final Counter counter = MetricsRegistry.getInstance().counter(PREFIX + "packets");
+        assertSame(counter, MetricsRegistry.getInstance().counter(PREFIX + "packets"));
+
+        int threads = 8;
+        final int increments = 100000;
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> {
+                for (int j = 0; j < increments; j++) counter.increment();
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) worker.join();
+
+        assertEquals((long) threads * increments, MetricsRegistry.getInstance().snapshot().getCounter(PREFIX + "packets"));
+    }
+
+    @Test
+    public void quantilesWithinTwiceTheValue() {
+        Histogram histogram = MetricsRegistry.getInstance().histogram(PREFIX + "delay_us");
+        for (int value = 1; value <= 1000; value++) histogram.record(value);
+
+        Histogram.Snapshot snapshot = MetricsRegistry.getInstance().snapshot().getHistogram(PREFIX + "delay_us");
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500.5, snapshot.getMean(), 0.001);
+        assertEquals(1000, snapshot.getMax());
+        long[] expected = {500, 900, 990};
+        double[] quantiles = {0.5, 0.9, 0.99};
+        for (int i = 0; i < quantiles.length; i++) {
+            long quantile = snapshot.getQuantile(quantiles[i]);
+            assertTrue(quantiles[i] + " -> " + quantile, quantile >= expected[i] && quantile <= 2 * expected[i]);
+        }
+        assertEquals(1000, snapshot.getQuantile(1));
+    }
+
+    @Test
+    public void emptyHistogramsAreLeftOut() {
+        MetricsRegistry.getInstance().histogram(PREFIX + "empty");
+        assertNull(MetricsRegistry.getInstance().snapshot().getHistogram(PREFIX + "empty"));
+    }
+
+    @Test
+    public void ratesComeFromTwoSnapshots() throws Exception {
+        Counter counter = MetricsRegistry.getInstance().counter(PREFIX + "frames");
+        MetricsSnapshot before = MetricsRegistry.getInstance().snapshot();
+        counter.add(30);
+        Thread.sleep(100);
+        MetricsSnapshot after = MetricsRegistry.getInstance().snapshot();
+
+        double rate = after.getRate(PREFIX + "frames", before);
+        assertTrue("rate " + rate, rate > 0 && rate <= 300);
+        assertEquals(0, after.getRate(PREFIX + "frames", after), 0);
+    }
+
+    @Test
+    public void sourcesAreReadUntilUnregistered() {
+        final int[] collected = {0};
+        MetricsRegistry.getInstance().register(PREFIX + "source", gauges -> {
+            collected[0]++;
+            gauges.put("queue", 3.0);
+            gauges.put("rtt_ms", 12.5);
+        });
+        MetricsRegistry.getInstance().register(PREFIX + "gauge", () -> 7);
+        assertEquals(0, collected[0]);
+
+        MetricsSnapshot snapshot = MetricsRegistry.getInstance().snapshot();
+        assertEquals(1, collected[0]);
+        assertEquals(3.0, snapshot.getGauge(PREFIX + "source.queue"), 0);
+        assertEquals(7.0, snapshot.getGauge(PREFIX + "gauge"), 0);
+
+        String parameters = snapshot.toParameters();
+        assertTrue(parameters, parameters.contains(PREFIX + "source.queue: 3\r\n"));
+        assertTrue(parameters, parameters.contains(PREFIX + "source.rtt_ms: 12.500\r\n"));
+
+        MetricsRegistry.getInstance().unregister(PREFIX + "source");
+        snapshot = MetricsRegistry.getInstance().snapshot();
+        assertEquals(1, collected[0]);
+        assertTrue(Double.isNaN(snapshot.getGauge(PREFIX + "source.queue")));
+    }
+}
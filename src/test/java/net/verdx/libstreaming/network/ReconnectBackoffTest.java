@@ -0,0 +1,59 @@
+package net.verdx.libstreaming.network;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Esperas entre reintentos de conexion: crecen hasta el maximo, cada una con su parte aleatoria,
+ * y frente al sondeo fijo de cada 10 s un vecino caido recibe muchos menos intentos.
+ */
+public class ReconnectBackoffTest {
+
+    private static final long BASE_MS = 500;
+    private static final long MAX_MS = 30000;
+
+    @Test
+    public void growsWithJitterUpToTheMaximum() {
+        ReconnectBackoff backoff = new ReconnectBackoff(BASE_MS, MAX_MS, new Random(1));
+        long ceiling = BASE_MS;
+        for (int attempt = 0; attempt < 40; attempt++) {
+            long delay = backoff.nextDelayMs();
+            assertTrue("Attempt " + attempt + " waits " + delay, delay >= ceiling / 2 && delay <= ceiling);
+            ceiling = Math.min(ceiling * 2, MAX_MS);
+        }
+        assertEquals(40, backoff.getAttempts());
+
+        backoff.reset();
+        assertTrue(backoff.nextDelayMs() <= BASE_MS);
+    }
+
+    @Test
+    public void clientsLosingTheNetworkAtOnceSpreadTheirRetries() {
+        Random random = new Random(7);
+        int clients = 20;
+        long[] firstRetry = new long[clients];
+        for (int i = 0; i < clients; i++) {
+            firstRetry[i] = new ReconnectBackoff(BASE_MS, MAX_MS, random).nextDelayMs();
+        }
+        long min = Long.MAX_VALUE, max = 0;
+        for (long delay : firstRetry) {
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue("Retries between " + min + " and " + max + " ms", max - min > BASE_MS / 4);
+    }
+
+    @Test
+    public void deadPeerGetsFewerAttempts() {
+        ReconnectBackoff backoff = new ReconnectBackoff(BASE_MS, MAX_MS, new Random(3));
+        long hourMs = 3600 * 1000;
+        int attempts = 0;
+        long elapsed = 0;
+        while ((elapsed += backoff.nextDelayMs()) < hourMs) attempts++;
+        long polledAttempts = hourMs / 10000;
+        assertTrue(attempts + " attempts in an hour", attempts < polledAttempts / 2);
+    }
+}
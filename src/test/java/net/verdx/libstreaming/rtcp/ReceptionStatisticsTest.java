@@ -0,0 +1,39 @@
+package net.verdx.libstreaming.rtcp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Jitter entre llegadas (RFC 3550 A.8) de una fuente que llega a ritmo constante: tiene que
+ * quedarse en cero tambien cuando el timestamp RTP da la vuelta a los 32 bits.
+ */
+public class ReceptionStatisticsTest {
+
+    private static final int CLOCK_RATE = 90000;
+    private static final long FRAME_NS = 1000000000L / 30;
+    private static final long FRAME_TS = CLOCK_RATE / 30;
+
+    /** Feeds packets of a steady 30 fps source, starting at the given RTP timestamp. */
+    private static ReceptionStatistics receive(long firstTimestamp, int packets) {
+        ReceptionStatistics statistics = new ReceptionStatistics(1, CLOCK_RATE);
+        long arrivalNs = 5000000000L;
+        for (int i = 0; i < packets; i++) {
+            long timestamp = (firstTimestamp + i * FRAME_TS) & 0xFFFFFFFFL;
+            statistics.onPacket(i, timestamp, arrivalNs + i * FRAME_NS);
+        }
+        return statistics;
+    }
+
+    @Test
+    public void steadySourceHasNoJitter() {
+        assertEquals(0, receive(1000, 100).getJitter());
+    }
+
+    @Test
+    public void timestampWrapDoesNotAddJitter() {
+        ReceptionStatistics statistics = receive(0xFFFFFFFFL - 50 * FRAME_TS, 100);
+        assertEquals(0, statistics.getJitter());
+        assertEquals(0, statistics.getJitterMs(), 0);
+    }
+}
@@ -0,0 +1,43 @@
+package net.verdx.libstreaming.rtp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Prioridad estricta del {@link EgressScheduler}: los paquetes de mayor prioridad de otro emisor
+ * bloquean, los del propio emisor no, porque salen detras en su misma cola.
+ */
+public class EgressSchedulerTest {
+
+    @Test
+    public void ownQueueDoesNotBlock() {
+        EgressScheduler.Sender video = EgressScheduler.getInstance().newSender();
+        video.enqueued(EgressScheduler.PRIORITY_VIDEO_ENHANCEMENT);
+        video.enqueued(EgressScheduler.PRIORITY_VIDEO_BASE);
+        video.enqueued(EgressScheduler.PRIORITY_VIDEO_BASE);
+        try {
+            assertFalse(video.isBlocked(EgressScheduler.PRIORITY_VIDEO_ENHANCEMENT, System.nanoTime()));
+        } finally {
+            video.dequeued(EgressScheduler.PRIORITY_VIDEO_ENHANCEMENT);
+            video.dequeued(EgressScheduler.PRIORITY_VIDEO_BASE);
+            video.dequeued(EgressScheduler.PRIORITY_VIDEO_BASE);
+        }
+    }
+
+    @Test
+    public void otherSendersBlockUntilTheyStall() {
+        EgressScheduler.Sender audio = EgressScheduler.getInstance().newSender();
+        EgressScheduler.Sender video = EgressScheduler.getInstance().newSender();
+        audio.enqueued(EgressScheduler.PRIORITY_AUDIO);
+        try {
+            long now = System.nanoTime();
+            assertTrue(video.isBlocked(EgressScheduler.PRIORITY_VIDEO_BASE, now));
+            assertFalse(audio.isBlocked(EgressScheduler.PRIORITY_AUDIO, now));
+            assertFalse(video.isBlocked(EgressScheduler.PRIORITY_VIDEO_BASE, now + EgressScheduler.MAX_WAIT_NS));
+        } finally {
+            audio.dequeued(EgressScheduler.PRIORITY_AUDIO);
+        }
+        assertFalse(video.isBlocked(EgressScheduler.PRIORITY_VIDEO_BASE, System.nanoTime()));
+    }
+}
@@ -0,0 +1,63 @@
+package net.verdx.libstreaming.rtp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reordenacion del {@link JitterBuffer} en tiempo simulado: un paquete que espera a uno perdido
+ * sale cuando vence el retardo objetivo, sin que tenga que llegar el siguiente.
+ */
+public class JitterBufferTest {
+
+    private static final long MS = 1000000L;
+
+    private static RtpPacket packet(int seq) {
+        byte[] data = new byte[RtpPacket.FIXED_HEADER_LENGTH + 1];
+        data[0] = (byte) 0x80;
+        data[1] = 96;
+        data[2] = (byte) (seq >> 8);
+        data[3] = (byte) seq;
+        return RtpPacket.parse(data, data.length);
+    }
+
+    @Test
+    public void packetsInOrderAreReleasedAtOnce() {
+        JitterBuffer buffer = new JitterBuffer(64);
+        for (int seq = 0; seq < 3; seq++) {
+            assertTrue(buffer.insert(packet(seq), 0));
+            assertEquals(seq, buffer.poll(0).getSequenceNumber());
+        }
+        assertEquals(-1, buffer.getReleaseDelayNs(0));
+    }
+
+    @Test
+    public void packetBehindAGapWaitsTheTargetDelay() {
+        JitterBuffer buffer = new JitterBuffer(64);
+        buffer.setJitterMs(10);
+        long delayNs = buffer.getTargetDelayMs() * MS;
+        assertEquals(40, buffer.getTargetDelayMs());
+
+        buffer.insert(packet(0), 0);
+        assertNotNull(buffer.poll(0));
+        buffer.insert(packet(2), 0);
+
+        assertNull(buffer.poll(MS));
+        assertEquals(delayNs - MS, buffer.getReleaseDelayNs(MS));
+        assertEquals(0, buffer.getReleaseDelayNs(delayNs));
+        assertEquals(2, buffer.poll(delayNs).getSequenceNumber());
+        assertEquals(1, buffer.getLostCount());
+        assertEquals(-1, buffer.getReleaseDelayNs(delayNs));
+    }
+
+    @Test
+    public void fullBufferDoesNotWait() {
+        JitterBuffer buffer = new JitterBuffer(2);
+        buffer.insert(packet(0), 0);
+        buffer.poll(0);
+        buffer.insert(packet(2), 0);
+        assertTrue(buffer.getReleaseDelayNs(0) > 0);
+        buffer.insert(packet(3), 0);
+        assertEquals(0, buffer.getReleaseDelayNs(0));
+    }
+}
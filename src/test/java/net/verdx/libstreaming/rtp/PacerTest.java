@@ -0,0 +1,97 @@
+package net.verdx.libstreaming.rtp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Envia rafagas sinteticas de un IDR por el {@link Pacer} en tiempo simulado y mide cuando sale
+ * cada paquete: el principio del keyframe sale de golpe y el resto se reparte al ritmo de pacing.
+ */
+public class PacerTest {
+
+    private static final long MS = 1000000L;
+    private static final int PACKET_SIZE = 1200;
+    private static final int PACKETS = 50;
+    private static final int TARGET_BITRATE = 2000000;
+
+    /** Sends a burst queued at startNs as soon as the pacer lets each packet go. */
+    private static long[] sendBurst(Pacer pacer, long startNs, boolean keyframe) {
+        long[] sendTimes = new long[PACKETS];
+        long now = startNs;
+        if (keyframe) pacer.onKeyframe(now);
+        for (int i = 0; i < PACKETS; i++) {
+            long delay;
+            while ((delay = pacer.getDelayNs(now)) > 0) now += delay;
+            sendTimes[i] = now;
+            pacer.onPacketSent(PACKET_SIZE, now);
+        }
+        return sendTimes;
+    }
+
+    private static int sentAt(long[] sendTimes, long timeNs) {
+        int count = 0;
+        for (long sendTime : sendTimes) if (sendTime == timeNs) count++;
+        return count;
+    }
+
+    @Test
+    public void keyframeStartGoesAtOnce() {
+        Pacer pacer = new Pacer(TARGET_BITRATE, 0);
+        long[] sendTimes = sendBurst(pacer, 0, true);
+
+        int allowance = pacer.getKeyframeAllowance() + Pacer.BURST;
+        int immediate = sentAt(sendTimes, 0);
+        assertEquals(allowance / PACKET_SIZE + 1, immediate);
+
+        // The rest of the burst is spread at the pacing rate
+        double rate = Pacer.PACING_FACTOR * TARGET_BITRATE / 8;
+        long gap = (long) (PACKET_SIZE / rate * 1e9);
+        for (int i = immediate + 1; i < PACKETS; i++) {
+            long spread = sendTimes[i] - sendTimes[i - 1];
+            assertTrue("Gap " + spread + " after packet " + i, spread >= gap - 1000 && spread <= gap + 1000);
+        }
+        long expected = (long) ((PACKETS * PACKET_SIZE - allowance - PACKET_SIZE) / rate * 1e9);
+        long total = sendTimes[PACKETS - 1] - sendTimes[0];
+        assertTrue("Spread " + total / MS + " ms", Math.abs(total - expected) < 2 * gap);
+    }
+
+    @Test
+    public void allowanceShortensTheBurst() {
+        long withKeyframe = spread(sendBurst(new Pacer(TARGET_BITRATE, 0), 0, true));
+        long withoutKeyframe = spread(sendBurst(new Pacer(TARGET_BITRATE, 0), 0, false));
+        double rate = Pacer.PACING_FACTOR * TARGET_BITRATE / 8;
+        long allowanceNs = (long) (new Pacer(TARGET_BITRATE, 0).getKeyframeAllowance() / rate * 1e9);
+        assertTrue(withKeyframe < withoutKeyframe);
+        assertTrue(Math.abs(withoutKeyframe - withKeyframe - allowanceNs) < 2 * MS);
+    }
+
+    @Test
+    public void allowanceDoesNotAccumulate() {
+        Pacer pacer = new Pacer(TARGET_BITRATE, 0);
+        long[] first = sendBurst(pacer, 0, true);
+        // A long idle period and two keyframe marks do not make the next burst larger
+        long start = first[PACKETS - 1] + 1000 * MS;
+        pacer.onKeyframe(start);
+        long[] second = sendBurst(pacer, start, true);
+        assertEquals(sentAt(first, 0), sentAt(second, start));
+        assertEquals(spread(first), spread(second));
+    }
+
+    @Test
+    public void followsTargetBitrate() {
+        Pacer pacer = new Pacer(TARGET_BITRATE, 0);
+        long fast = spread(sendBurst(pacer, 0, false));
+        pacer = new Pacer(TARGET_BITRATE / 2, 0);
+        long slow = spread(sendBurst(pacer, 0, false));
+        assertTrue("Spread " + fast / MS + " ms at the full rate, " + slow / MS + " ms at half", slow > 1.9 * fast);
+
+        // Without a target the pacer still sends at the minimum rate
+        pacer.setTargetBitrate(0);
+        assertEquals(Pacer.MIN_PACING_RATE, pacer.getRate(), 0);
+    }
+
+    private static long spread(long[] sendTimes) {
+        return sendTimes[sendTimes.length - 1] - sendTimes[0];
+    }
+}
@@ -0,0 +1,76 @@
+package net.verdx.libstreaming.rtsp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Separacion de las tramas RTCP intercaladas y los mensajes RTSP que manda un espectador por
+ * su conexion, con las lecturas de TCP partidas en cualquier punto.
+ */
+public class InterleavedReaderTest {
+
+    private static final String KEEP_ALIVE = "GET_PARAMETER rtsp://10.0.0.1:1234/ RTSP/1.0\r\nCSeq: 7\r\nSession: 42\r\n\r\n";
+    private static final String WITH_BODY = "SET_PARAMETER rtsp://10.0.0.1:1234/ RTSP/1.0\r\nCSeq: 8\r\nContent-Length: 5\r\n\r\na: 1\n";
+
+    private final List<Integer> mChannels = new ArrayList<>();
+    private final List<byte[]> mFrames = new ArrayList<>();
+    private final InterleavedReader mReader = new InterleavedReader((id, buffer, offset, length) -> {
+        mChannels.add(id);
+        mFrames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+    });
+
+    private static byte[] frame(int channel, int length) {
+        byte[] frame = new byte[4 + length];
+        frame[0] = '$';
+        frame[1] = (byte) channel;
+        frame[2] = (byte) (length >> 8);
+        frame[3] = (byte) length;
+        for (int i = 0; i < length; i++) frame[4 + i] = (byte) i;
+        return frame;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) out.write(part, 0, part.length);
+        return out.toByteArray();
+    }
+
+    private List<String> read(byte[] data, int from, int to) {
+        List<String> messages = new ArrayList<>();
+        for (byte[] message : mReader.read(Arrays.copyOfRange(data, from, to), to - from)) {
+            messages.add(new String(message, StandardCharsets.UTF_8));
+        }
+        return messages;
+    }
+
+    @Test
+    public void framesAndMessagesInOneRead() {
+        byte[] data = concat(frame(1, 52), KEEP_ALIVE.getBytes(StandardCharsets.UTF_8), frame(3, 300),
+                WITH_BODY.getBytes(StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList(KEEP_ALIVE, WITH_BODY), read(data, 0, data.length));
+        assertEquals(Arrays.asList(1, 3), mChannels);
+        assertArrayEquals(Arrays.copyOfRange(frame(3, 300), 4, 304), mFrames.get(1));
+    }
+
+    @Test
+    public void splitAtEveryByte() {
+        byte[] data = concat(frame(1, 60), KEEP_ALIVE.getBytes(StandardCharsets.UTF_8), frame(1, 1400),
+                WITH_BODY.getBytes(StandardCharsets.UTF_8), frame(3, 28));
+        for (int split = 1; split < data.length; split++) {
+            mChannels.clear();
+            mFrames.clear();
+            List<String> messages = read(data, 0, split);
+            messages.addAll(read(data, split, data.length));
+            assertEquals("Split at " + split, Arrays.asList(KEEP_ALIVE, WITH_BODY), messages);
+            assertEquals("Split at " + split, Arrays.asList(1, 1, 3), mChannels);
+            assertEquals(1400, mFrames.get(1).length);
+        }
+    }
+}
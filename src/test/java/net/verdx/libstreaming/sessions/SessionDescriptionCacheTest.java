@@ -0,0 +1,118 @@
+package net.verdx.libstreaming.sessions;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * DESCRIBE del streaming local con la cache de descripciones y una configuracion simulada que
+ * tarda lo que la prueba del encoder: diez espectadores que llegan a la vez configuran una sola
+ * vez, y un cambio de configuracion o una invalidacion vuelven a configurar. Los tiempos hasta la
+ * respuesta se miden en SessionDescriptionCacheBenchmark, en el modulo benchmark.
+ */
+public class SessionDescriptionCacheTest {
+
+    private static final long CONFIGURE_MS = 80;
+    private static final int VIEWERS = 10;
+    private static final String KEY = "v1:640x480@30,1000000;a5:16000,32000";
+
+    private final AtomicInteger mConfigurations = new AtomicInteger();
+
+    private SessionDescriptionCache.Loader configure(final String media) {
+        return () -> {
+            mConfigurations.incrementAndGet();
+            try {
+                Thread.sleep(CONFIGURE_MS);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return new SessionDescriptionCache.Description(media, null);
+        };
+    }
+
+    /** Media description each viewer gets, all of them requesting at once. */
+    private String[] describeAtOnce(final SessionDescriptionCache cache, final UUID id) throws InterruptedException {
+        final String[] responses = new String[VIEWERS];
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < VIEWERS; i++) {
+            final int viewer = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    responses[viewer] = cache.get(id, KEY, configure("m=video 5000 RTP/AVP 96\r\n")).getMediaDescription();
+                } catch (Exception e) {
+                    responses[viewer] = null;
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+        return responses;
+    }
+
+    @Test
+    public void burstConfiguresOnce() throws Exception {
+        SessionDescriptionCache cache = new SessionDescriptionCache();
+        UUID id = UUID.randomUUID();
+
+        // Without the cache each DESCRIBE configured the session, one after the other
+        for (String response : describeAtOnce(cache, id)) {
+            assertEquals("m=video 5000 RTP/AVP 96\r\n", response);
+        }
+        assertEquals(1, mConfigurations.get());
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("m=video 5000 RTP/AVP 96\r\n", cache.get(id, KEY, configure("unused")).getMediaDescription());
+        }
+        assertEquals(1, mConfigurations.get());
+
+        cache.invalidate(id);
+        describeAtOnce(cache, id);
+        assertEquals(2, mConfigurations.get());
+    }
+
+    @Test
+    public void configurationChangeMisses() throws Exception {
+        SessionDescriptionCache cache = new SessionDescriptionCache();
+        UUID id = UUID.randomUUID();
+        assertEquals("a", cache.get(id, KEY, configure("a")).getMediaDescription());
+        assertTrue(cache.contains(id, KEY));
+
+        // A new quality or encoder is a new key, it replaces the entry of the streaming
+        String otherKey = "v1:1280x720@30,2000000;a5:16000,32000";
+        assertFalse(cache.contains(id, otherKey));
+        assertEquals("b", cache.get(id, otherKey, configure("b")).getMediaDescription());
+        assertFalse(cache.contains(id, KEY));
+
+        cache.invalidate(id);
+        assertFalse(cache.contains(id, otherKey));
+        assertEquals("c", cache.get(id, otherKey, configure("c")).getMediaDescription());
+        assertEquals(3, mConfigurations.get());
+    }
+
+    @Test
+    public void failureIsNotCached() throws Exception {
+        SessionDescriptionCache cache = new SessionDescriptionCache();
+        UUID id = UUID.randomUUID();
+        try {
+            cache.get(id, KEY, () -> {
+                throw new IOException("Camera in use");
+            });
+            fail();
+        } catch (IOException e) {
+            assertEquals("Camera in use", e.getMessage());
+        }
+        assertFalse(cache.contains(id, KEY));
+        assertEquals("a", cache.get(id, KEY, configure("a")).getMediaDescription());
+    }
+}
@@ -0,0 +1,72 @@
+package net.verdx.libstreaming.threads;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Vencimiento de los plazos de la rueda de temporizadores con la que el servidor RTSP cierra
+ * las sesiones sin actividad: renovar, cancelar, plazos de mas de una vuelta y pausas largas.
+ */
+public class TimerWheelTest {
+
+    private static final long TICK_MS = 1000;
+    private static final int SLOTS = 8;
+
+    @Test
+    public void expiresAtItsDeadline() {
+        TimerWheel<String> wheel = new TimerWheel<>(TICK_MS, SLOTS, 0);
+        wheel.schedule("a", 3000);
+        wheel.schedule("b", 5500);
+        assertTrue(wheel.advance(2999).isEmpty());
+        assertEquals(Collections.singletonList("a"), wheel.advance(3000));
+        assertFalse(wheel.contains("a"));
+        // Rounded up, it never expires early
+        assertTrue(wheel.advance(5000).isEmpty());
+        assertEquals(Collections.singletonList("b"), wheel.advance(6000));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void rescheduleAndCancel() {
+        TimerWheel<String> wheel = new TimerWheel<>(TICK_MS, SLOTS, 0);
+        wheel.schedule("a", 2000);
+        wheel.schedule("b", 2000);
+        // A keep-alive moves the deadline, the old one is gone
+        wheel.schedule("a", 4000);
+        assertTrue(wheel.cancel("b"));
+        assertFalse(wheel.cancel("b"));
+        assertTrue(wheel.advance(3000).isEmpty());
+        assertEquals(Collections.singletonList("a"), wheel.advance(4000));
+    }
+
+    @Test
+    public void deadlinesBeyondOneRound() {
+        TimerWheel<String> wheel = new TimerWheel<>(TICK_MS, SLOTS, 0);
+        // 60 s with 8 slots, the entry goes past its slot several times before expiring
+        wheel.schedule("session", 60000);
+        for (long now = 1000; now < 60000; now += 1000) {
+            assertTrue("Expired at " + now, wheel.advance(now).isEmpty());
+        }
+        assertEquals(Collections.singletonList("session"), wheel.advance(60000));
+    }
+
+    @Test
+    public void longPause() {
+        TimerWheel<String> wheel = new TimerWheel<>(TICK_MS, SLOTS, 0);
+        wheel.schedule("a", 2000);
+        wheel.schedule("b", 7000);
+        wheel.schedule("c", 30000);
+        wheel.schedule("d", 90000);
+        // Nobody advanced the wheel for 30 s, every slot is visited once
+        List<String> expired = wheel.advance(30000);
+        Collections.sort(expired);
+        assertEquals(Arrays.asList("a", "b", "c"), expired);
+        assertTrue(wheel.contains("d"));
+        assertEquals(Collections.singletonList("d"), wheel.advance(90000));
+    }
+}
@@ -0,0 +1,272 @@
+package net.verdx.libstreaming.threads.selectors;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Envio de un streaming a veinte vecinos por el selector de los clientes: ANNOUNCE, dos SETUP y
+ * RECORD a cada uno, contra servidores locales que contestan cada peticion un RTT simulado
+ * despues de recibirla. Con un Socket bloqueante por cliente los vecinos se atendian uno tras
+ * otro; con el selector todos reciben su primera peticion antes de que conteste ninguno, y las
+ * peticiones encadenadas sin esperar (pipelining) llegan juntas. Un servidor que acepta la
+ * conexion y no contesta se da por perdido.
+ */
+public class RTSPClientSelectorTest {
+
+    private static final long RTT_MS = 40;
+    private static final int PEERS = 20;
+    private static final String[] REQUESTS = {"ANNOUNCE", "SETUP", "SETUP", "RECORD"};
+
+    private final List<ServerSocket> mServers = new ArrayList<>();
+    private final ScheduledExecutorService mAnswers = Executors.newScheduledThreadPool(4);
+
+    @After
+    public void tearDown() throws IOException {
+        for (ServerSocket server : mServers) server.close();
+        mAnswers.shutdownNow();
+    }
+
+    /**
+     * A server answering each request one RTT after it arrives, a '$' frame before the answer
+     * if asked. With reverse it waits for a batch of requests and answers the last one first.
+     * With a gate it counts it down on the first request, and waits for it to reach zero before
+     * answering.
+     */
+    private int startServer(final boolean sendFrame, final int reverse, final CountDownLatch gate) throws IOException {
+        final ServerSocket server = new ServerSocket(0);
+        mServers.add(server);
+        Thread thread = new Thread(() -> {
+            try (Socket socket = server.accept()) {
+                InputStream input = socket.getInputStream();
+                final OutputStream output = socket.getOutputStream();
+                List<String> batch = new ArrayList<>();
+                boolean first = true;
+                String request;
+                while ((request = readRequest(input)) != null) {
+                    if (gate != null && first) {
+                        first = false;
+                        gate.countDown();
+                        if (!gate.await(5, TimeUnit.SECONDS)) return;
+                    }
+                    batch.add(request.replaceAll("(?s).*CSeq: (\\d+).*", "$1"));
+                    if (batch.size() < reverse) continue;
+                    for (int i = batch.size() - 1; i >= 0; i--) {
+                        final String cseq = batch.get(i);
+                        mAnswers.schedule(() -> answer(output, sendFrame, cseq), RTT_MS, TimeUnit.MILLISECONDS);
+                    }
+                    batch.clear();
+                }
+            } catch (IOException | InterruptedException ignored) {
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return server.getLocalPort();
+    }
+
+    /** A server that accepts the connection and never answers. */
+    private int startSilentServer() throws IOException {
+        final ServerSocket server = new ServerSocket(0);
+        mServers.add(server);
+        Thread thread = new Thread(() -> {
+            try (Socket socket = server.accept()) {
+                InputStream input = socket.getInputStream();
+                while (readRequest(input) != null) ;
+            } catch (IOException ignored) {
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return server.getLocalPort();
+    }
+
+    private static void answer(OutputStream output, boolean sendFrame, String cseq) {
+        try {
+            synchronized (output) {
+                if (sendFrame) output.write(new byte[]{'$', 1, 0, 3, 7, 8, 9});
+                output.write(("RTSP/1.0 200 OK\r\nCSeq: " + cseq + "\r\nContent-Length: " + (cseq.length() + 2) + "\r\n\r\nok" + cseq)
+                        .getBytes(StandardCharsets.UTF_8));
+                output.flush();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static String readRequest(InputStream input) throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        int b, matched = 0;
+        while ((b = input.read()) != -1) {
+            request.write(b);
+            matched = (b == '\r' || b == '\n') ? matched + 1 : 0;
+            if (matched == 4) return request.toString("UTF-8");
+        }
+        return null;
+    }
+
+    private static String request(String method, int cseq) {
+        return method + " rtsp://127.0.0.1/stream RTSP/1.0\r\nCSeq: " + cseq + "\r\nContent-Length: 0\r\n\r\n";
+    }
+
+    /** Listener that sends the requests of a push, one after the other or all at once. */
+    private static class Push implements RTSPClientSelector.Listener {
+        final CountDownLatch done;
+        final boolean pipelined;
+        final AtomicInteger answered = new AtomicInteger();
+        final AtomicInteger frames = new AtomicInteger();
+        volatile IOException error;
+
+        Push(CountDownLatch done, boolean pipelined) {
+            this.done = done;
+            this.pipelined = pipelined;
+        }
+
+        void send(final RTSPClientSelector.Connection connection, final int step) {
+            final int cseq = connection.nextCSeq();
+            connection.request(cseq, request(REQUESTS[step], cseq), response -> {
+                String text = new String(response, StandardCharsets.UTF_8);
+                // Each answer carries its CSeq in the body too, it must be the one of its request
+                if (!text.startsWith("RTSP/1.0 200") || !text.endsWith("ok" + cseq)) {
+                    error = new IOException("Unexpected response to " + cseq + ": " + text);
+                }
+                if (answered.incrementAndGet() == REQUESTS.length) done.countDown();
+                else if (!pipelined) send(connection, step + 1);
+            });
+        }
+
+        @Override
+        public void onConnected(RTSPClientSelector.Connection connection) {
+            if (!pipelined) {
+                send(connection, 0);
+                return;
+            }
+            for (int step = 0; step < REQUESTS.length; step++) send(connection, step);
+        }
+
+        @Override
+        public void onFrame(RTSPClientSelector.Connection connection, int channelIdentifier, byte[] buffer, int offset, int length) {
+            if (channelIdentifier == 1 && length == 3 && buffer[offset] == 7) frames.incrementAndGet();
+        }
+
+        @Override
+        public void onClosed(RTSPClientSelector.Connection connection, IOException cause) {
+            error = cause;
+            done.countDown();
+        }
+    }
+
+    /**
+     * Pushes to all the peers at once. Their servers do not answer until every one has received
+     * its first request, so a client that waited for a peer before asking the next never ends.
+     */
+    private void pushToPeers(boolean pipelined) throws Exception {
+        CountDownLatch allAsked = new CountDownLatch(PEERS);
+        int[] ports = new int[PEERS];
+        for (int i = 0; i < PEERS; i++) ports[i] = startServer(false, 1, allAsked);
+
+        CountDownLatch done = new CountDownLatch(PEERS);
+        List<Push> pushes = new ArrayList<>();
+        List<RTSPClientSelector.Connection> connections = new ArrayList<>();
+        for (int i = 0; i < PEERS; i++) {
+            Push push = new Push(done, pipelined);
+            pushes.add(push);
+            connections.add(RTSPClientSelector.getInstance().connect("127.0.0.1", ports[i], push));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, allAsked.getCount());
+        for (Push push : pushes) {
+            assertNull(push.error);
+            assertEquals(REQUESTS.length, push.answered.get());
+        }
+        for (RTSPClientSelector.Connection connection : connections) connection.close();
+    }
+
+    @Test
+    public void pushToPeersInParallel() throws Exception {
+        pushToPeers(false);
+        pushToPeers(true);
+    }
+
+    @Test
+    public void silentServerTimesOut() throws Exception {
+        int port = startSilentServer();
+        final CountDownLatch closed = new CountDownLatch(1);
+        final AtomicReference<IOException> closedBy = new AtomicReference<>();
+        RTSPClientSelector.Connection connection = RTSPClientSelector.getInstance().connect("127.0.0.1", port,
+                new RTSPClientSelector.Listener() {
+                    @Override
+                    public void onConnected(RTSPClientSelector.Connection connection) {
+                        int cseq = connection.nextCSeq();
+                        connection.request(cseq, request("ANNOUNCE", cseq), response -> fail());
+                    }
+
+                    @Override
+                    public void onFrame(RTSPClientSelector.Connection connection, int channelIdentifier, byte[] buffer, int offset, int length) {}
+
+                    @Override
+                    public void onClosed(RTSPClientSelector.Connection connection, IOException cause) {
+                        closedBy.set(cause);
+                        closed.countDown();
+                    }
+                }, 300);
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertTrue(String.valueOf(closedBy.get()), closedBy.get().getMessage().startsWith("Timeout waiting for a response"));
+        assertTrue(connection.isClosed());
+    }
+
+    @Test
+    public void responsesMatchedByCSeq() throws Exception {
+        // The server answers the pipelined requests in reverse order
+        int port = startServer(false, REQUESTS.length, null);
+        CountDownLatch done = new CountDownLatch(1);
+        Push push = new Push(done, true);
+        RTSPClientSelector.Connection connection = RTSPClientSelector.getInstance().connect("127.0.0.1", port, push);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNull(push.error);
+        assertEquals(REQUESTS.length, push.answered.get());
+        connection.close();
+    }
+
+    @Test
+    public void responseWithoutCSeqGoesToTheOldest() {
+        byte[] withCSeq = "RTSP/1.0 200 OK\r\nServer: x\r\ncseq:  12\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+        byte[] withoutCSeq = "RTSP/1.0 200 OK\r\nContent-Length: 9\r\n\r\nCSeq: 3\r\n".getBytes(StandardCharsets.UTF_8);
+        assertEquals(12, RTSPClientSelector.parseCSeq(withCSeq));
+        // A CSeq in the body is not a header
+        assertEquals(-1, RTSPClientSelector.parseCSeq(withoutCSeq));
+    }
+
+    @Test
+    public void framesAndResponsesOnOneConnection() throws Exception {
+        int port = startServer(true, 1, null);
+        CountDownLatch done = new CountDownLatch(1);
+        Push push = new Push(done, false);
+        RTSPClientSelector.Connection connection = RTSPClientSelector.getInstance().connect("127.0.0.1", port, push);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNull(push.error);
+        assertTrue(connection.isConnected());
+        // The RTCP interleaved before each answer is not taken for a response
+        assertEquals(REQUESTS.length, push.frames.get());
+
+        connection.close();
+        assertTrue(connection.isClosed());
+        assertFalse(connection.request(connection.nextCSeq(), request("TEARDOWN", 5), response -> fail()));
+    }
+}